@@ -0,0 +1,13 @@
+package android.content;
+
+import android.content.res.Resources;
+
+/**
+ * Only a type here, the benchmarks don't load brush stamps.
+ */
+public class Context {
+
+    public Resources getResources() {
+        throw new UnsupportedOperationException("No resources off the device");
+    }
+}
@@ -0,0 +1,7 @@
+package android.content.res;
+
+/**
+ * Only a type here, the benchmarks don't load brush stamps.
+ */
+public class Resources {
+}
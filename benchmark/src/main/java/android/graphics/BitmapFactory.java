@@ -0,0 +1,17 @@
+package android.graphics;
+
+import android.content.res.Resources;
+
+/**
+ * Only a type here, the benchmarks don't load brush stamps.
+ */
+public class BitmapFactory {
+
+    public static class Options {
+        public boolean inScaled = true;
+    }
+
+    public static Bitmap decodeResource(Resources res, int id, Options opts) {
+        throw new UnsupportedOperationException("No resources off the device");
+    }
+}
@@ -0,0 +1,47 @@
+package android.opengl;
+
+import java.nio.Buffer;
+
+/**
+ * The GL calls of the paint classes as no-ops, so the benchmarks time the CPU side of a stroke
+ * only. Buffer names are handed out so the paint classes create their buffers once.
+ */
+public class GLES20 {
+
+    public static final int GL_TRIANGLES = 0x0004;
+    public static final int GL_UNSIGNED_SHORT = 0x1403;
+    public static final int GL_FLOAT = 0x1406;
+    public static final int GL_ARRAY_BUFFER = 0x8892;
+    public static final int GL_ELEMENT_ARRAY_BUFFER = 0x8893;
+    public static final int GL_STREAM_DRAW = 0x88E0;
+    public static final int GL_STATIC_DRAW = 0x88E4;
+
+    private static int lastBuffer;
+
+    public static void glGenBuffers(int n, int[] buffers, int offset) {
+        for (int i = 0; i < n; i++) {
+            buffers[offset + i] = ++lastBuffer;
+        }
+    }
+
+    public static void glDeleteBuffers(int n, int[] buffers, int offset) {
+    }
+
+    public static void glBindBuffer(int target, int buffer) {
+    }
+
+    public static void glBufferData(int target, int size, Buffer data, int usage) {
+    }
+
+    public static void glBufferSubData(int target, int offset, int size, Buffer data) {
+    }
+
+    public static void glEnableVertexAttribArray(int index) {
+    }
+
+    public static void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) {
+    }
+
+    public static void glDrawElements(int mode, int count, int type, int offset) {
+    }
+}
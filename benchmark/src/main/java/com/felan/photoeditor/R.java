@@ -0,0 +1,13 @@
+package com.felan.photoeditor;
+
+/**
+ * The resource ids the paint classes refer to.
+ */
+public final class R {
+
+    public static final class drawable {
+        public static final int paint_radial_brush = 1;
+        public static final int paint_elliptical_brush = 2;
+        public static final int paint_neon_brush = 3;
+    }
+}
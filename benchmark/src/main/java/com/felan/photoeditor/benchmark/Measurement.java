@@ -0,0 +1,61 @@
+package com.felan.photoeditor.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Time, collections and allocations of the calling thread between {@link #start()} and
+ * {@link #stop()}. Allocations are only counted on JVMs that report them per thread.
+ */
+class Measurement {
+
+    private long nanos;
+    private long collections;
+    private long collectionMillis;
+    private long allocatedBytes;
+
+    static Measurement start() {
+        Measurement measurement = new Measurement();
+        measurement.read();
+        return measurement;
+    }
+
+    /**
+     * Turns the values read at the start into the differences to now.
+     */
+    Measurement stop() {
+        long startNanos = nanos;
+        long startCollections = collections;
+        long startCollectionMillis = collectionMillis;
+        long startAllocatedBytes = allocatedBytes;
+        read();
+        nanos -= startNanos;
+        collections -= startCollections;
+        collectionMillis -= startCollectionMillis;
+        allocatedBytes -= startAllocatedBytes;
+        return this;
+    }
+
+    String format(String name, long items, String unit) {
+        double seconds = nanos / 1e9;
+        return String.format(Locale.US, "%s: %d %s in %.0f ms, %.2f M %s/s, %.1f MB allocated, %d collections taking %d ms",
+                name, items, unit, seconds * 1000, items / seconds / 1e6, unit,
+                allocatedBytes / (1024.0 * 1024.0), collections, collectionMillis);
+    }
+
+    private void read() {
+        collections = 0;
+        collectionMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionMillis += Math.max(0, collector.getCollectionTime());
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            allocatedBytes = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        nanos = System.nanoTime();
+    }
+}
@@ -0,0 +1,168 @@
+package com.felan.photoeditor.benchmark;
+
+import com.felan.photoeditor.widgets.paint.Brush;
+import com.felan.photoeditor.widgets.paint.Path;
+import com.felan.photoeditor.widgets.paint.Render;
+import com.felan.photoeditor.widgets.paint.RenderState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times the CPU side of painting on a desktop JVM, with the GL calls stubbed out, run with
+ * {@code gradle :benchmark:run --args="..."}.
+ * <pre>
+ * usage: PaintBenchmark [tessellation|strokes] [rounds]
+ *   tessellation   smoothed stroke segments, built up front, through Render.RenderPath
+ *   strokes        touches smoothed into segments the way Input does, through Render.RenderPath
+ *   rounds         times the strokes are painted after the warm up, 10 by default
+ * </pre>
+ * The strokes are the same on every run: {@link #STROKES} random gestures of {@link #TOUCHES}
+ * touches on a 2048 pixels painting, with the brushes in turn at the weight of a mid slider.
+ */
+public class PaintBenchmark {
+
+    private final static int PAINTING_SIZE = 2048;
+    private final static int STROKES = 200;
+    private final static int TOUCHES = 100;
+    private final static int WARM_UP_ROUNDS = 3;
+
+    public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : "tessellation";
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        float[][] gestures = createGestures();
+        Brush[] brushes = new Brush[]{new Brush.Radial(), new Brush.Elliptical(), new Brush.Neon()};
+        switch (mode) {
+            case "tessellation":
+                tessellation(gestures, brushes, rounds);
+                break;
+            case "strokes":
+                strokes(gestures, brushes, rounds);
+                break;
+            default:
+                System.err.println("Unknown benchmark " + mode);
+                System.exit(2);
+        }
+    }
+
+    /**
+     * The stamps and quads of {@link Render} for segments already smoothed, each stroke reset
+     * when done like {@code Painting.commitStroke} does.
+     */
+    private static void tessellation(float[][] gestures, Brush[] brushes, int rounds) {
+        final List<List<Path>> strokes = new ArrayList<>();
+        for (int a = 0; a < gestures.length; a++) {
+            final List<Path> paths = new ArrayList<>();
+            new StrokeInput(0xff000000, getWeight(), new StrokeInput.Output() {
+                @Override
+                public void paintPath(Path path) {
+                    paths.add(path);
+                }
+            }).stroke(gestures[a], brushes[a % brushes.length]);
+            strokes.add(paths);
+        }
+
+        RenderState state = createState();
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            tessellate(strokes, state);
+        }
+        Measurement measurement = Measurement.start();
+        long stamps = 0;
+        for (int round = 0; round < rounds; round++) {
+            stamps += tessellate(strokes, state);
+        }
+        System.out.println(measurement.stop().format("tessellation", stamps, "stamps"));
+    }
+
+    private static long tessellate(List<List<Path>> strokes, RenderState state) {
+        long stamps = 0;
+        for (List<Path> paths : strokes) {
+            for (Path path : paths) {
+                Render.RenderPath(path, state);
+                stamps += state.getCount();
+            }
+            state.reset();
+        }
+        return stamps;
+    }
+
+    /**
+     * Smoothing and tessellation together, the stroke points counted as they reach {@link Render}.
+     */
+    private static void strokes(float[][] gestures, Brush[] brushes, int rounds) {
+        final RenderState state = createState();
+        final long[] points = new long[1];
+        StrokeInput input = new StrokeInput(0xff000000, getWeight(), new StrokeInput.Output() {
+            @Override
+            public void paintPath(Path path) {
+                Render.RenderPath(path, state);
+                points[0] += path.getLength();
+            }
+        });
+
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            paint(gestures, brushes, input, state);
+        }
+        points[0] = 0;
+        Measurement measurement = Measurement.start();
+        for (int round = 0; round < rounds; round++) {
+            paint(gestures, brushes, input, state);
+        }
+        System.out.println(measurement.stop().format("strokes", points[0], "points"));
+    }
+
+    private static void paint(float[][] gestures, Brush[] brushes, StrokeInput input, RenderState state) {
+        for (int a = 0; a < gestures.length; a++) {
+            input.stroke(gestures[a], brushes[a % brushes.length]);
+            state.reset();
+        }
+    }
+
+    private static RenderState createState() {
+        RenderState state = new RenderState();
+        state.setTileGrid(PAINTING_SIZE, PAINTING_SIZE);
+        return state;
+    }
+
+    /**
+     * The weight {@code RenderView} gives brushes at the middle of the size slider.
+     */
+    private static float getWeight() {
+        return 8.0f / 2048.0f * PAINTING_SIZE + (90.0f / 2048.0f * PAINTING_SIZE) * 0.5f;
+    }
+
+    /**
+     * Touches packed as x and y, 8 to 32 pixels apart like quick finger moves, turning gently
+     * and bouncing off the edges of the painting.
+     */
+    private static float[][] createGestures() {
+        Random random = new Random(7);
+        float[][] gestures = new float[STROKES][];
+        for (int a = 0; a < STROKES; a++) {
+            float[] touches = new float[TOUCHES * 2];
+            float x = random.nextFloat() * PAINTING_SIZE;
+            float y = random.nextFloat() * PAINTING_SIZE;
+            double direction = random.nextDouble() * Math.PI * 2;
+            for (int b = 0; b < TOUCHES; b++) {
+                touches[b * 2] = x;
+                touches[b * 2 + 1] = y;
+                direction += (random.nextDouble() - 0.5) * 0.8;
+                float step = 8 + random.nextFloat() * 24;
+                x += (float) Math.cos(direction) * step;
+                y += (float) Math.sin(direction) * step;
+                if (x < 0 || x > PAINTING_SIZE) {
+                    x = Math.max(0, Math.min(PAINTING_SIZE, x));
+                    direction = Math.PI - direction;
+                }
+                if (y < 0 || y > PAINTING_SIZE) {
+                    y = Math.max(0, Math.min(PAINTING_SIZE, y));
+                    direction = -direction;
+                }
+            }
+            gestures[a] = touches;
+        }
+        return gestures;
+    }
+}
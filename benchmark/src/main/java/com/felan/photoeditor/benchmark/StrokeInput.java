@@ -0,0 +1,119 @@
+package com.felan.photoeditor.benchmark;
+
+import com.felan.photoeditor.widgets.paint.Brush;
+import com.felan.photoeditor.widgets.paint.Path;
+
+/**
+ * The smoothing of {@code Input} without the view: touch points in, the {@link Path} segments
+ * the painting gets out.
+ */
+class StrokeInput {
+
+    interface Output {
+        void paintPath(Path path);
+    }
+
+    private final Output output;
+    private final int color;
+    private final float weight;
+
+    private Brush brush;
+    private boolean isFirst;
+    private float[] pointsX = new float[3];
+    private float[] pointsY = new float[3];
+    private int pointsCount;
+
+    StrokeInput(int color, float weight, Output output) {
+        this.color = color;
+        this.weight = weight;
+        this.output = output;
+    }
+
+    /**
+     * Paints the touches of one stroke, packed as x and y.
+     */
+    void stroke(float[] touches, Brush brush) {
+        this.brush = brush;
+        isFirst = true;
+        pointsX[0] = touches[0];
+        pointsY[0] = touches[1];
+        pointsCount = 1;
+
+        if (touches.length == 2) {
+            paintPath(new Path(touches[0], touches[1], true));
+            return;
+        }
+        for (int a = 2; a < touches.length; a += 2) {
+            pointsX[pointsCount] = touches[a];
+            pointsY[pointsCount] = touches[a + 1];
+            pointsCount++;
+
+            if (pointsCount == 3) {
+                smoothenAndPaintPoints(false);
+            }
+        }
+        smoothenAndPaintPoints(true);
+    }
+
+    private void smoothenAndPaintPoints(boolean ended) {
+        if (pointsCount > 2) {
+            float prev2X = pointsX[0];
+            float prev2Y = pointsY[0];
+            float prev1X = pointsX[1];
+            float prev1Y = pointsY[1];
+            float curX = pointsX[2];
+            float curY = pointsY[2];
+
+            float midPoint1X = (prev1X + prev2X) * 0.5f;
+            float midPoint1Y = (prev1Y + prev2Y) * 0.5f;
+            float midPoint2X = (curX + prev1X) * 0.5f;
+            float midPoint2Y = (curY + prev1Y) * 0.5f;
+
+            int segmentDistance = 1;
+            float distance = getDistance(midPoint1X, midPoint1Y, midPoint2X, midPoint2Y);
+            int numberOfSegments = (int) Math.min(48, Math.max(Math.floor(distance / segmentDistance), 24));
+
+            float t = 0.0f;
+            float step = 1.0f / (float) numberOfSegments;
+
+            Path path = new Path(numberOfSegments + 1);
+            for (int j = 0; j < numberOfSegments; j++) {
+                float a1 = (1.0f - t) * (1.0f - t);
+                float a2 = 2.0f * (1.0f - t) * t;
+                float a3 = t * t;
+                path.addPoint(midPoint1X * a1 + prev1X * a2 + midPoint2X * a3, midPoint1Y * a1 + prev1Y * a2 + midPoint2Y * a3, isFirst);
+                isFirst = false;
+                t += step;
+            }
+            path.addPoint(midPoint2X, midPoint2Y, ended);
+
+            paintPath(path);
+
+            System.arraycopy(pointsX, 1, pointsX, 0, 2);
+            System.arraycopy(pointsY, 1, pointsY, 0, 2);
+
+            if (ended) {
+                pointsCount = 0;
+            } else {
+                pointsCount = 2;
+            }
+        } else {
+            Path path = new Path(pointsCount);
+            for (int a = 0; a < pointsCount; a++) {
+                path.addPoint(pointsX[a], pointsY[a], false);
+            }
+            paintPath(path);
+        }
+    }
+
+    private void paintPath(Path path) {
+        path.setup(color, weight, brush);
+        output.paintPath(path);
+    }
+
+    private static float getDistance(float x1, float y1, float x2, float y2) {
+        float dx = x1 - x2;
+        float dy = y1 - y2;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+}
@@ -0,0 +1,7 @@
+package com.felan.photoeditor.utils;
+
+import android.content.Context;
+
+public class ApplicationLoader {
+    public static Context applicationContext;
+}
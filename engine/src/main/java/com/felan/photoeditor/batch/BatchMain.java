@@ -0,0 +1,238 @@
+package com.felan.photoeditor.batch;
+
+import com.felan.photoeditor.engine.EditRecipe;
+import com.felan.photoeditor.engine.FilterParams;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Command line for {@link BatchProcessor}, run with {@code gradle :engine:run --args="..."}.
+ * <pre>
+ * usage: batch [options] &lt;input&gt; &lt;output directory&gt;
+ *   input             a directory of images, files ImageIO can't read are skipped, or - to
+ *                     read image paths from stdin
+ *   --recipe FILE     edits saved by PhotoEditView.writeRecipe
+ *   --NAME VALUE      an adjustment on top of the recipe: enhance, exposure, contrast, warmth,
+ *                     saturation, fade, highlights, shadows, vignette, grain, sharpen
+ *   --max-side N      longest side of the results, 4096 by default
+ *   --threads N       workers, the number of cores by default
+ *   --in-flight N     images decoded ahead at most, twice the workers by default
+ *   --format NAME     jpg (default) or png
+ *   --quality Q       jpg quality, 0..1
+ * </pre>
+ * Prints the throughput and the latency of each stage when done.
+ */
+public class BatchMain {
+
+    public static void main(String[] args) throws Exception {
+        EditRecipe recipe = new EditRecipe();
+        // applied once all options are read, so they are on top of --recipe wherever it is
+        List<String> adjustments = new ArrayList<>();
+        int maxSide = 4096;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int inFlight = 0;
+        String format = "jpg";
+        float quality = 0.9f;
+
+        int a = 0;
+        for (; a < args.length && args[a].startsWith("--"); a += 2) {
+            if (a + 1 >= args.length) {
+                usage("Missing value of " + args[a]);
+            }
+            String name = args[a].substring(2);
+            String value = args[a + 1];
+            switch (name) {
+                case "recipe":
+                    InputStream stream = new FileInputStream(value);
+                    try {
+                        recipe = EditRecipe.read(stream);
+                    } finally {
+                        stream.close();
+                    }
+                    break;
+                case "max-side":
+                    maxSide = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "in-flight":
+                    inFlight = Integer.parseInt(value);
+                    break;
+                case "format":
+                    format = value;
+                    break;
+                case "quality":
+                    quality = Float.parseFloat(value);
+                    break;
+                default:
+                    if (!setAdjustment(new FilterParams(), name, Float.parseFloat(value))) {
+                        usage("Unknown option --" + name);
+                    }
+                    adjustments.add(name);
+                    adjustments.add(value);
+                    break;
+            }
+        }
+        if (args.length - a != 2) {
+            usage(null);
+        }
+        if (!adjustments.isEmpty()) {
+            FilterParams filter = recipe.filter != null ? recipe.filter : new FilterParams();
+            for (int b = 0; b < adjustments.size(); b += 2) {
+                setAdjustment(filter, adjustments.get(b), Float.parseFloat(adjustments.get(b + 1)));
+            }
+            recipe.filter = filter;
+        }
+
+        File input = new File(args[a]);
+        final File outputDirectory = new File(args[a + 1]);
+        final String extension = format.toLowerCase(Locale.US);
+        Iterator<File> sources = args[a].equals("-") ? readPaths(System.in) : listImages(input);
+
+        BatchProcessor processor = new BatchProcessor(recipe, maxSide, threads, inFlight > 0 ? inFlight : threads * 2)
+                .setFormat(format, quality);
+        try {
+            BatchStats stats = processor.process(sources,
+                    source -> new File(outputDirectory, stripExtension(source.getName()) + "." + extension),
+                    (source, e) -> System.err.println(source + ": " + e));
+            System.out.println(stats);
+            if (stats.getFailed() > 0) {
+                System.exit(1);
+            }
+        } finally {
+            processor.shutdown();
+        }
+    }
+
+    private static boolean setAdjustment(FilterParams params, String name, float value) {
+        switch (name) {
+            case "enhance":
+                params.enhanceValue = value;
+                return true;
+            case "exposure":
+                params.exposureValue = value;
+                return true;
+            case "contrast":
+                params.contrastValue = value;
+                return true;
+            case "warmth":
+                params.warmthValue = value;
+                return true;
+            case "saturation":
+                params.saturationValue = value;
+                return true;
+            case "fade":
+                params.fadeValue = value;
+                return true;
+            case "highlights":
+                params.highlightsValue = value;
+                return true;
+            case "shadows":
+                params.shadowsValue = value;
+                return true;
+            case "vignette":
+                params.vignetteValue = value;
+                return true;
+            case "grain":
+                params.grainValue = value;
+                return true;
+            case "sharpen":
+                params.sharpenValue = value;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The files of the directory ImageIO has a reader for by their extension, so stray files
+     * like {@code .DS_Store} aren't counted as failures.
+     */
+    private static Iterator<File> listImages(File directory) {
+        final Set<String> suffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add(suffix.toLowerCase(Locale.US));
+        }
+        File[] files = directory.listFiles(file -> file.isFile() && suffixes.contains(getExtension(file.getName())));
+        if (files == null) {
+            usage("Not a directory: " + directory);
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files).iterator();
+    }
+
+    /**
+     * One path per line, read lazily so the batch starts before the input ends.
+     */
+    private static Iterator<File> readPaths(InputStream stream) {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+        return new Iterator<File>() {
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (next == null) {
+                        String line = reader.readLine();
+                        if (line == null) {
+                            return false;
+                        }
+                        line = line.trim();
+                        if (!line.isEmpty()) {
+                            next = line;
+                        }
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public File next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                File file = new File(next);
+                next = null;
+                return file;
+            }
+        };
+    }
+
+    private static String getExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot + 1).toLowerCase(Locale.US) : "";
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println("usage: batch [--recipe FILE] [--ADJUSTMENT VALUE]... [--max-side N] [--threads N]"
+                + " [--in-flight N] [--format jpg|png] [--quality Q] <input directory|-> <output directory>");
+        System.exit(2);
+    }
+}
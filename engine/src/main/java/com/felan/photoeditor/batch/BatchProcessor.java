@@ -0,0 +1,235 @@
+package com.felan.photoeditor.batch;
+
+import com.felan.photoeditor.engine.EditRecipe;
+import com.felan.photoeditor.engine.Raster;
+import com.felan.photoeditor.engine.RecipeRenderer;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Applies one {@link EditRecipe} to many images: decode, crop, filter, paint and encode.
+ * <p>
+ * Every image is a task of a work-stealing {@link ForkJoinPool}, which the renderer splits into
+ * row bands on the same pool, so the cores stay busy with few large or many small images alike.
+ * At most {@code maxInFlight} images are between decode and encode at any time; the caller
+ * blocks before decoding the next one until a slot frees, so memory stays bounded whatever the
+ * length of the input.
+ */
+public class BatchProcessor {
+
+    /**
+     * Where the result of an image goes.
+     */
+    public interface Output {
+        File getTarget(File source);
+    }
+
+    public interface Listener {
+        void onFailed(File source, Throwable e);
+    }
+
+    private final EditRecipe recipe;
+    private final int maxSide;
+    private final ForkJoinPool pool;
+    private final RecipeRenderer renderer;
+    private final int maxInFlight;
+
+    private String format = "jpg";
+    private float quality = 0.9f;
+
+    public BatchProcessor(EditRecipe recipe, int maxSide, int threads, int maxInFlight) {
+        if (maxSide <= 0 || threads <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("Sizes must be positive");
+        }
+        this.recipe = recipe;
+        this.maxSide = maxSide;
+        this.maxInFlight = maxInFlight;
+        pool = new ForkJoinPool(threads);
+        renderer = new RecipeRenderer(pool);
+    }
+
+    /**
+     * @param format an ImageIO format name, {@code jpg} drops the alpha channel
+     */
+    public BatchProcessor setFormat(String format, float quality) {
+        this.format = format.toLowerCase(Locale.US);
+        this.quality = quality;
+        return this;
+    }
+
+    /**
+     * Processes the images as they are given, the iterator may be a stream of unknown length.
+     * Returns when all of them are written.
+     */
+    public BatchStats process(Iterator<File> sources, final Output output, final Listener listener) throws InterruptedException {
+        final BatchStats stats = new BatchStats();
+        final Semaphore slots = new Semaphore(maxInFlight);
+        while (sources.hasNext()) {
+            final File source = sources.next();
+            final long queued = System.nanoTime();
+            slots.acquire();
+            stats.record(BatchStats.Stage.QUEUE, System.nanoTime() - queued);
+            pool.execute(() -> {
+                try {
+                    process(source, output.getTarget(source), stats);
+                    stats.onProcessed();
+                } catch (Throwable e) {
+                    stats.onFailed();
+                    if (listener != null) {
+                        listener.onFailed(source, e);
+                    }
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+        slots.acquire(maxInFlight);
+        stats.finish();
+        return stats;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void process(File source, File target, BatchStats stats) throws IOException {
+        long time = System.nanoTime();
+        Part part = decode(source);
+        stats.record(BatchStats.Stage.DECODE, System.nanoTime() - time);
+
+        time = System.nanoTime();
+        Raster result = renderer.render(part.raster, part.sourceWidth, part.sourceHeight, part.region, recipe, maxSide);
+        stats.record(BatchStats.Stage.RENDER, System.nanoTime() - time);
+
+        time = System.nanoTime();
+        encode(result, target);
+        stats.record(BatchStats.Stage.ENCODE, System.nanoTime() - time);
+    }
+
+    //region Coding
+
+    /**
+     * A decoded region of a source image.
+     */
+    private static class Part {
+        final Raster raster;
+        final int sourceWidth;
+        final int sourceHeight;
+        final int[] region;
+
+        Part(Raster raster, int sourceWidth, int sourceHeight, int[] region) {
+            this.raster = raster;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.region = region;
+        }
+    }
+
+    /**
+     * Decodes only the region of the image under the crop, subsampled close to the result size,
+     * like the region decode of the editor, since the recipe is independent of the size of the
+     * image.
+     */
+    private Part decode(File source) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(source);
+        if (input == null) {
+            throw new IOException("Can't open " + source);
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image " + source);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+
+                float cropWidth = recipe.crop != null ? recipe.crop.getCropWidth(width) : width;
+                float cropHeight = recipe.crop != null ? cropWidth / recipe.crop.aspectRatio : height;
+                // source pixels per result pixel, decoding skips the powers of two of it
+                float density = Math.max(cropWidth, cropHeight) / maxSide;
+                int sampleSize = 1;
+                while (sampleSize * 2 <= density) {
+                    sampleSize *= 2;
+                }
+                int[] region = renderer.getSourceRegion(width, height, recipe, maxSide);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(region[0], region[1], region[2] - region[0], region[3] - region[1]));
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                BufferedImage image = reader.read(0, param);
+
+                Raster raster = new Raster(image.getWidth(), image.getHeight());
+                image.getRGB(0, 0, raster.width, raster.height, raster.pixels, 0, raster.width);
+                return new Part(raster, width, height, region);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void encode(Raster raster, File target) throws IOException {
+        boolean alpha = !format.equals("jpg") && !format.equals("jpeg");
+        BufferedImage image = new BufferedImage(raster.width, raster.height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, raster.width, raster.height, raster.pixels, 0, raster.width);
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("Unsupported format " + format);
+        }
+        ImageWriter writer = writers.next();
+        ImageOutputStream output = null;
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed() && !alpha) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            File directory = target.getAbsoluteFile().getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Can't replace " + target);
+            }
+            output = ImageIO.createImageOutputStream(target);
+            if (output == null) {
+                throw new IOException("Can't write " + target);
+            }
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,100 @@
+package com.felan.photoeditor.batch;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and per-stage latency of a {@link BatchProcessor}, updated from its workers.
+ */
+public class BatchStats {
+
+    public enum Stage {
+        /**
+         * Time an image waited for a slot before it was decoded, the back-pressure.
+         */
+        QUEUE,
+        DECODE,
+        RENDER,
+        ENCODE
+    }
+
+    private final LongAdder[] counts = new LongAdder[Stage.values().length];
+    private final LongAdder[] totals = new LongAdder[Stage.values().length];
+    private final AtomicLong[] maximums = new AtomicLong[Stage.values().length];
+
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private final long startTime = System.nanoTime();
+    private volatile long endTime;
+
+    BatchStats() {
+        for (int a = 0; a < counts.length; a++) {
+            counts[a] = new LongAdder();
+            totals[a] = new LongAdder();
+            maximums[a] = new AtomicLong();
+        }
+    }
+
+    void record(Stage stage, long nanos) {
+        int index = stage.ordinal();
+        counts[index].increment();
+        totals[index].add(nanos);
+        AtomicLong maximum = maximums[index];
+        long current;
+        while (nanos > (current = maximum.get()) && !maximum.compareAndSet(current, nanos)) {
+        }
+    }
+
+    void onProcessed() {
+        processed.increment();
+    }
+
+    void onFailed() {
+        failed.increment();
+    }
+
+    void finish() {
+        endTime = System.nanoTime();
+    }
+
+    public long getProcessed() {
+        return processed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public double getElapsedSeconds() {
+        long end = endTime != 0 ? endTime : System.nanoTime();
+        return (end - startTime) / 1e9;
+    }
+
+    public double getImagesPerSecond() {
+        double elapsed = getElapsedSeconds();
+        return elapsed > 0 ? getProcessed() / elapsed : 0;
+    }
+
+    public double getMeanMillis(Stage stage) {
+        long count = counts[stage.ordinal()].sum();
+        return count > 0 ? totals[stage.ordinal()].sum() / 1e6 / count : 0;
+    }
+
+    public double getMaxMillis(Stage stage) {
+        return maximums[stage.ordinal()].get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format(Locale.US,
+                "%d images, %d failed in %.2fs, %.2f images/s",
+                getProcessed(), getFailed(), getElapsedSeconds(), getImagesPerSecond()));
+        for (Stage stage : Stage.values()) {
+            builder.append(String.format(Locale.US, "\n%-6s mean %8.2fms max %8.2fms",
+                    stage.name().toLowerCase(Locale.US), getMeanMillis(stage), getMaxMillis(stage)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package com.felan.photoeditor.engine;
+
+/**
+ * 2D affine transforms as 3x3 row-major float arrays, laid out like the values of
+ * {@code android.graphics.Matrix} so they convert with {@code getValues}/{@code setValues}.
+ * The {@code post} operations apply after the transform, as their {@code Matrix} namesakes.
+ */
+final class Affine {
+
+    private Affine() {
+    }
+
+    static float[] identity() {
+        return new float[]{1, 0, 0, 0, 1, 0, 0, 0, 1};
+    }
+
+    static float[] scale(float sx, float sy) {
+        return new float[]{sx, 0, 0, 0, sy, 0, 0, 0, 1};
+    }
+
+    /**
+     * Returns {@code after} applied after {@code m}.
+     */
+    static float[] postConcat(float[] m, float[] after) {
+        return new float[]{
+                after[0] * m[0] + after[1] * m[3], after[0] * m[1] + after[1] * m[4], after[0] * m[2] + after[1] * m[5] + after[2],
+                after[3] * m[0] + after[4] * m[3], after[3] * m[1] + after[4] * m[4], after[3] * m[2] + after[4] * m[5] + after[5],
+                0, 0, 1
+        };
+    }
+
+    static float[] postTranslate(float[] m, float dx, float dy) {
+        return postConcat(m, new float[]{1, 0, dx, 0, 1, dy, 0, 0, 1});
+    }
+
+    static float[] postScale(float[] m, float sx, float sy) {
+        return postConcat(m, scale(sx, sy));
+    }
+
+    static float[] postRotate(float[] m, float degrees) {
+        double radians = Math.toRadians(degrees);
+        float cos = (float) Math.cos(radians);
+        float sin = (float) Math.sin(radians);
+        return postConcat(m, new float[]{cos, -sin, 0, sin, cos, 0, 0, 0, 1});
+    }
+
+    /**
+     * Returns null if {@code m} is singular.
+     */
+    static float[] invert(float[] m) {
+        float det = m[0] * m[4] - m[1] * m[3];
+        if (Math.abs(det) < 1e-12f) {
+            return null;
+        }
+        float a = m[4] / det;
+        float b = -m[1] / det;
+        float d = -m[3] / det;
+        float e = m[0] / det;
+        return new float[]{
+                a, b, -(a * m[2] + b * m[5]),
+                d, e, -(d * m[2] + e * m[5]),
+                0, 0, 1
+        };
+    }
+
+    /**
+     * Length of the image of a unit horizontal vector.
+     */
+    static float getScale(float[] m) {
+        return (float) Math.hypot(m[0], m[3]);
+    }
+}
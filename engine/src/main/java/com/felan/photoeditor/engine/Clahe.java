@@ -0,0 +1,173 @@
+package com.felan.photoeditor.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Java port of {@code calc_cdt} from {@code cdt.c}.
+ * Builds the clipped per-tile cumulative distribution table consumed by the enhance pass.
+ */
+public class Clahe {
+
+    public final static int PGPhotoEnhanceHistogramBins = 256;
+    public final static int PGPhotoEnhanceSegments = 4;
+    public final static int TOTAL_SEGMENTS = PGPhotoEnhanceSegments * PGPhotoEnhanceSegments;
+    public final static int RESULT_SIZE = 4 * PGPhotoEnhanceHistogramBins * TOTAL_SEGMENTS;
+
+    public final static float CLIP_LIMIT = 1.25f;
+    /**
+     * Largest side of the proxy the histogram is built from, see {@link #calcProxyCDT}.
+     */
+    public final static int PROXY_SIZE = 256;
+    /**
+     * Largest difference per channel, out of 255, between the table of the proxy and the one
+     * of the full resolution image, as checked by {@code ClaheTest}. The GL renderer and
+     * {@link FilterEngine} both build the table from the same proxy, so this doesn't count
+     * against {@link FilterEngine#TOLERANCE}. It bounds how far the enhanced value can be from a
+     * full resolution histogram: by this much times 1.1 times the enhance intensity.
+     */
+    public final static int PROXY_TOLERANCE = 6;
+
+    /**
+     * @param hsv     packed pixels holding the 8-bit V channel in the lowest byte
+     * @param topDown {@code true} when row 0 of {@code hsv} is the top of the image (Bitmap order),
+     *                {@code false} when it is the bottom row (glReadPixels order). Tiles are
+     *                always assigned in glReadPixels order, matching the native implementation.
+     * @param result  {@link #RESULT_SIZE} bytes, laid out as the 256x16 RGBA enhance texture
+     */
+    public static void calcCDT(int[] hsv, int width, int height, boolean topDown, byte[] result) {
+        calcCDT(hsv, width, height, topDown, PGPhotoEnhanceSegments, CLIP_LIMIT, result);
+    }
+
+    /**
+     * @param segments  tiles per side, {@code result} holds {@code 4 * 256 * segments * segments} bytes
+     * @param clipLimit histogram clip limit, relative to the average bin count of a tile
+     */
+    public static void calcCDT(int[] hsv, int width, int height, boolean topDown, int segments, float clipLimit, byte[] result) {
+        int totalSegments = segments * segments;
+        float imageWidth = width;
+        float imageHeight = height;
+
+        int tileArea = (int) ((float) Math.floor(imageWidth / segments) *
+                (float) Math.floor(imageHeight / segments));
+        int clipCount = (int) Math.max(1, clipLimit * tileArea / (float) PGPhotoEnhanceHistogramBins);
+        float scale = 255.0f / (float) tileArea;
+
+        int[][] hist = new int[totalSegments][PGPhotoEnhanceHistogramBins];
+        int[] cdfsMin = new int[totalSegments];
+        int[] cdfsMax = new int[totalSegments];
+
+        float xMul = segments / imageWidth;
+        float yMul = segments / imageHeight;
+
+        for (int y = 0; y < height; y++) {
+            int row = topDown ? height - 1 - y : y;
+            int yOffset = row * width;
+            int ty = Math.min((int) (y * yMul), segments - 1);
+            for (int x = 0; x < width; x++) {
+                int tx = Math.min((int) (x * xMul), segments - 1);
+                hist[ty * segments + tx][hsv[yOffset + x] & 0xff]++;
+            }
+        }
+
+        for (int i = 0; i < totalSegments; i++) {
+            int[] h = hist[i];
+            int clipped = 0;
+            for (int j = 0; j < PGPhotoEnhanceHistogramBins; ++j) {
+                if (h[j] > clipCount) {
+                    clipped += h[j] - clipCount;
+                    h[j] = clipCount;
+                }
+            }
+
+            int redistBatch = clipped / PGPhotoEnhanceHistogramBins;
+            int residual = clipped - redistBatch * PGPhotoEnhanceHistogramBins;
+
+            for (int j = 0; j < PGPhotoEnhanceHistogramBins; ++j) {
+                h[j] += redistBatch;
+            }
+
+            for (int j = 0; j < residual; ++j) {
+                h[j]++;
+            }
+
+            int hMin = PGPhotoEnhanceHistogramBins - 1;
+            for (int j = 0; j < hMin; ++j) {
+                if (h[j] != 0) {
+                    hMin = j;
+                    break;
+                }
+            }
+
+            long cdf = 0;
+            for (int j = hMin; j < PGPhotoEnhanceHistogramBins; ++j) {
+                cdf += h[j];
+                h[j] = (int) Math.min(255, cdf * scale);
+            }
+
+            cdfsMin[i] = h[hMin];
+            cdfsMax[i] = h[PGPhotoEnhanceHistogramBins - 1];
+        }
+
+        int resultBytesPerRow = 4 * PGPhotoEnhanceHistogramBins;
+        for (int tile = 0; tile < totalSegments; tile++) {
+            int yOffset = tile * resultBytesPerRow;
+            for (int i = 0; i < PGPhotoEnhanceHistogramBins; i++) {
+                int index = i * 4 + yOffset;
+                result[index] = (byte) hist[tile][i];
+                result[index + 1] = (byte) cdfsMin[tile];
+                result[index + 2] = (byte) cdfsMax[tile];
+                result[index + 3] = (byte) 255;
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #calcCDT(int[], int, int, boolean, byte[])} over a nearest sampled proxy
+     * of at most {@link #PROXY_SIZE} pixels per side, the way the GPU builds it before reading
+     * the hsv image back. Tile histograms are normalized by the tile area, so the proxy yields
+     * the same table up to sampling noise.
+     */
+    public static void calcProxyCDT(int[] hsv, int width, int height, boolean topDown, byte[] result) {
+        int proxyWidth = Math.min(width, PROXY_SIZE);
+        int proxyHeight = Math.min(height, PROXY_SIZE);
+        if (proxyWidth == width && proxyHeight == height) {
+            calcCDT(hsv, width, height, topDown, result);
+            return;
+        }
+        int[] proxy = new int[proxyWidth * proxyHeight];
+        for (int y = 0; y < proxyHeight; y++) {
+            // sample texel centers in glReadPixels order, like GL_NEAREST does
+            int sourceY = (int) ((y + 0.5f) * height / proxyHeight);
+            int sourceRow = (topDown ? height - 1 - sourceY : sourceY) * width;
+            int row = (topDown ? proxyHeight - 1 - y : y) * proxyWidth;
+            for (int x = 0; x < proxyWidth; x++) {
+                proxy[row + x] = hsv[sourceRow + (int) ((x + 0.5f) * width / proxyWidth)];
+            }
+        }
+        calcCDT(proxy, proxyWidth, proxyHeight, topDown, result);
+    }
+
+    /**
+     * Largest per channel difference between two tables, used to check a proxy table against
+     * the full resolution one.
+     */
+    public static int maxDifference(byte[] a, byte[] b) {
+        int max = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            max = Math.max(max, Math.abs((a[i] & 0xff) - (b[i] & 0xff)));
+        }
+        return max;
+    }
+
+    /**
+     * Same as {@link #maxDifference(byte[], byte[])} over the whole capacity of two buffers, as
+     * the GL renderer keeps its tables.
+     */
+    public static int maxDifference(ByteBuffer a, ByteBuffer b) {
+        int max = 0;
+        for (int i = 0, n = Math.min(a.capacity(), b.capacity()); i < n; i++) {
+            max = Math.max(max, Math.abs((a.get(i) & 0xff) - (b.get(i) & 0xff)));
+        }
+        return max;
+    }
+}
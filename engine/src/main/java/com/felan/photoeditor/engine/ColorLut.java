@@ -0,0 +1,166 @@
+package com.felan.photoeditor.engine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * 3D lookup table of the pointwise tools adjustments: curves, shadows/highlights, contrast,
+ * fade, saturation, tints, exposure and warmth. Grain and vignette depend on the pixel position
+ * and are not part of it.
+ * <p>
+ * Entries are RGB triplets in {@code .cube} order, red changing fastest, then green, then blue.
+ * Lookups interpolate trilinearly.
+ */
+public class ColorLut {
+
+    public final static int DEFAULT_SIZE = 33;
+    public final static int MAX_SIZE = 256;
+
+    private final int size;
+    private final float[] table;
+
+    /**
+     * @param table {@code size * size * size * 3} values, see the class comment for the order
+     */
+    public ColorLut(int size, float[] table) {
+        if (size < 2 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("LUT size " + size);
+        }
+        if (table.length != size * size * size * 3) {
+            throw new IllegalArgumentException("LUT of size " + size + " needs " + size * size * size * 3 + " values, got " + table.length);
+        }
+        this.size = size;
+        this.table = table;
+    }
+
+    public static ColorLut identity(int size) {
+        float[] table = new float[size * size * size * 3];
+        for (int b = 0, i = 0; b < size; b++) {
+            for (int g = 0; g < size; g++) {
+                for (int r = 0; r < size; r++, i += 3) {
+                    table[i] = (float) r / (size - 1);
+                    table[i + 1] = (float) g / (size - 1);
+                    table[i + 2] = (float) b / (size - 1);
+                }
+            }
+        }
+        return new ColorLut(size, table);
+    }
+
+    /**
+     * Evaluates the tools pass of {@link FilterEngine} on every grid color.
+     */
+    public static ColorLut bake(FilterParams params, int size) {
+        ColorLut lut = identity(size);
+        FilterEngine.ToolsUniforms uniforms = new FilterEngine.ToolsUniforms(params, 1, 1);
+        float[] c = new float[3];
+        float[] tmp = new float[3];
+        float[] table = lut.table;
+        for (int i = 0; i < table.length; i += 3) {
+            c[0] = table[i];
+            c[1] = table[i + 1];
+            c[2] = table[i + 2];
+            FilterEngine.applyTone(c, uniforms, tmp);
+            // the render target the GL pass writes to clamps the same way
+            table[i] = FilterEngine.clamp(c[0], 0.0f, 1.0f);
+            table[i + 1] = FilterEngine.clamp(c[1], 0.0f, 1.0f);
+            table[i + 2] = FilterEngine.clamp(c[2], 0.0f, 1.0f);
+        }
+        return lut;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Maps the normalized RGB color in place.
+     */
+    public void lookup(float[] c) {
+        int max = size - 1;
+        float r = FilterEngine.clamp(c[0], 0.0f, 1.0f) * max;
+        float g = FilterEngine.clamp(c[1], 0.0f, 1.0f) * max;
+        float b = FilterEngine.clamp(c[2], 0.0f, 1.0f) * max;
+        int r0 = Math.min((int) r, max - 1);
+        int g0 = Math.min((int) g, max - 1);
+        int b0 = Math.min((int) b, max - 1);
+        float fr = r - r0;
+        float fg = g - g0;
+        float fb = b - b0;
+
+        int strideG = size * 3;
+        int strideB = size * size * 3;
+        int base = b0 * strideB + g0 * strideG + r0 * 3;
+        for (int k = 0; k < 3; k++) {
+            int i = base + k;
+            float c00 = FilterEngine.mix(table[i], table[i + 3], fr);
+            float c10 = FilterEngine.mix(table[i + strideG], table[i + strideG + 3], fr);
+            float c01 = FilterEngine.mix(table[i + strideB], table[i + strideB + 3], fr);
+            float c11 = FilterEngine.mix(table[i + strideB + strideG], table[i + strideB + strideG + 3], fr);
+            c[k] = FilterEngine.mix(FilterEngine.mix(c00, c10, fg), FilterEngine.mix(c01, c11, fg), fb);
+        }
+    }
+
+    /**
+     * Writes the table in the Adobe/Resolve {@code .cube} format.
+     */
+    public void writeCube(Writer writer, String title) throws IOException {
+        if (title != null) {
+            writer.write("TITLE \"" + title.replace('"', '\'') + "\"\n");
+        }
+        writer.write("LUT_3D_SIZE " + size + "\n");
+        for (int i = 0; i < table.length; i += 3) {
+            writer.write(String.format(Locale.US, "%.6f %.6f %.6f\n", table[i], table[i + 1], table[i + 2]));
+        }
+        writer.flush();
+    }
+
+    /**
+     * Reads a 3D {@code .cube} table with the default 0..1 domain.
+     */
+    public static ColorLut readCube(Reader reader) throws IOException {
+        BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        int size = 0;
+        float[] table = null;
+        int count = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith("TITLE") || line.startsWith("DOMAIN_")) {
+                continue;
+            }
+            if (line.startsWith("LUT_1D_SIZE")) {
+                throw new IOException("1D LUTs are not supported");
+            }
+            if (line.startsWith("LUT_3D_SIZE")) {
+                size = Integer.parseInt(line.substring("LUT_3D_SIZE".length()).trim());
+                if (size < 2 || size > MAX_SIZE) {
+                    throw new IOException("Invalid LUT size " + size);
+                }
+                table = new float[size * size * size * 3];
+                continue;
+            }
+            if (table == null) {
+                throw new IOException("LUT_3D_SIZE missing before the table");
+            }
+            String[] values = line.split("\\s+");
+            if (values.length != 3 || count + 3 > table.length) {
+                throw new IOException("Unexpected line: " + line);
+            }
+            try {
+                for (String value : values) {
+                    table[count++] = Float.parseFloat(value);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected line: " + line, e);
+            }
+        }
+        if (table == null || count != table.length) {
+            throw new IOException("Incomplete LUT");
+        }
+        return new ColorLut(size, table);
+    }
+}
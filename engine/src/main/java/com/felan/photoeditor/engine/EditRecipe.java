@@ -0,0 +1,636 @@
+package com.felan.photoeditor.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The edits of a photo, independent of its size, so they can be saved and applied again to the
+ * same photo or to any other one with {@link RecipeRenderer}.
+ * <p>
+ * A recipe is written as a small versioned binary: a magic, the version, then one section per
+ * edit, each prefixed with its tag and length. Readers skip sections they don't know and the
+ * fields a newer writer appended to a section, so older versions can read newer recipes as far
+ * as they understand them.
+ */
+public class EditRecipe {
+
+    public final static int MAGIC = 0x50455243; // "PERC"
+    public final static int VERSION = 1;
+
+    private final static int SECTION_END = 0;
+    private final static int SECTION_FILTER = 1;
+    private final static int SECTION_CROP = 2;
+    private final static int SECTION_PAINT = 3;
+    private final static int SECTION_REFERENCE = 4;
+    private final static int SECTION_PAINT_EDITS = 5;
+
+    private final static int PAINT_CROP_NONE = 0;
+    private final static int PAINT_CROP_RECIPE = 1;
+    private final static int PAINT_CROP_OWN = 2;
+
+    private final static int CHUNK_BYTES = 64 * 1024;
+    /**
+     * The most deflate can compress, a paint layer claiming more pixels than its bytes can
+     * inflate to is corrupt.
+     */
+    private final static int MAX_DEFLATE_RATIO = 1032;
+
+    /**
+     * A crop, with the matrix normalized: it maps the oriented image, centered and one unit wide,
+     * to the crop, centered and one unit wide.
+     */
+    public static class Crop {
+        /**
+         * 3x3 row-major, as the values of {@code android.graphics.Matrix}.
+         */
+        public final float[] matrix;
+        public final float orientation;
+        public final float rotation;
+        public final float aspectRatio;
+        public final float lockedAspectRatio;
+
+        public Crop(float[] matrix, float orientation, float rotation, float aspectRatio, float lockedAspectRatio) {
+            if (matrix.length != 9) {
+                throw new IllegalArgumentException("Crop matrix needs 9 values");
+            }
+            this.matrix = matrix.clone();
+            this.orientation = orientation;
+            this.rotation = rotation;
+            this.aspectRatio = aspectRatio;
+            this.lockedAspectRatio = lockedAspectRatio;
+        }
+
+        /**
+         * Width of the crop in the pixels of an image {@code sourceWidth} wide.
+         */
+        public float getCropWidth(float sourceWidth) {
+            return sourceWidth / Affine.getScale(matrix);
+        }
+
+        /**
+         * Maps an image of the given size to a result of the given size.
+         */
+        public float[] getResultMatrix(float sourceWidth, float sourceHeight, int width, int height) {
+            float[] m = Affine.postTranslate(Affine.identity(), -sourceWidth / 2, -sourceHeight / 2);
+            m = Affine.postRotate(m, orientation);
+            m = Affine.postScale(m, 1.0f / sourceWidth, 1.0f / sourceWidth);
+            m = Affine.postConcat(m, matrix);
+            m = Affine.postScale(m, width, width);
+            return Affine.postTranslate(m, width / 2.0f, height / 2.0f);
+        }
+    }
+
+    /**
+     * A brush stroke, as the segments the touch input was smoothed into, in the pixels of the
+     * paint layer.
+     */
+    public static class Stroke {
+        public final static int BRUSH_RADIAL = 0;
+        public final static int BRUSH_ELLIPTICAL = 1;
+        public final static int BRUSH_NEON = 2;
+
+        public final int brush;
+        public final int color;
+        public final float weight;
+        /**
+         * Points of every segment packed as x, y and 1 for the ends of the stroke (0 otherwise).
+         */
+        public final float[][] segments;
+
+        public Stroke(int brush, int color, float weight, float[][] segments) {
+            this.brush = brush;
+            this.color = color;
+            this.weight = weight;
+            this.segments = segments;
+        }
+
+        /**
+         * The stroke moved by {@code matrix}, an affine transform that scales uniformly.
+         */
+        public Stroke transform(float[] matrix) {
+            float[][] result = new float[segments.length][];
+            for (int a = 0; a < segments.length; a++) {
+                float[] points = segments[a];
+                float[] moved = new float[points.length];
+                for (int b = 0; b + 2 < points.length; b += 3) {
+                    moved[b] = matrix[0] * points[b] + matrix[1] * points[b + 1] + matrix[2];
+                    moved[b + 1] = matrix[3] * points[b] + matrix[4] * points[b + 1] + matrix[5];
+                    moved[b + 2] = points[b + 2];
+                }
+                result[a] = moved;
+            }
+            return new Stroke(brush, color, weight * Affine.getScale(matrix), result);
+        }
+    }
+
+    /**
+     * A text entity, in the pixels of the paint layer.
+     */
+    public static class Text {
+        public final String text;
+        public final int color;
+        /**
+         * White text outlined with {@link #color} instead of text of that color.
+         */
+        public final boolean outline;
+        /**
+         * Center of the text.
+         */
+        public final float x;
+        public final float y;
+        /**
+         * Degrees clockwise.
+         */
+        public final float rotation;
+        /**
+         * Applied to all the sizes below.
+         */
+        public final float scale;
+        public final float textSize;
+        /**
+         * Width the lines were broken at.
+         */
+        public final float layoutWidth;
+        public final float shadowRadius;
+        public final float shadowDy;
+
+        public Text(String text, int color, boolean outline, float x, float y, float rotation, float scale,
+                    float textSize, float layoutWidth, float shadowRadius, float shadowDy) {
+            this.text = text;
+            this.color = color;
+            this.outline = outline;
+            this.x = x;
+            this.y = y;
+            this.rotation = rotation;
+            this.scale = scale;
+            this.textSize = textSize;
+            this.layoutWidth = layoutWidth;
+            this.shadowRadius = shadowRadius;
+            this.shadowDy = shadowDy;
+        }
+
+        /**
+         * The text moved by {@code matrix}, an affine transform that scales uniformly.
+         */
+        public Text transform(float[] matrix) {
+            float rotation = (float) Math.toDegrees(Math.atan2(matrix[3], matrix[0]));
+            return new Text(text, color, outline,
+                    matrix[0] * x + matrix[1] * y + matrix[2],
+                    matrix[3] * x + matrix[4] * y + matrix[5],
+                    this.rotation + rotation, scale * Affine.getScale(matrix),
+                    textSize, layoutWidth, shadowRadius, shadowDy);
+        }
+    }
+
+    /**
+     * Strokes and text painted over the photo, as a transparent layer covering the frame of
+     * {@link #crop}, the crop in effect when they were painted. That is the same instance as
+     * {@link EditRecipe#crop} if the photo wasn't cropped again since.
+     * <p>
+     * The layer has the text drawn in. {@link #strokes} and {@link #texts} are the same edits as
+     * parameters, in the pixels of the layer, for renderers that draw them again at the size of
+     * their result. They are null if the recipe only kept the layer.
+     */
+    public static class Paint {
+        public final Raster layer;
+        public final Crop crop;
+        public final List<Stroke> strokes;
+        public final List<Text> texts;
+
+        public Paint(Raster layer, Crop crop) {
+            this(layer, crop, null, null);
+        }
+
+        public Paint(Raster layer, Crop crop, List<Stroke> strokes, List<Text> texts) {
+            this.layer = layer;
+            this.crop = crop;
+            this.strokes = strokes;
+            this.texts = texts;
+        }
+    }
+
+    /**
+     * Applied in this order, each of them may be null.
+     */
+    public Crop crop;
+    public FilterParams filter;
+    public Paint paint;
+
+    /**
+     * Size of the image the edits were made on, the preview of the photo, 0 if unknown. Sizes in
+     * pixels among the edits, like the blur radius, are relative to it.
+     */
+    public int referenceWidth;
+    public int referenceHeight;
+
+    /**
+     * How many times larger than the image the edits were made on a result of the given size
+     * is, the blur radius is scaled by it. 1 if the recipe doesn't know that image.
+     */
+    public float getRadiusScale(int width, int height) {
+        if (referenceWidth <= 0 || referenceHeight <= 0) {
+            return 1.0f;
+        }
+        if (crop != null) {
+            return width / crop.getCropWidth(referenceWidth);
+        }
+        // another photo may have another aspect ratio
+        return (float) Math.max(width, height) / Math.max(referenceWidth, referenceHeight);
+    }
+
+    //region Writing
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            write(stream);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return stream.toByteArray();
+    }
+
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        DataOutputStream sectionOut = new DataOutputStream(section);
+        if (crop != null) {
+            writeCrop(sectionOut, crop);
+            writeSection(out, SECTION_CROP, section);
+        }
+        if (filter != null) {
+            writeFilter(sectionOut, filter);
+            writeSection(out, SECTION_FILTER, section);
+        }
+        if (paint != null) {
+            writePaint(sectionOut, paint, crop);
+            writeSection(out, SECTION_PAINT, section);
+            // after the pixels, their inflater may read past the end of its stream
+            if (paint.strokes != null && paint.texts != null) {
+                writePaintEdits(sectionOut, paint);
+                writeSection(out, SECTION_PAINT_EDITS, section);
+            }
+        }
+        if (referenceWidth > 0 && referenceHeight > 0) {
+            sectionOut.writeInt(referenceWidth);
+            sectionOut.writeInt(referenceHeight);
+            writeSection(out, SECTION_REFERENCE, section);
+        }
+        out.writeByte(SECTION_END);
+        out.flush();
+    }
+
+    private static void writeSection(DataOutputStream out, int tag, ByteArrayOutputStream section) throws IOException {
+        out.writeByte(tag);
+        out.writeInt(section.size());
+        section.writeTo(out);
+        section.reset();
+    }
+
+    private static void writeCrop(DataOutputStream out, Crop crop) throws IOException {
+        for (float value : crop.matrix) {
+            out.writeFloat(value);
+        }
+        out.writeFloat(crop.orientation);
+        out.writeFloat(crop.rotation);
+        out.writeFloat(crop.aspectRatio);
+        out.writeFloat(crop.lockedAspectRatio);
+    }
+
+    private static void writeFilter(DataOutputStream out, FilterParams params) throws IOException {
+        out.writeFloat(params.enhanceValue);
+        out.writeFloat(params.exposureValue);
+        out.writeFloat(params.contrastValue);
+        out.writeFloat(params.warmthValue);
+        out.writeFloat(params.saturationValue);
+        out.writeFloat(params.fadeValue);
+        out.writeInt(params.tintShadowsColor);
+        out.writeInt(params.tintHighlightsColor);
+        out.writeFloat(params.highlightsValue);
+        out.writeFloat(params.shadowsValue);
+        out.writeFloat(params.vignetteValue);
+        out.writeFloat(params.grainValue);
+        out.writeFloat(params.sharpenValue);
+
+        out.writeByte(params.blurType);
+        out.writeFloat(params.blurExcludeSize);
+        out.writeFloat(params.blurExcludePointX);
+        out.writeFloat(params.blurExcludePointY);
+        out.writeFloat(params.blurExcludeBlurSize);
+        out.writeFloat(params.blurAngle);
+        out.writeFloat(params.blurRadius);
+
+        // the levels to resume the curves from, and the table they were baked into so a reader
+        // doesn't need the curve interpolation to render them
+        boolean curves = params.curvesData != null;
+        out.writeBoolean(curves);
+        if (curves) {
+            out.write(params.curvesData, 0, FilterParams.CURVE_RESOLUTION * 4);
+            boolean levels = params.curvesLevels != null;
+            out.writeBoolean(levels);
+            if (levels) {
+                for (int a = 0; a < FilterParams.CURVE_LEVELS * 4; a++) {
+                    out.writeFloat(params.curvesLevels[a]);
+                }
+            }
+        }
+    }
+
+    private static void writePaint(DataOutputStream out, Paint paint, Crop crop) throws IOException {
+        Raster layer = paint.layer;
+        out.writeInt(layer.width);
+        out.writeInt(layer.height);
+        // painted under the crop of the recipe, most of the time
+        if (paint.crop == null) {
+            out.writeByte(PAINT_CROP_NONE);
+        } else if (paint.crop == crop) {
+            out.writeByte(PAINT_CROP_RECIPE);
+        } else {
+            out.writeByte(PAINT_CROP_OWN);
+            writeCrop(out, paint.crop);
+        }
+        writePixels(out, layer.pixels, layer.width * layer.height);
+    }
+
+    private static void writePaintEdits(DataOutputStream out, Paint paint) throws IOException {
+        out.writeInt(paint.strokes.size());
+        for (Stroke stroke : paint.strokes) {
+            out.writeByte(stroke.brush);
+            out.writeInt(stroke.color);
+            out.writeFloat(stroke.weight);
+            out.writeInt(stroke.segments.length);
+            for (float[] points : stroke.segments) {
+                out.writeInt(points.length);
+                for (float value : points) {
+                    out.writeFloat(value);
+                }
+            }
+        }
+        out.writeInt(paint.texts.size());
+        for (Text text : paint.texts) {
+            out.writeUTF(text.text);
+            out.writeInt(text.color);
+            out.writeBoolean(text.outline);
+            out.writeFloat(text.x);
+            out.writeFloat(text.y);
+            out.writeFloat(text.rotation);
+            out.writeFloat(text.scale);
+            out.writeFloat(text.textSize);
+            out.writeFloat(text.layoutWidth);
+            out.writeFloat(text.shadowRadius);
+            out.writeFloat(text.shadowDy);
+        }
+    }
+
+    /**
+     * Deflates the pixels big-endian, a layer is mostly transparent and deflates to a fraction
+     * of its size. They are converted and deflated a chunk at a time, not int by int.
+     */
+    private static void writePixels(OutputStream out, int[] pixels, int size) throws IOException {
+        Deflater deflater = new Deflater();
+        try {
+            DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater, CHUNK_BYTES);
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+            for (int offset = 0; offset < size; offset += CHUNK_BYTES / 4) {
+                int count = Math.min(CHUNK_BYTES / 4, size - offset);
+                chunk.clear();
+                chunk.asIntBuffer().put(pixels, offset, count);
+                stream.write(chunk.array(), 0, count * 4);
+            }
+            stream.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //endregion
+
+    //region Reading
+
+    public static EditRecipe fromByteArray(byte[] data) throws IOException {
+        return read(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * @throws IOException if the stream doesn't hold a valid recipe
+     */
+    public static EditRecipe read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an edit recipe");
+        }
+        int version = in.readUnsignedShort();
+        if (version < 1) {
+            throw new IOException("Unsupported edit recipe version " + version);
+        }
+
+        EditRecipe recipe = new EditRecipe();
+        int tag;
+        while ((tag = in.readUnsignedByte()) != SECTION_END) {
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid edit recipe section length " + length);
+            }
+            byte[] section = readSection(in, length);
+            DataInputStream sectionIn = new DataInputStream(new ByteArrayInputStream(section));
+            switch (tag) {
+                case SECTION_CROP:
+                    recipe.crop = readCrop(sectionIn);
+                    break;
+                case SECTION_FILTER:
+                    recipe.filter = readFilter(sectionIn);
+                    break;
+                case SECTION_PAINT:
+                    recipe.paint = readPaint(sectionIn, recipe.crop);
+                    break;
+                case SECTION_PAINT_EDITS:
+                    if (recipe.paint != null) {
+                        recipe.paint = readPaintEdits(sectionIn, recipe.paint);
+                    }
+                    break;
+                case SECTION_REFERENCE:
+                    recipe.referenceWidth = Math.max(0, sectionIn.readInt());
+                    recipe.referenceHeight = Math.max(0, sectionIn.readInt());
+                    break;
+                default:
+                    // a section of a newer version
+                    break;
+            }
+        }
+        return recipe;
+    }
+
+    /**
+     * Reads a section a chunk at a time, so a corrupt length fails where the stream ends instead
+     * of being allocated up front.
+     */
+    private static byte[] readSection(InputStream in, int length) throws IOException {
+        ByteArrayOutputStream section = new ByteArrayOutputStream(Math.min(length, CHUNK_BYTES));
+        byte[] chunk = new byte[Math.min(length, CHUNK_BYTES)];
+        while (section.size() < length) {
+            int read = in.read(chunk, 0, Math.min(chunk.length, length - section.size()));
+            if (read < 0) {
+                throw new EOFException("Truncated edit recipe section");
+            }
+            section.write(chunk, 0, read);
+        }
+        return section.toByteArray();
+    }
+
+    private static Crop readCrop(DataInputStream in) throws IOException {
+        float[] matrix = new float[9];
+        for (int a = 0; a < matrix.length; a++) {
+            matrix[a] = in.readFloat();
+        }
+        float orientation = in.readFloat();
+        float rotation = in.readFloat();
+        float aspectRatio = in.readFloat();
+        float lockedAspectRatio = in.readFloat();
+        if (!(aspectRatio > 0) || Affine.invert(matrix) == null) {
+            throw new IOException("Invalid crop in edit recipe");
+        }
+        return new Crop(matrix, orientation, rotation, aspectRatio, lockedAspectRatio);
+    }
+
+    private static FilterParams readFilter(DataInputStream in) throws IOException {
+        FilterParams params = new FilterParams();
+        params.enhanceValue = in.readFloat();
+        params.exposureValue = in.readFloat();
+        params.contrastValue = in.readFloat();
+        params.warmthValue = in.readFloat();
+        params.saturationValue = in.readFloat();
+        params.fadeValue = in.readFloat();
+        params.tintShadowsColor = in.readInt();
+        params.tintHighlightsColor = in.readInt();
+        params.highlightsValue = in.readFloat();
+        params.shadowsValue = in.readFloat();
+        params.vignetteValue = in.readFloat();
+        params.grainValue = in.readFloat();
+        params.sharpenValue = in.readFloat();
+
+        params.blurType = in.readUnsignedByte();
+        params.blurExcludeSize = in.readFloat();
+        params.blurExcludePointX = in.readFloat();
+        params.blurExcludePointY = in.readFloat();
+        params.blurExcludeBlurSize = in.readFloat();
+        params.blurAngle = in.readFloat();
+        params.blurRadius = in.readFloat();
+
+        if (in.readBoolean()) {
+            params.curvesData = new byte[FilterParams.CURVE_RESOLUTION * 4];
+            in.readFully(params.curvesData);
+            if (in.readBoolean()) {
+                params.curvesLevels = new float[FilterParams.CURVE_LEVELS * 4];
+                for (int a = 0; a < params.curvesLevels.length; a++) {
+                    params.curvesLevels[a] = in.readFloat();
+                }
+            }
+        }
+        return params;
+    }
+
+    private static Paint readPaint(DataInputStream in, Crop recipeCrop) throws IOException {
+        int width = in.readInt();
+        int height = in.readInt();
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE / 4
+                || (long) width * height * 4 > (long) in.available() * MAX_DEFLATE_RATIO) {
+            throw new IOException("Invalid paint layer size " + width + "x" + height);
+        }
+        Crop crop;
+        switch (in.readUnsignedByte()) {
+            case PAINT_CROP_NONE:
+                crop = null;
+                break;
+            case PAINT_CROP_RECIPE:
+                crop = recipeCrop;
+                break;
+            case PAINT_CROP_OWN:
+                crop = readCrop(in);
+                break;
+            default:
+                throw new IOException("Invalid paint crop in edit recipe");
+        }
+
+        Raster layer = new Raster(width, height);
+        readPixels(in, layer.pixels, width * height);
+        return new Paint(layer, crop);
+    }
+
+    private static Paint readPaintEdits(DataInputStream in, Paint paint) throws IOException {
+        int strokeCount = readCount(in);
+        ArrayList<Stroke> strokes = new ArrayList<>(Math.min(strokeCount, 1024));
+        for (int a = 0; a < strokeCount; a++) {
+            int brush = in.readUnsignedByte();
+            int color = in.readInt();
+            float weight = in.readFloat();
+            float[][] segments = new float[readCount(in)][];
+            for (int b = 0; b < segments.length; b++) {
+                int length = readCount(in);
+                if (length % 3 != 0 || length > in.available() / 4) {
+                    throw new IOException("Invalid stroke segment in edit recipe");
+                }
+                float[] points = new float[length];
+                for (int c = 0; c < length; c++) {
+                    points[c] = in.readFloat();
+                }
+                segments[b] = points;
+            }
+            strokes.add(new Stroke(brush, color, weight, segments));
+        }
+        int textCount = readCount(in);
+        ArrayList<Text> texts = new ArrayList<>(Math.min(textCount, 1024));
+        for (int a = 0; a < textCount; a++) {
+            texts.add(new Text(in.readUTF(), in.readInt(), in.readBoolean(),
+                    in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat(),
+                    in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat()));
+        }
+        return new Paint(paint.layer, paint.crop, strokes, texts);
+    }
+
+    /**
+     * A count of items that follow, each at least a byte, so a corrupt one fails early.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Invalid count " + count + " in edit recipe");
+        }
+        return count;
+    }
+
+    private static void readPixels(InputStream in, int[] pixels, int size) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream stream = new DataInputStream(new InflaterInputStream(in, inflater, CHUNK_BYTES));
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+            for (int offset = 0; offset < size; offset += CHUNK_BYTES / 4) {
+                int count = Math.min(CHUNK_BYTES / 4, size - offset);
+                stream.readFully(chunk.array(), 0, count * 4);
+                chunk.clear();
+                chunk.asIntBuffer().get(pixels, offset, count);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated paint layer", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    //endregion
+}
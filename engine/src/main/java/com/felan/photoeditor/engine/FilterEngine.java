@@ -0,0 +1,973 @@
+package com.felan.photoeditor.engine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * CPU implementation of the {@code TelegramEGLThread} filter chain: enhance, sharpen,
+ * the tools (tone/saturation/warmth/fade/tint/vignette/grain) pass and radial/linear blur.
+ * <p>
+ * Every pass is a straight port of its GLSL counterpart, including the linear texture filtering
+ * and the 8-bit quantization of the intermediate render textures, so the engine can be used both
+ * on headless workers and as the golden reference for the GL output. Rows are split into bands
+ * of {@link #TILE_ROWS} and processed with fork/join on the supplied pool, or split among the
+ * threads of a plain {@link ExecutorService} where Android has no {@link ForkJoinPool} (API 20
+ * and below).
+ * <p>
+ * Tolerance: the target is at most {@link #TOLERANCE} out of 255 per channel off the GL renderer
+ * on a device with highp fragment precision. {@code FilterParityTest} checks that on a device;
+ * the goldens of {@code FilterEngineTest} were written by this engine and only catch changes to
+ * its own output, until they are replaced with the GL outputs that test dumps. Grain is excluded
+ * since its noise is built on {@code sin()} of large arguments, whose precision is left to the
+ * GPU. Devices which evaluate the lowp/mediump parts of the tools shader at reduced precision can
+ * deviate further.
+ * <p>
+ * Rasters are {@code int[]} ARGB (as {@code Bitmap.getPixels}) or RGBA {@link ByteBuffer}s
+ * (as {@code glReadPixels}), row 0 at the top. Source and destination must not overlap.
+ */
+public class FilterEngine {
+
+    public static final int TILE_ROWS = 32;
+
+    public static final int TOLERANCE = 3;
+
+    private final static float TOOL_EPSILON = 0.005f;
+
+    /**
+     * Enough for {@link FilterParams#BLUR_RADIUS_MAX} scaled up 64 times, as an export of a
+     * photo that much larger than its preview does, with a step of at most 2 texels.
+     */
+    public final static int BLUR_MAX_LEVELS = 8;
+
+    private final static float[] BLUR_OFFSETS = {0.0f, 1.458430f, -1.458430f, 3.403985f, -3.403985f, 5.351806f, -5.351806f, 7.302940f, -7.302940f};
+    private final static float[] BLUR_WEIGHTS = {0.133571f, 0.233308f, 0.233308f, 0.135928f, 0.135928f, 0.051383f, 0.051383f, 0.012595f, 0.012595f};
+
+    /**
+     * Null to run the bands one after the other on the calling thread.
+     */
+    private final ExecutorService executor;
+    private final boolean forkJoin;
+
+    /**
+     * Runs on {@link ForkJoinPool#commonPool()}, or on the calling thread alone where there is
+     * none (Android below API 24).
+     */
+    public FilterEngine() {
+        this(getCommonPool(), true);
+    }
+
+    public FilterEngine(ForkJoinPool pool) {
+        this(pool, true);
+    }
+
+    /**
+     * Splits the bands among the threads of {@code executor} and the calling thread, which must
+     * not be one of them.
+     */
+    public FilterEngine(ExecutorService executor) {
+        this(executor, false);
+    }
+
+    private FilterEngine(ExecutorService executor, boolean forkJoin) {
+        this.executor = executor;
+        this.forkJoin = forkJoin && executor != null;
+    }
+
+    private static ExecutorService getCommonPool() {
+        try {
+            return ForkJoinPool.commonPool();
+        } catch (NoClassDefFoundError | NoSuchMethodError e) {
+            return null;
+        }
+    }
+
+    public int[] render(int[] argb, int width, int height, FilterParams params) {
+        return render(argb, width, height, params, 1.0f);
+    }
+
+    /**
+     * @param radiusScale how many times larger the image is than the one {@code params} were
+     *                    set on, the blur radius is scaled by it like the GL export scales it
+     */
+    public int[] render(int[] argb, int width, int height, FilterParams params, float radiusScale) {
+        int[] result = new int[width * height];
+        render(argb, width, height, params, radiusScale, result);
+        return result;
+    }
+
+    public void render(ByteBuffer rgba, int width, int height, FilterParams params, ByteBuffer result) {
+        int[] pixels = new int[width * height];
+        int base = rgba.position();
+        for (int i = 0; i < pixels.length; i++) {
+            int index = base + i * 4;
+            pixels[i] = (rgba.get(index + 3) & 0xff) << 24 | (rgba.get(index) & 0xff) << 16 | (rgba.get(index + 1) & 0xff) << 8 | (rgba.get(index + 2) & 0xff);
+        }
+
+        int[] output = render(pixels, width, height, params);
+
+        base = result.position();
+        for (int i = 0; i < output.length; i++) {
+            int color = output[i];
+            int index = base + i * 4;
+            result.put(index, (byte) (color >> 16));
+            result.put(index + 1, (byte) (color >> 8));
+            result.put(index + 2, (byte) color);
+            result.put(index + 3, (byte) (color >>> 24));
+        }
+    }
+
+    public void render(int[] argb, int width, int height, FilterParams params, int[] result) {
+        render(argb, width, height, params, 1.0f, result);
+    }
+
+    public void render(int[] argb, int width, int height, FilterParams params, float radiusScale, int[] result) {
+        int size = width * height;
+        int[] first = new int[size];
+        int[] second = new int[size];
+
+        drawEnhancePass(argb, second, first, width, height, params);
+        drawSharpenPass(first, second, width, height, params);
+        drawCustomParamsPass(second, first, width, height, params);
+        if (!drawBlurPass(first, second, result, width, height, params, radiusScale)) {
+            System.arraycopy(first, 0, result, 0, size);
+        }
+    }
+
+    //region Passes
+
+    private void drawEnhancePass(final int[] src, final int[] hsv, final int[] dst, final int width, final int height, FilterParams params) {
+        forEachTile(height, (from, to) -> {
+            float[] c = new float[3];
+            for (int y = from; y < to; y++) {
+                for (int i = y * width, end = i + width; i < end; i++) {
+                    int color = src[i];
+                    rgbToHsv(unpack(color, c), c);
+                    hsv[i] = pack(color >>> 24, c[0], c[1], c[2]);
+                }
+            }
+        });
+
+        final byte[] cdt = new byte[Clahe.RESULT_SIZE];
+        Clahe.calcProxyCDT(hsv, width, height, true, cdt);
+
+        final float intensity = params.getEnhance();
+        forEachTile(height, (from, to) -> {
+            float[] c = new float[3];
+            for (int y = from; y < to; y++) {
+                // the hsv texture is stored bottom-up, see drawEnhancePass in TelegramEGLThread
+                float texCoordY = (height - 1 - y + 0.5f) / height;
+                for (int x = 0; x < width; x++) {
+                    int i = y * width + x;
+                    int texel = hsv[i];
+                    unpack(texel, c);
+                    float s = Math.min(1.0f, c[1] * 1.2f);
+                    float v = Math.min(1.0f, enhance(c[2], (x + 0.5f) / width, texCoordY, cdt) * 1.1f);
+                    c[1] = mix(c[1], s, intensity);
+                    c[2] = mix(c[2], v, intensity);
+                    hsvToRgb(c, c);
+                    dst[i] = pack(texel >>> 24, c[0], c[1], c[2]);
+                }
+            }
+        });
+    }
+
+    private void drawSharpenPass(final int[] src, final int[] dst, final int width, final int height, FilterParams params) {
+        final float sharpen = params.getSharpen();
+        final float center = 1.0f + 4.0f * sharpen;
+        forEachTile(height, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                int top = Math.min(y + 1, height - 1) * width;
+                int bottom = Math.max(y - 1, 0) * width;
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    int color = src[row + x];
+                    int left = src[row + Math.max(x - 1, 0)];
+                    int right = src[row + Math.min(x + 1, width - 1)];
+                    int up = src[top + x];
+                    int down = src[bottom + x];
+                    float r = channel(color, 16) * center - (channel(left, 16) + channel(right, 16) + channel(up, 16) + channel(down, 16)) * sharpen;
+                    float g = channel(color, 8) * center - (channel(left, 8) + channel(right, 8) + channel(up, 8) + channel(down, 8)) * sharpen;
+                    float b = channel(color, 0) * center - (channel(left, 0) + channel(right, 0) + channel(up, 0) + channel(down, 0)) * sharpen;
+                    dst[row + x] = pack(color >>> 24, r, g, b);
+                }
+            }
+        });
+    }
+
+    private void drawCustomParamsPass(final int[] src, final int[] dst, final int width, final int height, FilterParams params) {
+        final ToolsUniforms uniforms = new ToolsUniforms(params, width, height);
+        forEachTile(height, (from, to) -> {
+            float[] c = new float[3];
+            float[] tmp = new float[3];
+            for (int y = from; y < to; y++) {
+                float texCoordY = (y + 0.5f) / height;
+                for (int x = 0; x < width; x++) {
+                    int i = y * width + x;
+                    int color = src[i];
+                    unpack(color, c);
+                    applyTools(c, (x + 0.5f) / width, texCoordY, uniforms, tmp);
+                    dst[i] = pack(color >>> 24, c[0], c[1], c[2]);
+                }
+            }
+        });
+    }
+
+    private boolean drawBlurPass(final int[] src, final int[] tmp, final int[] dst, final int width, final int height, FilterParams params, float radiusScale) {
+        if (params.blurType == FilterParams.BLUR_NONE) {
+            return false;
+        }
+
+        drawBlurPyramid(src, tmp, dst, width, height, params.getBlurRadius() * radiusScale);
+
+        final int blurType = params.blurType;
+        final float excludeSize = params.blurExcludeSize;
+        final float excludeBlurSize = params.blurExcludeBlurSize;
+        final float excludePointX = params.blurExcludePointX;
+        final float excludePointY = params.blurExcludePointY;
+        final float cos = (float) Math.cos(params.blurAngle);
+        final float sin = (float) Math.sin(params.blurAngle);
+        final float aspectRatio = (float) height / (float) width;
+        forEachTile(height, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                float texCoordY = (y + 0.5f) / height;
+                float y2 = texCoordY * aspectRatio + 0.5f - 0.5f * aspectRatio;
+                for (int x = 0; x < width; x++) {
+                    float texCoordX = (x + 0.5f) / width;
+                    float distanceFromCenter;
+                    if (blurType == FilterParams.BLUR_RADIAL) {
+                        float dx = texCoordX - excludePointX;
+                        float dy = y2 - excludePointY;
+                        distanceFromCenter = (float) Math.sqrt(dx * dx + dy * dy);
+                    } else {
+                        distanceFromCenter = Math.abs((texCoordX - excludePointX) * aspectRatio * cos + (y2 - excludePointY) * sin);
+                    }
+                    float f = smoothstep(excludeSize - excludeBlurSize, excludeSize, distanceFromCenter);
+                    int i = y * width + x;
+                    int sharp = src[i];
+                    int blurred = dst[i];
+                    dst[i] = pack(lerpChannel(sharp, blurred, 24, f), lerpChannel(sharp, blurred, 16, f), lerpChannel(sharp, blurred, 8, f), lerpChannel(sharp, blurred, 0, f));
+                }
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Blurs {@code src} into {@code dst} like the GL pipeline: the image is halved with bilinear
+     * filtering {@link #getBlurLevels} times, the 9 tap gaussian runs at the smallest level
+     * with the remaining radius and the result is scaled back up level by level.
+     */
+    private void drawBlurPyramid(int[] src, int[] tmp, int[] dst, int width, int height, float radius) {
+        int levels = getBlurLevels(radius);
+        float step = radius / (1 << levels);
+        int[][] pyramid = new int[levels][];
+        int[] widths = new int[levels];
+        int[] heights = new int[levels];
+
+        int[] source = src;
+        int levelWidth = width;
+        int levelHeight = height;
+        for (int level = 0; level < levels; level++) {
+            int w = Math.max(1, levelWidth / 2);
+            int h = Math.max(1, levelHeight / 2);
+            pyramid[level] = new int[w * h];
+            drawResamplePass(source, levelWidth, levelHeight, pyramid[level], w, h);
+            source = pyramid[level];
+            levelWidth = widths[level] = w;
+            levelHeight = heights[level] = h;
+        }
+
+        if (levels == 0) {
+            drawGaussianPass(src, tmp, width, height, true, step);
+            drawGaussianPass(tmp, dst, width, height, false, step);
+            return;
+        }
+        int[] scratch = new int[levelWidth * levelHeight];
+        drawGaussianPass(source, scratch, levelWidth, levelHeight, true, step);
+        drawGaussianPass(scratch, source, levelWidth, levelHeight, false, step);
+        for (int level = levels - 2; level >= 0; level--) {
+            drawResamplePass(pyramid[level + 1], widths[level + 1], heights[level + 1], pyramid[level], widths[level], heights[level]);
+        }
+        drawResamplePass(pyramid[0], widths[0], heights[0], dst, width, height);
+    }
+
+    private void drawGaussianPass(final int[] src, final int[] dst, final int width, final int height, final boolean vertical, final float step) {
+        forEachTile(height, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    float r = 0, g = 0, b = 0, a = 0;
+                    for (int k = 0; k < BLUR_OFFSETS.length; k++) {
+                        float position = (vertical ? y : x) + BLUR_OFFSETS[k] * step;
+                        int p0 = (int) Math.floor(position);
+                        float f = position - p0;
+                        int c0, c1;
+                        if (vertical) {
+                            c0 = src[clamp(p0, height) * width + x];
+                            c1 = src[clamp(p0 + 1, height) * width + x];
+                        } else {
+                            c0 = src[row + clamp(p0, width)];
+                            c1 = src[row + clamp(p0 + 1, width)];
+                        }
+                        float weight = BLUR_WEIGHTS[k];
+                        r += lerpChannel(c0, c1, 16, f) * weight;
+                        g += lerpChannel(c0, c1, 8, f) * weight;
+                        b += lerpChannel(c0, c1, 0, f) * weight;
+                        a += lerpChannel(c0, c1, 24, f) * weight;
+                    }
+                    dst[row + x] = pack(a, r, g, b);
+                }
+            }
+        });
+    }
+
+    /**
+     * Bilinear scaling with texel centers mapped onto each other, as a textured quad drawn
+     * into a smaller or larger viewport samples.
+     */
+    private void drawResamplePass(final int[] src, final int srcWidth, final int srcHeight, final int[] dst, final int width, final int height) {
+        final float scaleX = (float) srcWidth / width;
+        final float scaleY = (float) srcHeight / height;
+        forEachTile(height, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                float sy = (y + 0.5f) * scaleY - 0.5f;
+                int y0 = (int) Math.floor(sy);
+                float fy = sy - y0;
+                int row0 = clamp(y0, srcHeight) * srcWidth;
+                int row1 = clamp(y0 + 1, srcHeight) * srcWidth;
+                for (int x = 0; x < width; x++) {
+                    float sx = (x + 0.5f) * scaleX - 0.5f;
+                    int x0 = (int) Math.floor(sx);
+                    float fx = sx - x0;
+                    int left = clamp(x0, srcWidth);
+                    int right = clamp(x0 + 1, srcWidth);
+                    int c00 = src[row0 + left];
+                    int c10 = src[row0 + right];
+                    int c01 = src[row1 + left];
+                    int c11 = src[row1 + right];
+                    dst[y * width + x] = pack(mix(lerpChannel(c00, c10, 24, fx), lerpChannel(c01, c11, 24, fx), fy),
+                            mix(lerpChannel(c00, c10, 16, fx), lerpChannel(c01, c11, 16, fx), fy),
+                            mix(lerpChannel(c00, c10, 8, fx), lerpChannel(c01, c11, 8, fx), fy),
+                            mix(lerpChannel(c00, c10, 0, fx), lerpChannel(c01, c11, 0, fx), fy));
+                }
+            }
+        });
+    }
+
+    /**
+     * Number of times the image is halved before blurring with the given radius, a multiple of
+     * the base kernel in pixels. Every level halves the radius the gaussian runs with until it is
+     * below 2, which keeps it in the range the 9 taps cover without gaps. The levels grow with the
+     * log2 of the radius, so an export scaling the preview radius up takes as many more as it
+     * needs, up to {@link #BLUR_MAX_LEVELS}.
+     */
+    public static int getBlurLevels(float radius) {
+        int levels = 0;
+        while (levels < BLUR_MAX_LEVELS && radius >= 2.0f) {
+            radius *= 0.5f;
+            levels++;
+        }
+        return levels;
+    }
+
+    //endregion
+
+    //region Enhance
+
+    private static float enhance(float value, float texCoordX, float texCoordY, byte[] cdt) {
+        float position = (value + 0.001953125f) * Clahe.PGPhotoEnhanceHistogramBins - 0.5f;
+        int i0 = (int) Math.floor(position);
+        float f = position - i0;
+        int i1 = Math.min(Clahe.PGPhotoEnhanceHistogramBins - 1, Math.max(0, i0 + 1));
+        i0 = Math.min(Clahe.PGPhotoEnhanceHistogramBins - 1, Math.max(0, i0));
+
+        float coordX = (clamp(texCoordX, 0.125f, 1.0f - 0.125001f) - 0.125f) * 4.0f;
+        float coordY = (clamp(texCoordY, 0.125f, 1.0f - 0.125001f) - 0.125f) * 4.0f;
+        int cx = (int) Math.floor(coordX);
+        int cy = (int) Math.floor(coordY);
+        float fracX = coordX - cx;
+        float fracY = coordY - cy;
+
+        int tile = cy * Clahe.PGPhotoEnhanceSegments + cx;
+        float c1 = cdtValue(cdt, tile, i0, i1, f);
+        float c2 = cdtValue(cdt, tile + 1, i0, i1, f);
+        float c3 = cdtValue(cdt, tile + Clahe.PGPhotoEnhanceSegments, i0, i1, f);
+        float c4 = cdtValue(cdt, tile + Clahe.PGPhotoEnhanceSegments + 1, i0, i1, f);
+        return mix(mix(c1, c2, fracX), mix(c3, c4, fracX), fracY);
+    }
+
+    private static float cdtValue(byte[] cdt, int tile, int i0, int i1, float f) {
+        int row = tile * Clahe.PGPhotoEnhanceHistogramBins * 4;
+        float r = mix(cdt[row + i0 * 4] & 0xff, cdt[row + i1 * 4] & 0xff, f) / 255.0f;
+        float g = (cdt[row + 1] & 0xff) / 255.0f;
+        float b = (cdt[row + 2] & 0xff) / 255.0f;
+        float d = b - g;
+        // GL produces inf/NaN for flat tiles; keep the reference deterministic instead
+        return d != 0 ? (r - g) / d : 0.0f;
+    }
+
+    //endregion
+
+    //region Tools
+
+    static class ToolsUniforms {
+        final float shadows;
+        final float highlights;
+        final float contrast;
+        final float fadeAmount;
+        final float saturation;
+        final float shadowsTintIntensity;
+        final float highlightsTintIntensity;
+        final float[] shadowsTintColor;
+        final float[] highlightsTintColor;
+        final float exposure;
+        final float warmth;
+        final float grain;
+        final float vignette;
+        final float width;
+        final float height;
+        final byte[] curves;
+
+        ToolsUniforms(FilterParams params, int width, int height) {
+            shadows = params.getShadows();
+            highlights = params.getHighlights();
+            contrast = params.getContrast();
+            fadeAmount = params.getFade();
+            saturation = params.getSaturation();
+            shadowsTintIntensity = params.getTintShadowsIntensity();
+            highlightsTintIntensity = params.getTintHighlightsIntensity();
+            shadowsTintColor = unpack(params.tintShadowsColor, new float[3]);
+            highlightsTintColor = unpack(params.tintHighlightsColor, new float[3]);
+            exposure = params.getExposure();
+            warmth = params.getWarmth();
+            grain = params.getGrain();
+            vignette = params.getVignette();
+            this.width = width;
+            this.height = height;
+            curves = params.curvesData;
+        }
+    }
+
+    private static void applyTools(float[] c, float texCoordX, float texCoordY, ToolsUniforms u, float[] tmp) {
+        applyTone(c, u, tmp);
+        applyGrainAndVignette(c, texCoordX, texCoordY, u);
+    }
+
+    /**
+     * The pointwise part of the tools pass, everything but grain and vignette. This is what
+     * {@link ColorLut#bake} samples.
+     */
+    static void applyTone(float[] c, ToolsUniforms u, float[] tmp) {
+        if (u.curves != null) {
+            rgbToHsl(c, tmp);
+            applyLuminanceCurve(tmp, u.curves);
+            hslToRgb(tmp, c);
+            applyRGBCurve(c, u.curves);
+        }
+
+        float hsLuminance = (c[0] + c[1] + c[2]) * 0.3f;
+        float shadow = clamp((pow(hsLuminance, 1.0f / u.shadows) + (-0.76f) * pow(hsLuminance, 2.0f / u.shadows)) - hsLuminance, 0.0f, 1.0f);
+        float highlight = clamp((1.0f - (pow(1.0f - hsLuminance, 1.0f / (2.0f - u.highlights)) + (-0.8f) * pow(1.0f - hsLuminance, 2.0f / (2.0f - u.highlights)))) - hsLuminance, -1.0f, 0.0f);
+        float factor = hsLuminance != 0 ? (hsLuminance + shadow + highlight) / hsLuminance : 0.0f;
+        float contrastedLuminance = ((hsLuminance - 0.5f) * 1.5f) + 0.5f;
+        float whiteInterp = contrastedLuminance * contrastedLuminance * contrastedLuminance * (clamp(u.highlights, 1.0f, 2.0f) - 1.0f);
+        float invContrastedLuminance = 1.0f - contrastedLuminance;
+        float blackInterp = invContrastedLuminance * invContrastedLuminance * invContrastedLuminance * (1.0f - clamp(u.shadows, 0.0f, 1.0f));
+        for (int k = 0; k < 3; k++) {
+            float value = c[k] * factor;
+            value = mix(value, 1.0f, whiteInterp);
+            value = mix(value, 0.0f, blackInterp);
+            c[k] = clamp((value - 0.5f) * u.contrast + 0.5f, 0.0f, 1.0f);
+        }
+
+        if (Math.abs(u.fadeAmount) > TOOL_EPSILON) {
+            for (int k = 0; k < 3; k++) {
+                float value = c[k];
+                c[k] = (value * (1.0f - u.fadeAmount)) + ((value + (-0.9772f * value * value * value + 1.708f * value * value + -0.1603f * value + 0.2878f - value * 0.9f)) * u.fadeAmount);
+            }
+        }
+
+        float satLuminance = c[0] * 0.2126f + c[1] * 0.7152f + c[2] * 0.0722f;
+        for (int k = 0; k < 3; k++) {
+            c[k] = clamp(mix(satLuminance, c[k], u.saturation), 0.0f, 1.0f);
+        }
+
+        if (Math.abs(u.shadowsTintIntensity) > TOOL_EPSILON) {
+            float amount = u.shadowsTintIntensity * 2.0f;
+            for (int k = 0; k < 3; k++) {
+                float value = c[k];
+                c[k] = clamp(mix(value, mix(value, tintRaiseShadowsCurve(value), u.shadowsTintColor[k]), amount), 0.0f, 1.0f);
+            }
+        }
+
+        if (Math.abs(u.highlightsTintIntensity) > TOOL_EPSILON) {
+            float amount = u.highlightsTintIntensity * 2.0f;
+            for (int k = 0; k < 3; k++) {
+                float value = c[k];
+                c[k] = clamp(mix(value, mix(value, 1.0f - tintRaiseShadowsCurve(1.0f - value), 1.0f - u.highlightsTintColor[k]), amount), 0.0f, 1.0f);
+            }
+        }
+
+        if (Math.abs(u.exposure) > TOOL_EPSILON) {
+            float mag = u.exposure * 1.045f;
+            float exppower = 1.0f + Math.abs(mag);
+            if (mag < 0.0f) {
+                exppower = 1.0f / exppower;
+            }
+            for (int k = 0; k < 3; k++) {
+                c[k] = 1.0f - pow(1.0f - c[k], exppower);
+            }
+        }
+
+        if (Math.abs(u.warmth) > TOOL_EPSILON) {
+            float yuvX, yuvY, yuvZ;
+            if (u.warmth > 0.0f) {
+                yuvX = 0.1765f;
+                yuvY = -0.1255f;
+                yuvZ = 0.0902f;
+            } else {
+                yuvX = -0.0588f;
+                yuvY = -0.1569f;
+                yuvZ = 0.1255f;
+            }
+            float luma = getLuma(c);
+            float y = luma;
+            float u1 = (1.0f / 1.772f) * (c[2] - luma);
+            float v1 = (1.0f / 1.402f) * (c[0] - luma);
+            float curveScale = (float) Math.sin(luma * 3.14159f);
+            float amount = 0.375f * u.warmth * curveScale;
+            y += amount * yuvX;
+            u1 += amount * yuvY;
+            v1 += amount * yuvZ;
+            c[0] = 1.402f * v1 + y;
+            c[1] = y - (0.299f * 1.402f / 0.587f) * v1 - (0.114f * 1.772f / 0.587f) * u1;
+            c[2] = 1.772f * u1 + y;
+        }
+    }
+
+    private static void applyGrainAndVignette(float[] c, float texCoordX, float texCoordY, ToolsUniforms u) {
+        if (Math.abs(u.grain) > TOOL_EPSILON) {
+            float angle = 1.425f;
+            float cos = (float) Math.cos(angle);
+            float sin = (float) Math.sin(angle);
+            float rotX = ((texCoordX * 2.0f - 1.0f) * cos - (texCoordY * 2.0f - 1.0f) * sin) * 0.5f + 0.5f;
+            float rotY = ((texCoordY * 2.0f - 1.0f) * cos + (texCoordX * 2.0f - 1.0f) * sin) * 0.5f + 0.5f;
+            float noise = pnoise3D(rotX * (u.width / 2.3f), rotY * (u.height / 2.3f), 0.0f);
+            float luminance = getLuma(c);
+            float lum = smoothstep(0.2f, 0.0f, luminance) + luminance;
+            noise = mix(noise, 0.0f, pow(lum, 4.0f));
+            for (int k = 0; k < 3; k++) {
+                c[k] += noise * u.grain;
+            }
+        }
+
+        if (Math.abs(u.vignette) > TOOL_EPSILON) {
+            final float midpoint = 0.7f;
+            final float fuzziness = 0.62f;
+            float dx = texCoordX - 0.5f;
+            float dy = texCoordY - 0.5f;
+            float radDist = (float) Math.sqrt(dx * dx + dy * dy) / (float) Math.sqrt(0.5f);
+            float mag = easeInOutSigmoid(radDist * midpoint, fuzziness) * u.vignette * 0.645f;
+            for (int k = 0; k < 3; k++) {
+                c[k] = mix(pow(Math.max(0.0f, c[k]), 1.0f / (1.0f - mag)), 0.0f, mag * mag);
+            }
+        }
+    }
+
+    private static float getLuma(float[] c) {
+        return (0.299f * c[0]) + (0.587f * c[1]) + (0.114f * c[2]);
+    }
+
+    private static float tintRaiseShadowsCurve(float value) {
+        return -0.003671f * value * value * value + 0.3842f * value * value + 0.3764f * value + 0.2515f;
+    }
+
+    private static float easeInOutSigmoid(float value, float strength) {
+        if (value > 0.5f) {
+            return 1.0f - pow(2.0f - 2.0f * value, 1.0f / (1.0f - strength)) * 0.5f;
+        } else {
+            return pow(2.0f * value, 1.0f / (1.0f - strength)) * 0.5f;
+        }
+    }
+
+    private static float curveValue(byte[] curves, int index, int component) {
+        // the shader samples at the left edge of the texel, which the linear filter averages with its neighbour
+        int previous = Math.max(0, index - 1);
+        return ((curves[previous * 4 + component] & 0xff) + (curves[index * 4 + component] & 0xff)) * 0.5f / 255.0f;
+    }
+
+    private static int curveIndex(float value) {
+        return (int) Math.floor(clamp(value * FilterParams.CURVE_RESOLUTION, 0.0f, FilterParams.CURVE_RESOLUTION - 1));
+    }
+
+    private static void applyLuminanceCurve(float[] hsl, byte[] curves) {
+        int index = curveIndex(hsl[2]);
+        hsl[1] = hsl[1] * (smoothstep(0.0f, 0.1f, hsl[2]) * (1.0f - smoothstep(0.8f, 1.0f, hsl[2])));
+        hsl[2] = curveValue(curves, index, 3);
+    }
+
+    private static void applyRGBCurve(float[] c, byte[] curves) {
+        c[0] = curveValue(curves, curveIndex(c[0]), 0);
+        c[1] = clamp(curveValue(curves, curveIndex(c[1]), 1), 0.0f, 1.0f);
+        c[2] = clamp(curveValue(curves, curveIndex(c[2]), 2), 0.0f, 1.0f);
+    }
+
+    private static void rgbToHsl(float[] color, float[] hsl) {
+        float r = color[0], g = color[1], b = color[2];
+        float fmin = Math.min(Math.min(r, g), b);
+        float fmax = Math.max(Math.max(r, g), b);
+        float delta = fmax - fmin;
+        float h, s, l = (fmax + fmin) / 2.0f;
+        if (delta == 0.0f) {
+            h = 0.0f;
+            s = 0.0f;
+        } else {
+            if (l < 0.5f) {
+                s = delta / (fmax + fmin);
+            } else {
+                s = delta / (2.0f - fmax - fmin);
+            }
+            float deltaR = (((fmax - r) / 6.0f) + (delta / 2.0f)) / delta;
+            float deltaG = (((fmax - g) / 6.0f) + (delta / 2.0f)) / delta;
+            float deltaB = (((fmax - b) / 6.0f) + (delta / 2.0f)) / delta;
+            if (r == fmax) {
+                h = deltaB - deltaG;
+            } else if (g == fmax) {
+                h = (1.0f / 3.0f) + deltaR - deltaB;
+            } else {
+                h = (2.0f / 3.0f) + deltaG - deltaR;
+            }
+            if (h < 0.0f) {
+                h += 1.0f;
+            } else if (h > 1.0f) {
+                h -= 1.0f;
+            }
+        }
+        hsl[0] = h;
+        hsl[1] = s;
+        hsl[2] = l;
+    }
+
+    private static float hueToRgb(float f1, float f2, float hue) {
+        if (hue < 0.0f) {
+            hue += 1.0f;
+        } else if (hue > 1.0f) {
+            hue -= 1.0f;
+        }
+        if ((6.0f * hue) < 1.0f) {
+            return f1 + (f2 - f1) * 6.0f * hue;
+        } else if ((2.0f * hue) < 1.0f) {
+            return f2;
+        } else if ((3.0f * hue) < 2.0f) {
+            return f1 + (f2 - f1) * ((2.0f / 3.0f) - hue) * 6.0f;
+        }
+        return f1;
+    }
+
+    private static void hslToRgb(float[] hsl, float[] color) {
+        float h = hsl[0], s = hsl[1], l = hsl[2];
+        if (s == 0.0f) {
+            color[0] = color[1] = color[2] = l;
+            return;
+        }
+        float f2;
+        if (l < 0.5f) {
+            f2 = l * (1.0f + s);
+        } else {
+            f2 = (l + s) - (s * l);
+        }
+        float f1 = 2.0f * l - f2;
+        color[0] = hueToRgb(f1, f2, h + (1.0f / 3.0f));
+        color[1] = hueToRgb(f1, f2, h);
+        color[2] = hueToRgb(f1, f2, h - (1.0f / 3.0f));
+    }
+
+    //endregion
+
+    //region Grain noise
+
+    private final static float permTexUnit = 1.0f / 256.0f;
+    private final static float permTexUnitHalf = 0.5f / 256.0f;
+
+    private static float rnm(float x, float y, int component) {
+        float noise = (float) Math.sin(x * 12.9898f + y * 78.233f) * 43758.5453f;
+        float multiplier;
+        switch (component) {
+            case 0:
+                multiplier = 1.0f;
+                break;
+            case 1:
+                multiplier = 1.2154f;
+                break;
+            case 2:
+                multiplier = 1.3453f;
+                break;
+            default:
+                multiplier = 1.3647f;
+                break;
+        }
+        return fract(noise * multiplier) * 2.0f - 1.0f;
+    }
+
+    private static float gradient(float perm, float z, float dx, float dy, float dz) {
+        return (rnm(perm, z, 0) * 4.0f - 1.0f) * dx + (rnm(perm, z, 1) * 4.0f - 1.0f) * dy + (rnm(perm, z, 2) * 4.0f - 1.0f) * dz;
+    }
+
+    private static float fade(float t) {
+        return t * t * t * (t * (t * 6.0f - 15.0f) + 10.0f);
+    }
+
+    private static float pnoise3D(float px, float py, float pz) {
+        float pix = permTexUnit * (float) Math.floor(px) + permTexUnitHalf;
+        float piy = permTexUnit * (float) Math.floor(py) + permTexUnitHalf;
+        float piz = permTexUnit * (float) Math.floor(pz) + permTexUnitHalf;
+        float pfx = fract(px);
+        float pfy = fract(py);
+        float pfz = fract(pz);
+
+        float perm = rnm(pix, piy, 3);
+        float n000 = gradient(perm, piz, pfx, pfy, pfz);
+        float n001 = gradient(perm, piz + permTexUnit, pfx, pfy, pfz - 1.0f);
+
+        perm = rnm(pix, piy + permTexUnit, 3);
+        float n010 = gradient(perm, piz, pfx, pfy - 1.0f, pfz);
+        float n011 = gradient(perm, piz + permTexUnit, pfx, pfy - 1.0f, pfz - 1.0f);
+
+        perm = rnm(pix + permTexUnit, piy, 3);
+        float n100 = gradient(perm, piz, pfx - 1.0f, pfy, pfz);
+        float n101 = gradient(perm, piz + permTexUnit, pfx - 1.0f, pfy, pfz - 1.0f);
+
+        perm = rnm(pix + permTexUnit, piy + permTexUnit, 3);
+        float n110 = gradient(perm, piz, pfx - 1.0f, pfy - 1.0f, pfz);
+        float n111 = gradient(perm, piz + permTexUnit, pfx - 1.0f, pfy - 1.0f, pfz - 1.0f);
+
+        float fx = fade(pfx);
+        float nx0 = mix(n000, n100, fx);
+        float nx1 = mix(n001, n101, fx);
+        float nx2 = mix(n010, n110, fx);
+        float nx3 = mix(n011, n111, fx);
+        float fy = fade(pfy);
+        float nxy0 = mix(nx0, nx2, fy);
+        float nxy1 = mix(nx1, nx3, fy);
+        return mix(nxy0, nxy1, fade(pfz));
+    }
+
+    //endregion
+
+    //region Color helpers
+
+    static void rgbToHsv(float[] c, float[] hsv) {
+        float r = c[0], g = c[1], b = c[2];
+        float px, py, pz, pw;
+        if (g < b) {
+            px = b;
+            py = g;
+            pz = -1.0f;
+            pw = 2.0f / 3.0f;
+        } else {
+            px = g;
+            py = b;
+            pz = 0.0f;
+            pw = -1.0f / 3.0f;
+        }
+        float qx, qy, qz, qw;
+        if (r < px) {
+            qx = px;
+            qy = py;
+            qz = pw;
+            qw = r;
+        } else {
+            qx = r;
+            qy = py;
+            qz = pz;
+            qw = px;
+        }
+        float d = qx - Math.min(qw, qy);
+        float e = 1.0e-10f;
+        hsv[0] = Math.abs(qz + (qw - qy) / (6.0f * d + e));
+        hsv[1] = d / (qx + e);
+        hsv[2] = qx;
+    }
+
+    static void hsvToRgb(float[] hsv, float[] c) {
+        float h = hsv[0], s = hsv[1], v = hsv[2];
+        c[0] = v * mix(1.0f, clamp(Math.abs(fract(h + 1.0f) * 6.0f - 3.0f) - 1.0f, 0.0f, 1.0f), s);
+        c[1] = v * mix(1.0f, clamp(Math.abs(fract(h + 2.0f / 3.0f) * 6.0f - 3.0f) - 1.0f, 0.0f, 1.0f), s);
+        c[2] = v * mix(1.0f, clamp(Math.abs(fract(h + 1.0f / 3.0f) * 6.0f - 3.0f) - 1.0f, 0.0f, 1.0f), s);
+    }
+
+    static float[] unpack(int color, float[] c) {
+        c[0] = ((color >> 16) & 0xff) / 255.0f;
+        c[1] = ((color >> 8) & 0xff) / 255.0f;
+        c[2] = (color & 0xff) / 255.0f;
+        return c;
+    }
+
+    static int pack(int alpha, float r, float g, float b) {
+        return alpha << 24 | toByte(r) << 16 | toByte(g) << 8 | toByte(b);
+    }
+
+    static int pack(float alpha, float r, float g, float b) {
+        return toByte(alpha / 255.0f) << 24 | toByte(r) << 16 | toByte(g) << 8 | toByte(b);
+    }
+
+    /**
+     * Float to unsigned normalized byte conversion of a RGBA8 render target.
+     */
+    static int toByte(float value) {
+        if (!(value > 0.0f)) {
+            return 0;
+        }
+        if (value >= 1.0f) {
+            return 255;
+        }
+        return (int) (value * 255.0f + 0.5f);
+    }
+
+    private static float channel(int color, int shift) {
+        return ((color >>> shift) & 0xff) / 255.0f;
+    }
+
+    private static float lerpChannel(int c0, int c1, int shift, float f) {
+        float v0 = (c0 >>> shift) & 0xff;
+        float v1 = (c1 >>> shift) & 0xff;
+        return shift == 24 ? v0 + (v1 - v0) * f : (v0 + (v1 - v0) * f) / 255.0f;
+    }
+
+    static float mix(float x, float y, float a) {
+        return x + (y - x) * a;
+    }
+
+    static float clamp(float value, float min, float max) {
+        return Math.min(max, Math.max(min, value));
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.min(size - 1, Math.max(0, value));
+    }
+
+    static float fract(float value) {
+        return value - (float) Math.floor(value);
+    }
+
+    static float smoothstep(float edge0, float edge1, float x) {
+        float t = clamp((x - edge0) / (edge1 - edge0), 0.0f, 1.0f);
+        return t * t * (3.0f - 2.0f * t);
+    }
+
+    private static float pow(float x, float y) {
+        return (float) Math.pow(x, y);
+    }
+
+    //endregion
+
+    //region Color LUT
+
+    /**
+     * Applies a baked {@link ColorLut} to the raster, the CPU counterpart of the LUT preview.
+     * Grain and vignette are spatial and not part of the LUT; apply them with the full chain.
+     */
+    public void render(final int[] argb, final int width, final int height, final ColorLut lut, final int[] result) {
+        forEachTile(height, (from, to) -> {
+            float[] c = new float[3];
+            for (int i = from * width, end = to * width; i < end; i++) {
+                int color = argb[i];
+                lut.lookup(unpack(color, c));
+                result[i] = pack(color >>> 24, c[0], c[1], c[2]);
+            }
+        });
+    }
+
+    //endregion
+
+    //region Tiling
+
+    interface RowKernel {
+        void run(int fromRow, int toRow);
+    }
+
+    void forEachTile(int height, RowKernel kernel) {
+        if (forkJoin) {
+            TileTask.invoke(executor, kernel, height);
+        } else if (executor != null) {
+            forEachBand(height, kernel);
+        } else {
+            for (int from = 0; from < height; from += TILE_ROWS) {
+                kernel.run(from, Math.min(height, from + TILE_ROWS));
+            }
+        }
+    }
+
+    /**
+     * Hands the bands but the first to the executor, runs the first one and waits for the rest.
+     */
+    private void forEachBand(int height, final RowKernel kernel) {
+        List<Future<?>> bands = new ArrayList<>(height / TILE_ROWS);
+        try {
+            for (int from = TILE_ROWS; from < height; from += TILE_ROWS) {
+                final int bandFrom = from;
+                final int bandTo = Math.min(height, from + TILE_ROWS);
+                bands.add(executor.submit(() -> kernel.run(bandFrom, bandTo)));
+            }
+            kernel.run(0, Math.min(height, TILE_ROWS));
+            for (Future<?> band : bands) {
+                band.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while filtering", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            for (Future<?> band : bands) {
+                band.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Only loaded on the fork/join path, Android has no {@link RecursiveAction} below API 21.
+     */
+    private static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        static void invoke(ExecutorService pool, RowKernel kernel, int height) {
+            ((ForkJoinPool) pool).invoke(new TileTask(kernel, 0, height));
+        }
+
+        private final RowKernel kernel;
+        private final int from;
+        private final int to;
+
+        TileTask(RowKernel kernel, int from, int to) {
+            this.kernel = kernel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TILE_ROWS) {
+                kernel.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new TileTask(kernel, from, middle), new TileTask(kernel, middle, to));
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,158 @@
+package com.felan.photoeditor.engine;
+
+/**
+ * Plain snapshot of the adjustment values exposed by {@code FilterableImageView}.
+ * <p>
+ * Values are stored in the same ranges as the UI (mostly -100..100 or 0..100) and the
+ * {@code getXxx()} accessors convert them to the uniform values that
+ * {@code TelegramEGLThread} feeds to its shaders, so the GL and CPU paths agree.
+ */
+public class FilterParams {
+
+    public static final int BLUR_NONE = 0;
+    public static final int BLUR_RADIAL = 1;
+    public static final int BLUR_LINEAR = 2;
+
+    public static final float BLUR_RADIUS_MIN = 1.0f;
+    public static final float BLUR_RADIUS_MAX = 8.0f;
+
+    public static final int CURVE_RESOLUTION = 200;
+    public static final int CURVE_LEVELS = 5;
+
+    public float enhanceValue; //0 100
+    public float exposureValue; //-100 100
+    public float contrastValue; //-100 100
+    public float warmthValue; //-100 100
+    public float saturationValue; //-100 100
+    public float fadeValue; //0 100
+    public int tintShadowsColor; //0 0xffffffff
+    public int tintHighlightsColor; //0 0xffffffff
+    public float highlightsValue; //-100 100
+    public float shadowsValue; //-100 100
+    public float vignetteValue; //0 100
+    public float grainValue; //0 100
+    public float sharpenValue; //0 100
+
+    public int blurType = BLUR_NONE;
+    public float blurExcludeSize = 0.35f;
+    public float blurExcludePointX = 0.5f;
+    public float blurExcludePointY = 0.5f;
+    public float blurExcludeBlurSize = 0.15f;
+    public float blurAngle = (float) Math.PI / 2.0f;
+    public float blurRadius = 1.0f; //BLUR_RADIUS_MIN BLUR_RADIUS_MAX, multiple of the base kernel
+
+    /**
+     * Curves lookup table in the same layout as {@code CurvesToolValue.curveBuffer}:
+     * {@link #CURVE_RESOLUTION} RGBA texels holding the red, green, blue and luminance curves.
+     * {@code null} means the curves are default and the tone pass is skipped.
+     */
+    public byte[] curvesData;
+
+    /**
+     * Levels the curves were built from, {@link #CURVE_LEVELS} (blacks, shadows, midtones,
+     * highlights, whites, 0..100) for each of the luminance, red, green and blue curves, so an
+     * editor can resume them. Rendering only uses {@link #curvesData}.
+     */
+    public float[] curvesLevels;
+
+    public FilterParams() {
+    }
+
+    public FilterParams(FilterParams other) {
+        enhanceValue = other.enhanceValue;
+        exposureValue = other.exposureValue;
+        contrastValue = other.contrastValue;
+        warmthValue = other.warmthValue;
+        saturationValue = other.saturationValue;
+        fadeValue = other.fadeValue;
+        tintShadowsColor = other.tintShadowsColor;
+        tintHighlightsColor = other.tintHighlightsColor;
+        highlightsValue = other.highlightsValue;
+        shadowsValue = other.shadowsValue;
+        vignetteValue = other.vignetteValue;
+        grainValue = other.grainValue;
+        sharpenValue = other.sharpenValue;
+        blurType = other.blurType;
+        blurExcludeSize = other.blurExcludeSize;
+        blurExcludePointX = other.blurExcludePointX;
+        blurExcludePointY = other.blurExcludePointY;
+        blurExcludeBlurSize = other.blurExcludeBlurSize;
+        blurAngle = other.blurAngle;
+        blurRadius = other.blurRadius;
+        curvesData = other.curvesData != null ? other.curvesData.clone() : null;
+        curvesLevels = other.curvesLevels != null ? other.curvesLevels.clone() : null;
+    }
+
+    //region Uniform values
+
+    public float getShadows() {
+        return (shadowsValue * 0.55f + 100.0f) / 100.0f;
+    }
+
+    public float getHighlights() {
+        return (highlightsValue * 0.75f + 100.0f) / 100.0f;
+    }
+
+    public float getEnhance() {
+        return enhanceValue / 100.0f;
+    }
+
+    public float getExposure() {
+        return exposureValue / 100.0f;
+    }
+
+    public float getContrast() {
+        return (contrastValue / 100.0f) * 0.3f + 1;
+    }
+
+    public float getWarmth() {
+        return warmthValue / 100.0f;
+    }
+
+    public float getVignette() {
+        return vignetteValue / 100.0f;
+    }
+
+    public float getSharpen() {
+        return 0.11f + sharpenValue / 100.0f * 0.6f;
+    }
+
+    public float getGrain() {
+        return grainValue / 100.0f * 0.04f;
+    }
+
+    public float getFade() {
+        return fadeValue / 100.0f;
+    }
+
+    public float getTintHighlightsIntensity() {
+        float tintHighlightsIntensity = 50.0f;
+        return tintHighlightsColor == 0 ? 0 : tintHighlightsIntensity / 100.0f;
+    }
+
+    public float getTintShadowsIntensity() {
+        float tintShadowsIntensity = 50.0f;
+        return tintShadowsColor == 0 ? 0 : tintShadowsIntensity / 100.0f;
+    }
+
+    public float getSaturation() {
+        float parameterValue = saturationValue / 100.0f;
+        if (parameterValue > 0) {
+            parameterValue *= 1.05f;
+        }
+        return parameterValue + 1;
+    }
+
+    /**
+     * {@link #blurRadius} within its range, whatever was stored.
+     */
+    public float getBlurRadius() {
+        return Math.max(BLUR_RADIUS_MIN, Math.min(BLUR_RADIUS_MAX, blurRadius));
+    }
+
+    public boolean shouldSkipTone() {
+        return curvesData == null;
+    }
+
+    //endregion
+}
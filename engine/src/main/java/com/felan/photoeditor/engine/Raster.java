@@ -0,0 +1,25 @@
+package com.felan.photoeditor.engine;
+
+/**
+ * An image as unpremultiplied ARGB pixels, row 0 at the top, as {@code Bitmap.getPixels} and
+ * {@code BufferedImage.getRGB} give them.
+ */
+public class Raster {
+
+    public final int width;
+    public final int height;
+    public final int[] pixels;
+
+    public Raster(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    public Raster(int width, int height, int[] pixels) {
+        if (width <= 0 || height <= 0 || pixels.length < width * height) {
+            throw new IllegalArgumentException("Invalid raster " + width + "x" + height + " of " + pixels.length + " pixels");
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+}
@@ -0,0 +1,264 @@
+package com.felan.photoeditor.engine;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Applies an {@link EditRecipe} to a {@link Raster} without Android: crop, filter and paint in
+ * the order of the editor, so a recipe made on one photo can be replayed on many.
+ * <p>
+ * The crop and the paint layer are drawn with bilinear filtering on premultiplied colors, like a
+ * {@code Canvas} with {@code FILTER_BITMAP_FLAG}; strong downscales are first halved with a box
+ * filter so they don't alias. The filter is {@link FilterEngine}, run on the same pool.
+ */
+public class RecipeRenderer {
+
+    private final FilterEngine engine;
+
+    /**
+     * Filters as {@link FilterEngine#FilterEngine()} does.
+     */
+    public RecipeRenderer() {
+        engine = new FilterEngine();
+    }
+
+    public RecipeRenderer(ForkJoinPool pool) {
+        engine = new FilterEngine(pool);
+    }
+
+    /**
+     * @param maxSide the longest side of the result, the result isn't upscaled past the
+     *                resolution of {@code source} either
+     */
+    public Raster render(Raster source, EditRecipe recipe, int maxSide) {
+        return render(source, source.width, source.height, new int[]{0, 0, source.width, source.height}, recipe, maxSide);
+    }
+
+    /**
+     * Renders from {@code part}, the given region of a source of the given size, decoded at any
+     * scale, as {@link #render(Raster, EditRecipe, int)} renders from the whole source.
+     *
+     * @param region left, top, right and bottom in source pixels, as given by
+     *               {@link #getSourceRegion}
+     */
+    public Raster render(Raster part, int sourceWidth, int sourceHeight, int[] region, EditRecipe recipe, int maxSide) {
+        float[] partMatrix = Affine.postTranslate(Affine.scale((float) (region[2] - region[0]) / part.width,
+                (float) (region[3] - region[1]) / part.height), region[0], region[1]);
+        Raster result = renderCrop(part, partMatrix, sourceWidth, sourceHeight, recipe.crop, maxSide);
+        if (recipe.filter != null) {
+            int[] pixels = engine.render(result.pixels, result.width, result.height, recipe.filter,
+                    recipe.getRadiusScale(result.width, result.height));
+            result = new Raster(result.width, result.height, pixels);
+        }
+        if (recipe.paint != null) {
+            if (result == part) {
+                result = new Raster(part.width, part.height, part.pixels.clone());
+            }
+            drawPaint(result, recipe.paint, recipe.crop, sourceWidth, sourceHeight);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the region of a source of the given size the recipe reads, as left, top, right and
+     * bottom, padded for the filtering, so a decoder can skip the rest of the source.
+     */
+    public int[] getSourceRegion(int sourceWidth, int sourceHeight, EditRecipe recipe, int maxSide) {
+        int[] region = new int[]{0, 0, sourceWidth, sourceHeight};
+        if (recipe.crop == null) {
+            return region;
+        }
+        int[] size = getResultSize(recipe.crop, sourceWidth, sourceHeight, maxSide);
+        float[] matrix = recipe.crop.getResultMatrix(sourceWidth, sourceHeight, size[0], size[1]);
+        float[] inverse = Affine.invert(matrix);
+        if (inverse == null) {
+            return region;
+        }
+        float left = Float.MAX_VALUE, top = Float.MAX_VALUE, right = -Float.MAX_VALUE, bottom = -Float.MAX_VALUE;
+        float[] corners = new float[]{0, 0, size[0], 0, 0, size[1], size[0], size[1]};
+        for (int a = 0; a < corners.length; a += 2) {
+            float x = inverse[0] * corners[a] + inverse[1] * corners[a + 1] + inverse[2];
+            float y = inverse[3] * corners[a] + inverse[4] * corners[a + 1] + inverse[5];
+            left = Math.min(left, x);
+            top = Math.min(top, y);
+            right = Math.max(right, x);
+            bottom = Math.max(bottom, y);
+        }
+        // the bilinear and box filters read up to a result pixel beyond the edge
+        int padding = (int) Math.ceil(1 / Affine.getScale(matrix)) + 1;
+        region[0] = Math.max(0, (int) Math.floor(left) - padding);
+        region[1] = Math.max(0, (int) Math.floor(top) - padding);
+        region[2] = Math.min(sourceWidth, (int) Math.ceil(right) + padding);
+        region[3] = Math.min(sourceHeight, (int) Math.ceil(bottom) + padding);
+        if (region[0] >= region[2] || region[1] >= region[3]) {
+            return new int[]{0, 0, sourceWidth, sourceHeight};
+        }
+        return region;
+    }
+
+    /**
+     * Width and height of the result of {@code crop}, or of the whole source without one.
+     */
+    private static int[] getResultSize(EditRecipe.Crop crop, int sourceWidth, int sourceHeight, int maxSide) {
+        if (crop == null) {
+            float scale = Math.min(1.0f, (float) maxSide / Math.max(sourceWidth, sourceHeight));
+            return new int[]{Math.max(1, (int) (sourceWidth * scale)), Math.max(1, (int) (sourceHeight * scale))};
+        }
+        float cropWidth = crop.getCropWidth(sourceWidth);
+        float cropHeight = cropWidth / crop.aspectRatio;
+        float scale = Math.min(1.0f, maxSide / Math.max(cropWidth, cropHeight));
+        int width = Math.max(1, Math.round(cropWidth * scale));
+        return new int[]{width, Math.max(1, (int) Math.ceil(width / crop.aspectRatio))};
+    }
+
+    private Raster renderCrop(Raster part, float[] partMatrix, int sourceWidth, int sourceHeight, EditRecipe.Crop crop, int maxSide) {
+        int[] size = getResultSize(crop, sourceWidth, sourceHeight, maxSide);
+        if (crop == null && size[0] == part.width && size[1] == part.height
+                && part.width == sourceWidth && part.height == sourceHeight) {
+            return part;
+        }
+        Raster result = new Raster(size[0], size[1]);
+        draw(part, Affine.postConcat(partMatrix, getFrameMatrix(crop, sourceWidth, sourceHeight, size[0], size[1])), result, false);
+        return result;
+    }
+
+    /**
+     * Maps the source, of the given size, to the frame of {@code crop} of the given size.
+     */
+    private static float[] getFrameMatrix(EditRecipe.Crop crop, int sourceWidth, int sourceHeight, int width, int height) {
+        if (crop == null) {
+            return Affine.scale((float) width / sourceWidth, (float) height / sourceHeight);
+        }
+        return crop.getResultMatrix(sourceWidth, sourceHeight, width, height);
+    }
+
+    private void drawPaint(Raster image, EditRecipe.Paint paint, EditRecipe.Crop crop, int sourceWidth, int sourceHeight) {
+        Raster layer = paint.layer;
+        float[] layerFrame = Affine.invert(getFrameMatrix(paint.crop, sourceWidth, sourceHeight, layer.width, layer.height));
+        if (layerFrame == null) {
+            return;
+        }
+        float[] matrix = Affine.postConcat(layerFrame, getFrameMatrix(crop, sourceWidth, sourceHeight, image.width, image.height));
+        draw(layer, matrix, image, true);
+    }
+
+    //region Drawing
+
+    /**
+     * Draws {@code source} through {@code matrix} into {@code target}, replacing it or, with
+     * {@code over}, compositing on top of it.
+     */
+    private void draw(Raster source, float[] matrix, final Raster target, final boolean over) {
+        while (Affine.getScale(matrix) <= 0.5f && source.width > 1 && source.height > 1) {
+            source = halve(source);
+            matrix = Affine.postConcat(Affine.scale(2, 2), matrix);
+        }
+        final float[] inverse = Affine.invert(matrix);
+        if (inverse == null) {
+            return;
+        }
+        final Raster image = source;
+        final int width = target.width;
+        engine.forEachTile(target.height, (from, to) -> {
+            float[] c = new float[4];
+            for (int y = from; y < to; y++) {
+                for (int x = 0; x < width; x++) {
+                    float px = x + 0.5f;
+                    float py = y + 0.5f;
+                    float sx = inverse[0] * px + inverse[1] * py + inverse[2] - 0.5f;
+                    float sy = inverse[3] * px + inverse[4] * py + inverse[5] - 0.5f;
+                    sample(image, sx, sy, c);
+                    int index = y * width + x;
+                    if (over) {
+                        target.pixels[index] = composite(c, target.pixels[index]);
+                    } else {
+                        target.pixels[index] = pack(c);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Bilinear sample at the given pixel coordinates, premultiplied alpha, red, green and blue in
+     * 0..255. Outside of the raster is transparent.
+     */
+    private static void sample(Raster raster, float x, float y, float[] result) {
+        result[0] = result[1] = result[2] = result[3] = 0;
+        int x0 = (int) Math.floor(x);
+        int y0 = (int) Math.floor(y);
+        if (x0 < -1 || y0 < -1 || x0 >= raster.width || y0 >= raster.height) {
+            return;
+        }
+        float fx = x - x0;
+        float fy = y - y0;
+        accumulate(raster, x0, y0, (1 - fx) * (1 - fy), result);
+        accumulate(raster, x0 + 1, y0, fx * (1 - fy), result);
+        accumulate(raster, x0, y0 + 1, (1 - fx) * fy, result);
+        accumulate(raster, x0 + 1, y0 + 1, fx * fy, result);
+    }
+
+    private static void accumulate(Raster raster, int x, int y, float weight, float[] result) {
+        if (x < 0 || y < 0 || x >= raster.width || y >= raster.height || weight == 0) {
+            return;
+        }
+        int color = raster.pixels[y * raster.width + x];
+        float alpha = (color >>> 24) * weight;
+        result[0] += alpha;
+        result[1] += ((color >> 16) & 0xff) * alpha / 255.0f;
+        result[2] += ((color >> 8) & 0xff) * alpha / 255.0f;
+        result[3] += (color & 0xff) * alpha / 255.0f;
+    }
+
+    private static int pack(float[] c) {
+        float alpha = c[0];
+        if (alpha <= 0) {
+            return 0;
+        }
+        return (clamp(alpha) << 24) | (clamp(c[1] * 255.0f / alpha) << 16) | (clamp(c[2] * 255.0f / alpha) << 8) | clamp(c[3] * 255.0f / alpha);
+    }
+
+    /**
+     * Source over, {@code c} premultiplied as given by {@link #sample}.
+     */
+    private static int composite(float[] c, int destination) {
+        float alpha = c[0] / 255.0f;
+        if (alpha <= 0) {
+            return destination;
+        }
+        float destinationAlpha = (destination >>> 24) / 255.0f * (1 - alpha);
+        float[] result = new float[]{
+                (alpha + destinationAlpha) * 255.0f,
+                c[1] + ((destination >> 16) & 0xff) * destinationAlpha,
+                c[2] + ((destination >> 8) & 0xff) * destinationAlpha,
+                c[3] + (destination & 0xff) * destinationAlpha
+        };
+        return pack(result);
+    }
+
+    private static int clamp(float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    /**
+     * Halves the raster with a 2x2 box filter, an odd last row or column is dropped.
+     */
+    private Raster halve(final Raster source) {
+        final Raster result = new Raster(Math.max(1, source.width / 2), Math.max(1, source.height / 2));
+        engine.forEachTile(result.height, (from, to) -> {
+            float[] c = new float[4];
+            for (int y = from; y < to; y++) {
+                for (int x = 0; x < result.width; x++) {
+                    c[0] = c[1] = c[2] = c[3] = 0;
+                    accumulate(source, x * 2, y * 2, 0.25f, c);
+                    accumulate(source, x * 2 + 1, y * 2, 0.25f, c);
+                    accumulate(source, x * 2, y * 2 + 1, 0.25f, c);
+                    accumulate(source, x * 2 + 1, y * 2 + 1, 0.25f, c);
+                    result.pixels[y * result.width + x] = pack(c);
+                }
+            }
+        });
+        return result;
+    }
+
+    //endregion
+}
@@ -0,0 +1,104 @@
+package com.felan.photoeditor.batch;
+
+import com.felan.photoeditor.engine.EditRecipe;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Runs a recipe over a few generated images and checks the written results and the counts.
+ */
+public class BatchProcessorTest {
+
+    private final static int RED = 0xffff0000;
+    private final static int BLUE = 0xff0000ff;
+    private final static int IMAGES = 3;
+    private final static int MAX_SIDE = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Images red on the left and blue on the right, cropped to their left half, and a broken file
+     * which fails alone.
+     */
+    @Test
+    public void cropsEveryImage() throws Exception {
+        File input = folder.newFolder("input");
+        final File output = folder.newFolder("output");
+        List<File> sources = new ArrayList<>();
+        for (int a = 0; a < IMAGES; a++) {
+            // sizes of different subsampling
+            int height = 32 << a;
+            BufferedImage image = new BufferedImage(height * 2, height, BufferedImage.TYPE_INT_ARGB);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < height * 2; x++) {
+                    image.setRGB(x, y, x < height ? RED : BLUE);
+                }
+            }
+            File file = new File(input, "image" + a + ".png");
+            ImageIO.write(image, "png", file);
+            sources.add(file);
+        }
+        File broken = new File(input, "broken.png");
+        write(broken, new byte[]{1, 2, 3});
+        sources.add(broken);
+
+        EditRecipe recipe = new EditRecipe();
+        // the image is one unit wide, the crop from -0.5 to 0 becomes one unit wide
+        recipe.crop = new EditRecipe.Crop(new float[]{2, 0, 0.5f, 0, 2, 0, 0, 0, 1}, 0, 0, 1, 0);
+        final List<File> failures = new ArrayList<>();
+        BatchProcessor processor = new BatchProcessor(recipe, MAX_SIDE, 2, 2).setFormat("png", 1);
+        BatchStats stats;
+        try {
+            stats = processor.process(sources.iterator(),
+                    source -> new File(output, source.getName()),
+                    (source, e) -> {
+                        synchronized (failures) {
+                            failures.add(source);
+                        }
+                    });
+        } finally {
+            processor.shutdown();
+        }
+
+        assertEquals(IMAGES, stats.getProcessed());
+        assertEquals(1, stats.getFailed());
+        assertEquals(1, failures.size());
+        assertEquals(broken, failures.get(0));
+        for (int a = 0; a < IMAGES; a++) {
+            BufferedImage result = ImageIO.read(new File(output, "image" + a + ".png"));
+            assertEquals(MAX_SIDE, result.getWidth());
+            assertEquals(MAX_SIDE, result.getHeight());
+            // the right column samples the blue edge
+            for (int y = 0; y < MAX_SIDE; y++) {
+                for (int x = 0; x < MAX_SIDE - 1; x++) {
+                    assertEquals("image " + a + " pixel " + x + "," + y, RED, result.getRGB(x, y));
+                }
+            }
+        }
+        assertFalse(new File(output, broken.getName()).exists());
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(bytes);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.felan.photoeditor.engine;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClaheTest {
+
+    @Test
+    public void proxyMatchesFullResolution() {
+        int[][] sizes = {{1280, 960}, {960, 1280}, {4000, 3000}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            int[] hsv = createImage(width, height, width);
+
+            byte[] full = new byte[Clahe.RESULT_SIZE];
+            byte[] proxy = new byte[Clahe.RESULT_SIZE];
+            Clahe.calcCDT(hsv, width, height, true, full);
+            Clahe.calcProxyCDT(hsv, width, height, true, proxy);
+
+            int difference = Clahe.maxDifference(full, proxy);
+            assertTrue(width + "x" + height + " differs by " + difference,
+                    difference <= Clahe.PROXY_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void proxyOfSmallImageIsExact() {
+        int[] hsv = createImage(200, 150, 1);
+        byte[] full = new byte[Clahe.RESULT_SIZE];
+        byte[] proxy = new byte[Clahe.RESULT_SIZE];
+        Clahe.calcCDT(hsv, 200, 150, false, full);
+        Clahe.calcProxyCDT(hsv, 200, 150, false, proxy);
+        assertArrayEquals(full, proxy);
+    }
+
+    /**
+     * V channel with a gradient, shapes of uneven brightness per tile and sensor like noise.
+     */
+    static int[] createImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] hsv = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float u = (float) x / width;
+                float v = (float) y / height;
+                float value = 40 + 120 * u * v + 60 * (float) Math.sin(u * 9) * (float) Math.cos(v * 7);
+                if ((x / (width / 5) + y / (height / 3)) % 3 == 0) {
+                    value += 50;
+                }
+                value += (float) random.nextGaussian() * 8;
+                hsv[y * width + x] = Math.max(0, Math.min(255, Math.round(value)));
+            }
+        }
+        return hsv;
+    }
+}
@@ -0,0 +1,275 @@
+package com.felan.photoeditor.engine;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that every section of an {@link EditRecipe} survives writing and reading, that recipes
+ * without the paint edits still read, and that corrupt recipes fail with an {@link IOException}.
+ */
+public class EditRecipeTest {
+
+    private final static float DELTA = 1e-4f;
+
+    @Test
+    public void paintEditsRoundTrip() throws IOException {
+        EditRecipe.Stroke stroke = new EditRecipe.Stroke(EditRecipe.Stroke.BRUSH_NEON, 0xff20c040, 12.5f,
+                new float[][]{{10, 20, 1, 14, 22, 0}, {18, 25, 0, 30, 31, 1}});
+        EditRecipe.Text text = new EditRecipe.Text("Hello\nworld", 0xffff0000, true,
+                40, 30, 15, 1.5f, 24, 80, 0, 0);
+        EditRecipe recipe = new EditRecipe();
+        recipe.paint = new EditRecipe.Paint(new Raster(64, 48), null,
+                Collections.singletonList(stroke), Collections.singletonList(text));
+
+        EditRecipe.Paint paint = EditRecipe.fromByteArray(recipe.toByteArray()).paint;
+        assertNotNull(paint);
+        assertEquals(64, paint.layer.width);
+        assertEquals(1, paint.strokes.size());
+        EditRecipe.Stroke read = paint.strokes.get(0);
+        assertEquals(stroke.brush, read.brush);
+        assertEquals(stroke.color, read.color);
+        assertEquals(stroke.weight, read.weight, 0);
+        assertEquals(2, read.segments.length);
+        assertArrayEquals(stroke.segments[1], read.segments[1], 0);
+
+        assertEquals(1, paint.texts.size());
+        EditRecipe.Text readText = paint.texts.get(0);
+        assertEquals(text.text, readText.text);
+        assertEquals(text.outline, readText.outline);
+        assertEquals(text.rotation, readText.rotation, 0);
+        assertEquals(text.layoutWidth, readText.layoutWidth, 0);
+    }
+
+    @Test
+    public void layerOnlyPaintHasNoEdits() throws IOException {
+        EditRecipe recipe = new EditRecipe();
+        recipe.paint = new EditRecipe.Paint(new Raster(8, 8), null);
+
+        EditRecipe.Paint paint = EditRecipe.fromByteArray(recipe.toByteArray()).paint;
+        assertNotNull(paint);
+        assertNull(paint.strokes);
+        assertNull(paint.texts);
+    }
+
+    /**
+     * Edits moved to a layer twice as large and rotated by 90 degrees keep their relative size.
+     */
+    @Test
+    public void transformScalesAndRotates() {
+        float[] matrix = Affine.postScale(Affine.postRotate(Affine.identity(), 90), 2, 2);
+
+        EditRecipe.Stroke stroke = new EditRecipe.Stroke(EditRecipe.Stroke.BRUSH_RADIAL, 0, 4,
+                new float[][]{{10, 0, 1}}).transform(matrix);
+        assertEquals(8, stroke.weight, DELTA);
+        float[] points = stroke.segments[0];
+        assertEquals(0, points[0], DELTA);
+        assertEquals(20, points[1], DELTA);
+        assertEquals(1, points[2], 0);
+
+        EditRecipe.Text text = new EditRecipe.Text("a", 0, false, 10, 0, 10, 1, 24, 40, 8, 2)
+                .transform(matrix);
+        assertEquals(100, text.rotation, DELTA);
+        assertEquals(2, text.scale, DELTA);
+        assertEquals(24, text.textSize, 0);
+        assertEquals(0, text.x, DELTA);
+        assertEquals(20, text.y, DELTA);
+    }
+
+    @Test
+    public void cropRoundTrip() throws IOException {
+        EditRecipe recipe = new EditRecipe();
+        float[] matrix = Affine.postTranslate(Affine.postScale(Affine.postRotate(Affine.identity(), 12), 1.5f, 1.5f), 0.1f, -0.2f);
+        recipe.crop = new EditRecipe.Crop(matrix, 90, 12, 0.75f, 1.5f);
+        recipe.referenceWidth = 640;
+        recipe.referenceHeight = 480;
+
+        EditRecipe read = EditRecipe.fromByteArray(recipe.toByteArray());
+        assertNotNull(read.crop);
+        assertArrayEquals(matrix, read.crop.matrix, 0);
+        assertEquals(90, read.crop.orientation, 0);
+        assertEquals(12, read.crop.rotation, 0);
+        assertEquals(0.75f, read.crop.aspectRatio, 0);
+        assertEquals(1.5f, read.crop.lockedAspectRatio, 0);
+        assertEquals(640, read.referenceWidth);
+        assertEquals(480, read.referenceHeight);
+        assertNull(read.filter);
+        assertNull(read.paint);
+    }
+
+    /**
+     * Every field gets a value of its own, so fields written and read in a different order fail.
+     */
+    @Test
+    public void filterRoundTrip() throws Exception {
+        EditRecipe recipe = new EditRecipe();
+        recipe.filter = createFilter();
+
+        EditRecipe read = EditRecipe.fromByteArray(recipe.toByteArray());
+        assertNotNull(read.filter);
+        for (Field field : FilterParams.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            Object expected = field.get(recipe.filter);
+            Object actual = field.get(read.filter);
+            if (expected instanceof byte[]) {
+                assertArrayEquals(field.getName(), (byte[]) expected, (byte[]) actual);
+            } else if (expected instanceof float[]) {
+                assertArrayEquals(field.getName(), (float[]) expected, (float[]) actual, 0);
+            } else {
+                assertEquals(field.getName(), expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void filterWithoutCurvesRoundTrip() throws IOException {
+        EditRecipe recipe = new EditRecipe();
+        recipe.filter = new FilterParams();
+        recipe.filter.exposureValue = 10;
+
+        FilterParams read = EditRecipe.fromByteArray(recipe.toByteArray()).filter;
+        assertNotNull(read);
+        assertEquals(10, read.exposureValue, 0);
+        assertNull(read.curvesData);
+        assertNull(read.curvesLevels);
+    }
+
+    /**
+     * A section length past the end of the stream, 11 bytes claiming a section of 2 GB.
+     */
+    @Test(expected = IOException.class)
+    public void hugeSectionLengthFails() throws IOException {
+        EditRecipe.fromByteArray(new byte[]{0x50, 0x45, 0x52, 0x43, 0, 1, 1, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0});
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongMagicFails() throws IOException {
+        byte[] data = createRecipe().toByteArray();
+        data[0] = 0;
+        EditRecipe.fromByteArray(data);
+    }
+
+    /**
+     * A paint layer claiming far more pixels than its section can inflate to.
+     */
+    @Test
+    public void hugePaintLayerFails() throws IOException {
+        byte[] data = createRecipe().toByteArray();
+        // the paint section follows the crop and the filter, its size comes first
+        int offset = indexOfSection(data, 3) + 5;
+        data[offset] = 0;
+        data[offset + 1] = 0;
+        data[offset + 2] = 0x60;
+        data[offset + 3] = 0;
+        try {
+            EditRecipe.fromByteArray(data);
+            fail("Read a paint layer of " + 0x6000 + " columns");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid paint layer size"));
+        }
+    }
+
+    @Test
+    public void truncatedFails() {
+        byte[] data = createRecipe().toByteArray();
+        for (int length = 0; length < data.length; length++) {
+            try {
+                EditRecipe.fromByteArray(Arrays.copyOf(data, length));
+                fail("Read a recipe cut at " + length + " of " + data.length + " bytes");
+            } catch (IOException expected) {
+                // cut anywhere, the end of the recipe is missing
+            }
+        }
+    }
+
+    /**
+     * Single corrupt bytes either still read or fail with an {@link IOException}, nothing else.
+     */
+    @Test
+    public void corruptBytesFailWithIOException() {
+        byte[] data = createRecipe().toByteArray();
+        Random random = new Random(7);
+        for (int a = 0; a < 2000; a++) {
+            byte[] corrupt = data.clone();
+            corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt(256);
+            try {
+                EditRecipe.fromByteArray(corrupt);
+            } catch (IOException expected) {
+                // a corrupt recipe
+            }
+        }
+    }
+
+    private static EditRecipe createRecipe() {
+        EditRecipe recipe = new EditRecipe();
+        recipe.crop = new EditRecipe.Crop(Affine.scale(2, 2), 0, 0, 1, 0);
+        recipe.filter = createFilter();
+        Raster layer = new Raster(16, 8);
+        Arrays.fill(layer.pixels, 0, 40, 0x80ff0000);
+        recipe.paint = new EditRecipe.Paint(layer, null,
+                Collections.singletonList(new EditRecipe.Stroke(EditRecipe.Stroke.BRUSH_RADIAL, 0xff0000ff, 3, new float[][]{{1, 2, 1, 3, 4, 1}})),
+                Collections.singletonList(new EditRecipe.Text("a", 0xffffffff, false, 4, 4, 0, 1, 12, 20, 0, 0)));
+        recipe.referenceWidth = 16;
+        recipe.referenceHeight = 8;
+        return recipe;
+    }
+
+    private static FilterParams createFilter() {
+        FilterParams params = new FilterParams();
+        params.enhanceValue = 1;
+        params.exposureValue = 2;
+        params.contrastValue = 3;
+        params.warmthValue = 4;
+        params.saturationValue = 5;
+        params.fadeValue = 6;
+        params.tintShadowsColor = 0xff010203;
+        params.tintHighlightsColor = 0xff040506;
+        params.highlightsValue = 7;
+        params.shadowsValue = 8;
+        params.vignetteValue = 9;
+        params.grainValue = 10;
+        params.sharpenValue = 11;
+        params.blurType = FilterParams.BLUR_LINEAR;
+        params.blurExcludeSize = 0.12f;
+        params.blurExcludePointX = 0.13f;
+        params.blurExcludePointY = 0.14f;
+        params.blurExcludeBlurSize = 0.15f;
+        params.blurAngle = 0.16f;
+        params.blurRadius = 3.5f;
+        params.curvesData = new byte[FilterParams.CURVE_RESOLUTION * 4];
+        for (int a = 0; a < params.curvesData.length; a++) {
+            params.curvesData[a] = (byte) (a * 7);
+        }
+        params.curvesLevels = new float[FilterParams.CURVE_LEVELS * 4];
+        for (int a = 0; a < params.curvesLevels.length; a++) {
+            params.curvesLevels[a] = a * 5 + 0.5f;
+        }
+        return params;
+    }
+
+    /**
+     * Offset of the tag of the first section of the given tag, walking the section lengths.
+     */
+    private static int indexOfSection(byte[] data, int tag) {
+        int offset = 6;
+        while (data[offset] != tag) {
+            int length = (data[offset + 1] & 0xff) << 24 | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 8 | data[offset + 4] & 0xff;
+            offset += 5 + length;
+        }
+        return offset;
+    }
+}
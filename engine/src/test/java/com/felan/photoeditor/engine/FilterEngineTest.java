@@ -0,0 +1,229 @@
+package com.felan.photoeditor.engine;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link FilterEngine} against the golden outputs in {@code src/test/resources/golden},
+ * within {@link FilterEngine#TOLERANCE} per channel.
+ * <p>
+ * The goldens were written by the engine itself, so this only catches changes to its output.
+ * Parity with the GL renderer is checked on a device by {@code FilterParityTest}, whose dumped
+ * outputs can be copied here as the goldens. Run with {@code -Dengine.updateGoldens=true} to
+ * write the current outputs as the goldens instead.
+ */
+public class FilterEngineTest {
+
+    private final static int WIDTH = 96;
+    private final static int HEIGHT = 64;
+    private final static String GOLDEN_DIRECTORY = "src/test/resources/golden";
+
+    @Test
+    public void matchesGoldenOutputs() throws IOException {
+        boolean update = Boolean.getBoolean("engine.updateGoldens");
+        int[] input = createInput();
+        FilterEngine engine = new FilterEngine();
+        for (Map.Entry<String, FilterParams> entry : createCases().entrySet()) {
+            String name = entry.getKey();
+            int[] output = engine.render(input, WIDTH, HEIGHT, entry.getValue());
+            if (update) {
+                writeGolden(name, output);
+                continue;
+            }
+            int[] golden = readGolden(name);
+            int difference = maxDifference(golden, output);
+            assertTrue(name + " differs by " + difference, difference <= FilterEngine.TOLERANCE);
+        }
+    }
+
+    /**
+     * A blur exported at twice the size of the preview, scaled back down, looks like the preview.
+     */
+    @Test
+    public void scaledBlurMatchesPreview() {
+        FilterParams params = new FilterParams();
+        params.blurType = FilterParams.BLUR_LINEAR;
+        params.blurRadius = 4;
+        params.blurExcludeSize = 0;
+        params.blurExcludeBlurSize = 0;
+        FilterEngine engine = new FilterEngine();
+        int[] preview = engine.render(createInput(), WIDTH, HEIGHT, params);
+
+        int[] export = upscale(createInput(), WIDTH, HEIGHT, 2);
+        int scaled = maxDifference(preview, downscale(engine.render(export, WIDTH * 2, HEIGHT * 2, params, 2), WIDTH, HEIGHT, 2));
+        int unscaled = maxDifference(preview, downscale(engine.render(export, WIDTH * 2, HEIGHT * 2, params), WIDTH, HEIGHT, 2));
+        assertTrue("scaled blur differs by " + scaled, scaled <= FilterEngine.TOLERANCE);
+        assertTrue("unscaled blur differs by " + unscaled + " only", unscaled > scaled);
+    }
+
+    /**
+     * The bands split among a plain executor, as below API 21, give the fork/join output.
+     */
+    @Test
+    public void executorMatchesForkJoin() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            int[] input = createInput();
+            for (Map.Entry<String, FilterParams> entry : createCases().entrySet()) {
+                assertArrayEquals(entry.getKey(), new FilterEngine().render(input, WIDTH, HEIGHT, entry.getValue()),
+                        new FilterEngine(executor).render(input, WIDTH, HEIGHT, entry.getValue()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Map<String, FilterParams> createCases() {
+        Map<String, FilterParams> cases = new LinkedHashMap<>();
+
+        FilterParams tools = new FilterParams();
+        tools.exposureValue = 30;
+        tools.contrastValue = 40;
+        tools.saturationValue = -30;
+        tools.warmthValue = 50;
+        tools.fadeValue = 20;
+        tools.highlightsValue = -40;
+        tools.shadowsValue = 50;
+        tools.tintShadowsColor = 0xff4d4dff;
+        tools.tintHighlightsColor = 0xffef9286;
+        cases.put("tools", tools);
+
+        FilterParams enhance = new FilterParams();
+        enhance.enhanceValue = 60;
+        cases.put("enhance", enhance);
+
+        FilterParams sharpen = new FilterParams();
+        sharpen.sharpenValue = 80;
+        cases.put("sharpen", sharpen);
+
+        FilterParams vignette = new FilterParams();
+        vignette.vignetteValue = 70;
+        cases.put("vignette", vignette);
+
+        FilterParams radial = new FilterParams();
+        radial.blurType = FilterParams.BLUR_RADIAL;
+        cases.put("blur_radial", radial);
+
+        FilterParams linear = new FilterParams();
+        linear.blurType = FilterParams.BLUR_LINEAR;
+        linear.blurRadius = 4;
+        linear.blurAngle = 0.6f;
+        cases.put("blur_linear_pyramid", linear);
+
+        FilterParams curves = new FilterParams();
+        curves.curvesData = new byte[FilterParams.CURVE_RESOLUTION * 4];
+        for (int a = 0; a < FilterParams.CURVE_RESOLUTION; a++) {
+            float x = (float) a / (FilterParams.CURVE_RESOLUTION - 1);
+            curves.curvesData[a * 4] = (byte) Math.round(255 * x);
+            curves.curvesData[a * 4 + 1] = (byte) Math.round(255 * x);
+            curves.curvesData[a * 4 + 2] = (byte) Math.round(255 * Math.min(1, x * 1.2f));
+            curves.curvesData[a * 4 + 3] = (byte) Math.round(255 * Math.pow(x, 0.7));
+        }
+        cases.put("curves", curves);
+
+        return cases;
+    }
+
+    /**
+     * Opaque gradients with edges and noise, the same on every run.
+     */
+    private static int[] createInput() {
+        Random random = new Random(7);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = x * 255 / WIDTH;
+                int g = y * 255 / HEIGHT;
+                int b = ((x / 12 + y / 12) % 2) * 160 + 40;
+                r = Math.max(0, Math.min(255, r + random.nextInt(17) - 8));
+                g = Math.max(0, Math.min(255, g + random.nextInt(17) - 8));
+                pixels[y * WIDTH + x] = 0xff000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] upscale(int[] pixels, int width, int height, int factor) {
+        int[] result = new int[width * height * factor * factor];
+        for (int y = 0; y < height * factor; y++) {
+            for (int x = 0; x < width * factor; x++) {
+                result[y * width * factor + x] = pixels[y / factor * width + x / factor];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Box filter of {@code factor} x {@code factor} pixels, to the given size.
+     */
+    private static int[] downscale(int[] pixels, int width, int height, int factor) {
+        int[] result = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int color = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = 0;
+                    for (int b = 0; b < factor; b++) {
+                        for (int a = 0; a < factor; a++) {
+                            sum += pixels[(y * factor + b) * width * factor + x * factor + a] >>> shift & 0xff;
+                        }
+                    }
+                    color |= (sum + factor * factor / 2) / (factor * factor) << shift;
+                }
+                result[y * width + x] = color;
+            }
+        }
+        return result;
+    }
+
+    private static int maxDifference(int[] first, int[] second) {
+        assertEquals(first.length, second.length);
+        int max = 0;
+        for (int a = 0; a < first.length; a++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                max = Math.max(max, Math.abs((first[a] >>> shift & 0xff) - (second[a] >>> shift & 0xff)));
+            }
+        }
+        return max;
+    }
+
+    private static int[] readGolden(String name) throws IOException {
+        InputStream stream = FilterEngineTest.class.getResourceAsStream("/golden/" + name + ".png");
+        assertNotNull("Missing golden " + name + ", run with -Dengine.updateGoldens=true", stream);
+        BufferedImage image;
+        try {
+            image = ImageIO.read(stream);
+        } finally {
+            stream.close();
+        }
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        return image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+    }
+
+    private static void writeGolden(String name, int[] pixels) throws IOException {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, WIDTH, HEIGHT, pixels, 0, WIDTH);
+        File directory = new File(GOLDEN_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        ImageIO.write(image, "png", new File(directory, name + ".png"));
+    }
+}
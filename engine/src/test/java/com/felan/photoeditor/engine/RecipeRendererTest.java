@@ -0,0 +1,139 @@
+package com.felan.photoeditor.engine;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the crop and the paint compositing of {@link RecipeRenderer}.
+ */
+public class RecipeRendererTest {
+
+    private final static int RED = 0xffff0000;
+    private final static int GREEN = 0xff00ff00;
+    private final static int BLUE = 0xff0000ff;
+
+    @Test
+    public void emptyRecipeKeepsSource() {
+        Raster source = new Raster(8, 4);
+        assertSame(source, new RecipeRenderer().render(source, new EditRecipe(), 16));
+    }
+
+    @Test
+    public void scalesDownToMaxSide() {
+        Raster source = new Raster(16, 8);
+        Arrays.fill(source.pixels, BLUE);
+        Raster result = new RecipeRenderer().render(source, new EditRecipe(), 8);
+        assertEquals(8, result.width);
+        assertEquals(4, result.height);
+        assertEquals(BLUE, result.pixels[0]);
+    }
+
+    /**
+     * The left half of an image red on the left and blue on the right.
+     */
+    @Test
+    public void cropsLeftHalf() {
+        Raster source = new Raster(8, 4);
+        for (int y = 0; y < 4; y++) {
+            Arrays.fill(source.pixels, y * 8, y * 8 + 4, RED);
+            Arrays.fill(source.pixels, y * 8 + 4, y * 8 + 8, BLUE);
+        }
+        EditRecipe recipe = new EditRecipe();
+        // the image is one unit wide, the crop from -0.5 to 0 becomes one unit wide
+        recipe.crop = new EditRecipe.Crop(Affine.postScale(Affine.postTranslate(Affine.identity(), 0.25f, 0), 2, 2), 0, 0, 1, 0);
+
+        Raster result = new RecipeRenderer().render(source, recipe, 100);
+        assertEquals(4, result.width);
+        assertEquals(4, result.height);
+        for (int a = 0; a < result.pixels.length; a++) {
+            // the right column samples the blue edge at most half way
+            int x = a % 4;
+            if (x < 3) {
+                assertEquals("pixel " + a, RED, result.pixels[a]);
+            }
+        }
+    }
+
+    /**
+     * Rendering from the region under a crop gives the result of rendering from the whole source.
+     */
+    @Test
+    public void regionMatchesWholeSource() {
+        Random random = new Random(7);
+        Raster source = new Raster(64, 48);
+        for (int a = 0; a < source.pixels.length; a++) {
+            source.pixels[a] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        EditRecipe recipe = new EditRecipe();
+        // a third of the width, a bit right of the center and turned by 10 degrees
+        recipe.crop = new EditRecipe.Crop(Affine.postScale(Affine.postRotate(Affine.postTranslate(Affine.identity(), -0.1f, 0), 10), 3, 3), 0, 10, 1.5f, 0);
+        RecipeRenderer renderer = new RecipeRenderer();
+
+        int[] region = renderer.getSourceRegion(source.width, source.height, recipe, 16);
+        assertTrue(Arrays.toString(region), (region[2] - region[0]) * (region[3] - region[1]) < source.width * source.height / 2);
+        Raster part = new Raster(region[2] - region[0], region[3] - region[1]);
+        for (int y = 0; y < part.height; y++) {
+            System.arraycopy(source.pixels, (region[1] + y) * source.width + region[0], part.pixels, y * part.width, part.width);
+        }
+
+        Raster expected = renderer.render(source, recipe, 16);
+        Raster result = renderer.render(part, source.width, source.height, region, recipe, 16);
+        assertEquals(expected.width, result.width);
+        assertEquals(expected.height, result.height);
+        for (int a = 0; a < expected.pixels.length; a++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int difference = Math.abs(((expected.pixels[a] >> shift) & 0xff) - ((result.pixels[a] >> shift) & 0xff));
+                assertTrue("pixel " + a, difference <= 1);
+            }
+        }
+    }
+
+    /**
+     * A layer of half the size of the image, opaque green in its top left quarter, covers the
+     * top left quarter of the image.
+     */
+    @Test
+    public void drawsPaintScaledToImage() {
+        Raster source = new Raster(8, 8);
+        Arrays.fill(source.pixels, BLUE);
+        Raster layer = new Raster(4, 4);
+        layer.pixels[0] = layer.pixels[1] = layer.pixels[4] = layer.pixels[5] = GREEN;
+        EditRecipe recipe = new EditRecipe();
+        recipe.paint = new EditRecipe.Paint(layer, null);
+
+        Raster result = new RecipeRenderer().render(source, recipe, 100);
+        assertEquals(8, result.width);
+        // inside of the quarter, its edges are filtered
+        assertEquals(GREEN, result.pixels[8 + 1]);
+        assertEquals(GREEN, result.pixels[2 * 8 + 2]);
+        assertEquals(BLUE, result.pixels[7 * 8 + 7]);
+        assertEquals(BLUE, result.pixels[6]);
+        // the source isn't drawn over
+        assertEquals(BLUE, source.pixels[0]);
+    }
+
+    /**
+     * Half transparent red over opaque blue, source over.
+     */
+    @Test
+    public void compositesSourceOver() {
+        Raster source = new Raster(4, 4);
+        Arrays.fill(source.pixels, BLUE);
+        Raster layer = new Raster(4, 4);
+        Arrays.fill(layer.pixels, 0x80ff0000);
+        EditRecipe recipe = new EditRecipe();
+        recipe.paint = new EditRecipe.Paint(layer, null);
+
+        int color = new RecipeRenderer().render(source, recipe, 100).pixels[5];
+        assertEquals(0xff, color >>> 24);
+        assertTrue(Integer.toHexString(color), Math.abs(((color >> 16) & 0xff) - 128) <= 1);
+        assertEquals(0, (color >> 8) & 0xff);
+        assertTrue(Integer.toHexString(color), Math.abs((color & 0xff) - 127) <= 1);
+    }
+}
@@ -0,0 +1,182 @@
+package com.felan.photoeditor.widgets.filters;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.SurfaceTexture;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.felan.photoeditor.engine.FilterEngine;
+import com.felan.photoeditor.engine.FilterParams;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Renders the input and the cases of {@code FilterEngineTest} with {@link TelegramEGLThread} and
+ * checks {@link FilterEngine} stays within {@link FilterEngine#TOLERANCE} of it on this device.
+ * <p>
+ * The GL outputs are written to {@code Android/data/<package>/files/golden} on external storage.
+ * Pull them into {@code engine/src/test/resources/golden} to make them the goldens of
+ * {@code FilterEngineTest}. Curves are built from levels here, as the editor does, so that case
+ * is named {@code curves_levels} and is only checked on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FilterParityTest {
+
+    private final static int WIDTH = 96;
+    private final static int HEIGHT = 64;
+
+    @Test
+    public void engineMatchesGl() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File directory = new File(context.getExternalFilesDir(null), "golden");
+        assertTrue("Can't create " + directory, directory.isDirectory() || directory.mkdirs());
+        ShaderProgramCache.setCacheDir(new File(context.getCacheDir(), "shaders"));
+
+        int[] pixels = createInput();
+        Bitmap input = Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        FilterEngine engine = new FilterEngine();
+        for (Map.Entry<String, FilterParams> entry : createCases().entrySet()) {
+            String name = entry.getKey();
+            FilterableImageView[] view = new FilterableImageView[1];
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+                view[0] = new FilterableImageView(context);
+                view[0].setFilterParams(entry.getValue());
+            });
+            // read back, the curves data comes from the levels
+            FilterParams params = view[0].getFilterParams();
+
+            Bitmap gl = renderGl(input, view[0]);
+            assertNotNull(name + " wasn't rendered", gl);
+            writePng(new File(directory, name + ".png"), gl);
+
+            int[] glPixels = new int[WIDTH * HEIGHT];
+            gl.getPixels(glPixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+            int difference = maxDifference(glPixels, engine.render(pixels, WIDTH, HEIGHT, params));
+            assertTrue(name + " differs from GL by " + difference, difference <= FilterEngine.TOLERANCE);
+        }
+    }
+
+    private static Bitmap renderGl(Bitmap input, FilterableImageView view) throws InterruptedException {
+        SurfaceTexture surface = new SurfaceTexture(0);
+        surface.setDefaultBufferSize(WIDTH, HEIGHT);
+        TelegramEGLThread thread = new TelegramEGLThread(surface, input, view);
+        try {
+            thread.setSurfaceTextureSize(WIDTH, HEIGHT);
+            // runs once the context is set up
+            CountDownLatch ready = new CountDownLatch(1);
+            thread.postRunnable(ready::countDown);
+            ready.await();
+            return thread.getFullResolutionTexture();
+        } finally {
+            thread.shutdown();
+            surface.release();
+        }
+    }
+
+    private static void writePng(File file, Bitmap bitmap) throws IOException {
+        OutputStream stream = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Those of {@code FilterEngineTest}, with the curves from levels.
+     */
+    private static Map<String, FilterParams> createCases() {
+        Map<String, FilterParams> cases = new LinkedHashMap<>();
+
+        FilterParams tools = new FilterParams();
+        tools.exposureValue = 30;
+        tools.contrastValue = 40;
+        tools.saturationValue = -30;
+        tools.warmthValue = 50;
+        tools.fadeValue = 20;
+        tools.highlightsValue = -40;
+        tools.shadowsValue = 50;
+        tools.tintShadowsColor = 0xff4d4dff;
+        tools.tintHighlightsColor = 0xffef9286;
+        cases.put("tools", tools);
+
+        FilterParams enhance = new FilterParams();
+        enhance.enhanceValue = 60;
+        cases.put("enhance", enhance);
+
+        FilterParams sharpen = new FilterParams();
+        sharpen.sharpenValue = 80;
+        cases.put("sharpen", sharpen);
+
+        FilterParams vignette = new FilterParams();
+        vignette.vignetteValue = 70;
+        cases.put("vignette", vignette);
+
+        FilterParams radial = new FilterParams();
+        radial.blurType = FilterParams.BLUR_RADIAL;
+        cases.put("blur_radial", radial);
+
+        FilterParams linear = new FilterParams();
+        linear.blurType = FilterParams.BLUR_LINEAR;
+        linear.blurRadius = 4;
+        linear.blurAngle = 0.6f;
+        cases.put("blur_linear_pyramid", linear);
+
+        FilterParams curves = new FilterParams();
+        curves.curvesLevels = new float[]{
+                0, 25, 50, 75, 100,
+                0, 25, 50, 75, 100,
+                0, 25, 50, 75, 100,
+                0, 35, 65, 90, 100
+        };
+        cases.put("curves_levels", curves);
+
+        return cases;
+    }
+
+    /**
+     * The input of {@code FilterEngineTest}.
+     */
+    private static int[] createInput() {
+        Random random = new Random(7);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = x * 255 / WIDTH;
+                int g = y * 255 / HEIGHT;
+                int b = ((x / 12 + y / 12) % 2) * 160 + 40;
+                r = Math.max(0, Math.min(255, r + random.nextInt(17) - 8));
+                g = Math.max(0, Math.min(255, g + random.nextInt(17) - 8));
+                pixels[y * WIDTH + x] = 0xff000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static int maxDifference(int[] first, int[] second) {
+        assertEquals(first.length, second.length);
+        int max = 0;
+        for (int a = 0; a < first.length; a++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                max = Math.max(max, Math.abs((first[a] >>> shift & 0xff) - (second[a] >>> shift & 0xff)));
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,224 @@
+#include "cdt.h"
+
+#include <math.h>
+#include <pthread.h>
+#include <string.h>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#endif
+
+#ifndef MAX
+#define MAX(x, y) (((x) > (y)) ? (x) : (y))
+#endif
+#ifndef MIN
+#define MIN(x, y) (((x) < (y)) ? (x) : (y))
+#endif
+
+#define ARENA_ALIGN 64
+
+typedef struct {
+    const uint8_t *hsv;
+    int width;
+    int segments;
+    const uint32_t *columnStarts;
+    int yStart;
+    int yEnd;
+    float yMul;
+    uint32_t *hist;
+    uint8_t *values;
+} cdt_band;
+
+static size_t align_size(size_t size) {
+    return (size + ARENA_ALIGN - 1) & ~(size_t) (ARENA_ALIGN - 1);
+}
+
+static size_t histograms_size(int segments) {
+    return align_size((size_t) segments * segments * CDT_HISTOGRAM_BINS * sizeof(uint32_t));
+}
+
+size_t cdt_arena_size(int width, int segments, int threads) {
+    threads = MAX(1, MIN(threads, CDT_MAX_THREADS));
+    return ARENA_ALIGN
+           + align_size((size_t) (segments + 1) * sizeof(uint32_t))
+           + (size_t) threads * (histograms_size(segments) + align_size((size_t) width));
+}
+
+/*
+ * Copies the V byte of every pixel of the row into values. This is the only strided access,
+ * once it is done the histogram update reads a dense byte array.
+ */
+static void gather_values(const uint8_t *row, int width, uint8_t *values) {
+    int x = 0;
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+    for (; x + 16 <= width; x += 16) {
+        uint8x16x4_t pixels = vld4q_u8(row + x * 4);
+        vst1q_u8(values + x, pixels.val[2]);
+    }
+#elif defined(__SSE2__)
+    const __m128i mask = _mm_set1_epi32(0xff);
+    for (; x + 16 <= width; x += 16) {
+        __m128i p0 = _mm_srli_epi32(_mm_loadu_si128((const __m128i *) (row + x * 4)), 16);
+        __m128i p1 = _mm_srli_epi32(_mm_loadu_si128((const __m128i *) (row + x * 4 + 16)), 16);
+        __m128i p2 = _mm_srli_epi32(_mm_loadu_si128((const __m128i *) (row + x * 4 + 32)), 16);
+        __m128i p3 = _mm_srli_epi32(_mm_loadu_si128((const __m128i *) (row + x * 4 + 48)), 16);
+        __m128i lo = _mm_packs_epi32(_mm_and_si128(p0, mask), _mm_and_si128(p1, mask));
+        __m128i hi = _mm_packs_epi32(_mm_and_si128(p2, mask), _mm_and_si128(p3, mask));
+        _mm_storeu_si128((__m128i *) (values + x), _mm_packus_epi16(lo, hi));
+    }
+#endif
+    for (; x < width; x++) {
+        values[x] = row[x * 4 + 2];
+    }
+}
+
+static void *fill_band(void *arg) {
+    cdt_band *band = arg;
+    int segments = band->segments;
+    memset(band->hist, 0, (size_t) segments * segments * CDT_HISTOGRAM_BINS * sizeof(uint32_t));
+
+    for (int y = band->yStart; y < band->yEnd; y++) {
+        gather_values(band->hsv + (size_t) y * band->width * 4, band->width, band->values);
+
+        uint32_t ty = MIN((uint32_t) (y * band->yMul), (uint32_t) segments - 1);
+        uint32_t *rowHist = band->hist + (size_t) ty * segments * CDT_HISTOGRAM_BINS;
+        for (int tx = 0; tx < segments; tx++) {
+            uint32_t *hist = rowHist + (size_t) tx * CDT_HISTOGRAM_BINS;
+            const uint8_t *values = band->values;
+            uint32_t x = band->columnStarts[tx];
+            uint32_t end = band->columnStarts[tx + 1];
+            // two independent streams so repeated values don't serialize on the same counter
+            for (; x + 2 <= end; x += 2) {
+                hist[values[x]]++;
+                hist[values[x + 1]]++;
+            }
+            if (x < end) {
+                hist[values[x]]++;
+            }
+        }
+    }
+    return NULL;
+}
+
+void calc_cdt(const uint8_t *hsv, int width, int height, int segments, float clipLimit,
+              int threads, void *arena, uint8_t *result) {
+    float imageWidth = width;
+    float imageHeight = height;
+
+    uint32_t totalSegments = (uint32_t) (segments * segments);
+    uint32_t tileArea = (uint32_t) (floorf(imageWidth / segments) * floorf(imageHeight / segments));
+    uint32_t clipCount = (uint32_t) MAX(1, clipLimit * tileArea / (float) CDT_HISTOGRAM_BINS);
+    float scale = 255.0f / (float) tileArea;
+
+    float xMul = segments / imageWidth;
+    float yMul = segments / imageHeight;
+
+    // at least 64 rows per thread, fewer aren't worth a thread
+    threads = MAX(1, MIN(MIN(threads, CDT_MAX_THREADS), height / 64));
+
+    uint8_t *base = (uint8_t *) (((uintptr_t) arena + ARENA_ALIGN - 1) & ~(uintptr_t) (ARENA_ALIGN - 1));
+    uint32_t *columnStarts = (uint32_t *) base;
+    base += align_size((size_t) (segments + 1) * sizeof(uint32_t));
+
+    // tile columns as the per pixel (uint32_t) (x * xMul) would assign them
+    uint32_t tx = 0;
+    columnStarts[0] = 0;
+    for (int x = 0; x < width; x++) {
+        uint32_t t = (uint32_t) (x * xMul);
+        while (tx < t && tx < (uint32_t) segments) {
+            columnStarts[++tx] = (uint32_t) x;
+        }
+    }
+    while (tx < (uint32_t) segments) {
+        columnStarts[++tx] = (uint32_t) width;
+    }
+
+    cdt_band bands[CDT_MAX_THREADS];
+    pthread_t workers[CDT_MAX_THREADS];
+    int started[CDT_MAX_THREADS];
+    for (int i = 0; i < threads; i++) {
+        cdt_band *band = &bands[i];
+        band->hsv = hsv;
+        band->width = width;
+        band->segments = segments;
+        band->columnStarts = columnStarts;
+        band->yStart = (int) ((int64_t) height * i / threads);
+        band->yEnd = (int) ((int64_t) height * (i + 1) / threads);
+        band->yMul = yMul;
+        band->hist = (uint32_t *) base;
+        base += histograms_size(segments);
+        band->values = base;
+        base += align_size((size_t) width);
+    }
+    for (int i = 1; i < threads; i++) {
+        started[i] = pthread_create(&workers[i], NULL, fill_band, &bands[i]) == 0;
+        if (!started[i]) {
+            fill_band(&bands[i]);
+        }
+    }
+    fill_band(&bands[0]);
+
+    uint32_t *hist = bands[0].hist;
+    size_t histSize = (size_t) totalSegments * CDT_HISTOGRAM_BINS;
+    for (int i = 1; i < threads; i++) {
+        if (started[i]) {
+            pthread_join(workers[i], NULL);
+        }
+        const uint32_t *other = bands[i].hist;
+        for (size_t j = 0; j < histSize; j++) {
+            hist[j] += other[j];
+        }
+    }
+
+    uint32_t resultBytesPerRow = 4 * CDT_HISTOGRAM_BINS;
+    for (uint32_t i = 0; i < totalSegments; i++) {
+        uint32_t *h = hist + (size_t) i * CDT_HISTOGRAM_BINS;
+        if (clipCount > 0) {
+            uint32_t clipped = 0;
+            for (uint32_t j = 0; j < CDT_HISTOGRAM_BINS; ++j) {
+                if (h[j] > clipCount) {
+                    clipped += h[j] - clipCount;
+                    h[j] = clipCount;
+                }
+            }
+
+            uint32_t redistBatch = clipped / CDT_HISTOGRAM_BINS;
+            uint32_t residual = clipped - redistBatch * CDT_HISTOGRAM_BINS;
+
+            for (uint32_t j = 0; j < CDT_HISTOGRAM_BINS; ++j) {
+                h[j] += redistBatch;
+            }
+
+            for (uint32_t j = 0; j < residual; ++j) {
+                h[j]++;
+            }
+        }
+
+        uint32_t hMin = CDT_HISTOGRAM_BINS - 1;
+        for (uint32_t j = 0; j < hMin; ++j) {
+            if (h[j] != 0) {
+                hMin = j;
+                break;
+            }
+        }
+
+        // bins below hMin are empty, so their cdf is 0 as well
+        uint32_t cdf = 0;
+        for (uint32_t j = hMin; j < CDT_HISTOGRAM_BINS; ++j) {
+            cdf += h[j];
+            h[j] = (uint32_t) MIN(255.0f, cdf * scale);
+        }
+
+        uint8_t cdfMin = (uint8_t) h[hMin];
+        uint8_t cdfMax = (uint8_t) h[CDT_HISTOGRAM_BINS - 1];
+        uint8_t *row = result + i * resultBytesPerRow;
+        for (uint32_t j = 0; j < CDT_HISTOGRAM_BINS; j++) {
+            row[j * 4] = (uint8_t) h[j];
+            row[j * 4 + 1] = cdfMin;
+            row[j * 4 + 2] = cdfMax;
+            row[j * 4 + 3] = 255;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+#ifndef PHOTOEDITOR_CDT_H
+#define PHOTOEDITOR_CDT_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define CDT_HISTOGRAM_BINS 256
+#define CDT_DEFAULT_SEGMENTS 4
+#define CDT_DEFAULT_CLIP_LIMIT 1.25f
+#define CDT_MAX_THREADS 8
+
+/*
+ * Size in bytes of the arena calc_cdt needs for the given image width, segment count and
+ * number of threads. The arena can be reused between calls of the same or smaller size.
+ */
+size_t cdt_arena_size(int width, int segments, int threads);
+
+/*
+ * Builds the clipped cumulative distribution table of every segment x segment tile of the
+ * V channel (byte 2) of the RGBA hsv image, in glReadPixels row order.
+ *
+ * result receives segments * segments rows of CDT_HISTOGRAM_BINS RGBA texels: the cdf, the
+ * tile's cdf minimum and maximum, and 255.
+ *
+ * Rows are split between up to threads threads, each filling private histograms which are
+ * merged afterwards.
+ */
+void calc_cdt(const uint8_t *hsv, int width, int height, int segments, float clipLimit,
+              int threads, void *arena, uint8_t *result);
+
+#endif
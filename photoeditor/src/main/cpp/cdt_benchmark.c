@@ -0,0 +1,61 @@
+/*
+ * Desktop micro-benchmark of calc_cdt, built by CMake outside of Android:
+ *
+ *   cdt-benchmark [width] [height] [iterations]
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "cdt.h"
+
+static double now_ms(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+int main(int argc, char **argv) {
+    int width = argc > 1 ? atoi(argv[1]) : 1280;
+    int height = argc > 2 ? atoi(argv[2]) : 960;
+    int iterations = argc > 3 ? atoi(argv[3]) : 50;
+    if (width <= 0 || height <= 0 || iterations <= 0) {
+        fprintf(stderr, "usage: %s [width] [height] [iterations]\n", argv[0]);
+        return 1;
+    }
+
+    uint8_t *hsv = malloc((size_t) width * height * 4);
+    uint8_t *result = malloc(4 * CDT_HISTOGRAM_BINS * CDT_DEFAULT_SEGMENTS * CDT_DEFAULT_SEGMENTS);
+    uint8_t *reference = malloc(4 * CDT_HISTOGRAM_BINS * CDT_DEFAULT_SEGMENTS * CDT_DEFAULT_SEGMENTS);
+    srand(1);
+    for (size_t i = 0; i < (size_t) width * height * 4; i++) {
+        hsv[i] = (uint8_t) ((i / 4 % width) * 255 / width / 2 + rand() % 128);
+    }
+
+    long cores = sysconf(_SC_NPROCESSORS_ONLN);
+    int maxThreads = cores > 0 ? (int) cores : 1;
+    void *arena = malloc(cdt_arena_size(width, CDT_DEFAULT_SEGMENTS, maxThreads));
+
+    calc_cdt(hsv, width, height, CDT_DEFAULT_SEGMENTS, CDT_DEFAULT_CLIP_LIMIT, 1, arena, reference);
+
+    for (int threads = 1; threads <= maxThreads && threads <= CDT_MAX_THREADS; threads *= 2) {
+        calc_cdt(hsv, width, height, CDT_DEFAULT_SEGMENTS, CDT_DEFAULT_CLIP_LIMIT, threads, arena, result);
+        double start = now_ms();
+        for (int i = 0; i < iterations; i++) {
+            calc_cdt(hsv, width, height, CDT_DEFAULT_SEGMENTS, CDT_DEFAULT_CLIP_LIMIT, threads, arena, result);
+        }
+        double elapsed = (now_ms() - start) / iterations;
+        int mismatches = 0;
+        for (int i = 0; i < 4 * CDT_HISTOGRAM_BINS * CDT_DEFAULT_SEGMENTS * CDT_DEFAULT_SEGMENTS; i++) {
+            mismatches += result[i] != reference[i];
+        }
+        printf("%dx%d threads %d: %.3f ms, %d mismatches\n", width, height, threads, elapsed, mismatches);
+    }
+
+    free(arena);
+    free(reference);
+    free(result);
+    free(hsv);
+    return 0;
+}
@@ -1,18 +1,27 @@
 package com.felan.photoeditor.utils;
 
+import android.os.Handler;
+import android.os.Looper;
+
 public class AndroidUtilities {
     public static int statusBarHeight;
     public static float density = 3.0f;
 
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
+
     public static int dp(float i) {
         return (int) (density * i);
     }
 
-    public static float getPhotoSize() {
-        return 1280;
-    }
-
     public static boolean isTablet() {
         return false;
     }
+
+    public static void runOnUIThread(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            uiHandler.post(runnable);
+        }
+    }
 }
@@ -2,4 +2,5 @@ package com.felan.photoeditor.utils;
 
 public class BuildVars {
     public static final boolean LOGS_ENABLED = true;
+    public static final boolean DEBUG_VERSION = false;
 }
@@ -11,6 +11,7 @@ package com.felan.photoeditor.utils;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.view.Choreographer;
 
 import java.util.concurrent.CountDownLatch;
 
@@ -19,6 +20,35 @@ public class DispatchQueue extends Thread {
     private volatile Handler handler = null;
     private CountDownLatch syncLatch = new CountDownLatch(1);
 
+    private Choreographer choreographer;
+    private Runnable frameRunnable;
+    private long frameRequestTime;
+    private volatile long frameIntervalNanos = 1000000000L / 60;
+
+    private volatile int requestedFrames;
+    private volatile int renderedFrames;
+    private volatile int mergedFrames;
+    private volatile int cancelledFrames;
+    private volatile int droppedFrames;
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            Runnable runnable = frameRunnable;
+            frameRunnable = null;
+            if (runnable == null) {
+                return;
+            }
+            // vsyncs that passed after the request beyond the one we were aiming at
+            long missed = (frameTimeNanos - frameRequestTime) / frameIntervalNanos - 1;
+            if (missed > 0) {
+                droppedFrames += missed;
+            }
+            renderedFrames++;
+            runnable.run();
+        }
+    };
+
     public DispatchQueue(final String threadName) {
         setName(threadName);
         start();
@@ -63,6 +93,73 @@ public class DispatchQueue extends Thread {
         }
     }
 
+    /**
+     * Runs {@code runnable} on the next vsync. Requests made before that vsync are merged into
+     * a single frame which runs the latest runnable, so at most one frame is produced per vsync
+     * and the last requested state is always rendered. Must be called on this queue's thread.
+     */
+    public void postFrameRunnable(Runnable runnable) {
+        requestedFrames++;
+        if (frameRunnable != null) {
+            mergedFrames++;
+            frameRunnable = runnable;
+            return;
+        }
+        if (choreographer == null) {
+            choreographer = Choreographer.getInstance();
+        }
+        frameRunnable = runnable;
+        frameRequestTime = System.nanoTime();
+        choreographer.postFrameCallback(frameCallback);
+    }
+
+    /**
+     * Drops the frame scheduled with {@link #postFrameRunnable(Runnable)}, if any.
+     * Must be called on this queue's thread.
+     */
+    public void cancelFrameRunnable() {
+        if (frameRunnable != null) {
+            frameRunnable = null;
+            cancelledFrames++;
+            choreographer.removeFrameCallback(frameCallback);
+        }
+    }
+
+    public void setRefreshRate(float refreshRate) {
+        if (refreshRate > 0) {
+            frameIntervalNanos = (long) (1000000000L / refreshRate);
+        }
+    }
+
+    public int getRequestedFrames() {
+        return requestedFrames;
+    }
+
+    public int getRenderedFrames() {
+        return renderedFrames;
+    }
+
+    /**
+     * Frame requests folded into another frame instead of being rendered on their own.
+     */
+    public int getMergedFrames() {
+        return mergedFrames;
+    }
+
+    /**
+     * Frame requests dropped with {@link #cancelFrameRunnable()} before they were rendered.
+     */
+    public int getCancelledFrames() {
+        return cancelledFrames;
+    }
+
+    /**
+     * Vsyncs missed between a frame request and its rendering, e.g. because the queue was busy.
+     */
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
     public void cleanupQueue() {
         try {
             syncLatch.await();
@@ -12,4 +12,8 @@ public class FileLog {
     public static void e(Throwable e) {
 
     }
+
+    public static void d(String message) {
+
+    }
 }
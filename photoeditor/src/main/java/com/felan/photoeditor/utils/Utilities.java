@@ -21,7 +21,18 @@ public class Utilities {
         System.loadLibrary("image-lib");
     }
 
-    public native static void calcCDT(ByteBuffer hsvBuffer, int width, int height, ByteBuffer buffer);
+    public final static int CDT_DEFAULT_SEGMENTS = 4;
+    public final static float CDT_DEFAULT_CLIP_LIMIT = 1.25f;
+
+    public static void calcCDT(ByteBuffer hsvBuffer, int width, int height, ByteBuffer buffer) {
+        calcCDT(hsvBuffer, width, height, CDT_DEFAULT_SEGMENTS, CDT_DEFAULT_CLIP_LIMIT, buffer);
+    }
+
+    /**
+     * @param segments  tiles per side, {@code buffer} receives {@code segments * segments} rows of 256 RGBA texels
+     * @param clipLimit histogram clip limit, relative to the average bin count of a tile
+     */
+    public native static void calcCDT(ByteBuffer hsvBuffer, int width, int height, int segments, float clipLimit, ByteBuffer buffer);
 
     public static LinearLayout makeRadioButtonsForLabels(Context context, String... labels) {
         return makeRadioButtonsForLabels(context, labels, null);
@@ -0,0 +1,336 @@
+package com.felan.photoeditor.widgets
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.Rect
+import com.felan.photoeditor.engine.EditRecipe
+import com.felan.photoeditor.engine.FilterEngine
+import com.felan.photoeditor.engine.FilterParams
+import com.felan.photoeditor.engine.Raster
+import com.felan.photoeditor.utils.AndroidUtilities
+import com.felan.photoeditor.utils.DispatchQueue
+import com.felan.photoeditor.utils.FileLog
+import com.felan.photoeditor.widgets.crop.CropOperation
+import com.felan.photoeditor.widgets.paint.PaintReplay
+import com.felan.photoeditor.widgets.paint.TextPaintView
+import java.util.concurrent.Executors
+import kotlin.math.max
+
+/**
+ * The edits made to a photo, kept as parameters instead of pixels.
+ *
+ * Editors are opened on previews rendered from [proxy], a copy of the source no larger than the
+ * preview side of the [ExportPolicy], and record what they did here, so reopening one resumes
+ * from its parameters. The source itself is rendered once, by [export], through crop, filter and
+ * paint in that order.
+ */
+class EditSession(val source: Bitmap) {
+
+    enum class Stage { CROP, FILTER, PAINT }
+
+    /**
+     * Strokes and text painted over the photo, in the pixels of a [width] x [height] layer
+     * covering the frame of [crop], the crop of the session when they were painted. They are
+     * drawn again at the size of the result on export.
+     *
+     * [base] is painted under the strokes, from a recipe that kept only the pixels of the layer.
+     * [raster] is the base and the strokes at the layer size, for previews, drawn from the
+     * strokes when it's first needed if it isn't given.
+     */
+    class PaintLayer(
+        val width: Int,
+        val height: Int,
+        val crop: CropOperation?,
+        val strokes: List<EditRecipe.Stroke>,
+        val texts: List<EditRecipe.Text>,
+        val base: Bitmap? = null,
+        raster: Bitmap? = null
+    ) {
+        var raster: Bitmap? = raster
+            internal set
+    }
+
+    /**
+     * Encoded file [source] was decoded from, the crop is decoded from it at up to its
+     * resolution on export.
+     */
+    var sourcePath: String? = null
+
+    val proxy: Bitmap = createProxy(source)
+
+    var crop: CropOperation? = null
+    var filter: FilterParams? = null
+    var paint: PaintLayer? = null
+
+    /**
+     * Renders [proxy] through the edits up to [stage], [callback] runs on the UI thread.
+     */
+    fun renderPreview(stage: Stage, callback: (Bitmap) -> Unit) {
+        val edits = Edits(this)
+        queue.postRunnable {
+            val result = try {
+                render(proxy, null, stage, edits, ExportPolicy.getDefault())
+            } catch (e: OutOfMemoryError) {
+                FileLog.e(e)
+                proxy
+            }
+            AndroidUtilities.runOnUIThread { callback(result) }
+        }
+    }
+
+    /**
+     * Renders [source] through all the edits, [callback] runs on the UI thread with null if
+     * the result didn't fit in memory.
+     */
+    fun export(callback: (Bitmap?) -> Unit) {
+        val edits = Edits(this)
+        val path = sourcePath
+        queue.postRunnable {
+            val result = try {
+                render(source, path, Stage.PAINT, edits, ExportPolicy.getDefault())
+            } catch (e: OutOfMemoryError) {
+                FileLog.e(e)
+                null
+            }
+            AndroidUtilities.runOnUIThread { callback(result) }
+        }
+    }
+
+    /**
+     * The edits as a recipe, to be saved or replayed on other photos.
+     */
+    fun toRecipe(): EditRecipe = EditRecipe().also { recipe ->
+        recipe.referenceWidth = proxy.width
+        recipe.referenceHeight = proxy.height
+        recipe.crop = crop?.toRecipe()
+        recipe.filter = filter?.let { FilterParams(it) }
+        recipe.paint = paint?.let { paint ->
+            // the text is drawn into the layer for the readers that only draw the layer
+            val layer = Bitmap.createBitmap(paint.width, paint.height, Bitmap.Config.ARGB_8888)
+            val canvas = Canvas(layer)
+            getRaster(paint)?.let { canvas.drawBitmap(it, 0f, 0f, null) }
+            paint.texts.forEach { TextPaintView.draw(canvas, it) }
+            val raster = Raster(layer.width, layer.height)
+            layer.getPixels(raster.pixels, 0, layer.width, 0, 0, layer.width, layer.height)
+            layer.recycle()
+            // strokes drawn over a base can't be told apart from it once they're read back
+            val edits = paint.base == null
+            EditRecipe.Paint(
+                raster,
+                if (paint.crop === crop) recipe.crop else paint.crop?.toRecipe(),
+                if (edits) paint.strokes else null,
+                if (edits) paint.texts else null
+            )
+        }
+    }
+
+    /**
+     * Replaces the edits with the ones of [recipe], which may come from another photo.
+     */
+    fun applyRecipe(recipe: EditRecipe) {
+        crop = recipe.crop?.let { CropOperation.fromRecipe(it) }
+        filter = recipe.filter?.let { FilterParams(it) }
+        paint = recipe.paint?.let { paint ->
+            val raster = paint.layer
+            val paintCrop = if (paint.crop === recipe.crop) crop else paint.crop?.let { CropOperation.fromRecipe(it) }
+            val strokes = paint.strokes
+            val texts = paint.texts
+            if (strokes != null && texts != null) {
+                PaintLayer(raster.width, raster.height, paintCrop, strokes, texts)
+            } else {
+                val layer = Bitmap.createBitmap(raster.width, raster.height, Bitmap.Config.ARGB_8888)
+                layer.setPixels(raster.pixels, 0, raster.width, 0, 0, raster.width, raster.height)
+                PaintLayer(raster.width, raster.height, paintCrop, emptyList(), emptyList(), layer, layer)
+            }
+        }
+    }
+
+    /**
+     * The paint mapped onto the frame of the current [crop] at [width] x [height], to resume
+     * painting from. Null if nothing was painted.
+     */
+    fun getPaint(width: Int, height: Int): PaintLayer? {
+        val paint = paint ?: return null
+        val matrix = getLayerMatrix(paint, crop, width, height)
+        val values = FloatArray(9).also { matrix.getValues(it) }
+        val base = paint.base?.let { base ->
+            Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888).also {
+                Canvas(it).drawBitmap(base, matrix, Paint(Paint.FILTER_BITMAP_FLAG))
+            }
+        }
+        return PaintLayer(
+            width,
+            height,
+            crop,
+            paint.strokes.map { it.transform(values) },
+            paint.texts.map { it.transform(values) },
+            base
+        )
+    }
+
+    /**
+     * How many times larger a result [width] pixels wide is than the preview the filter was set
+     * on, which is the proxy under [crop].
+     */
+    private fun getRadiusScale(crop: CropOperation?, width: Int) =
+        width / (crop?.getCropWidth(proxy.width.toFloat()) ?: proxy.width.toFloat())
+
+    /**
+     * Maps the proxy to the frame of [crop] of the given size, the scaling of the proxy stands
+     * for any other size of the source as well.
+     */
+    private fun getFrameMatrix(crop: CropOperation?, width: Int, height: Int): Matrix =
+        crop?.getResultMatrix(proxy.width.toFloat(), proxy.height.toFloat(), width, height)
+            ?: Matrix().apply { setScale(width.toFloat() / proxy.width, height.toFloat() / proxy.height) }
+
+    /**
+     * Maps the layer of [paint] to the frame of [crop] of the given size.
+     */
+    private fun getLayerMatrix(paint: PaintLayer, crop: CropOperation?, width: Int, height: Int) =
+        Matrix().also {
+            getFrameMatrix(paint.crop, paint.width, paint.height).invert(it)
+            it.postConcat(getFrameMatrix(crop, width, height))
+        }
+
+    /**
+     * Draws [paint] over [image]. Strokes are drawn again at the size of [image] when [redraw]
+     * is set and it's larger than the layer, text always is.
+     */
+    private fun drawPaint(image: Bitmap, paint: PaintLayer, crop: CropOperation?, redraw: Boolean) {
+        val matrix = getLayerMatrix(paint, crop, image.width, image.height)
+        val canvas = Canvas(image)
+        val filter = Paint(Paint.FILTER_BITMAP_FLAG)
+        val scale = matrix.mapRadius(1f)
+        val strokes = if (redraw && scale > 1f && paint.strokes.isNotEmpty()) {
+            PaintReplay.render(paint.strokes, paint.width, paint.height, scale)
+        } else null
+        if (strokes != null) {
+            paint.base?.let { canvas.drawBitmap(it, matrix, filter) }
+            val strokesMatrix = Matrix(matrix)
+            strokesMatrix.preScale(paint.width.toFloat() / strokes.width, paint.height.toFloat() / strokes.height)
+            canvas.drawBitmap(strokes, strokesMatrix, filter)
+            strokes.recycle()
+        } else {
+            getRaster(paint)?.let { canvas.drawBitmap(it, matrix, filter) }
+        }
+        canvas.save()
+        canvas.concat(matrix)
+        paint.texts.forEach { TextPaintView.draw(canvas, it) }
+        canvas.restore()
+    }
+
+    /**
+     * The base and the strokes of [paint] at the layer size, null if there are neither.
+     */
+    private fun getRaster(paint: PaintLayer): Bitmap? {
+        synchronized(paint) {
+            paint.raster?.let { return it }
+            if (paint.strokes.isEmpty()) {
+                return paint.base
+            }
+            val strokes = PaintReplay.render(paint.strokes, paint.width, paint.height, 1f) ?: return paint.base
+            val raster = paint.base?.copy(Bitmap.Config.ARGB_8888, true)
+                ?: Bitmap.createBitmap(paint.width, paint.height, Bitmap.Config.ARGB_8888)
+            Canvas(raster).drawBitmap(strokes, null, Rect(0, 0, paint.width, paint.height), Paint(Paint.FILTER_BITMAP_FLAG))
+            strokes.recycle()
+            paint.raster = raster
+            return raster
+        }
+    }
+
+    private fun render(image: Bitmap, path: String?, stage: Stage, edits: Edits, policy: ExportPolicy): Bitmap {
+        // the filter holds the bitmap, its pixels, the result and two intermediate rasters of the engine
+        val copies = if (edits.filter != null && stage != Stage.CROP) FILTER_COPIES else 1f
+
+        val crop = edits.crop
+        var result = path?.let {
+            when {
+                crop != null -> crop.decode(it, image.width, image.height, policy, copies)
+                // an uncropped source may have been decoded smaller than its file as well
+                isLarger(it, image) -> CropOperation.whole(image.width.toFloat() / image.height)
+                    .decode(it, image.width, image.height, policy, copies)
+                else -> null
+            }
+        } ?: crop?.getResultSize(image.width.toFloat(), policy, copies)?.let {
+            crop.render(image, it.width, it.height)
+        } ?: policy.fitSize(image.width.toFloat(), image.height.toFloat(), copies).let {
+            if (it.width == image.width && it.height == image.height) image
+            else Bitmap.createScaledBitmap(image, it.width, it.height, true)
+        }
+        if (stage == Stage.CROP) {
+            return result
+        }
+
+        edits.filter?.let { params ->
+            val width = result.width
+            val height = result.height
+            val pixels = IntArray(width * height)
+            result.getPixels(pixels, 0, width, 0, 0, width, height)
+            val filtered = FilterEngine(pool).render(pixels, width, height, params, getRadiusScale(crop, width))
+            if (result === image || !result.isMutable) {
+                result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+            }
+            result.setPixels(filtered, 0, width, 0, 0, width, height)
+        }
+        if (stage == Stage.FILTER) {
+            return result
+        }
+
+        edits.paint?.let { paint ->
+            if (result === image || !result.isMutable) {
+                result = result.copy(Bitmap.Config.ARGB_8888, true)
+            }
+            drawPaint(result, paint, edits.crop, image === source)
+        }
+        return result
+    }
+
+    /**
+     * Whether the file at [path] has more pixels than [image], reading only its header.
+     */
+    private fun isLarger(path: String, image: Bitmap): Boolean {
+        val options = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        BitmapFactory.decodeFile(path, options)
+        return options.outWidth > image.width || options.outHeight > image.height
+    }
+
+    /**
+     * The edits as they were when a render was requested, the editors may change them meanwhile.
+     */
+    private class Edits(session: EditSession) {
+        val crop = session.crop
+        val filter = session.filter?.let { FilterParams(it) }
+        val paint = session.paint
+    }
+
+    companion object {
+        private const val FILTER_COPIES = 5f
+
+        private val queue by lazy { DispatchQueue("EditSession") }
+
+        /**
+         * Threads of the filter besides the one rendering, a plain pool as Android only has
+         * ForkJoinPool from API 21.
+         */
+        private val pool by lazy {
+            Executors.newFixedThreadPool(max(1, Runtime.getRuntime().availableProcessors() - 1))
+        }
+
+        private fun createProxy(source: Bitmap): Bitmap {
+            val side = ExportPolicy.getDefault().previewSide
+            val scale = side.toFloat() / max(source.width, source.height)
+            if (scale >= 1f) {
+                return source
+            }
+            return Bitmap.createScaledBitmap(
+                source,
+                max(1, (source.width * scale).toInt()),
+                max(1, (source.height * scale).toInt()),
+                true
+            )
+        }
+    }
+}
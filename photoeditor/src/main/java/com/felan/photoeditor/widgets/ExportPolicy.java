@@ -0,0 +1,131 @@
+package com.felan.photoeditor.widgets;
+
+import com.felan.photoeditor.utils.SizeX;
+
+/**
+ * Limits on the size of the images the editors produce, consulted by every {@link PhotoEditor}.
+ * <p>
+ * A result is as large as its source allows, scaled down until it fits the long side,
+ * megapixel and memory limits. Editors that render in one GL texture are also held to the
+ * largest texture the device supports, the others tile above it.
+ */
+public class ExportPolicy {
+
+    public final static int DEFAULT_PREVIEW_SIDE = 1280;
+    /**
+     * Texture size assumed before a GL context has reported the real one.
+     */
+    public final static int FALLBACK_MAX_TEXTURE_SIZE = 2048;
+
+    private static ExportPolicy defaultPolicy = new ExportPolicy();
+    private static int maxTextureSize;
+
+    private int maxLongSide;
+    private float maxMegapixels;
+    private long memoryBudget;
+    private int previewSide = DEFAULT_PREVIEW_SIDE;
+
+    public static synchronized ExportPolicy getDefault() {
+        return defaultPolicy;
+    }
+
+    public static synchronized void setDefault(ExportPolicy policy) {
+        defaultPolicy = policy != null ? policy : new ExportPolicy();
+    }
+
+    /**
+     * Records the {@code GL_MAX_TEXTURE_SIZE} of the device, called by the GL threads.
+     */
+    public static synchronized void setMaxTextureSize(int size) {
+        if (size > 0) {
+            maxTextureSize = size;
+        }
+    }
+
+    public static synchronized int getMaxTextureSize() {
+        return maxTextureSize > 0 ? maxTextureSize : FALLBACK_MAX_TEXTURE_SIZE;
+    }
+
+    /**
+     * @param side longest side of a result in pixels, 0 for no limit
+     */
+    public ExportPolicy setMaxLongSide(int side) {
+        maxLongSide = side;
+        return this;
+    }
+
+    public int getMaxLongSide() {
+        return maxLongSide;
+    }
+
+    /**
+     * @param megapixels largest result area, 0 for no limit
+     */
+    public ExportPolicy setMaxMegapixels(float megapixels) {
+        maxMegapixels = megapixels;
+        return this;
+    }
+
+    public float getMaxMegapixels() {
+        return maxMegapixels;
+    }
+
+    /**
+     * @param bytes heap an export may use for its bitmaps, 0 for half of the free heap
+     */
+    public ExportPolicy setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+        return this;
+    }
+
+    public long getMemoryBudget() {
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long budget = free / 2;
+        return memoryBudget > 0 ? Math.min(memoryBudget, budget) : budget;
+    }
+
+    /**
+     * @param side longest side of the images editors show while editing
+     */
+    public ExportPolicy setPreviewSide(int side) {
+        previewSide = side;
+        return this;
+    }
+
+    public int getPreviewSide() {
+        return previewSide;
+    }
+
+    /**
+     * The largest size with the aspect of {@code width} x {@code height} the limits allow, never
+     * larger than it.
+     *
+     * @param copies how many ARGB bitmaps of the result size the export holds at once
+     */
+    public SizeX fitSize(float width, float height, float copies) {
+        double scale = 1.0;
+        if (maxLongSide > 0) {
+            scale = Math.min(scale, maxLongSide / Math.max(width, height));
+        }
+        double area = (double) width * height;
+        if (maxMegapixels > 0) {
+            scale = Math.min(scale, Math.sqrt(maxMegapixels * 1000000.0 / area));
+        }
+        scale = Math.min(scale, Math.sqrt(getMemoryBudget() / (area * 4 * Math.max(1.0f, copies))));
+        return new SizeX(Math.max(1, (int) Math.floor(width * scale)), Math.max(1, (int) Math.floor(height * scale)));
+    }
+
+    /**
+     * Same as {@link #fitSize} for results rendered in a single texture.
+     */
+    public SizeX fitTextureSize(float width, float height, float copies) {
+        SizeX size = fitSize(width, height, copies);
+        int maxSide = getMaxTextureSize();
+        if (size.getWidth() <= maxSide && size.getHeight() <= maxSide) {
+            return size;
+        }
+        float scale = (float) maxSide / Math.max(size.getWidth(), size.getHeight());
+        return new SizeX(Math.max(1, (int) Math.floor(size.getWidth() * scale)), Math.max(1, (int) Math.floor(size.getHeight() * scale)));
+    }
+}
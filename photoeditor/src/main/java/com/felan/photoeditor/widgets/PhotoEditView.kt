@@ -8,9 +8,13 @@ import android.view.View
 import android.widget.FrameLayout
 import android.widget.ImageView
 import com.felan.photoeditor.R
+import com.felan.photoeditor.engine.EditRecipe
 import com.felan.photoeditor.widgets.crop.PhotoCropView
 import com.felan.photoeditor.widgets.filters.PhotoFilterView
 import com.felan.photoeditor.widgets.paint.PhotoPaintView
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
 
 
 class PhotoEditView @JvmOverloads constructor(
@@ -60,14 +64,30 @@ class PhotoEditView @JvmOverloads constructor(
             .setOnClickListener { onCancelButtonClicked() }
     }
 
+    /**
+     * The photo to edit. Edits are kept in [session] and rendered from it by [exportImage].
+     */
     var image: Bitmap? = null
         get
         set(value) {
             if (field == value) return
             field = value
+            session = value?.let { EditSession(it).apply { sourcePath = imageSource } }
             imageView.setImageBitmap(value)
         }
 
+    /**
+     * Encoded file [image] was decoded from, the crop is decoded from it at up to its resolution.
+     */
+    var imageSource: String? = null
+        set(value) {
+            field = value
+            session?.sourcePath = value
+        }
+
+    var session: EditSession? = null
+        private set
+
     private var currentEditor: PhotoEditor? = null
 
     private fun onModeSelectButtonClicked(btnId: Int) {
@@ -78,16 +98,53 @@ class PhotoEditView @JvmOverloads constructor(
             else -> return
         }
 
-        editor.setImage(image ?: return)
+        editor.setSession(session ?: return)
         currentEditor = editor
         switchToEditMode(editor as View)
     }
 
-    private fun onDoneButtonClicked() = currentEditor?.let {
-        image = it.getResultImage()
-        switchToNormalMode()
+    private fun onDoneButtonClicked() {
+        val session = session ?: return
+        currentEditor?.commitTo(session) {
+            switchToNormalMode()
+            session.renderPreview(EditSession.Stage.PAINT) { preview ->
+                if (session == this.session) {
+                    imageView.setImageBitmap(preview)
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders [image] through all the edits at up to its resolution, as far as the
+     * [ExportPolicy] allows. [callback] runs on the UI thread.
+     */
+    fun exportImage(callback: (Bitmap?) -> Unit) = session?.export(callback) ?: callback(null)
+
+    /**
+     * Writes the edits of [image], to restore them with [readRecipe] after the process is
+     * killed. A recipe with painting can outgrow a saved instance state, keep it in a file.
+     */
+    @Throws(IOException::class)
+    fun writeRecipe(stream: OutputStream) {
+        (session ?: return).toRecipe().write(stream)
     }
 
+    /**
+     * Restores edits written by [writeRecipe], or made on any other photo, onto [image].
+     *
+     * @throws IOException if [stream] doesn't hold a valid recipe
+     */
+    @Throws(IOException::class)
+    fun readRecipe(stream: InputStream) {
+        val session = session ?: return
+        session.applyRecipe(EditRecipe.read(stream))
+        session.renderPreview(EditSession.Stage.PAINT) { preview ->
+            if (session == this.session) {
+                imageView.setImageBitmap(preview)
+            }
+        }
+    }
 
     private fun onCancelButtonClicked() {
         switchToNormalMode()
@@ -5,4 +5,22 @@ import android.graphics.Bitmap
 interface PhotoEditor {
     fun setImage(image: Bitmap)
     fun getResultImage(): Bitmap?
-}
\ No newline at end of file
+
+    /**
+     * Delivers the result on the UI thread, editors which render off the UI thread override this
+     * to avoid blocking it.
+     */
+    fun getResultImage(callback: (Bitmap?) -> Unit) = callback(getResultImage())
+
+    /**
+     * Opens the editor on a preview of [session], resuming from the edit it recorded there
+     * before, if any.
+     */
+    fun setSession(session: EditSession)
+
+    /**
+     * Records the edit in [session] instead of rendering it, [callback] runs on the UI thread
+     * once it's recorded.
+     */
+    fun commitTo(session: EditSession, callback: () -> Unit)
+}
@@ -118,6 +118,17 @@ class CropControlsView @JvmOverloads constructor(
         this.boundCropView = cropView
     }
 
+    /**
+     * Shows the rotation and aspect lock of a resumed crop, without applying them again.
+     */
+    fun showCropOperation(operation: CropOperation) {
+        val cropView = boundCropView
+        boundCropView = null
+        rotationWheel.value = operation.rotation
+        boundCropView = cropView
+        updateAspectRationButtonColor(operation.lockedAspectRatio == 0f)
+    }
+
 
     var enableBottomPaddingBinding: Boolean = true
 
@@ -0,0 +1,213 @@
+package com.felan.photoeditor.widgets.crop;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.felan.photoeditor.engine.EditRecipe;
+import com.felan.photoeditor.utils.FileLog;
+import com.felan.photoeditor.utils.SizeX;
+import com.felan.photoeditor.widgets.ExportPolicy;
+
+import static android.graphics.Paint.FILTER_BITMAP_FLAG;
+
+/**
+ * A crop as made in {@link CropView}, independent of the size of the image and of the view.
+ * <p>
+ * The crop matrix is kept normalized: it maps the oriented image, centered and one unit wide, to
+ * the crop, centered and one unit wide. So the same operation applies to a preview proxy and to
+ * the full resolution source alike.
+ */
+public class CropOperation {
+
+    private final Matrix matrix;
+    private final float orientation;
+    private final float rotation;
+    private final float aspectRatio;
+    private final float lockedAspectRatio;
+
+    CropOperation(Matrix normalizedMatrix, float orientation, float rotation, float aspectRatio, float lockedAspectRatio) {
+        matrix = new Matrix(normalizedMatrix);
+        this.orientation = orientation;
+        this.rotation = rotation;
+        this.aspectRatio = aspectRatio;
+        this.lockedAspectRatio = lockedAspectRatio;
+    }
+
+    public static CropOperation fromRecipe(EditRecipe.Crop crop) {
+        Matrix matrix = new Matrix();
+        matrix.setValues(crop.matrix);
+        return new CropOperation(matrix, crop.orientation, crop.rotation, crop.aspectRatio, crop.lockedAspectRatio);
+    }
+
+    /**
+     * The whole image, not rotated nor cropped, so {@link #decode} can read any file at a size
+     * close to the result.
+     *
+     * @param aspectRatio width of the image divided by its height
+     */
+    public static CropOperation whole(float aspectRatio) {
+        return new CropOperation(new Matrix(), 0, 0, aspectRatio, 0);
+    }
+
+    public EditRecipe.Crop toRecipe() {
+        float[] values = new float[9];
+        matrix.getValues(values);
+        return new EditRecipe.Crop(values, orientation, rotation, aspectRatio, lockedAspectRatio);
+    }
+
+    Matrix getNormalizedMatrix() {
+        return new Matrix(matrix);
+    }
+
+    public float getOrientation() {
+        return orientation;
+    }
+
+    public float getRotation() {
+        return rotation;
+    }
+
+    public float getAspectRatio() {
+        return aspectRatio;
+    }
+
+    public float getLockedAspectRatio() {
+        return lockedAspectRatio;
+    }
+
+    /**
+     * Width of the crop in the pixels of an image {@code sourceWidth} wide.
+     */
+    public float getCropWidth(float sourceWidth) {
+        float[] values = new float[9];
+        matrix.getValues(values);
+        return sourceWidth / (float) Math.hypot(values[Matrix.MSCALE_X], values[Matrix.MSKEW_Y]);
+    }
+
+    public float getCropHeight(float sourceWidth) {
+        return getCropWidth(sourceWidth) / aspectRatio;
+    }
+
+    /**
+     * Maps an image of the given size to a result of the given size.
+     */
+    public Matrix getResultMatrix(float sourceWidth, float sourceHeight, int width, int height) {
+        Matrix result = new Matrix();
+        result.postTranslate(-sourceWidth / 2, -sourceHeight / 2);
+        result.postRotate(orientation);
+        result.postScale(1.0f / sourceWidth, 1.0f / sourceWidth);
+        result.postConcat(matrix);
+        result.postScale(width, width);
+        result.postTranslate(width / 2.0f, height / 2.0f);
+        return result;
+    }
+
+    /**
+     * Size of the crop of an image {@code sourceWidth} wide, at up to its resolution as far as
+     * {@code policy} allows.
+     *
+     * @param copies how many ARGB bitmaps of the result size the caller holds at once
+     */
+    public SizeX getResultSize(float sourceWidth, ExportPolicy policy, float copies) {
+        SizeX size = policy.fitSize(getCropWidth(sourceWidth), getCropHeight(sourceWidth), copies);
+        int width = size.getWidth();
+        return new SizeX(width, Math.max(1, (int) Math.ceil(width / aspectRatio)));
+    }
+
+    public Bitmap render(Bitmap source, int width, int height) {
+        Bitmap resultBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        new Canvas(resultBitmap).drawBitmap(source, getResultMatrix(source.getWidth(), source.getHeight(), width, height), new Paint(FILTER_BITMAP_FLAG));
+        return resultBitmap;
+    }
+
+    public Bitmap render(Bitmap source, ExportPolicy policy) {
+        SizeX size = getResultSize(source.getWidth(), policy, 1);
+        return render(source, size.getWidth(), size.getHeight());
+    }
+
+    /**
+     * Decodes only the region of the encoded file at {@code path} under the crop, subsampled
+     * close to the result size, so memory stays proportional to the result whatever the size of
+     * the file. Returns null if the file can't be used.
+     *
+     * @param imageWidth  width of the image the crop was made on, the file must be it at any scale
+     * @param imageHeight height of that image
+     * @param copies      how many ARGB bitmaps of the result size the caller holds at once, the
+     *                    decoded region takes up to two more
+     */
+    public Bitmap decode(String path, int imageWidth, int imageHeight, ExportPolicy policy, float copies) {
+        BitmapRegionDecoder decoder = null;
+        Bitmap part = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(path, false);
+            int sourceWidth = decoder.getWidth();
+            int sourceHeight = decoder.getHeight();
+            float sourceScale = (float) sourceWidth / imageWidth;
+            // the image has to be the whole file, as decoded, and not rotated
+            if (Math.abs(sourceHeight - imageHeight * sourceScale) > Math.max(1.0f, sourceScale)) {
+                return null;
+            }
+
+            float cropWidth = getCropWidth(sourceWidth);
+            // the decoded part can take up to four times the result, about two on average
+            SizeX size = getResultSize(sourceWidth, policy, copies + 2);
+            int width = size.getWidth();
+            int height = size.getHeight();
+
+            Matrix resultMatrix = getResultMatrix(sourceWidth, sourceHeight, width, height);
+            Matrix inverse = new Matrix();
+            if (!resultMatrix.invert(inverse)) {
+                return null;
+            }
+            float[] corners = new float[]{0, 0, width, 0, 0, height, width, height};
+            inverse.mapPoints(corners);
+            RectF bounds = new RectF(corners[0], corners[1], corners[0], corners[1]);
+            for (int a = 2; a < corners.length; a += 2) {
+                bounds.union(corners[a], corners[a + 1]);
+            }
+            Rect region = new Rect();
+            bounds.roundOut(region);
+            if (!region.intersect(0, 0, sourceWidth, sourceHeight)) {
+                return null;
+            }
+
+            // source pixels per result pixel, decoding skips the powers of two of it
+            float density = cropWidth / width;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 1;
+            while (options.inSampleSize * 2 <= density) {
+                options.inSampleSize *= 2;
+            }
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            part = decoder.decodeRegion(region, options);
+            if (part == null) {
+                return null;
+            }
+
+            Matrix partMatrix = new Matrix();
+            partMatrix.setScale((float) region.width() / part.getWidth(), (float) region.height() / part.getHeight());
+            partMatrix.postTranslate(region.left, region.top);
+            partMatrix.postConcat(resultMatrix);
+
+            Bitmap resultBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            new Canvas(resultBitmap).drawBitmap(part, partMatrix, new Paint(FILTER_BITMAP_FLAG));
+            return resultBitmap;
+        } catch (Throwable e) {
+            FileLog.e(e);
+            return null;
+        } finally {
+            if (part != null) {
+                part.recycle();
+            }
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+}
@@ -5,9 +5,7 @@ import android.animation.AnimatorListenerAdapter;
 import android.animation.ValueAnimator;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
 import android.graphics.Matrix;
-import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.RectF;
 import android.os.Build;
@@ -19,12 +17,10 @@ import android.widget.FrameLayout;
 import android.widget.ImageView;
 
 import com.felan.photoeditor.utils.AndroidUtilities;
-
-import static android.graphics.Paint.FILTER_BITMAP_FLAG;
+import com.felan.photoeditor.widgets.ExportPolicy;
 
 public class CropView extends FrameLayout implements CropAreaView.AreaViewListener, CropGestureDetector.CropGestureListener {
     private static final float EPSILON = 0.00001f;
-    private static final int RESULT_SIDE = 1280;
     private static final float MAX_SCALE = 30.0f;
 
     private View backView;
@@ -41,6 +37,9 @@ public class CropView extends FrameLayout implements CropAreaView.AreaViewListen
     private Matrix tempMatrix;
 
     private Bitmap bitmap;
+    private String sourcePath;
+    private boolean resetPending;
+    private CropOperation pendingOperation;
     private boolean freeform;
     private float bottomPadding;
 
@@ -166,6 +165,19 @@ public class CropView extends FrameLayout implements CropAreaView.AreaViewListen
             matrix.postScale(scale, scale);
         }
 
+        private void restore(Matrix m, float orient, float rot) {
+            matrix.set(m);
+
+            float[] values = new float[9];
+            m.getValues(values);
+            x = values[Matrix.MTRANS_X];
+            y = values[Matrix.MTRANS_Y];
+            scale = (float) Math.hypot(values[Matrix.MSCALE_X], values[Matrix.MSKEW_Y]);
+            rotation = rot;
+            orientation = orient;
+            updateMinimumScale();
+        }
+
         private void updateMinimumScale() {
             float w = (orientation + baseRotation) % 180 != 0 ? height : width;
             float h = (orientation + baseRotation) % 180 != 0 ? width : height;
@@ -265,10 +277,15 @@ public class CropView extends FrameLayout implements CropAreaView.AreaViewListen
             bitmap = b;
             if (state == null || !same) {
                 state = new CropState(bitmap, rotation);
+                resetPending = true;
                 imageView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
                     @Override
                     public boolean onPreDraw() {
+                        resetPending = false;
                         reset();
+                        if (pendingOperation != null) {
+                            setCropOperation(pendingOperation);
+                        }
                         imageView.getViewTreeObserver().removeOnPreDrawListener(this);
                         return false;
                     }
@@ -735,33 +752,77 @@ public class CropView extends FrameLayout implements CropAreaView.AreaViewListen
         fitContentInBounds(true, true, false);
     }
 
+    /**
+     * Encoded file the bitmap was decoded from, possibly downsampled. When set, the result is
+     * decoded from the region of the file under the crop instead of being drawn from the bitmap.
+     */
+    public void setSourcePath(String path) {
+        sourcePath = path;
+    }
+
     public Bitmap getResultImage() {
-        if (state == null || !state.hasChanges() && state.getBaseRotation() < EPSILON && freeform) {
+        CropOperation operation = getCropOperation();
+        if (operation == null) {
             return bitmap;
         }
+        ExportPolicy policy = ExportPolicy.getDefault();
+        if (sourcePath != null) {
+            Bitmap result = operation.decode(sourcePath, bitmap.getWidth(), bitmap.getHeight(), policy, 1);
+            if (result != null) {
+                return result;
+            }
+        }
+        return operation.render(bitmap, policy);
+    }
 
-        RectF cropRect = new RectF();
-        areaView.getCropRect(cropRect);
-        RectF sizeRect = new RectF(0, 0, RESULT_SIDE, RESULT_SIDE);
-
-        float w = scaleWidthToMaxSize(cropRect, sizeRect);
-        int width = (int) Math.ceil(w);
-        int height = (int) (Math.ceil(width / areaView.getAspectRatio()));
+    /**
+     * The crop made so far, null while there is none.
+     */
+    public CropOperation getCropOperation() {
+        if (state == null || bitmap == null) {
+            return null;
+        }
+        if (!state.hasChanges() && state.getBaseRotation() < EPSILON && freeform) {
+            return null;
+        }
+        Matrix normalized = new Matrix();
+        normalized.setScale(state.getWidth(), state.getWidth());
+        state.getConcatMatrix(normalized);
+        normalized.postScale(1.0f / areaView.getCropWidth(), 1.0f / areaView.getCropWidth());
+        return new CropOperation(normalized, state.getOrientation(), state.getRotation(),
+                areaView.getAspectRatio(), areaView.getLockAspectRatio());
+    }
 
-        Bitmap resultBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    /**
+     * Resumes from an earlier crop of the same image, once the bitmap is laid out.
+     */
+    public void setCropOperation(CropOperation operation) {
+        if (state == null || operation == null) {
+            return;
+        }
+        if (resetPending) {
+            pendingOperation = operation;
+            return;
+        }
+        pendingOperation = null;
+        areaView.resetAnimator();
+        areaView.setLockedAspectRatio(operation.getLockedAspectRatio());
+        areaView.setActualRect(operation.getAspectRatio());
+        areaView.getCropRect(previousAreaRect);
 
         Matrix matrix = new Matrix();
-        matrix.postTranslate(-state.getWidth() / 2, -state.getHeight() / 2);
-
-        matrix.postRotate(state.getOrientation());
-        state.getConcatMatrix(matrix);
+        matrix.setScale(1.0f / state.getWidth(), 1.0f / state.getWidth());
+        matrix.postConcat(operation.getNormalizedMatrix());
+        matrix.postScale(areaView.getCropWidth(), areaView.getCropWidth());
+        state.restore(matrix, operation.getOrientation() - state.getBaseRotation(), operation.getRotation());
+        updateMatrix();
 
-        float scale = width / areaView.getCropWidth();
-        matrix.postScale(scale, scale);
-        matrix.postTranslate(width / 2, height / 2);
+        resetRotationStartScale();
 
-        new Canvas(resultBitmap).drawBitmap(bitmap, matrix, new Paint(FILTER_BITMAP_FLAG));
-        return resultBitmap;
+        if (listener != null) {
+            listener.onChange(false);
+            listener.onAspectLock(operation.getLockedAspectRatio() > 0);
+        }
     }
 
     public void setLockedAspectRatio(float aspectRatio) {
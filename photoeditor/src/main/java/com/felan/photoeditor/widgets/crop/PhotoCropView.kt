@@ -7,6 +7,7 @@ import android.view.LayoutInflater
 import android.view.ViewGroup
 import android.widget.FrameLayout
 import com.felan.photoeditor.R
+import com.felan.photoeditor.widgets.EditSession
 import com.felan.photoeditor.widgets.PhotoEditor
 
 class PhotoCropView @JvmOverloads constructor(
@@ -39,6 +40,29 @@ class PhotoCropView @JvmOverloads constructor(
         imageView.setBitmap(image, 0, true, false)
     }
 
+    /**
+     * File the image was decoded from, the crop is decoded from it at up to its resolution.
+     */
+    fun setImageSource(path: String?) {
+        imageView.setSourcePath(path)
+    }
+
     override fun getResultImage(): Bitmap? =
         imageView.resultImage
+
+    /**
+     * The crop is made on the unedited [EditSession.proxy], it comes first in the session.
+     */
+    override fun setSession(session: EditSession) {
+        setImage(session.proxy)
+        session.crop?.let {
+            controls.showCropOperation(it)
+            imageView.setCropOperation(it)
+        }
+    }
+
+    override fun commitTo(session: EditSession, callback: () -> Unit) {
+        session.crop = imageView.cropOperation
+        callback()
+    }
 }
\ No newline at end of file
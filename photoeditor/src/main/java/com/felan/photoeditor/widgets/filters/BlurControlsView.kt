@@ -101,6 +101,8 @@ class BlurControlsView @JvmOverloads constructor(
                 }
                 positionView.setActualAreaSize(newSize.width.toFloat(), newSize.height.toFloat())
             }
+            positionView.setValues(blurExcludePoint, blurExcludeBlurSize, blurExcludeSize, blurAngle)
+            this@BlurControlsView.blurType = blurType
         }
 
     override fun onCheckedChanged(buttonView: CompoundButton?, isChecked: Boolean) {
@@ -113,6 +113,17 @@ public class BlurPositionView extends View {
         invalidate();
     }
 
+    /**
+     * Shows the given values without reporting them back.
+     */
+    public void setValues(PointF center, float falloff, float size, float angle) {
+        centerPointF = new PointF(center.x, center.y);
+        this.falloff = falloff;
+        this.size = size;
+        this.angle = angle;
+        invalidate();
+    }
+
     public void setDelegate(PhotoFilterLinearBlurControlDelegate delegate) {
         this.delegate = delegate;
     }
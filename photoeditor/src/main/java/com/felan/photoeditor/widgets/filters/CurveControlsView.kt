@@ -94,7 +94,7 @@ class CurveControlsView(context: Context, attrs: AttributeSet?, defStyleAttr: In
         img.run {
             curveView =
                 CurveView(context, img.curvesToolValue)
-            curveView.setDelegate { img.requestRender() }
+            curveView.setDelegate { img.requestRender(TelegramEGLThread.PASS_TOOLS) }
             curveViewContainer.addView(
                 curveView,
                 LayoutParams(textureViewSize.width, textureViewSize.height, Gravity.CENTER)
@@ -2,7 +2,7 @@ package com.felan.photoeditor.widgets.filters
 
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
-import java.util.ArrayList
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.math.abs
 import kotlin.math.max
 import kotlin.math.min
@@ -11,13 +11,60 @@ class CurvesValue {
     companion object {
         private val curveGranularity = 100
         private val curveDataStep = 2
+        private val curveSegments = 4
+
+        /**
+         * Samples of the curve in [dataPoints], [curveDataStep] apart.
+         */
+        const val dataPointCount = curveSegments * (curveGranularity / curveDataStep)
+        private val maxCurvePointCount = 2 * (2 + curveSegments * curveGranularity)
+
+        private val versions = AtomicInteger()
     }
 
+    /**
+     * Changes on every change of a level, so consumers can tell whether what they derived from
+     * the curve is still current. Versions come from a counter shared by all curves, a change
+     * always gives a version higher than that of any existing curve.
+     */
+    var version = versions.incrementAndGet()
+        private set
+
     var blacksLevel = 0.0f
+        set(value) {
+            if (field != value) {
+                field = value
+                version = versions.incrementAndGet()
+            }
+        }
     var shadowsLevel = 25.0f
+        set(value) {
+            if (field != value) {
+                field = value
+                version = versions.incrementAndGet()
+            }
+        }
     var midtonesLevel = 50.0f
+        set(value) {
+            if (field != value) {
+                field = value
+                version = versions.incrementAndGet()
+            }
+        }
     var highlightsLevel = 75.0f
+        set(value) {
+            if (field != value) {
+                field = value
+                version = versions.incrementAndGet()
+            }
+        }
     var whitesLevel = 100.0f
+        set(value) {
+            if (field != value) {
+                field = value
+                version = versions.incrementAndGet()
+            }
+        }
 
     var previousBlacksLevel = 0.0f
     var previousShadowsLevel = 25.0f
@@ -25,16 +72,34 @@ class CurvesValue {
     var previousHighlightsLevel = 75.0f
     var previousWhitesLevel = 100.0f
 
-    lateinit var cachedDataPoints: FloatArray
+    private val points = FloatArray(14)
+    private val cachedDataPoints = FloatArray(dataPointCount)
+    private val cachedCurvePoints = FloatArray(maxCurvePointCount)
+    private var cachedCurvePointCount = 0
+    private var interpolatedVersion = -1
 
     val dataPoints: FloatArray
         get() {
-            if (!this::cachedDataPoints.isInitialized) {
-                interpolateCurve()
-            }
+            interpolateCurve()
             return cachedDataPoints
         }
 
+    /**
+     * The curve as a polyline of x, y pairs, only the first [curvePointCount] values are valid.
+     * The array is reused, copy it to keep it across edits.
+     */
+    val curvePoints: FloatArray
+        get() {
+            interpolateCurve()
+            return cachedCurvePoints
+        }
+
+    val curvePointCount: Int
+        get() {
+            interpolateCurve()
+            return cachedCurvePointCount
+        }
+
     val isDefault: Boolean
         get() =
             abs(blacksLevel - 0) < 0.00001 && abs(shadowsLevel - 25) < 0.00001 && abs(midtonesLevel - 50) < 0.00001 && abs(
@@ -55,32 +120,69 @@ class CurvesValue {
         midtonesLevel = previousMidtonesLevel
         highlightsLevel = previousHighlightsLevel
         whitesLevel = previousWhitesLevel
-        interpolateCurve()
     }
 
-    fun interpolateCurve(): FloatArray {
-        val points = floatArrayOf(
-            -0.001f,
-            blacksLevel / 100.0f,
-            0.0f,
-            blacksLevel / 100.0f,
-            0.25f,
-            shadowsLevel / 100.0f,
-            0.5f,
-            midtonesLevel / 100.0f,
-            0.75f,
-            highlightsLevel / 100.0f,
-            1f,
-            whitesLevel / 100.0f,
-            1.001f,
-            whitesLevel / 100.0f
-        )
+    /**
+     * Writes blacks, shadows, midtones, highlights and whites to [levels] from [offset].
+     */
+    fun getLevels(levels: FloatArray, offset: Int) {
+        levels[offset] = blacksLevel
+        levels[offset + 1] = shadowsLevel
+        levels[offset + 2] = midtonesLevel
+        levels[offset + 3] = highlightsLevel
+        levels[offset + 4] = whitesLevel
+    }
 
-        val dataPoints = ArrayList<Float>(100)
-        val interpolatedPoints = ArrayList<Float>(100)
+    fun setLevels(levels: FloatArray, offset: Int) {
+        blacksLevel = levels[offset]
+        shadowsLevel = levels[offset + 1]
+        midtonesLevel = levels[offset + 2]
+        highlightsLevel = levels[offset + 3]
+        whitesLevel = levels[offset + 4]
+    }
+
+    fun resetLevels() {
+        blacksLevel = 0.0f
+        shadowsLevel = 25.0f
+        midtonesLevel = 50.0f
+        highlightsLevel = 75.0f
+        whitesLevel = 100.0f
+    }
+
+    /**
+     * Recomputes [dataPoints] and [curvePoints] if a level changed since the last call. The
+     * curve view and the filter thread both read them, hence the lock.
+     */
+    @Synchronized
+    fun interpolateCurve() {
+        if (interpolatedVersion == version) {
+            return
+        }
+        interpolatedVersion = version
 
-        interpolatedPoints.add(points[0])
-        interpolatedPoints.add(points[1])
+        val points = points
+        points[0] = -0.001f
+        points[1] = blacksLevel / 100.0f
+        points[2] = 0.0f
+        points[3] = blacksLevel / 100.0f
+        points[4] = 0.25f
+        points[5] = shadowsLevel / 100.0f
+        points[6] = 0.5f
+        points[7] = midtonesLevel / 100.0f
+        points[8] = 0.75f
+        points[9] = highlightsLevel / 100.0f
+        points[10] = 1f
+        points[11] = whitesLevel / 100.0f
+        points[12] = 1.001f
+        points[13] = whitesLevel / 100.0f
+
+        val dataPoints = cachedDataPoints
+        val interpolatedPoints = cachedCurvePoints
+        var dataCount = 0
+        var count = 0
+
+        interpolatedPoints[count++] = points[0]
+        interpolatedPoints[count++] = points[1]
 
         for (index in 1 until points.size / 2 - 2) {
             val point0x = points[(index - 1) * 2]
@@ -106,29 +208,21 @@ class CurvesValue {
                 piy = max(0f, min(1f, piy))
 
                 if (pix > point0x) {
-                    interpolatedPoints.add(pix)
-                    interpolatedPoints.add(piy)
+                    interpolatedPoints[count++] = pix
+                    interpolatedPoints[count++] = piy
                 }
 
                 if ((i - 1) % curveDataStep == 0) {
-                    dataPoints.add(piy)
+                    dataPoints[dataCount++] = piy
                 }
             }
-            interpolatedPoints.add(point2x)
-            interpolatedPoints.add(point2y)
+            interpolatedPoints[count++] = point2x
+            interpolatedPoints[count++] = point2y
         }
-        interpolatedPoints.add(points[12])
-        interpolatedPoints.add(points[13])
+        interpolatedPoints[count++] = points[12]
+        interpolatedPoints[count++] = points[13]
 
-        cachedDataPoints = FloatArray(dataPoints.size)
-        for (a in cachedDataPoints.indices) {
-            cachedDataPoints[a] = dataPoints[a]
-        }
-        val retValue = FloatArray(interpolatedPoints.size)
-        for (a in retValue.indices) {
-            retValue[a] = interpolatedPoints[a]
-        }
-        return retValue
+        cachedCurvePointCount = count
     }
 }
 
@@ -143,24 +237,44 @@ class CurvesToolValue {
     var activeType: CurveType =
         CurveType.LUMINANCE
 
+    private var filledStamp = 0
+
+    /**
+     * Changes whenever one of the curves changes or is replaced.
+     */
+    val modificationStamp: Int
+        get() = maxOf(
+            maxOf(luminanceCurve.version, redCurve.version),
+            maxOf(greenCurve.version, blueCurve.version)
+        )
+
     init {
-        curveBuffer = ByteBuffer.allocateDirect(200 * 4)
+        curveBuffer = ByteBuffer.allocateDirect(CurvesValue.dataPointCount * 4)
         curveBuffer.order(ByteOrder.LITTLE_ENDIAN)
     }
 
+    /**
+     * Writes the curves into [curveBuffer], unless it already holds the current ones.
+     */
+    @Synchronized
     fun fillBuffer() {
+        val stamp = modificationStamp
+        if (stamp == filledStamp) {
+            return
+        }
         curveBuffer.position(0)
         val luminanceCurveData = luminanceCurve.dataPoints
         val redCurveData = redCurve.dataPoints
         val greenCurveData = greenCurve.dataPoints
         val blueCurveData = blueCurve.dataPoints
-        for (a in 0..199) {
+        for (a in 0 until CurvesValue.dataPointCount) {
             curveBuffer.put((redCurveData[a] * 255).toByte())
             curveBuffer.put((greenCurveData[a] * 255).toByte())
             curveBuffer.put((blueCurveData[a] * 255).toByte())
             curveBuffer.put((luminanceCurveData[a] * 255).toByte())
         }
         curveBuffer.position(0)
+        filledStamp = stamp
     }
 
     fun shouldBeSkipped(): Boolean {
@@ -182,6 +182,7 @@ public class CurveView extends View {
                         return;
                 }
 
+                int version = curveValue.getVersion();
                 switch (activeSegment) {
                     case CurvesSegmentBlacks:
                         curveValue.setBlacksLevel(Math.max(0, Math.min(100, curveValue.getBlacksLevel() + delta)));
@@ -207,10 +208,12 @@ public class CurveView extends View {
                         break;
                 }
 
-                invalidate();
+                if (curveValue.getVersion() != version) {
+                    invalidate();
 
-                if (delegate != null) {
-                    delegate.valueChanged();
+                    if (delegate != null) {
+                        delegate.valueChanged();
+                    }
                 }
 
                 lastX = locationX;
@@ -308,10 +311,10 @@ public class CurveView extends View {
             canvas.drawText(str, actualArea.x + (segmentWidth - width) / 2 + segmentWidth * a, actualArea.y + actualArea.height - AndroidUtilities.dp(4), textPaint);
         }
 
-        float[] points = curvesValue.interpolateCurve();
-        invalidate();
+        float[] points = curvesValue.getCurvePoints();
+        int count = curvesValue.getCurvePointCount();
         path.reset();
-        for (int a = 0; a < points.length / 2; a++) {
+        for (int a = 0; a < count / 2; a++) {
             if (a == 0) {
                 path.moveTo(actualArea.x + points[a * 2] * actualArea.width, actualArea.y + (1.0f - points[a * 2 + 1]) * actualArea.height);
             } else {
@@ -9,13 +9,19 @@ import android.util.AttributeSet
 import android.view.Gravity
 import android.view.TextureView
 import android.view.View
+import android.view.WindowManager
 import android.widget.FrameLayout
 import androidx.annotation.ColorInt
 import androidx.core.view.updateLayoutParams
 import com.felan.photoeditor.R
+import com.felan.photoeditor.engine.ColorLut
+import com.felan.photoeditor.engine.FilterEngine
+import com.felan.photoeditor.engine.FilterParams
 import com.felan.photoeditor.utils.RangedProperty
 import com.felan.photoeditor.utils.ReplayEventHandler
 import com.felan.photoeditor.utils.SizeX
+import java.io.File
+import java.io.Writer
 import kotlin.math.PI
 import kotlin.properties.ReadWriteProperty
 import kotlin.reflect.KProperty
@@ -30,7 +36,8 @@ class FilterableImageView @kotlin.jvm.JvmOverloads constructor(
         0f,
         0f,
         100f,
-        R.string.label_enhance
+        R.string.label_enhance,
+        TelegramEGLThread.PASS_ENHANCE
     ) //0 100
 
     var enhanceValue: Float by enhanceValue_delegate
@@ -139,7 +146,8 @@ class FilterableImageView @kotlin.jvm.JvmOverloads constructor(
         0f,
         0f,
         100f,
-        R.string.label_sharpen
+        R.string.label_sharpen,
+        TelegramEGLThread.PASS_SHARPEN
     )
     var sharpenValue: Float by sharpenValue_delegate //0 100
 
@@ -149,20 +157,39 @@ class FilterableImageView @kotlin.jvm.JvmOverloads constructor(
     //region Blur values
 
     var blurType: BlurType by RequestRenderProperty(
-        BlurType.NONE
+        BlurType.NONE,
+        TelegramEGLThread.PASS_BLUR_MASK
     )
 
-    var blurExcludeSize: Float by RequestRenderProperty(0.35f)
+    var blurExcludeSize: Float by RequestRenderProperty(0.35f, TelegramEGLThread.PASS_BLUR_MASK)
 
     var blurExcludePoint: PointF by RequestRenderProperty(
-        PointF(0.5f, 0.5f)
+        PointF(0.5f, 0.5f),
+        TelegramEGLThread.PASS_BLUR_MASK
     )
 
     var blurExcludeBlurSize: Float by RequestRenderProperty(
-        0.15f
+        0.15f,
+        TelegramEGLThread.PASS_BLUR_MASK
     )
 
-    var blurAngle: Float by RequestRenderProperty(PI.toFloat() / 2.0f)
+    var blurAngle: Float by RequestRenderProperty(
+        PI.toFloat() / 2.0f,
+        TelegramEGLThread.PASS_BLUR_MASK
+    )
+
+    private val blurRadius_delegate = RequestRenderProperty(1f, TelegramEGLThread.PASS_BLUR)
+
+    /**
+     * Blur strength as a multiple of the base 9 tap kernel, clamped to
+     * [FilterParams.BLUR_RADIUS_MIN]..[FilterParams.BLUR_RADIUS_MAX].
+     */
+    var blurRadius: Float
+        get() = blurRadius_delegate.getValue()
+        set(value) = blurRadius_delegate.setValue(
+            this,
+            value.coerceIn(FilterParams.BLUR_RADIUS_MIN, FilterParams.BLUR_RADIUS_MAX)
+        )
 
     //endregion
 
@@ -173,6 +200,12 @@ class FilterableImageView @kotlin.jvm.JvmOverloads constructor(
 
     //endregion
 
+    /**
+     * Renders the preview's pointwise adjustments through a baked [ColorLut] instead of the full
+     * tools shader. Exports always use the exact shader.
+     */
+    var colorLutPreview: Boolean by RequestRenderProperty(true, TelegramEGLThread.PASS_TOOLS)
+
     private val textureView: TextureView
 
     private val textureContainer: FrameLayout
@@ -260,16 +293,21 @@ class FilterableImageView @kotlin.jvm.JvmOverloads constructor(
             field = value
             eglThread?.apply {
                 setSurfaceTextureSize(value.width, value.height)
-                requestRender(false, true)
-                postRunnable { eglThread?.requestRender(false, true) }
+                requestRender(0, true)
+                postRunnable { eglThread?.requestRender(0, true) }
             }
         }
 
     private fun setupEGLThread(surface: SurfaceTexture?, image: Bitmap?) {
         if (surface == null || image == null) return
+        ShaderProgramCache.setCacheDir(File(context.cacheDir, "shaders"))
         eglThread = TelegramEGLThread(surface, image, this).apply {
+            setRefreshRate(
+                (context.getSystemService(Context.WINDOW_SERVICE) as WindowManager)
+                    .defaultDisplay.refreshRate
+            )
             setSurfaceTextureSize(textureSize.width, textureSize.height)
-            requestRender(true, true)
+            requestRender(TelegramEGLThread.PASS_ALL, true)
         }
     }
 
@@ -303,21 +341,125 @@ class FilterableImageView @kotlin.jvm.JvmOverloads constructor(
 
     private var requestRenderEnabled = true
 
-    fun requestRender() {
-        if (requestRenderEnabled)
-            eglThread?.requestRender(false)
+    private var pendingPasses = 0
+
+    /**
+     * @param passes the [TelegramEGLThread] passes affected by the change
+     */
+    fun requestRender(passes: Int = TelegramEGLThread.PASS_ALL) {
+        pendingPasses = pendingPasses or passes
+        if (requestRenderEnabled) {
+            eglThread?.requestRender(pendingPasses)
+            pendingPasses = 0
+        }
     }
 
     fun updateGrouped(transaction: FilterableImageView.() -> Unit) {
         requestRenderEnabled = false
         transaction(this)
         requestRenderEnabled = true
-        requestRender()
+        requestRender(0)
     }
 
     val resultBitmap: Bitmap?
         get() = if (eglThread != null) eglThread!!.texture else null
 
+    /**
+     * The filtered image at the resolution of [image], rendered in tiles.
+     * [resultBitmap] is limited to the preview size.
+     */
+    val fullResolutionBitmap: Bitmap?
+        get() = eglThread?.fullResolutionTexture
+
+    /**
+     * Asynchronous [resultBitmap], [callback] is invoked on the UI thread.
+     */
+    fun getResultBitmap(callback: (Bitmap?) -> Unit) =
+        eglThread?.getTexture { callback(it) } ?: callback(null)
+
+    /**
+     * Asynchronous [fullResolutionBitmap], [callback] is invoked on the UI thread.
+     */
+    fun getFullResolutionBitmap(callback: (Bitmap?) -> Unit) =
+        eglThread?.getFullResolutionTexture { callback(it) } ?: callback(null)
+
+    /**
+     * Snapshot of the current values, to be rendered off the GL thread with [FilterEngine].
+     * Setting it resumes from an earlier snapshot.
+     */
+    var filterParams: FilterParams
+        get() = FilterParams().also {
+            it.enhanceValue = enhanceValue
+            it.exposureValue = exposureValue
+            it.contrastValue = contrastValue
+            it.warmthValue = warmthValue
+            it.saturationValue = saturationValue
+            it.fadeValue = fadeValue
+            it.tintShadowsColor = tintShadowsColor
+            it.tintHighlightsColor = tintHighlightsColor
+            it.highlightsValue = highlightsValue
+            it.shadowsValue = shadowsValue
+            it.vignetteValue = vignetteValue
+            it.grainValue = grainValue
+            it.sharpenValue = sharpenValue
+            it.blurType = blurType.value
+            it.blurExcludeSize = blurExcludeSize
+            it.blurExcludePointX = blurExcludePoint.x
+            it.blurExcludePointY = blurExcludePoint.y
+            it.blurExcludeBlurSize = blurExcludeBlurSize
+            it.blurAngle = blurAngle
+            it.blurRadius = blurRadius
+            if (!curvesToolValue.shouldBeSkipped()) {
+                curvesToolValue.fillBuffer()
+                it.curvesData = ByteArray(FilterParams.CURVE_RESOLUTION * 4).apply {
+                    curvesToolValue.curveBuffer.get(this)
+                    curvesToolValue.curveBuffer.position(0)
+                }
+                it.curvesLevels = FloatArray(FilterParams.CURVE_LEVELS * 4).apply {
+                    curves.forEachIndexed { i, curve -> curve.getLevels(this, i * FilterParams.CURVE_LEVELS) }
+                }
+            }
+        }
+        set(value) = updateGrouped {
+            enhanceValue = value.enhanceValue
+            exposureValue = value.exposureValue
+            contrastValue = value.contrastValue
+            warmthValue = value.warmthValue
+            saturationValue = value.saturationValue
+            fadeValue = value.fadeValue
+            tintShadowsColor = value.tintShadowsColor
+            tintHighlightsColor = value.tintHighlightsColor
+            highlightsValue = value.highlightsValue
+            shadowsValue = value.shadowsValue
+            vignetteValue = value.vignetteValue
+            grainValue = value.grainValue
+            sharpenValue = value.sharpenValue
+            blurType = BlurType.values().firstOrNull { it.value == value.blurType } ?: BlurType.NONE
+            blurExcludeSize = value.blurExcludeSize
+            blurExcludePoint = PointF(value.blurExcludePointX, value.blurExcludePointY)
+            blurExcludeBlurSize = value.blurExcludeBlurSize
+            blurAngle = value.blurAngle
+            blurRadius = value.blurRadius
+            val levels = value.curvesLevels
+            curves.forEachIndexed { i, curve ->
+                if (levels != null) curve.setLevels(levels, i * FilterParams.CURVE_LEVELS)
+                else curve.resetLevels()
+            }
+            requestRender(TelegramEGLThread.PASS_TOOLS)
+        }
+
+    /**
+     * The curves in the order of [FilterParams.curvesLevels].
+     */
+    private val curves
+        get() = with(curvesToolValue) { arrayOf(luminanceCurve, redCurve, greenCurve, blueCurve) }
+
+    /**
+     * Bakes the current pointwise adjustments and writes them as a `.cube` file.
+     */
+    fun exportColorLut(writer: Writer, size: Int = ColorLut.DEFAULT_SIZE) =
+        ColorLut.bake(filterParams, size).writeCube(writer, null)
+
     //We do this only for the huge overhead of reflection
     fun getAllPropertyDelegates(): Array<AdjustParamProperty<Float>> {
         return arrayOf(
@@ -340,13 +482,17 @@ class AdjustParamProperty<T : Comparable<T>>(
     initialValue: T,
     minValue: T,
     maxValue: T,
-    val labelResource: Int = 0
+    val labelResource: Int = 0,
+    passes: Int = TelegramEGLThread.PASS_TOOLS
 ) : RangedProperty<FilterableImageView, T>(
     minValue, maxValue,
-    RequestRenderProperty(initialValue)
+    RequestRenderProperty(initialValue, passes)
 )
 
-open class RequestRenderProperty<T>(initialValue: T) :
+open class RequestRenderProperty<T>(
+    initialValue: T,
+    private val passes: Int = TelegramEGLThread.PASS_ALL
+) :
     ReadWriteProperty<FilterableImageView, T> {
     private var value: T = initialValue
 
@@ -359,7 +505,7 @@ open class RequestRenderProperty<T>(initialValue: T) :
             return
 
         this.value = value
-        thisRef.requestRender()
+        thisRef.requestRender(passes)
     }
 
     override fun setValue(thisRef: FilterableImageView, property: KProperty<*>, value: T) =
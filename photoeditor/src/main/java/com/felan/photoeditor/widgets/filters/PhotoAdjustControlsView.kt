@@ -58,6 +58,7 @@ class PhotoAdjustControlsView @JvmOverloads constructor(
 
     override fun bindWith(img: FilterableImageView) {
         boundFilterableImageView = img
+        mainContainer.removeAllViews()
 
         val lp = LayoutParams(
             LayoutParams.MATCH_PARENT,
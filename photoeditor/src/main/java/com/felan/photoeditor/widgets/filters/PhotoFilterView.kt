@@ -9,6 +9,7 @@ import android.view.View
 import android.view.ViewGroup
 import android.widget.FrameLayout
 import com.felan.photoeditor.R
+import com.felan.photoeditor.widgets.EditSession
 import com.felan.photoeditor.widgets.PhotoEditor
 
 class PhotoFilterView @JvmOverloads constructor(
@@ -109,6 +110,22 @@ class PhotoFilterView @JvmOverloads constructor(
     }
 
     override fun getResultImage(): Bitmap? =
-        imageView.resultBitmap
+        imageView.fullResolutionBitmap
+
+    override fun getResultImage(callback: (Bitmap?) -> Unit) =
+        imageView.getFullResolutionBitmap(callback)
+
+    override fun setSession(session: EditSession) {
+        session.filter?.let {
+            imageView.filterParams = it
+            adjustControls.bindWith(imageView)
+        }
+        session.renderPreview(EditSession.Stage.CROP) { setImage(it) }
+    }
+
+    override fun commitTo(session: EditSession, callback: () -> Unit) {
+        session.filter = imageView.filterParams
+        callback()
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,130 @@
+package com.felan.photoeditor.widgets.filters;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.felan.photoeditor.utils.DispatchQueue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads RGBA pixels of the bound framebuffer into a direct buffer which is reused between reads.
+ * <p>
+ * With an ES3 context {@link #readAsync} queues the read into one of two pixel pack buffers and
+ * fences it, so the GL thread keeps going while the GPU finishes; the buffer is mapped once the
+ * fence signals. Without ES3 it falls back to a plain {@code glReadPixels}.
+ * <p>
+ * The buffer handed to callbacks is only valid until the callback returns.
+ */
+class PixelReader {
+
+    interface Callback {
+        void onPixelsRead(ByteBuffer buffer, int width, int height);
+    }
+
+    private final static int POLL_DELAY = 2;
+    private final static int MAX_POLLS = 16;
+
+    private final DispatchQueue queue;
+    private final boolean useBuffers;
+    private final int[] pixelBuffers = new int[2];
+    private final int[] pixelBufferSizes = new int[2];
+    private int nextPixelBuffer;
+    private ByteBuffer buffer;
+
+    /**
+     * @param queue      the GL thread, used to poll for finished reads
+     * @param useBuffers whether the current context is ES3 and pixel pack buffers can be used
+     */
+    PixelReader(DispatchQueue queue, boolean useBuffers) {
+        this.queue = queue;
+        this.useBuffers = useBuffers;
+        if (useBuffers) {
+            GLES20.glGenBuffers(2, pixelBuffers, 0);
+        }
+    }
+
+    boolean isAsync() {
+        return useBuffers;
+    }
+
+    private ByteBuffer getBuffer(int size) {
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Reads synchronously, stalling until the GPU has finished rendering into the framebuffer.
+     */
+    ByteBuffer read(int x, int y, int width, int height) {
+        ByteBuffer result = getBuffer(width * height * 4);
+        GLES20.glReadPixels(x, y, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, result);
+        return result;
+    }
+
+    /**
+     * Starts reading the bound framebuffer. The callback is invoked on the GL thread, right away
+     * when pixel buffers are not available, otherwise on a later turn of the queue.
+     */
+    void readAsync(int x, int y, int width, int height, Callback callback) {
+        if (useBuffers) {
+            readToPixelBuffer(x, y, width, height, callback);
+        } else {
+            callback.onPixelsRead(read(x, y, width, height), width, height);
+        }
+    }
+
+    @TargetApi(18)
+    private void readToPixelBuffer(int x, int y, int width, int height, final Callback callback) {
+        final int index = nextPixelBuffer;
+        nextPixelBuffer = (nextPixelBuffer + 1) % pixelBuffers.length;
+        final int size = width * height * 4;
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[index]);
+        if (pixelBufferSizes[index] < size) {
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            pixelBufferSizes[index] = size;
+        }
+        GLES30.glReadPixels(x, y, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        final long fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GLES20.glFlush();
+
+        queue.postRunnable(new Runnable() {
+            private int polls;
+
+            @Override
+            public void run() {
+                int status = GLES30.glClientWaitSync(fence, 0, 0);
+                if (status == GLES30.GL_TIMEOUT_EXPIRED && ++polls < MAX_POLLS) {
+                    queue.postRunnable(this, POLL_DELAY);
+                    return;
+                }
+                GLES30.glDeleteSync(fence);
+
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[index]);
+                ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT);
+                ByteBuffer result = getBuffer(size);
+                if (mapped != null) {
+                    result.put(mapped);
+                    result.position(0);
+                }
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+                callback.onPixelsRead(result, width, height);
+            }
+        });
+    }
+
+    void release() {
+        if (useBuffers) {
+            GLES20.glDeleteBuffers(2, pixelBuffers, 0);
+        }
+        buffer = null;
+    }
+}
@@ -0,0 +1,300 @@
+package com.felan.photoeditor.widgets.filters;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.felan.photoeditor.utils.BuildVars;
+import com.felan.photoeditor.utils.FileLog;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.HashMap;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+/**
+ * Linked shader programs shared by every {@link TelegramEGLThread} of the process.
+ * <p>
+ * Filter contexts are created in the share group of a context which is never destroyed, so
+ * programs linked while one editor was open are still valid for the next one. Programs that
+ * are not in memory yet are restored from a {@code glGetProgramBinary} dump on disk when the
+ * context is ES3, keyed by the driver and the shader sources, and compiled only on a miss.
+ * <p>
+ * Uniform values live in the program, so only one filter thread should render at a time.
+ */
+class ShaderProgramCache {
+
+    private final static int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+    private static EGLContext shareContext;
+    private static int shareClientVersion;
+    private static final HashMap<String, Integer> programs = new HashMap<>();
+    private static File cacheDir;
+    private static String driver;
+
+    static synchronized void setCacheDir(File dir) {
+        if (cacheDir == null) {
+            cacheDir = dir;
+        }
+    }
+
+    /**
+     * The context new filter contexts should share with, {@code EGL_NO_CONTEXT} when one of
+     * another client version already holds the share group.
+     */
+    static synchronized EGLContext getShareContext(EGL10 egl, EGLDisplay display, EGLConfig config, int clientVersion) {
+        if (shareContext == null) {
+            int[] attrib_list = {EGL_CONTEXT_CLIENT_VERSION, clientVersion, EGL10.EGL_NONE};
+            EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, attrib_list);
+            if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+                return EGL10.EGL_NO_CONTEXT;
+            }
+            shareContext = context;
+            shareClientVersion = clientVersion;
+        }
+        return shareClientVersion == clientVersion ? shareContext : EGL10.EGL_NO_CONTEXT;
+    }
+
+    /**
+     * Whether the share context lives on the display, which then must not be terminated.
+     */
+    static synchronized boolean holdsDisplay() {
+        return shareContext != null;
+    }
+
+    /**
+     * Returns a program with {@code position} bound to 0 and {@code inputTexCoord} to 1, or 0
+     * if it fails to compile or link. Must be called with a current context.
+     *
+     * @param shared whether the current context is in the share group, otherwise the program is
+     *               only valid for the current context and is not kept in memory
+     * @param binary whether the context supports program binaries
+     */
+    static int getProgram(String vertexShaderCode, String fragmentShaderCode, boolean shared, boolean binary) {
+        String key = hash(vertexShaderCode, fragmentShaderCode);
+        if (shared) {
+            synchronized (programs) {
+                Integer program = programs.get(key);
+                if (program != null) {
+                    return program;
+                }
+            }
+        }
+
+        int program = 0;
+        if (binary) {
+            program = loadBinary(key);
+        }
+        if (program == 0) {
+            program = link(vertexShaderCode, fragmentShaderCode, binary);
+            if (program != 0 && binary) {
+                saveBinary(key, program);
+            }
+        }
+        if (program != 0 && shared) {
+            synchronized (programs) {
+                programs.put(key, program);
+            }
+        }
+        return program;
+    }
+
+    private static int loadShader(int type, String shaderCode) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, shaderCode);
+        GLES20.glCompileShader(shader);
+        int[] compileStatus = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
+        if (compileStatus[0] == 0) {
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.e(GLES20.glGetShaderInfoLog(shader));
+            }
+            GLES20.glDeleteShader(shader);
+            shader = 0;
+        }
+        return shader;
+    }
+
+    private static int link(String vertexShaderCode, String fragmentShaderCode, boolean binary) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+        if (vertexShader == 0 || fragmentShader == 0) {
+            GLES20.glDeleteShader(vertexShader);
+            GLES20.glDeleteShader(fragmentShader);
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glBindAttribLocation(program, 0, "position");
+        GLES20.glBindAttribLocation(program, 1, "inputTexCoord");
+        if (binary) {
+            setRetrievable(program);
+        }
+
+        GLES20.glLinkProgram(program);
+        // the program keeps what it needs, the shaders go with it
+        GLES20.glDetachShader(program, vertexShader);
+        GLES20.glDetachShader(program, fragmentShader);
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] == 0) {
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.e("link error = " + GLES20.glGetProgramInfoLog(program));
+            }
+            GLES20.glDeleteProgram(program);
+            program = 0;
+        }
+        return program;
+    }
+
+    //region Program binaries
+
+    @TargetApi(18)
+    private static void setRetrievable(int program) {
+        GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+    }
+
+    private static File getBinaryFile(String key) {
+        File dir;
+        synchronized (ShaderProgramCache.class) {
+            dir = cacheDir;
+        }
+        if (dir == null) {
+            return null;
+        }
+        if (driver == null) {
+            driver = GLES20.glGetString(GLES20.GL_RENDERER) + GLES20.glGetString(GLES20.GL_VERSION);
+        }
+        // a driver update invalidates the binaries, so it goes into the file name
+        return new File(dir, hash(driver, key) + ".bin");
+    }
+
+    @TargetApi(18)
+    private static int loadBinary(String key) {
+        File file = getBinaryFile(key);
+        if (file == null || !file.exists()) {
+            return 0;
+        }
+        int program = 0;
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new FileInputStream(file));
+            int format = stream.readInt();
+            byte[] bytes = new byte[stream.readInt()];
+            stream.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes);
+            buffer.position(0);
+
+            program = GLES20.glCreateProgram();
+            GLES30.glProgramBinary(program, format, buffer, bytes.length);
+            int[] linkStatus = new int[1];
+            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+            if (linkStatus[0] == 0) {
+                GLES20.glDeleteProgram(program);
+                program = 0;
+            }
+        } catch (Exception e) {
+            FileLog.e(e);
+            if (program != 0) {
+                GLES20.glDeleteProgram(program);
+                program = 0;
+            }
+        } finally {
+            close(stream);
+        }
+        if (program == 0) {
+            file.delete();
+        }
+        return program;
+    }
+
+    @TargetApi(18)
+    private static void saveBinary(String key, int program) {
+        File file = getBinaryFile(key);
+        if (file == null) {
+            return;
+        }
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]);
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, buffer);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || length[0] <= 0) {
+            return;
+        }
+        byte[] bytes = new byte[length[0]];
+        buffer.position(0);
+        buffer.get(bytes);
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream stream = null;
+        boolean written = false;
+        try {
+            stream = new DataOutputStream(new FileOutputStream(temp));
+            stream.writeInt(format[0]);
+            stream.writeInt(bytes.length);
+            stream.write(bytes);
+            written = true;
+        } catch (Exception e) {
+            FileLog.e(e);
+        } finally {
+            close(stream);
+        }
+        if (!written || !temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (Exception ignore) {
+
+            }
+        }
+    }
+
+    //endregion
+
+    private static String hash(String first, String second) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            Charset charset = Charset.forName("UTF-8");
+            digest.update(first.getBytes(charset));
+            digest.update((byte) 0);
+            digest.update(second.getBytes(charset));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest()) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(first.hashCode()) + Integer.toHexString(second.hashCode());
+        }
+    }
+}
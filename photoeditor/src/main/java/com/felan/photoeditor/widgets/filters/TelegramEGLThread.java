@@ -9,18 +9,27 @@
 package com.felan.photoeditor.widgets.filters;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
+import android.os.Build;
 import android.os.Looper;
 
+import com.felan.photoeditor.engine.Clahe;
+import com.felan.photoeditor.engine.ColorLut;
+import com.felan.photoeditor.engine.FilterEngine;
+import com.felan.photoeditor.engine.FilterParams;
 import com.felan.photoeditor.utils.AndroidUtilities;
 import com.felan.photoeditor.utils.BuildVars;
 import com.felan.photoeditor.utils.DispatchQueue;
 import com.felan.photoeditor.utils.FileLog;
+import com.felan.photoeditor.utils.SizeX;
 import com.felan.photoeditor.utils.Utilities;
+import com.felan.photoeditor.widgets.ExportPolicy;
 
 import javax.microedition.khronos.egl.*;
 import javax.microedition.khronos.opengles.GL;
@@ -35,6 +44,7 @@ public class TelegramEGLThread extends DispatchQueue {
 
     private final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
     private final int EGL_OPENGL_ES2_BIT = 4;
+    private final int EGL_OPENGL_ES3_BIT_KHR = 0x40;
     private SurfaceTexture surfaceTexture;
     private EGL10 egl10;
     private EGLDisplay eglDisplay;
@@ -43,7 +53,6 @@ public class TelegramEGLThread extends DispatchQueue {
     private EGLSurface eglSurface;
     private GL gl;
     private boolean initied;
-    private boolean needUpdateBlurTexture = true;
 
     private Bitmap currentBitmap;
 
@@ -60,6 +69,7 @@ public class TelegramEGLThread extends DispatchQueue {
     private int enhanceSourceImageHandle;
     private int enhanceIntensityHandle;
     private int enhanceInputImageTexture2Handle;
+    private int enhanceTileRectHandle;
 
     private int toolsShaderProgram;
     private int positionHandle;
@@ -75,6 +85,7 @@ public class TelegramEGLThread extends DispatchQueue {
     private int grainHandle; //"uniform float grain;" +
     private int widthHandle; //"uniform float width;" +
     private int heightHandle; //"uniform float height;" +
+    private int tileRectHandle; //"uniform highp vec4 tileRect;" +
 
     private int curvesImageHandle; //"uniform sampler2D curvesImage;" +
     private int skipToneHandle; //"uniform lowp float skipTone;" +
@@ -101,6 +112,7 @@ public class TelegramEGLThread extends DispatchQueue {
     private int linearBlurExcludeBlurSizeHandle;
     private int linearBlurAngleHandle;
     private int linearBlurAspectRatioHandle;
+    private int linearBlurTileRectHandle;
 
     private int radialBlurShaderProgram;
     private int radialBlurPositionHandle;
@@ -111,6 +123,7 @@ public class TelegramEGLThread extends DispatchQueue {
     private int radialBlurExcludePointHandle;
     private int radialBlurExcludeBlurSizeHandle;
     private int radialBlurAspectRatioHandle;
+    private int radialBlurTileRectHandle;
 
     private int sharpenShaderProgram;
     private int sharpenHandle;
@@ -120,18 +133,64 @@ public class TelegramEGLThread extends DispatchQueue {
     private int sharpenInputTexCoordHandle;
     private int sharpenSourceImageHandle;
 
+    private int colorLutShaderProgram;
+    private int colorLutPositionHandle;
+    private int colorLutInputTexCoordHandle;
+    private int colorLutSourceImageHandle;
+    private int colorLutImageHandle;
+    private int colorLutSizeHandle;
+    private int colorLutWidthHandle;
+    private int colorLutHeightHandle;
+    private int colorLutTileRectHandle;
+    private int colorLutGrainHandle;
+    private int colorLutVignetteHandle;
+
     private int simpleShaderProgram;
     private int simplePositionHandle;
     private int simpleInputTexCoordHandle;
     private int simpleSourceImageHandle;
 
     private int[] enhanceTextures = new int[2];
-    private int[] renderTexture = new int[3];
-    private int[] renderFrameBuffer = new int[3];
+    private int[] histogramProxyTexture = new int[1];
+    /**
+     * Two textures per blur level, the downsampled image and a scratch for the separable
+     * passes, and the width and height of each, allocated on first use.
+     */
+    private int[] blurPyramidTextures = new int[FilterEngine.BLUR_MAX_LEVELS * 2];
+    private int[] blurPyramidSizes = new int[FilterEngine.BLUR_MAX_LEVELS * 2];
+    /**
+     * 0 - identity LUT, 1 - the tools adjustments baked into a LUT
+     */
+    private int[] colorLutTextures = new int[2];
+    private boolean colorLutLoaded;
+    private boolean colorLutSupported;
+    private int histogramWidth;
+    private int histogramHeight;
+    /**
+     * Every pass keeps its output so it can be reused while only later passes are dirty:
+     * 0 - sharpen, 1 - enhance (holds the source until the hsv texture is generated),
+     * 2 - blurred tools output, 3 - tools, 4 - blur scratch and the blur composite.
+     */
+    private int[] renderTexture = new int[RENDER_TEXTURES_COUNT];
+    private int[] renderFrameBuffer = new int[RENDER_TEXTURES_COUNT];
     private int[] curveTextures = new int[1];
+    /**
+     * {@link CurvesToolValue#getModificationStamp()} of the curves in curveTextures[0], 0 before
+     * the first upload.
+     */
+    private int curveTextureStamp;
+    private int curveTextureUploads;
     private boolean hsvGenerated;
+    private boolean cdtGenerated;
+    private boolean cdtPending;
+    private ByteBuffer cdtBuffer;
+    private boolean es3Context;
+    private boolean sharedPrograms;
+    private PixelReader pixelReader;
     private int renderBufferWidth;
     private int renderBufferHeight;
+    private int previewWidth;
+    private int previewHeight;
     private volatile int surfaceWidth;
     private volatile int surfaceHeight;
 
@@ -143,8 +202,41 @@ public class TelegramEGLThread extends DispatchQueue {
 
     private final static int PGPhotoEnhanceHistogramBins = 256;
     private final static int PGPhotoEnhanceSegments = 4;
-
-    private long lastRenderCallTime;
+    private final static int HISTOGRAM_PROXY_SIZE = Clahe.PROXY_SIZE;
+    private final static int COLOR_LUT_SIZE = ColorLut.DEFAULT_SIZE;
+
+    private final static int RENDER_TEXTURES_COUNT = 5;
+
+    public final static int PASS_ENHANCE = 1;
+    public final static int PASS_SHARPEN = 1 << 1;
+    public final static int PASS_TOOLS = 1 << 2;
+    public final static int PASS_BLUR = 1 << 3;
+    public final static int PASS_BLUR_MASK = 1 << 4;
+    public final static int PASS_ALL = PASS_ENHANCE | PASS_SHARPEN | PASS_TOOLS | PASS_BLUR | PASS_BLUR_MASK;
+
+    /**
+     * Passes whose cached output is out of date. The passes form a chain, so
+     * invalidating one invalidates everything after it, see {@link #invalidatePasses(int)}.
+     */
+    private int dirtyPasses = PASS_ALL;
+
+    private final static int EXPORT_TILE_SIZE = 1024;
+    private final static float BLUR_RADIUS = 7.302940f;
+
+    /**
+     * Region of the whole image covered by the current render buffer, as offset.xy and
+     * size.zw in texture coordinates. Position dependent effects (enhance tiles, grain,
+     * vignette and the blur mask) read it so tiles line up with the full frame.
+     */
+    private float[] tileRect = {0, 0, 1, 1};
+    private float[] enhanceTileRect = {0, 0, 1, 1};
+    private float blurScale = 1.0f;
+
+    private Bitmap sourceBitmap;
+    private int[] exportTexture = new int[RENDER_TEXTURES_COUNT];
+    private int[] exportFrameBuffer = new int[RENDER_TEXTURES_COUNT];
+    private int exportTextureWidth;
+    private int exportTextureHeight;
 
     //region Codes
     private static final String radialBlurFragmentShaderCode =
@@ -155,10 +247,12 @@ public class TelegramEGLThread extends DispatchQueue {
                     "uniform lowp vec2 excludePoint;" +
                     "uniform lowp float excludeBlurSize;" +
                     "uniform highp float aspectRatio;" +
+                    "uniform highp vec4 tileRect;" +
                     "void main() {" +
                     "lowp vec4 sharpImageColor = texture2D(sourceImage, texCoord);" +
                     "lowp vec4 blurredImageColor = texture2D(inputImageTexture2, texCoord);" +
-                    "highp vec2 texCoordToUse = vec2(texCoord.x, (texCoord.y * aspectRatio + 0.5 - 0.5 * aspectRatio));" +
+                    "highp vec2 imageCoord = tileRect.xy + texCoord * tileRect.zw;" +
+                    "highp vec2 texCoordToUse = vec2(imageCoord.x, (imageCoord.y * aspectRatio + 0.5 - 0.5 * aspectRatio));" +
                     "highp float distanceFromCenter = distance(excludePoint, texCoordToUse);" +
                     "gl_FragColor = mix(sharpImageColor, blurredImageColor, smoothstep(excludeSize - excludeBlurSize, excludeSize, distanceFromCenter));" +
                     "}";
@@ -172,10 +266,12 @@ public class TelegramEGLThread extends DispatchQueue {
                     "uniform lowp float excludeBlurSize;" +
                     "uniform highp float angle;" +
                     "uniform highp float aspectRatio;" +
+                    "uniform highp vec4 tileRect;" +
                     "void main() {" +
                     "lowp vec4 sharpImageColor = texture2D(sourceImage, texCoord);" +
                     "lowp vec4 blurredImageColor = texture2D(inputImageTexture2, texCoord);" +
-                    "highp vec2 texCoordToUse = vec2(texCoord.x, (texCoord.y * aspectRatio + 0.5 - 0.5 * aspectRatio));" +
+                    "highp vec2 imageCoord = tileRect.xy + texCoord * tileRect.zw;" +
+                    "highp vec2 texCoordToUse = vec2(imageCoord.x, (imageCoord.y * aspectRatio + 0.5 - 0.5 * aspectRatio));" +
                     "highp float distanceFromCenter = abs((texCoordToUse.x - excludePoint.x) * aspectRatio * cos(angle) + (texCoordToUse.y - excludePoint.y) * sin(angle));" +
                     "gl_FragColor = mix(sharpImageColor, blurredImageColor, smoothstep(excludeSize - excludeBlurSize, excludeSize, distanceFromCenter));" +
                     "}";
@@ -240,10 +336,11 @@ public class TelegramEGLThread extends DispatchQueue {
                     "uniform sampler2D sourceImage;" +
                     "uniform sampler2D inputImageTexture2;" +
                     "uniform float intensity;" +
+                    "uniform vec4 tileRect;" +
                     "float enhance(float value) {" +
                     "const vec2 offset = vec2(0.001953125, 0.03125);" +
                     "value = value + offset.x;" +
-                    "vec2 coord = (clamp(texCoord, 0.125, 1.0 - 0.125001) - 0.125) * 4.0;" +
+                    "vec2 coord = (clamp(tileRect.xy + texCoord * tileRect.zw, 0.125, 1.0 - 0.125001) - 0.125) * 4.0;" +
                     "vec2 frac = fract(coord);" +
                     "coord = floor(coord);" +
                     "float p00 = float(coord.y * 4.0 + coord.x) * 0.0625 + offset.y;" +
@@ -336,11 +433,70 @@ public class TelegramEGLThread extends DispatchQueue {
                     "gl_FragColor = result;" +
                     "}";
 
+    private static final String grainVignetteFunctionsCode =
+            "lowp float easeInOutSigmoid(lowp float value, lowp float strength) {" +
+                    "if (value > 0.5) {" +
+                    "return 1.0 - pow(2.0 - 2.0 * value, 1.0 / (1.0 - strength)) * 0.5;" +
+                    "} else {" +
+                    "return pow(2.0 * value, 1.0 / (1.0 - strength)) * 0.5;" +
+                    "}" +
+                    "}" +
+                    "highp vec4 rnm(in highp vec2 tc) {" +
+                    "highp float noise = sin(dot(tc, vec2(12.9898, 78.233))) * 43758.5453;" +
+                    "return vec4(fract(noise), fract(noise * 1.2154), fract(noise * 1.3453), fract(noise * 1.3647)) * 2.0 - 1.0;" +
+                    "}" +
+                    "highp float fade(in highp float t) {" +
+                    "return t * t * t * (t * (t * 6.0 - 15.0) + 10.0);" +
+                    "}" +
+                    "highp float pnoise3D(in highp vec3 p) {" +
+                    "highp vec3 pi = permTexUnit * floor(p) + permTexUnitHalf;" +
+                    "highp vec3 pf = fract(p);" +
+                    "highp float perm = rnm(pi.xy).a;" +
+                    "highp float n000 = dot(rnm(vec2(perm, pi.z)).rgb * 4.0 - 1.0, pf);" +
+                    "highp float n001 = dot(rnm(vec2(perm, pi.z + permTexUnit)).rgb * 4.0 - 1.0, pf - vec3(0.0, 0.0, 1.0));" +
+                    "perm = rnm(pi.xy + vec2(0.0, permTexUnit)).a;" +
+                    "highp float n010 = dot(rnm(vec2(perm, pi.z)).rgb * 4.0 - 1.0, pf - vec3(0.0, 1.0, 0.0));" +
+                    "highp float n011 = dot(rnm(vec2(perm, pi.z + permTexUnit)).rgb * 4.0 - 1.0, pf - vec3(0.0, 1.0, 1.0));" +
+                    "perm = rnm(pi.xy + vec2(permTexUnit, 0.0)).a;" +
+                    "highp float n100 = dot(rnm(vec2(perm, pi.z)).rgb * 4.0 - 1.0, pf - vec3(1.0, 0.0, 0.0));" +
+                    "highp float n101 = dot(rnm(vec2(perm, pi.z + permTexUnit)).rgb * 4.0 - 1.0, pf - vec3(1.0, 0.0, 1.0));" +
+                    "perm = rnm(pi.xy + vec2(permTexUnit, permTexUnit)).a;" +
+                    "highp float n110 = dot(rnm(vec2(perm, pi.z)).rgb * 4.0 - 1.0, pf - vec3(1.0, 1.0, 0.0));" +
+                    "highp float n111 = dot(rnm(vec2(perm, pi.z + permTexUnit)).rgb * 4.0 - 1.0, pf - vec3(1.0, 1.0, 1.0));" +
+                    "highp vec4 n_x = mix(vec4(n000, n001, n010, n011), vec4(n100, n101, n110, n111), fade(pf.x));" +
+                    "highp vec2 n_xy = mix(n_x.xy, n_x.zw, fade(pf.y));" +
+                    "return mix(n_xy.x, n_xy.y, fade(pf.z));" +
+                    "}" +
+                    "lowp vec2 coordRot(in lowp vec2 tc, in lowp float angle) {" +
+                    "return vec2(((tc.x * 2.0 - 1.0) * cos(angle) - (tc.y * 2.0 - 1.0) * sin(angle)) * 0.5 + 0.5, ((tc.y * 2.0 - 1.0) * cos(angle) + (tc.x * 2.0 - 1.0) * sin(angle)) * 0.5 + 0.5);" +
+                    "}";
+
+    private static final String grainVignetteCode =
+            "if (abs(grain) > toolEpsilon) {" +
+                    "highp vec3 rotOffset = vec3(1.425, 3.892, 5.835);" +
+                    "highp vec2 rotCoordsR = coordRot(tileRect.xy + texCoord * tileRect.zw, rotOffset.x);" +
+                    "highp vec3 noise = vec3(pnoise3D(vec3(rotCoordsR * vec2(width / grainsize, height / grainsize),0.0)));" +
+                    "lowp vec3 lumcoeff = vec3(0.299,0.587,0.114);" +
+                    "lowp float luminance = dot(result.rgb, lumcoeff);" +
+                    "lowp float lum = smoothstep(0.2, 0.0, luminance);" +
+                    "lum += luminance;" +
+                    "noise = mix(noise,vec3(0.0),pow(lum,4.0));" +
+                    "result.rgb = result.rgb + noise * grain;" +
+                    "}" +
+                    "if (abs(vignette) > toolEpsilon) {" +
+                    "const lowp float midpoint = 0.7;" +
+                    "const lowp float fuzziness = 0.62;" +
+                    "lowp float radDist = length(tileRect.xy + texCoord * tileRect.zw - 0.5) / sqrt(0.5);" +
+                    "lowp float mag = easeInOutSigmoid(radDist * midpoint, fuzziness) * vignette * 0.645;" +
+                    "result.rgb = mix(pow(result.rgb, vec3(1.0 / (1.0 - mag))), vec3(0.0), mag * mag);" +
+                    "}";
+
     private static final String toolsFragmentShaderCode =
             "varying highp vec2 texCoord;" +
                     "uniform sampler2D sourceImage;" +
                     "uniform highp float width;" +
                     "uniform highp float height;" +
+                    "uniform highp vec4 tileRect;" +
                     "uniform sampler2D curvesImage;" +
                     "uniform lowp float skipTone;" +
                     "uniform lowp float shadows;" +
@@ -448,13 +604,6 @@ public class TelegramEGLThread extends DispatchQueue {
                     "lowp vec3 yuvToRgb(highp vec3 inP) {" +
                     "return vec3(1.402 * inP.b + inP.r, (inP.r - (0.299 * 1.402 / 0.587) * inP.b - (0.114 * 1.772 / 0.587) * inP.g), 1.772 * inP.g + inP.r);" +
                     "}" +
-                    "lowp float easeInOutSigmoid(lowp float value, lowp float strength) {" +
-                    "if (value > 0.5) {" +
-                    "return 1.0 - pow(2.0 - 2.0 * value, 1.0 / (1.0 - strength)) * 0.5;" +
-                    "} else {" +
-                    "return pow(2.0 * value, 1.0 / (1.0 - strength)) * 0.5;" +
-                    "}" +
-                    "}" +
                     "lowp vec3 applyLuminanceCurve(lowp vec3 pixel) {" +
                     "highp float index = floor(clamp(pixel.z / (1.0 / 200.0), 0.0, 199.0));" +
                     "pixel.y = mix(0.0, pixel.y, smoothstep(0.0, 0.1, pixel.z) * (1.0 - smoothstep(0.8, 1.0, pixel.z)));" +
@@ -482,35 +631,7 @@ public class TelegramEGLThread extends DispatchQueue {
                     "lowp vec3 tintHighlights(lowp vec3 texel, lowp vec3 tintColor, lowp float tintAmount) {" +
                     "return clamp(mix(texel, mix(texel, vec3(1.0) - tintRaiseShadowsCurve(vec3(1.0) - texel), (vec3(1.0) - tintColor)), tintAmount), 0.0, 1.0);" +
                     "}" +
-                    "highp vec4 rnm(in highp vec2 tc) {" +
-                    "highp float noise = sin(dot(tc, vec2(12.9898, 78.233))) * 43758.5453;" +
-                    "return vec4(fract(noise), fract(noise * 1.2154), fract(noise * 1.3453), fract(noise * 1.3647)) * 2.0 - 1.0;" +
-                    "}" +
-                    "highp float fade(in highp float t) {" +
-                    "return t * t * t * (t * (t * 6.0 - 15.0) + 10.0);" +
-                    "}" +
-                    "highp float pnoise3D(in highp vec3 p) {" +
-                    "highp vec3 pi = permTexUnit * floor(p) + permTexUnitHalf;" +
-                    "highp vec3 pf = fract(p);" +
-                    "highp float perm = rnm(pi.xy).a;" +
-                    "highp float n000 = dot(rnm(vec2(perm, pi.z)).rgb * 4.0 - 1.0, pf);" +
-                    "highp float n001 = dot(rnm(vec2(perm, pi.z + permTexUnit)).rgb * 4.0 - 1.0, pf - vec3(0.0, 0.0, 1.0));" +
-                    "perm = rnm(pi.xy + vec2(0.0, permTexUnit)).a;" +
-                    "highp float n010 = dot(rnm(vec2(perm, pi.z)).rgb * 4.0 - 1.0, pf - vec3(0.0, 1.0, 0.0));" +
-                    "highp float n011 = dot(rnm(vec2(perm, pi.z + permTexUnit)).rgb * 4.0 - 1.0, pf - vec3(0.0, 1.0, 1.0));" +
-                    "perm = rnm(pi.xy + vec2(permTexUnit, 0.0)).a;" +
-                    "highp float n100 = dot(rnm(vec2(perm, pi.z)).rgb * 4.0 - 1.0, pf - vec3(1.0, 0.0, 0.0));" +
-                    "highp float n101 = dot(rnm(vec2(perm, pi.z + permTexUnit)).rgb * 4.0 - 1.0, pf - vec3(1.0, 0.0, 1.0));" +
-                    "perm = rnm(pi.xy + vec2(permTexUnit, permTexUnit)).a;" +
-                    "highp float n110 = dot(rnm(vec2(perm, pi.z)).rgb * 4.0 - 1.0, pf - vec3(1.0, 1.0, 0.0));" +
-                    "highp float n111 = dot(rnm(vec2(perm, pi.z + permTexUnit)).rgb * 4.0 - 1.0, pf - vec3(1.0, 1.0, 1.0));" +
-                    "highp vec4 n_x = mix(vec4(n000, n001, n010, n011), vec4(n100, n101, n110, n111), fade(pf.x));" +
-                    "highp vec2 n_xy = mix(n_x.xy, n_x.zw, fade(pf.y));" +
-                    "return mix(n_xy.x, n_xy.y, fade(pf.z));" +
-                    "}" +
-                    "lowp vec2 coordRot(in lowp vec2 tc, in lowp float angle) {" +
-                    "return vec2(((tc.x * 2.0 - 1.0) * cos(angle) - (tc.y * 2.0 - 1.0) * sin(angle)) * 0.5 + 0.5, ((tc.y * 2.0 - 1.0) * cos(angle) + (tc.x * 2.0 - 1.0) * sin(angle)) * 0.5 + 0.5);" +
-                    "}" +
+                    grainVignetteFunctionsCode +
                     "void main() {" +
                     "lowp vec4 source = texture2D(sourceImage, texCoord);" +
                     "lowp vec4 result = source;" +
@@ -567,50 +688,74 @@ public class TelegramEGLThread extends DispatchQueue {
                     "yuvColor += 0.375 * warmth * curveScale * yuvVec;" +
                     "result.rgb = yuvToRgb(yuvColor);" +
                     "}" +
-                    "if (abs(grain) > toolEpsilon) {" +
-                    "highp vec3 rotOffset = vec3(1.425, 3.892, 5.835);" +
-                    "highp vec2 rotCoordsR = coordRot(texCoord, rotOffset.x);" +
-                    "highp vec3 noise = vec3(pnoise3D(vec3(rotCoordsR * vec2(width / grainsize, height / grainsize),0.0)));" +
-                    "lowp vec3 lumcoeff = vec3(0.299,0.587,0.114);" +
-                    "lowp float luminance = dot(result.rgb, lumcoeff);" +
-                    "lowp float lum = smoothstep(0.2, 0.0, luminance);" +
-                    "lum += luminance;" +
-                    "noise = mix(noise,vec3(0.0),pow(lum,4.0));" +
-                    "result.rgb = result.rgb + noise * grain;" +
-                    "}" +
-                    "if (abs(vignette) > toolEpsilon) {" +
-                    "const lowp float midpoint = 0.7;" +
-                    "const lowp float fuzziness = 0.62;" +
-                    "lowp float radDist = length(texCoord - 0.5) / sqrt(0.5);" +
-                    "lowp float mag = easeInOutSigmoid(radDist * midpoint, fuzziness) * vignette * 0.645;" +
-                    "result.rgb = mix(pow(result.rgb, vec3(1.0 / (1.0 - mag))), vec3(0.0), mag * mag);" +
+                    grainVignetteCode +
+                    "gl_FragColor = result;" +
+                    "}";
+
+    /**
+     * The tools pass for the preview: the pointwise adjustments as one lookup into the LUT
+     * baked by the tools shader, laid out as COLOR_LUT_SIZE blue slices side by side, followed
+     * by grain and vignette which depend on the position.
+     */
+    private static final String colorLutFragmentShaderCode =
+            "varying highp vec2 texCoord;" +
+                    "uniform sampler2D sourceImage;" +
+                    "uniform sampler2D lutImage;" +
+                    "uniform highp float lutSize;" +
+                    "uniform highp float width;" +
+                    "uniform highp float height;" +
+                    "uniform highp vec4 tileRect;" +
+                    "uniform lowp float grain;" +
+                    "uniform lowp float vignette;" +
+                    "const lowp float permTexUnit = 1.0 / 256.0;" +
+                    "const lowp float permTexUnitHalf = 0.5 / 256.0;" +
+                    "const lowp float grainsize = 2.3;" +
+                    grainVignetteFunctionsCode +
+                    "highp vec3 lookup(highp vec3 color) {" +
+                    "highp float blue = color.b * (lutSize - 1.0);" +
+                    "highp float slice0 = floor(blue);" +
+                    "highp float slice1 = min(slice0 + 1.0, lutSize - 1.0);" +
+                    "highp float x = (color.r * (lutSize - 1.0) + 0.5) / (lutSize * lutSize);" +
+                    "highp float y = (color.g * (lutSize - 1.0) + 0.5) / lutSize;" +
+                    "highp vec3 color0 = texture2D(lutImage, vec2(x + slice0 / lutSize, y)).rgb;" +
+                    "highp vec3 color1 = texture2D(lutImage, vec2(x + slice1 / lutSize, y)).rgb;" +
+                    "return mix(color0, color1, blue - slice0);" +
                     "}" +
+                    "void main() {" +
+                    "lowp vec4 source = texture2D(sourceImage, texCoord);" +
+                    "lowp vec4 result = vec4(lookup(clamp(source.rgb, 0.0, 1.0)), source.a);" +
+                    "const lowp float toolEpsilon = 0.005;" +
+                    grainVignetteCode +
                     "gl_FragColor = result;" +
                     "}";
 
     //endregion
 
+    public interface BitmapCallback {
+        void onBitmapReady(Bitmap bitmap);
+    }
+
     public TelegramEGLThread(SurfaceTexture surface, Bitmap bitmap, FilterableImageView boundImg) {
         super("EGLThread");
         surfaceTexture = surface;
         currentBitmap = bitmap;
+        sourceBitmap = bitmap;
         this.boundImg = boundImg;
     }
 
-    private int loadShader(int type, String shaderCode) {
-        int shader = GLES20.glCreateShader(type);
-        GLES20.glShaderSource(shader, shaderCode);
-        GLES20.glCompileShader(shader);
-        int[] compileStatus = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
-        if (compileStatus[0] == 0) {
-            if (BuildVars.LOGS_ENABLED) {
-                FileLog.e(GLES20.glGetShaderInfoLog(shader));
-            }
-            GLES20.glDeleteShader(shader);
-            shader = 0;
+    /**
+     * Creates the context in the share group of {@link ShaderProgramCache} so programs
+     * compiled by previous editors are reused, or standalone if the driver refuses.
+     */
+    private EGLContext createContext(int[] attrib_list) {
+        EGLContext shareContext = ShaderProgramCache.getShareContext(egl10, eglDisplay, eglConfig, attrib_list[1]);
+        sharedPrograms = shareContext != EGL10.EGL_NO_CONTEXT;
+        EGLContext context = egl10.eglCreateContext(eglDisplay, eglConfig, shareContext, attrib_list);
+        if (sharedPrograms && (context == null || context == EGL10.EGL_NO_CONTEXT)) {
+            sharedPrograms = false;
+            context = egl10.eglCreateContext(eglDisplay, eglConfig, EGL10.EGL_NO_CONTEXT, attrib_list);
         }
-        return shader;
+        return context;
     }
 
     private boolean initGL() {
@@ -634,10 +779,12 @@ public class TelegramEGLThread extends DispatchQueue {
             return false;
         }
 
+        // pixel pack buffers for async readback need ES3, ES2 shaders run there unchanged
+        es3Context = Build.VERSION.SDK_INT >= 18;
         int[] configsCount = new int[1];
         EGLConfig[] configs = new EGLConfig[1];
         int[] configSpec = new int[]{
-                EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                EGL10.EGL_RENDERABLE_TYPE, es3Context ? EGL_OPENGL_ES3_BIT_KHR : EGL_OPENGL_ES2_BIT,
                 EGL10.EGL_RED_SIZE, 8,
                 EGL10.EGL_GREEN_SIZE, 8,
                 EGL10.EGL_BLUE_SIZE, 8,
@@ -646,6 +793,10 @@ public class TelegramEGLThread extends DispatchQueue {
                 EGL10.EGL_STENCIL_SIZE, 0,
                 EGL10.EGL_NONE
         };
+        if (es3Context && (!egl10.eglChooseConfig(eglDisplay, configSpec, configs, 1, configsCount) || configsCount[0] == 0)) {
+            es3Context = false;
+            configSpec[1] = EGL_OPENGL_ES2_BIT;
+        }
         if (!egl10.eglChooseConfig(eglDisplay, configSpec, configs, 1, configsCount)) {
             if (BuildVars.LOGS_ENABLED) {
                 FileLog.e("eglChooseConfig failed " + GLUtils.getEGLErrorString(egl10.eglGetError()));
@@ -662,9 +813,14 @@ public class TelegramEGLThread extends DispatchQueue {
             return false;
         }
 
-        int[] attrib_list = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE};
-        eglContext = egl10.eglCreateContext(eglDisplay, eglConfig, EGL10.EGL_NO_CONTEXT, attrib_list);
-        if (eglContext == null) {
+        int[] attrib_list = {EGL_CONTEXT_CLIENT_VERSION, es3Context ? 3 : 2, EGL10.EGL_NONE};
+        eglContext = createContext(attrib_list);
+        if (es3Context && (eglContext == null || eglContext == EGL10.EGL_NO_CONTEXT)) {
+            es3Context = false;
+            attrib_list[1] = 2;
+            eglContext = createContext(attrib_list);
+        }
+        if (eglContext == null || eglContext == EGL10.EGL_NO_CONTEXT) {
             if (BuildVars.LOGS_ENABLED) {
                 FileLog.e("eglCreateContext failed " + GLUtils.getEGLErrorString(egl10.eglGetError()));
             }
@@ -694,6 +850,7 @@ public class TelegramEGLThread extends DispatchQueue {
             return false;
         }
         gl = eglContext.getGL();
+        pixelReader = new PixelReader(this, es3Context);
 
 
         float[] squareCoordinates = {
@@ -734,250 +891,154 @@ public class TelegramEGLThread extends DispatchQueue {
         textureBuffer.position(0);
 
         GLES20.glGenTextures(1, curveTextures, 0);
+        GLES20.glBindTexture(GL10.GL_TEXTURE_2D, curveTextures[0]);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, FilterParams.CURVE_RESOLUTION, 1, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
         GLES20.glGenTextures(2, enhanceTextures, 0);
-
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, simpleVertexShaderCode);
-        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, toolsFragmentShaderCode);
-
-        if (vertexShader != 0 && fragmentShader != 0) {
-            toolsShaderProgram = GLES20.glCreateProgram();
-            GLES20.glAttachShader(toolsShaderProgram, vertexShader);
-            GLES20.glAttachShader(toolsShaderProgram, fragmentShader);
-            GLES20.glBindAttribLocation(toolsShaderProgram, 0, "position");
-            GLES20.glBindAttribLocation(toolsShaderProgram, 1, "inputTexCoord");
-
-            GLES20.glLinkProgram(toolsShaderProgram);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(toolsShaderProgram, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] == 0) {
-                    /*String infoLog = GLES20.glGetProgramInfoLog(toolsShaderProgram);
-                    FileLog.e("link error = " + infoLog);*/
-                GLES20.glDeleteProgram(toolsShaderProgram);
-                toolsShaderProgram = 0;
-            } else {
-                positionHandle = GLES20.glGetAttribLocation(toolsShaderProgram, "position");
-                inputTexCoordHandle = GLES20.glGetAttribLocation(toolsShaderProgram, "inputTexCoord");
-                sourceImageHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "sourceImage");
-                shadowsHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "shadows");
-                highlightsHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "highlights");
-                exposureHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "exposure");
-                contrastHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "contrast");
-                saturationHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "saturation");
-                warmthHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "warmth");
-                vignetteHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "vignette");
-                grainHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "grain");
-                widthHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "width");
-                heightHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "height");
-                curvesImageHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "curvesImage");
-                skipToneHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "skipTone");
-                fadeAmountHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "fadeAmount");
-                shadowsTintIntensityHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "shadowsTintIntensity");
-                highlightsTintIntensityHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "highlightsTintIntensity");
-                shadowsTintColorHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "shadowsTintColor");
-                highlightsTintColorHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "highlightsTintColor");
-            }
+        GLES20.glGenTextures(2, colorLutTextures, 0);
+        int[] maxTextureSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+        ExportPolicy.setMaxTextureSize(maxTextureSize[0]);
+        colorLutSupported = maxTextureSize[0] >= COLOR_LUT_SIZE * COLOR_LUT_SIZE;
+
+        toolsShaderProgram = ShaderProgramCache.getProgram(simpleVertexShaderCode, toolsFragmentShaderCode, sharedPrograms, es3Context);
+        if (toolsShaderProgram != 0) {
+            positionHandle = GLES20.glGetAttribLocation(toolsShaderProgram, "position");
+            inputTexCoordHandle = GLES20.glGetAttribLocation(toolsShaderProgram, "inputTexCoord");
+            sourceImageHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "sourceImage");
+            shadowsHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "shadows");
+            highlightsHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "highlights");
+            exposureHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "exposure");
+            contrastHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "contrast");
+            saturationHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "saturation");
+            warmthHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "warmth");
+            vignetteHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "vignette");
+            grainHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "grain");
+            widthHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "width");
+            heightHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "height");
+            tileRectHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "tileRect");
+            curvesImageHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "curvesImage");
+            skipToneHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "skipTone");
+            fadeAmountHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "fadeAmount");
+            shadowsTintIntensityHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "shadowsTintIntensity");
+            highlightsTintIntensityHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "highlightsTintIntensity");
+            shadowsTintColorHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "shadowsTintColor");
+            highlightsTintColorHandle = GLES20.glGetUniformLocation(toolsShaderProgram, "highlightsTintColor");
         } else {
             finish();
             return false;
         }
 
-        vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, sharpenVertexShaderCode);
-        fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, sharpenFragmentShaderCode);
-
-        if (vertexShader != 0 && fragmentShader != 0) {
-            sharpenShaderProgram = GLES20.glCreateProgram();
-            GLES20.glAttachShader(sharpenShaderProgram, vertexShader);
-            GLES20.glAttachShader(sharpenShaderProgram, fragmentShader);
-            GLES20.glBindAttribLocation(sharpenShaderProgram, 0, "position");
-            GLES20.glBindAttribLocation(sharpenShaderProgram, 1, "inputTexCoord");
-
-            GLES20.glLinkProgram(sharpenShaderProgram);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(sharpenShaderProgram, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] == 0) {
-                GLES20.glDeleteProgram(sharpenShaderProgram);
-                sharpenShaderProgram = 0;
-            } else {
-                sharpenPositionHandle = GLES20.glGetAttribLocation(sharpenShaderProgram, "position");
-                sharpenInputTexCoordHandle = GLES20.glGetAttribLocation(sharpenShaderProgram, "inputTexCoord");
-                sharpenSourceImageHandle = GLES20.glGetUniformLocation(sharpenShaderProgram, "sourceImage");
-                sharpenWidthHandle = GLES20.glGetUniformLocation(sharpenShaderProgram, "inputWidth");
-                sharpenHeightHandle = GLES20.glGetUniformLocation(sharpenShaderProgram, "inputHeight");
-                sharpenHandle = GLES20.glGetUniformLocation(sharpenShaderProgram, "sharpen");
-            }
+        sharpenShaderProgram = ShaderProgramCache.getProgram(sharpenVertexShaderCode, sharpenFragmentShaderCode, sharedPrograms, es3Context);
+        if (sharpenShaderProgram != 0) {
+            sharpenPositionHandle = GLES20.glGetAttribLocation(sharpenShaderProgram, "position");
+            sharpenInputTexCoordHandle = GLES20.glGetAttribLocation(sharpenShaderProgram, "inputTexCoord");
+            sharpenSourceImageHandle = GLES20.glGetUniformLocation(sharpenShaderProgram, "sourceImage");
+            sharpenWidthHandle = GLES20.glGetUniformLocation(sharpenShaderProgram, "inputWidth");
+            sharpenHeightHandle = GLES20.glGetUniformLocation(sharpenShaderProgram, "inputHeight");
+            sharpenHandle = GLES20.glGetUniformLocation(sharpenShaderProgram, "sharpen");
         } else {
             finish();
             return false;
         }
 
-        vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, blurVertexShaderCode);
-        fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, blurFragmentShaderCode);
-
-        if (vertexShader != 0 && fragmentShader != 0) {
-            blurShaderProgram = GLES20.glCreateProgram();
-            GLES20.glAttachShader(blurShaderProgram, vertexShader);
-            GLES20.glAttachShader(blurShaderProgram, fragmentShader);
-            GLES20.glBindAttribLocation(blurShaderProgram, 0, "position");
-            GLES20.glBindAttribLocation(blurShaderProgram, 1, "inputTexCoord");
-
-            GLES20.glLinkProgram(blurShaderProgram);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(blurShaderProgram, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] == 0) {
-                GLES20.glDeleteProgram(blurShaderProgram);
-                blurShaderProgram = 0;
-            } else {
-                blurPositionHandle = GLES20.glGetAttribLocation(blurShaderProgram, "position");
-                blurInputTexCoordHandle = GLES20.glGetAttribLocation(blurShaderProgram, "inputTexCoord");
-                blurSourceImageHandle = GLES20.glGetUniformLocation(blurShaderProgram, "sourceImage");
-                blurWidthHandle = GLES20.glGetUniformLocation(blurShaderProgram, "texelWidthOffset");
-                blurHeightHandle = GLES20.glGetUniformLocation(blurShaderProgram, "texelHeightOffset");
-            }
+        blurShaderProgram = ShaderProgramCache.getProgram(blurVertexShaderCode, blurFragmentShaderCode, sharedPrograms, es3Context);
+        if (blurShaderProgram != 0) {
+            blurPositionHandle = GLES20.glGetAttribLocation(blurShaderProgram, "position");
+            blurInputTexCoordHandle = GLES20.glGetAttribLocation(blurShaderProgram, "inputTexCoord");
+            blurSourceImageHandle = GLES20.glGetUniformLocation(blurShaderProgram, "sourceImage");
+            blurWidthHandle = GLES20.glGetUniformLocation(blurShaderProgram, "texelWidthOffset");
+            blurHeightHandle = GLES20.glGetUniformLocation(blurShaderProgram, "texelHeightOffset");
         } else {
             finish();
             return false;
         }
 
-        vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, simpleVertexShaderCode);
-        fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, linearBlurFragmentShaderCode);
-
-        if (vertexShader != 0 && fragmentShader != 0) {
-            linearBlurShaderProgram = GLES20.glCreateProgram();
-            GLES20.glAttachShader(linearBlurShaderProgram, vertexShader);
-            GLES20.glAttachShader(linearBlurShaderProgram, fragmentShader);
-            GLES20.glBindAttribLocation(linearBlurShaderProgram, 0, "position");
-            GLES20.glBindAttribLocation(linearBlurShaderProgram, 1, "inputTexCoord");
-
-            GLES20.glLinkProgram(linearBlurShaderProgram);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(linearBlurShaderProgram, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] == 0) {
-                GLES20.glDeleteProgram(linearBlurShaderProgram);
-                linearBlurShaderProgram = 0;
-            } else {
-                linearBlurPositionHandle = GLES20.glGetAttribLocation(linearBlurShaderProgram, "position");
-                linearBlurInputTexCoordHandle = GLES20.glGetAttribLocation(linearBlurShaderProgram, "inputTexCoord");
-                linearBlurSourceImageHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "sourceImage");
-                linearBlurSourceImage2Handle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "inputImageTexture2");
-                linearBlurExcludeSizeHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "excludeSize");
-                linearBlurExcludePointHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "excludePoint");
-                linearBlurExcludeBlurSizeHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "excludeBlurSize");
-                linearBlurAngleHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "angle");
-                linearBlurAspectRatioHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "aspectRatio");
-            }
+        linearBlurShaderProgram = ShaderProgramCache.getProgram(simpleVertexShaderCode, linearBlurFragmentShaderCode, sharedPrograms, es3Context);
+        if (linearBlurShaderProgram != 0) {
+            linearBlurPositionHandle = GLES20.glGetAttribLocation(linearBlurShaderProgram, "position");
+            linearBlurInputTexCoordHandle = GLES20.glGetAttribLocation(linearBlurShaderProgram, "inputTexCoord");
+            linearBlurSourceImageHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "sourceImage");
+            linearBlurSourceImage2Handle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "inputImageTexture2");
+            linearBlurExcludeSizeHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "excludeSize");
+            linearBlurExcludePointHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "excludePoint");
+            linearBlurExcludeBlurSizeHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "excludeBlurSize");
+            linearBlurAngleHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "angle");
+            linearBlurAspectRatioHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "aspectRatio");
+            linearBlurTileRectHandle = GLES20.glGetUniformLocation(linearBlurShaderProgram, "tileRect");
         } else {
             finish();
             return false;
         }
 
-        vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, simpleVertexShaderCode);
-        fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, radialBlurFragmentShaderCode);
-
-        if (vertexShader != 0 && fragmentShader != 0) {
-            radialBlurShaderProgram = GLES20.glCreateProgram();
-            GLES20.glAttachShader(radialBlurShaderProgram, vertexShader);
-            GLES20.glAttachShader(radialBlurShaderProgram, fragmentShader);
-            GLES20.glBindAttribLocation(radialBlurShaderProgram, 0, "position");
-            GLES20.glBindAttribLocation(radialBlurShaderProgram, 1, "inputTexCoord");
-
-            GLES20.glLinkProgram(radialBlurShaderProgram);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(radialBlurShaderProgram, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] == 0) {
-                GLES20.glDeleteProgram(radialBlurShaderProgram);
-                radialBlurShaderProgram = 0;
-            } else {
-                radialBlurPositionHandle = GLES20.glGetAttribLocation(radialBlurShaderProgram, "position");
-                radialBlurInputTexCoordHandle = GLES20.glGetAttribLocation(radialBlurShaderProgram, "inputTexCoord");
-                radialBlurSourceImageHandle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "sourceImage");
-                radialBlurSourceImage2Handle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "inputImageTexture2");
-                radialBlurExcludeSizeHandle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "excludeSize");
-                radialBlurExcludePointHandle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "excludePoint");
-                radialBlurExcludeBlurSizeHandle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "excludeBlurSize");
-                radialBlurAspectRatioHandle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "aspectRatio");
-            }
+        radialBlurShaderProgram = ShaderProgramCache.getProgram(simpleVertexShaderCode, radialBlurFragmentShaderCode, sharedPrograms, es3Context);
+        if (radialBlurShaderProgram != 0) {
+            radialBlurPositionHandle = GLES20.glGetAttribLocation(radialBlurShaderProgram, "position");
+            radialBlurInputTexCoordHandle = GLES20.glGetAttribLocation(radialBlurShaderProgram, "inputTexCoord");
+            radialBlurSourceImageHandle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "sourceImage");
+            radialBlurSourceImage2Handle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "inputImageTexture2");
+            radialBlurExcludeSizeHandle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "excludeSize");
+            radialBlurExcludePointHandle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "excludePoint");
+            radialBlurExcludeBlurSizeHandle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "excludeBlurSize");
+            radialBlurAspectRatioHandle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "aspectRatio");
+            radialBlurTileRectHandle = GLES20.glGetUniformLocation(radialBlurShaderProgram, "tileRect");
         } else {
             finish();
             return false;
         }
 
-        vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, simpleVertexShaderCode);
-        fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, rgbToHsvFragmentShaderCode);
-        if (vertexShader != 0 && fragmentShader != 0) {
-            rgbToHsvShaderProgram = GLES20.glCreateProgram();
-            GLES20.glAttachShader(rgbToHsvShaderProgram, vertexShader);
-            GLES20.glAttachShader(rgbToHsvShaderProgram, fragmentShader);
-            GLES20.glBindAttribLocation(rgbToHsvShaderProgram, 0, "position");
-            GLES20.glBindAttribLocation(rgbToHsvShaderProgram, 1, "inputTexCoord");
-
-            GLES20.glLinkProgram(rgbToHsvShaderProgram);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(rgbToHsvShaderProgram, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] == 0) {
-                GLES20.glDeleteProgram(rgbToHsvShaderProgram);
-                rgbToHsvShaderProgram = 0;
-            } else {
-                rgbToHsvPositionHandle = GLES20.glGetAttribLocation(rgbToHsvShaderProgram, "position");
-                rgbToHsvInputTexCoordHandle = GLES20.glGetAttribLocation(rgbToHsvShaderProgram, "inputTexCoord");
-                rgbToHsvSourceImageHandle = GLES20.glGetUniformLocation(rgbToHsvShaderProgram, "sourceImage");
-            }
+        rgbToHsvShaderProgram = ShaderProgramCache.getProgram(simpleVertexShaderCode, rgbToHsvFragmentShaderCode, sharedPrograms, es3Context);
+        if (rgbToHsvShaderProgram != 0) {
+            rgbToHsvPositionHandle = GLES20.glGetAttribLocation(rgbToHsvShaderProgram, "position");
+            rgbToHsvInputTexCoordHandle = GLES20.glGetAttribLocation(rgbToHsvShaderProgram, "inputTexCoord");
+            rgbToHsvSourceImageHandle = GLES20.glGetUniformLocation(rgbToHsvShaderProgram, "sourceImage");
         } else {
             finish();
             return false;
         }
 
-        vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, simpleVertexShaderCode);
-        fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, enhanceFragmentShaderCode);
-        if (vertexShader != 0 && fragmentShader != 0) {
-            enhanceShaderProgram = GLES20.glCreateProgram();
-            GLES20.glAttachShader(enhanceShaderProgram, vertexShader);
-            GLES20.glAttachShader(enhanceShaderProgram, fragmentShader);
-            GLES20.glBindAttribLocation(enhanceShaderProgram, 0, "position");
-            GLES20.glBindAttribLocation(enhanceShaderProgram, 1, "inputTexCoord");
-
-            GLES20.glLinkProgram(enhanceShaderProgram);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(enhanceShaderProgram, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] == 0) {
-                GLES20.glDeleteProgram(enhanceShaderProgram);
-                enhanceShaderProgram = 0;
-            } else {
-                enhancePositionHandle = GLES20.glGetAttribLocation(enhanceShaderProgram, "position");
-                enhanceInputTexCoordHandle = GLES20.glGetAttribLocation(enhanceShaderProgram, "inputTexCoord");
-                enhanceSourceImageHandle = GLES20.glGetUniformLocation(enhanceShaderProgram, "sourceImage");
-                enhanceIntensityHandle = GLES20.glGetUniformLocation(enhanceShaderProgram, "intensity");
-                enhanceInputImageTexture2Handle = GLES20.glGetUniformLocation(enhanceShaderProgram, "inputImageTexture2");
-            }
+        enhanceShaderProgram = ShaderProgramCache.getProgram(simpleVertexShaderCode, enhanceFragmentShaderCode, sharedPrograms, es3Context);
+        if (enhanceShaderProgram != 0) {
+            enhancePositionHandle = GLES20.glGetAttribLocation(enhanceShaderProgram, "position");
+            enhanceInputTexCoordHandle = GLES20.glGetAttribLocation(enhanceShaderProgram, "inputTexCoord");
+            enhanceSourceImageHandle = GLES20.glGetUniformLocation(enhanceShaderProgram, "sourceImage");
+            enhanceIntensityHandle = GLES20.glGetUniformLocation(enhanceShaderProgram, "intensity");
+            enhanceInputImageTexture2Handle = GLES20.glGetUniformLocation(enhanceShaderProgram, "inputImageTexture2");
+            enhanceTileRectHandle = GLES20.glGetUniformLocation(enhanceShaderProgram, "tileRect");
         } else {
             finish();
             return false;
         }
 
-        vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, simpleVertexShaderCode);
-        fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, simpleFragmentShaderCode);
-        if (vertexShader != 0 && fragmentShader != 0) {
-            simpleShaderProgram = GLES20.glCreateProgram();
-            GLES20.glAttachShader(simpleShaderProgram, vertexShader);
-            GLES20.glAttachShader(simpleShaderProgram, fragmentShader);
-            GLES20.glBindAttribLocation(simpleShaderProgram, 0, "position");
-            GLES20.glBindAttribLocation(simpleShaderProgram, 1, "inputTexCoord");
-
-            GLES20.glLinkProgram(simpleShaderProgram);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(simpleShaderProgram, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] == 0) {
-                GLES20.glDeleteProgram(simpleShaderProgram);
-                simpleShaderProgram = 0;
-            } else {
-                simplePositionHandle = GLES20.glGetAttribLocation(simpleShaderProgram, "position");
-                simpleInputTexCoordHandle = GLES20.glGetAttribLocation(simpleShaderProgram, "inputTexCoord");
-                simpleSourceImageHandle = GLES20.glGetUniformLocation(simpleShaderProgram, "sourceImage");
-            }
+        simpleShaderProgram = ShaderProgramCache.getProgram(simpleVertexShaderCode, simpleFragmentShaderCode, sharedPrograms, es3Context);
+        if (simpleShaderProgram != 0) {
+            simplePositionHandle = GLES20.glGetAttribLocation(simpleShaderProgram, "position");
+            simpleInputTexCoordHandle = GLES20.glGetAttribLocation(simpleShaderProgram, "inputTexCoord");
+            simpleSourceImageHandle = GLES20.glGetUniformLocation(simpleShaderProgram, "sourceImage");
         } else {
             finish();
             return false;
         }
 
+        colorLutShaderProgram = ShaderProgramCache.getProgram(simpleVertexShaderCode, colorLutFragmentShaderCode, sharedPrograms, es3Context);
+        if (colorLutShaderProgram != 0) {
+            colorLutPositionHandle = GLES20.glGetAttribLocation(colorLutShaderProgram, "position");
+            colorLutInputTexCoordHandle = GLES20.glGetAttribLocation(colorLutShaderProgram, "inputTexCoord");
+            colorLutSourceImageHandle = GLES20.glGetUniformLocation(colorLutShaderProgram, "sourceImage");
+            colorLutImageHandle = GLES20.glGetUniformLocation(colorLutShaderProgram, "lutImage");
+            colorLutSizeHandle = GLES20.glGetUniformLocation(colorLutShaderProgram, "lutSize");
+            colorLutWidthHandle = GLES20.glGetUniformLocation(colorLutShaderProgram, "width");
+            colorLutHeightHandle = GLES20.glGetUniformLocation(colorLutShaderProgram, "height");
+            colorLutTileRectHandle = GLES20.glGetUniformLocation(colorLutShaderProgram, "tileRect");
+            colorLutGrainHandle = GLES20.glGetUniformLocation(colorLutShaderProgram, "grain");
+            colorLutVignetteHandle = GLES20.glGetUniformLocation(colorLutShaderProgram, "vignette");
+        } else {
+            colorLutSupported = false;
+        }
+
         if (currentBitmap != null && !currentBitmap.isRecycled()) {
             loadTexture(currentBitmap);
         }
@@ -996,62 +1057,141 @@ public class TelegramEGLThread extends DispatchQueue {
             eglContext = null;
         }
         if (eglDisplay != null) {
-            egl10.eglTerminate(eglDisplay);
+            if (!ShaderProgramCache.holdsDisplay()) {
+                egl10.eglTerminate(eglDisplay);
+            }
             eglDisplay = null;
         }
     }
 
+    private void drawRgbToHsvPass(int targetTexture) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, targetTexture, 0);
+        GLES20.glClear(0);
+
+        GLES20.glUseProgram(rgbToHsvShaderProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[1]);
+        GLES20.glUniform1i(rgbToHsvSourceImageHandle, 0);
+        GLES20.glEnableVertexAttribArray(rgbToHsvInputTexCoordHandle);
+        GLES20.glVertexAttribPointer(rgbToHsvInputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
+        GLES20.glEnableVertexAttribArray(rgbToHsvPositionHandle);
+        GLES20.glVertexAttribPointer(rgbToHsvPositionHandle, 2, GLES20.GL_FLOAT, false, 8, vertexBuffer);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
     private void drawEnhancePass() {
         if (!hsvGenerated) {
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[0]);
-            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, renderTexture[0], 0);
-            GLES20.glClear(0);
+            drawRgbToHsvPass(enhanceTextures[0]);
+            hsvGenerated = true;
+        }
+        if (!cdtGenerated && !cdtPending && getEnhanceValue() > 0) {
+            // enhance is drawn with zero intensity until the histogram arrives
+            bindHistogramSource();
+            if (pixelReader.isAsync()) {
+                cdtPending = true;
+                pixelReader.readAsync(0, 0, histogramWidth, histogramHeight, (buffer, width, height) -> {
+                    cdtPending = false;
+                    generateCdt(buffer, width, height);
+                    invalidatePasses(PASS_ENHANCE);
+                    postFrameRunnable(drawRunnable);
+                });
+            } else {
+                generateCdt(pixelReader.read(0, 0, histogramWidth, histogramHeight), histogramWidth, histogramHeight);
+            }
+        }
 
-            GLES20.glUseProgram(rgbToHsvShaderProgram);
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[1]);
-            GLES20.glUniform1i(rgbToHsvSourceImageHandle, 0);
-            GLES20.glEnableVertexAttribArray(rgbToHsvInputTexCoordHandle);
-            GLES20.glVertexAttribPointer(rgbToHsvInputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
-            GLES20.glEnableVertexAttribArray(rgbToHsvPositionHandle);
-            GLES20.glVertexAttribPointer(rgbToHsvPositionHandle, 2, GLES20.GL_FLOAT, false, 8, vertexBuffer);
-            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        drawEnhancePass(enhanceTextures[0]);
+    }
 
-            ByteBuffer hsvBuffer = ByteBuffer.allocateDirect(renderBufferWidth * renderBufferHeight * 4);
-            GLES20.glReadPixels(0, 0, renderBufferWidth, renderBufferHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, hsvBuffer);
+    /**
+     * Binds the framebuffer the enhance histogram is read from and sets its size. Tile
+     * histograms are normalized by the tile area, so for large images a point sampled proxy of
+     * at most {@link #HISTOGRAM_PROXY_SIZE} per side gives the same table while reading back
+     * a fraction of the pixels.
+     */
+    private void bindHistogramSource() {
+        histogramWidth = Math.min(renderBufferWidth, HISTOGRAM_PROXY_SIZE);
+        histogramHeight = Math.min(renderBufferHeight, HISTOGRAM_PROXY_SIZE);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[0]);
+        if (histogramWidth == renderBufferWidth && histogramHeight == renderBufferHeight) {
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, enhanceTextures[0], 0);
+            return;
+        }
 
-            GLES20.glBindTexture(GL10.GL_TEXTURE_2D, enhanceTextures[0]);
-            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
-            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
-            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
-            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, renderBufferWidth, renderBufferHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, hsvBuffer);
+        if (histogramProxyTexture[0] == 0) {
+            GLES20.glGenTextures(1, histogramProxyTexture, 0);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, histogramProxyTexture[0]);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_NEAREST);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_NEAREST);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, histogramWidth, histogramHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, histogramProxyTexture[0], 0);
+        GLES20.glClear(0);
 
-            ByteBuffer buffer = null;
-            try {
-                buffer = ByteBuffer.allocateDirect(PGPhotoEnhanceSegments * PGPhotoEnhanceSegments * PGPhotoEnhanceHistogramBins * 4);
-                Utilities.calcCDT(hsvBuffer, renderBufferWidth, renderBufferHeight, buffer);
-            } catch (Exception e) {
-                FileLog.e(e);
-            }
+        GLES20.glViewport(0, 0, histogramWidth, histogramHeight);
+        GLES20.glUseProgram(simpleShaderProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, enhanceTextures[0]);
+        GLES20.glUniform1i(simpleSourceImageHandle, 0);
+        GLES20.glEnableVertexAttribArray(simpleInputTexCoordHandle);
+        GLES20.glVertexAttribPointer(simpleInputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
+        GLES20.glEnableVertexAttribArray(simplePositionHandle);
+        GLES20.glVertexAttribPointer(simplePositionHandle, 2, GLES20.GL_FLOAT, false, 8, vertexInvertBuffer);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glViewport(0, 0, renderBufferWidth, renderBufferHeight);
+    }
 
-            GLES20.glBindTexture(GL10.GL_TEXTURE_2D, enhanceTextures[1]);
-            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
-            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
-            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
-            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 256, 16, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+    /**
+     * Debug check of the proxy histogram, logs how far its table is from the full resolution one.
+     */
+    private void checkHistogramProxy() {
+        if (histogramWidth == renderBufferWidth && histogramHeight == renderBufferHeight) {
+            return;
+        }
+        ByteBuffer full = ByteBuffer.allocateDirect(cdtBuffer.capacity());
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, enhanceTextures[0], 0);
+        long time = System.currentTimeMillis();
+        Utilities.calcCDT(pixelReader.read(0, 0, renderBufferWidth, renderBufferHeight), renderBufferWidth, renderBufferHeight, full);
+        time = System.currentTimeMillis() - time;
+        int maxDifference = Clahe.maxDifference(full, cdtBuffer);
+        FileLog.d("enhance histogram proxy " + histogramWidth + "x" + histogramHeight + " max difference " + maxDifference + " (tolerance " + Clahe.PROXY_TOLERANCE + "), full resolution took " + time + "ms");
+    }
 
-            hsvGenerated = true;
+    private void generateCdt(ByteBuffer hsvBuffer, int width, int height) {
+        if (cdtBuffer == null) {
+            cdtBuffer = ByteBuffer.allocateDirect(PGPhotoEnhanceSegments * PGPhotoEnhanceSegments * PGPhotoEnhanceHistogramBins * 4);
+        }
+        try {
+            Utilities.calcCDT(hsvBuffer, width, height, cdtBuffer);
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        if (BuildVars.DEBUG_VERSION) {
+            checkHistogramProxy();
         }
 
+        GLES20.glBindTexture(GL10.GL_TEXTURE_2D, enhanceTextures[1]);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 256, 16, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, cdtBuffer);
+
+        cdtGenerated = true;
+    }
+
+    private void drawEnhancePass(int hsvTexture) {
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[1]);
         GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, renderTexture[1], 0);
         GLES20.glClear(0);
 
         GLES20.glUseProgram(enhanceShaderProgram);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, enhanceTextures[0]);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, hsvTexture);
         GLES20.glUniform1i(enhanceSourceImageHandle, 0);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, enhanceTextures[1]);
@@ -1059,8 +1199,9 @@ public class TelegramEGLThread extends DispatchQueue {
         if (showOriginal) {
             GLES20.glUniform1f(enhanceIntensityHandle, 0);
         } else {
-            GLES20.glUniform1f(enhanceIntensityHandle, getEnhanceValue());
+            GLES20.glUniform1f(enhanceIntensityHandle, cdtGenerated ? getEnhanceValue() : 0);
         }
+        GLES20.glUniform4f(enhanceTileRectHandle, enhanceTileRect[0], enhanceTileRect[1], enhanceTileRect[2], enhanceTileRect[3]);
 
         GLES20.glEnableVertexAttribArray(enhanceInputTexCoordHandle);
         GLES20.glVertexAttribPointer(enhanceInputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
@@ -1093,13 +1234,25 @@ public class TelegramEGLThread extends DispatchQueue {
     }
 
     private void drawCustomParamsPass() {
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[1]);
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, renderTexture[1], 0);
+        if (colorLutSupported && boundImg.getColorLutPreview()) {
+            bakeColorLut();
+            drawColorLutPass();
+        } else {
+            drawToolsPass(renderTexture[0], renderTexture[3], false);
+        }
+    }
+
+    /**
+     * @param pointwise leaves out grain and vignette, for baking the LUT
+     */
+    private void drawToolsPass(int sourceTexture, int targetTexture, boolean pointwise) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[3]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, targetTexture, 0);
         GLES20.glClear(0);
 
         GLES20.glUseProgram(toolsShaderProgram);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[0]);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, sourceTexture);
         GLES20.glUniform1i(sourceImageHandle, 0);
         if (showOriginal) {
             GLES20.glUniform1f(shadowsHandle, 1);
@@ -1123,8 +1276,8 @@ public class TelegramEGLThread extends DispatchQueue {
             GLES20.glUniform1f(contrastHandle, getContrastValue());
             GLES20.glUniform1f(saturationHandle, getSaturationValue());
             GLES20.glUniform1f(warmthHandle, getWarmthValue());
-            GLES20.glUniform1f(vignetteHandle, getVignetteValue());
-            GLES20.glUniform1f(grainHandle, getGrainValue());
+            GLES20.glUniform1f(vignetteHandle, pointwise ? 0 : getVignetteValue());
+            GLES20.glUniform1f(grainHandle, pointwise ? 0 : getGrainValue());
             GLES20.glUniform1f(fadeAmountHandle, getFadeValue());
             int tintHighlightsColor = getTintHighlightsColor();
             GLES20.glUniform3f(highlightsTintColorHandle, (tintHighlightsColor >> 16 & 0xff) / 255.0f, (tintHighlightsColor >> 8 & 0xff) / 255.0f, (tintHighlightsColor & 0xff) / 255.0f);
@@ -1135,20 +1288,22 @@ public class TelegramEGLThread extends DispatchQueue {
             boolean skipTone = getCurveToolValue().shouldBeSkipped();
             GLES20.glUniform1f(skipToneHandle, skipTone ? 1.0f : 0.0f);
             if (!skipTone) {
-                getCurveToolValue().fillBuffer();
                 GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
                 GLES20.glBindTexture(GL10.GL_TEXTURE_2D, curveTextures[0]);
-                GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
-                GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
-                GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
-                GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
-                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 200, 1, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, getCurveToolValue().getCurveBuffer());
+                int stamp = getCurveToolValue().getModificationStamp();
+                if (stamp != curveTextureStamp) {
+                    getCurveToolValue().fillBuffer();
+                    GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, FilterParams.CURVE_RESOLUTION, 1, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, getCurveToolValue().getCurveBuffer());
+                    curveTextureStamp = stamp;
+                    curveTextureUploads++;
+                }
                 GLES20.glUniform1i(curvesImageHandle, 1);
             }
         }
 
-        GLES20.glUniform1f(widthHandle, renderBufferWidth);
-        GLES20.glUniform1f(heightHandle, renderBufferHeight);
+        GLES20.glUniform1f(widthHandle, previewWidth);
+        GLES20.glUniform1f(heightHandle, previewHeight);
+        GLES20.glUniform4f(tileRectHandle, tileRect[0], tileRect[1], tileRect[2], tileRect[3]);
         GLES20.glEnableVertexAttribArray(inputTexCoordHandle);
         GLES20.glVertexAttribPointer(inputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
         GLES20.glEnableVertexAttribArray(positionHandle);
@@ -1156,40 +1311,77 @@ public class TelegramEGLThread extends DispatchQueue {
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
     }
 
-    private boolean drawBlurPass() {
-        if (showOriginal || getBlurType() == 0) {
-            return false;
+    /**
+     * Runs the tools shader over the identity LUT, which leaves the pointwise adjustments baked
+     * into a strip of COLOR_LUT_SIZE blue slices. The strip has about 36k texels for the 33^3
+     * LUT, a fraction of what the full tools shader costs over the image.
+     */
+    private void bakeColorLut() {
+        int width = COLOR_LUT_SIZE * COLOR_LUT_SIZE;
+        if (!colorLutLoaded) {
+            ByteBuffer identity = ByteBuffer.allocateDirect(width * COLOR_LUT_SIZE * 4);
+            for (int g = 0; g < COLOR_LUT_SIZE; g++) {
+                for (int b = 0; b < COLOR_LUT_SIZE; b++) {
+                    for (int r = 0; r < COLOR_LUT_SIZE; r++) {
+                        identity.put((byte) Math.round(r * 255.0f / (COLOR_LUT_SIZE - 1)));
+                        identity.put((byte) Math.round(g * 255.0f / (COLOR_LUT_SIZE - 1)));
+                        identity.put((byte) Math.round(b * 255.0f / (COLOR_LUT_SIZE - 1)));
+                        identity.put((byte) 255);
+                    }
+                }
+            }
+            identity.position(0);
+            for (int a = 0; a < 2; a++) {
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, colorLutTextures[a]);
+                GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, a == 0 ? GL10.GL_NEAREST : GL10.GL_LINEAR);
+                GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, a == 0 ? GL10.GL_NEAREST : GL10.GL_LINEAR);
+                GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+                GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, COLOR_LUT_SIZE, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, a == 0 ? identity : null);
+            }
+            colorLutLoaded = true;
         }
-        if (needUpdateBlurTexture) {
-            GLES20.glUseProgram(blurShaderProgram);
-            GLES20.glUniform1i(blurSourceImageHandle, 0);
-            GLES20.glEnableVertexAttribArray(blurInputTexCoordHandle);
-            GLES20.glVertexAttribPointer(blurInputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
-            GLES20.glEnableVertexAttribArray(blurPositionHandle);
-            GLES20.glVertexAttribPointer(blurPositionHandle, 2, GLES20.GL_FLOAT, false, 8, vertexInvertBuffer);
 
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[0]);
-            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, renderTexture[0], 0);
-            GLES20.glClear(0);
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[1]);
-            GLES20.glUniform1f(blurWidthHandle, 0.0f);
-            GLES20.glUniform1f(blurHeightHandle, 1.0f / renderBufferHeight);
-            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glViewport(0, 0, width, COLOR_LUT_SIZE);
+        drawToolsPass(colorLutTextures[0], colorLutTextures[1], true);
+        GLES20.glViewport(0, 0, renderBufferWidth, renderBufferHeight);
+    }
 
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[2]);
-            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, renderTexture[2], 0);
-            GLES20.glClear(0);
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[0]);
-            GLES20.glUniform1f(blurWidthHandle, 1.0f / renderBufferWidth);
-            GLES20.glUniform1f(blurHeightHandle, 0.0f);
-            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-            needUpdateBlurTexture = false;
+    private void drawColorLutPass() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[3]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, renderTexture[3], 0);
+        GLES20.glClear(0);
+
+        GLES20.glUseProgram(colorLutShaderProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[0]);
+        GLES20.glUniform1i(colorLutSourceImageHandle, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, colorLutTextures[1]);
+        GLES20.glUniform1i(colorLutImageHandle, 1);
+        GLES20.glUniform1f(colorLutSizeHandle, COLOR_LUT_SIZE);
+        GLES20.glUniform1f(colorLutGrainHandle, showOriginal ? 0 : getGrainValue());
+        GLES20.glUniform1f(colorLutVignetteHandle, showOriginal ? 0 : getVignetteValue());
+        GLES20.glUniform1f(colorLutWidthHandle, previewWidth);
+        GLES20.glUniform1f(colorLutHeightHandle, previewHeight);
+        GLES20.glUniform4f(colorLutTileRectHandle, tileRect[0], tileRect[1], tileRect[2], tileRect[3]);
+        GLES20.glEnableVertexAttribArray(colorLutInputTexCoordHandle);
+        GLES20.glVertexAttribPointer(colorLutInputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
+        GLES20.glEnableVertexAttribArray(colorLutPositionHandle);
+        GLES20.glVertexAttribPointer(colorLutPositionHandle, 2, GLES20.GL_FLOAT, false, 8, vertexInvertBuffer);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private boolean drawBlurPass(boolean updateBlur) {
+        if (showOriginal || getBlurType() == 0) {
+            return false;
+        }
+        if (updateBlur) {
+            drawBlurPyramid();
         }
 
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[0]);
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, renderTexture[0], 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[4]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, renderTexture[4], 0);
         GLES20.glClear(0);
         if (getBlurType() == 1) {
             GLES20.glUseProgram(radialBlurShaderProgram);
@@ -1198,7 +1390,8 @@ public class TelegramEGLThread extends DispatchQueue {
             GLES20.glUniform1f(radialBlurExcludeSizeHandle, getBlurExcludeSize());
             GLES20.glUniform1f(radialBlurExcludeBlurSizeHandle, getBlurExcludeBlurSize());
             GLES20.glUniform2f(radialBlurExcludePointHandle, getBlurExcludePoint().x, getBlurExcludePoint().y);
-            GLES20.glUniform1f(radialBlurAspectRatioHandle, (float) renderBufferHeight / (float) renderBufferWidth);
+            GLES20.glUniform1f(radialBlurAspectRatioHandle, (float) previewHeight / (float) previewWidth);
+            GLES20.glUniform4f(radialBlurTileRectHandle, tileRect[0], tileRect[1], tileRect[2], tileRect[3]);
             GLES20.glEnableVertexAttribArray(radialBlurInputTexCoordHandle);
             GLES20.glVertexAttribPointer(radialBlurInputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
             GLES20.glEnableVertexAttribArray(radialBlurPositionHandle);
@@ -1211,7 +1404,8 @@ public class TelegramEGLThread extends DispatchQueue {
             GLES20.glUniform1f(linearBlurExcludeBlurSizeHandle, getBlurExcludeBlurSize());
             GLES20.glUniform1f(linearBlurAngleHandle, getBlurAngle());
             GLES20.glUniform2f(linearBlurExcludePointHandle, getBlurExcludePoint().x, getBlurExcludePoint().y);
-            GLES20.glUniform1f(linearBlurAspectRatioHandle, (float) renderBufferHeight / (float) renderBufferWidth);
+            GLES20.glUniform1f(linearBlurAspectRatioHandle, (float) previewHeight / (float) previewWidth);
+            GLES20.glUniform4f(linearBlurTileRectHandle, tileRect[0], tileRect[1], tileRect[2], tileRect[3]);
             GLES20.glEnableVertexAttribArray(linearBlurInputTexCoordHandle);
             GLES20.glVertexAttribPointer(linearBlurInputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
             GLES20.glEnableVertexAttribArray(linearBlurPositionHandle);
@@ -1219,7 +1413,7 @@ public class TelegramEGLThread extends DispatchQueue {
         }
 
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[1]);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[3]);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[2]);
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
@@ -1227,6 +1421,95 @@ public class TelegramEGLThread extends DispatchQueue {
         return true;
     }
 
+    /**
+     * Blurs the tools output into renderTexture[2]. Wide radii are blurred on a downsampled
+     * copy, see {@link FilterEngine#getBlurLevels}, so the 9 taps stay dense and the cost
+     * drops with every level instead of growing with the radius.
+     */
+    private void drawBlurPyramid() {
+        float radius = getBlurRadius() * blurScale;
+        int levels = FilterEngine.getBlurLevels(radius);
+        radius /= 1 << levels;
+
+        int width = renderBufferWidth;
+        int height = renderBufferHeight;
+        int source = renderTexture[3];
+        for (int level = 0; level < levels; level++) {
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+            prepareBlurLevel(level, width, height);
+            drawResamplePass(source, blurPyramidTextures[level * 2], width, height);
+            source = blurPyramidTextures[level * 2];
+        }
+
+        if (levels == 0) {
+            drawGaussianPass(source, renderTexture[4], width, height, 0.0f, radius / height);
+            drawGaussianPass(renderTexture[4], renderTexture[2], width, height, radius / width, 0.0f);
+            return;
+        }
+        int scratch = blurPyramidTextures[(levels - 1) * 2 + 1];
+        drawGaussianPass(source, scratch, width, height, 0.0f, radius / height);
+        drawGaussianPass(scratch, source, width, height, radius / width, 0.0f);
+        for (int level = levels - 2; level >= 0; level--) {
+            drawResamplePass(blurPyramidTextures[(level + 1) * 2], blurPyramidTextures[level * 2], blurPyramidSizes[level * 2], blurPyramidSizes[level * 2 + 1]);
+        }
+        drawResamplePass(blurPyramidTextures[0], renderTexture[2], renderBufferWidth, renderBufferHeight);
+        GLES20.glViewport(0, 0, renderBufferWidth, renderBufferHeight);
+    }
+
+    private void prepareBlurLevel(int level, int width, int height) {
+        if (blurPyramidTextures[0] == 0) {
+            GLES20.glGenTextures(blurPyramidTextures.length, blurPyramidTextures, 0);
+        }
+        if (blurPyramidSizes[level * 2] == width && blurPyramidSizes[level * 2 + 1] == height) {
+            return;
+        }
+        for (int a = level * 2; a < level * 2 + 2; a++) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, blurPyramidTextures[a]);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        }
+        blurPyramidSizes[level * 2] = width;
+        blurPyramidSizes[level * 2 + 1] = height;
+    }
+
+    private void drawResamplePass(int sourceTexture, int targetTexture, int width, int height) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[4]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, targetTexture, 0);
+        GLES20.glClear(0);
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glUseProgram(simpleShaderProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, sourceTexture);
+        GLES20.glUniform1i(simpleSourceImageHandle, 0);
+        GLES20.glEnableVertexAttribArray(simpleInputTexCoordHandle);
+        GLES20.glVertexAttribPointer(simpleInputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
+        GLES20.glEnableVertexAttribArray(simplePositionHandle);
+        GLES20.glVertexAttribPointer(simplePositionHandle, 2, GLES20.GL_FLOAT, false, 8, vertexInvertBuffer);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private void drawGaussianPass(int sourceTexture, int targetTexture, int width, int height, float widthOffset, float heightOffset) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[4]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, targetTexture, 0);
+        GLES20.glClear(0);
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glUseProgram(blurShaderProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, sourceTexture);
+        GLES20.glUniform1i(blurSourceImageHandle, 0);
+        GLES20.glUniform1f(blurWidthHandle, widthOffset);
+        GLES20.glUniform1f(blurHeightHandle, heightOffset);
+        GLES20.glEnableVertexAttribArray(blurInputTexCoordHandle);
+        GLES20.glVertexAttribPointer(blurInputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
+        GLES20.glEnableVertexAttribArray(blurPositionHandle);
+        GLES20.glVertexAttribPointer(blurPositionHandle, 2, GLES20.GL_FLOAT, false, 8, vertexInvertBuffer);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
     private Runnable drawRunnable = new Runnable() {
         @Override
         public void run() {
@@ -1244,10 +1527,20 @@ public class TelegramEGLThread extends DispatchQueue {
             }
 
             GLES20.glViewport(0, 0, renderBufferWidth, renderBufferHeight);
-            drawEnhancePass();
-            drawSharpenPass();
-            drawCustomParamsPass();
-            blured = drawBlurPass();
+            if ((dirtyPasses & PASS_ENHANCE) != 0) {
+                drawEnhancePass();
+            }
+            if ((dirtyPasses & PASS_SHARPEN) != 0) {
+                drawSharpenPass();
+            }
+            if ((dirtyPasses & PASS_TOOLS) != 0) {
+                drawCustomParamsPass();
+            }
+            if ((dirtyPasses & (PASS_BLUR | PASS_BLUR_MASK)) != 0) {
+                blured = drawBlurPass((dirtyPasses & PASS_BLUR) != 0);
+            }
+            // while the blur is off its cached textures are not refreshed, keep them dirty
+            dirtyPasses = blured ? 0 : dirtyPasses & (PASS_BLUR | PASS_BLUR_MASK);
 
             //onscreen draw
             GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
@@ -1256,7 +1549,7 @@ public class TelegramEGLThread extends DispatchQueue {
 
             GLES20.glUseProgram(simpleShaderProgram);
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[blured ? 0 : 1]);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[blured ? 4 : 3]);
             GLES20.glUniform1i(simpleSourceImageHandle, 0);
             GLES20.glEnableVertexAttribArray(simpleInputTexCoordHandle);
             GLES20.glVertexAttribPointer(simpleInputTexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
@@ -1268,13 +1561,25 @@ public class TelegramEGLThread extends DispatchQueue {
     };
 
     private Bitmap getRenderBufferBitmap() {
-        ByteBuffer buffer = ByteBuffer.allocateDirect(renderBufferWidth * renderBufferHeight * 4);
-        GLES20.glReadPixels(0, 0, renderBufferWidth, renderBufferHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
-        Bitmap bitmap = Bitmap.createBitmap(renderBufferWidth, renderBufferHeight, Bitmap.Config.ARGB_8888);
+        return createBitmap(pixelReader.read(0, 0, renderBufferWidth, renderBufferHeight), renderBufferWidth, renderBufferHeight);
+    }
+
+    private static Bitmap createBitmap(ByteBuffer buffer, int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         bitmap.copyPixelsFromBuffer(buffer);
         return bitmap;
     }
 
+    private void bindResultFrameBuffer() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[1]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, renderTexture[blured ? 4 : 3], 0);
+        GLES20.glClear(0);
+    }
+
+    /**
+     * Blocks the calling thread until the preview result has been read back,
+     * prefer {@link #getTexture(BitmapCallback)}.
+     */
     public Bitmap getTexture() {
         if (!initied) {
             return null;
@@ -1283,9 +1588,7 @@ public class TelegramEGLThread extends DispatchQueue {
         final Bitmap[] object = new Bitmap[1];
         try {
             postRunnable(() -> {
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[1]);
-                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, renderTexture[blured ? 0 : 1], 0);
-                GLES20.glClear(0);
+                bindResultFrameBuffer();
                 object[0] = getRenderBufferBitmap();
                 countDownLatch.countDown();
                 GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
@@ -1298,6 +1601,246 @@ public class TelegramEGLThread extends DispatchQueue {
         return object[0];
     }
 
+    /**
+     * Reads the preview result back without blocking either the caller or the GL thread while
+     * the GPU finishes. The callback runs on the UI thread.
+     */
+    public void getTexture(final BitmapCallback callback) {
+        if (!initied) {
+            callback.onBitmapReady(null);
+            return;
+        }
+        postRunnable(() -> {
+            bindResultFrameBuffer();
+            pixelReader.readAsync(0, 0, renderBufferWidth, renderBufferHeight, (buffer, width, height) -> {
+                Bitmap bitmap = createBitmap(buffer, width, height);
+                AndroidUtilities.runOnUIThread(() -> callback.onBitmapReady(bitmap));
+            });
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glClear(0);
+        });
+    }
+
+    /**
+     * Renders the filters over the original bitmap at its native resolution, or the largest
+     * the {@link ExportPolicy} allows. The preview
+     * render buffer is left untouched; the image is processed in overlapping tiles of
+     * {@link #EXPORT_TILE_SIZE} pixels which are streamed into the result, so GPU memory
+     * stays bounded by the tile size regardless of the source size.
+     */
+    public Bitmap getFullResolutionTexture() {
+        if (!initied || sourceBitmap == null) {
+            return null;
+        }
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        final Bitmap[] object = new Bitmap[1];
+        try {
+            postRunnable(() -> {
+                try {
+                    object[0] = renderTiled(sourceBitmap);
+                } catch (Throwable e) {
+                    FileLog.e(e);
+                }
+                countDownLatch.countDown();
+            });
+            countDownLatch.await();
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        return object[0];
+    }
+
+    /**
+     * Same as {@link #getFullResolutionTexture()} without blocking the caller.
+     * The callback runs on the UI thread.
+     */
+    public void getFullResolutionTexture(final BitmapCallback callback) {
+        if (!initied || sourceBitmap == null) {
+            callback.onBitmapReady(null);
+            return;
+        }
+        postRunnable(() -> {
+            Bitmap bitmap = null;
+            try {
+                bitmap = renderTiled(sourceBitmap);
+            } catch (Throwable e) {
+                FileLog.e(e);
+            }
+            final Bitmap result = bitmap;
+            AndroidUtilities.runOnUIThread(() -> callback.onBitmapReady(result));
+        });
+    }
+
+    private Bitmap renderTiled(Bitmap source) {
+        // a source larger than the export policy allows is scaled down a tile at a time as it is
+        // uploaded, only the result is held at the export size
+        SizeX size = ExportPolicy.getDefault().fitSize(source.getWidth(), source.getHeight(), 1);
+        return renderTiles(source, Math.min(size.getWidth(), source.getWidth()), Math.min(size.getHeight(), source.getHeight()));
+    }
+
+    /**
+     * Renders {@code source} scaled to {@code width} x {@code height}.
+     */
+    private Bitmap renderTiles(Bitmap source, int width, int height) {
+        float scale = Math.max(1.0f, (float) width / previewWidth);
+
+        // sharpen samples one texel around, the blur passes BLUR_RADIUS texels scaled to the
+        // source plus a texel of every pyramid level. Tiles start on the coarsest level's grid so
+        // each one downsamples the same pixels together as the full frame would
+        int padding = 2;
+        int alignment = 1;
+        if (getBlurType() != 0) {
+            float radius = getBlurRadius() * scale;
+            alignment = 1 << FilterEngine.getBlurLevels(radius);
+            padding += (int) Math.ceil(BLUR_RADIUS * radius) + alignment * 2;
+            padding = (padding + alignment - 1) / alignment * alignment;
+        }
+        int[] maxTextureSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+        int tileSize = Math.min(EXPORT_TILE_SIZE, maxTextureSize[0] - padding * 2) / alignment * alignment;
+        if (tileSize <= 0) {
+            return null;
+        }
+        int regionSize = tileSize + padding * 2;
+
+        if (getEnhanceValue() > 0 && !cdtGenerated) {
+            // tiles can't wait for the async histogram
+            if (!hsvGenerated) {
+                drawRgbToHsvPass(enhanceTextures[0]);
+                hsvGenerated = true;
+            }
+            bindHistogramSource();
+            generateCdt(pixelReader.read(0, 0, histogramWidth, histogramHeight), histogramWidth, histogramHeight);
+        }
+
+        Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int[] pixels = new int[regionSize * regionSize];
+        // the source region of a tile is sampled into it at the result scale
+        Bitmap region = null;
+        Canvas regionCanvas = null;
+        Matrix regionMatrix = null;
+        Paint regionPaint = null;
+        if (width != source.getWidth() || height != source.getHeight()) {
+            region = Bitmap.createBitmap(Math.min(regionSize, width), Math.min(regionSize, height), Bitmap.Config.ARGB_8888);
+            regionCanvas = new Canvas(region);
+            regionMatrix = new Matrix();
+            regionPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(regionSize * regionSize * 4);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        int[] previewTexture = renderTexture;
+        int[] previewFrameBuffer = renderFrameBuffer;
+        int previewBufferWidth = renderBufferWidth;
+        int previewBufferHeight = renderBufferHeight;
+
+        GLES20.glGenFramebuffers(RENDER_TEXTURES_COUNT, exportFrameBuffer, 0);
+        GLES20.glGenTextures(RENDER_TEXTURES_COUNT, exportTexture, 0);
+        renderTexture = exportTexture;
+        renderFrameBuffer = exportFrameBuffer;
+        blurScale = scale;
+        try {
+            for (int top = 0; top < height; top += tileSize) {
+                for (int left = 0; left < width; left += tileSize) {
+                    int w = Math.min(tileSize, width - left);
+                    int h = Math.min(tileSize, height - top);
+                    int regionLeft = Math.max(0, left - padding);
+                    int regionTop = Math.max(0, top - padding);
+                    int regionWidth = Math.min(width, left + w + padding) - regionLeft;
+                    int regionHeight = Math.min(height, top + h + padding) - regionTop;
+
+                    prepareExportTextures(regionWidth, regionHeight);
+
+                    if (region != null) {
+                        regionMatrix.setScale((float) width / source.getWidth(), (float) height / source.getHeight());
+                        regionMatrix.postTranslate(-regionLeft, -regionTop);
+                        region.eraseColor(0);
+                        regionCanvas.drawBitmap(source, regionMatrix, regionPaint);
+                        region.getPixels(pixels, 0, regionWidth, 0, 0, regionWidth, regionHeight);
+                    } else {
+                        source.getPixels(pixels, 0, regionWidth, regionLeft, regionTop, regionWidth, regionHeight);
+                    }
+                    swapRedBlue(pixels, regionWidth * regionHeight);
+                    buffer.asIntBuffer().put(pixels, 0, regionWidth * regionHeight);
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[1]);
+                    GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, regionWidth, regionHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+
+                    tileRect[0] = (float) regionLeft / width;
+                    tileRect[1] = (float) regionTop / height;
+                    tileRect[2] = (float) regionWidth / width;
+                    tileRect[3] = (float) regionHeight / height;
+                    // the hsv texture is vertically flipped, see drawEnhancePass
+                    enhanceTileRect[0] = tileRect[0];
+                    enhanceTileRect[1] = (float) (height - regionTop - regionHeight) / height;
+                    enhanceTileRect[2] = tileRect[2];
+                    enhanceTileRect[3] = tileRect[3];
+
+                    GLES20.glViewport(0, 0, regionWidth, regionHeight);
+                    drawRgbToHsvPass(renderTexture[0]);
+                    drawEnhancePass(renderTexture[0]);
+                    drawSharpenPass();
+                    // the export always runs the exact tools shader, the LUT is a preview mode
+                    drawToolsPass(renderTexture[0], renderTexture[3], false);
+                    boolean tileBlured = drawBlurPass(true);
+
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, renderFrameBuffer[1]);
+                    GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, renderTexture[tileBlured ? 4 : 3], 0);
+                    buffer.position(0);
+                    GLES20.glReadPixels(left - regionLeft, top - regionTop, w, h, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+                    buffer.asIntBuffer().get(pixels, 0, w * h);
+                    swapRedBlue(pixels, w * h);
+                    result.setPixels(pixels, 0, w, left, top, w, h);
+                }
+            }
+        } finally {
+            if (region != null) {
+                region.recycle();
+            }
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glDeleteTextures(RENDER_TEXTURES_COUNT, exportTexture, 0);
+            GLES20.glDeleteFramebuffers(RENDER_TEXTURES_COUNT, exportFrameBuffer, 0);
+            exportTextureWidth = 0;
+            exportTextureHeight = 0;
+
+            renderTexture = previewTexture;
+            renderFrameBuffer = previewFrameBuffer;
+            renderBufferWidth = previewBufferWidth;
+            renderBufferHeight = previewBufferHeight;
+            blurScale = 1.0f;
+            tileRect[0] = tileRect[1] = enhanceTileRect[0] = enhanceTileRect[1] = 0;
+            tileRect[2] = tileRect[3] = enhanceTileRect[2] = enhanceTileRect[3] = 1;
+        }
+        return result;
+    }
+
+    private void prepareExportTextures(int width, int height) {
+        renderBufferWidth = width;
+        renderBufferHeight = height;
+        if (exportTextureWidth == width && exportTextureHeight == height) {
+            return;
+        }
+        for (int a = 0; a < RENDER_TEXTURES_COUNT; a++) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, exportTexture[a]);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        }
+        exportTextureWidth = width;
+        exportTextureHeight = height;
+    }
+
+    /**
+     * Converts between {@link Bitmap} ARGB ints and little endian RGBA ints in place.
+     */
+    private static void swapRedBlue(int[] pixels, int count) {
+        for (int a = 0; a < count; a++) {
+            int color = pixels[a];
+            pixels[a] = (color & 0xff00ff00) | ((color & 0xff) << 16) | ((color >> 16) & 0xff);
+        }
+    }
+
     private Bitmap createBitmap(Bitmap bitmap, int w, int h, float scale) {
         Matrix matrix = new Matrix();
         matrix.setScale(scale, scale);
@@ -1308,7 +1851,7 @@ public class TelegramEGLThread extends DispatchQueue {
     private void loadTexture(Bitmap bitmap) {
         renderBufferWidth = bitmap.getWidth();
         renderBufferHeight = bitmap.getHeight();
-        float maxSize = AndroidUtilities.getPhotoSize();
+        float maxSize = ExportPolicy.getDefault().getPreviewSide();
         if (renderBufferWidth > maxSize || renderBufferHeight > maxSize || orientation % 360 != 0) {
             float scale = 1;
             if (renderBufferWidth > maxSize || renderBufferHeight > maxSize) {
@@ -1333,35 +1876,48 @@ public class TelegramEGLThread extends DispatchQueue {
 
             currentBitmap = createBitmap(bitmap, renderBufferWidth, renderBufferHeight, scale);
         }
-        GLES20.glGenFramebuffers(3, renderFrameBuffer, 0);
-        GLES20.glGenTextures(3, renderTexture, 0);
-
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[0]);
-        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
-        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
-        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, renderBufferWidth, renderBufferHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        previewWidth = renderBufferWidth;
+        previewHeight = renderBufferHeight;
+        GLES20.glGenFramebuffers(RENDER_TEXTURES_COUNT, renderFrameBuffer, 0);
+        GLES20.glGenTextures(RENDER_TEXTURES_COUNT, renderTexture, 0);
 
-        GLES20.glBindTexture(GL10.GL_TEXTURE_2D, renderTexture[1]);
-        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
-        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
-        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
-        GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, currentBitmap, 0);
+        for (int a = 0; a < RENDER_TEXTURES_COUNT; a++) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[a]);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+            if (a == 1) {
+                GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, currentBitmap, 0);
+            } else {
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, renderBufferWidth, renderBufferHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            }
+        }
 
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture[2]);
-        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
-        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+        // the hsv pass renders straight into the enhance input, no readback needed for it.
+        // It is only sampled 1:1 or to point sample the histogram proxy, hence nearest
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, enhanceTextures[0]);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_NEAREST);
+        GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_NEAREST);
         GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
         GLES20.glTexParameteri(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
         GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, renderBufferWidth, renderBufferHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        dirtyPasses = PASS_ALL;
     }
 
     public void shutdown() {
         postRunnable(() -> {
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.d("filter frames requested " + getRequestedFrames() + " rendered " + getRenderedFrames() + " merged " + getMergedFrames() + " cancelled " + getCancelledFrames() + " dropped " + getDroppedFrames());
+            }
+            cancelFrameRunnable();
+            if (pixelReader != null) {
+                pixelReader.release();
+                pixelReader = null;
+            }
             finish();
             currentBitmap = null;
+            sourceBitmap = null;
             Looper looper = Looper.myLooper();
             if (looper != null) {
                 looper.quit();
@@ -1380,21 +1936,31 @@ public class TelegramEGLThread extends DispatchQueue {
         super.run();
     }
 
-    public void requestRender(final boolean updateBlur) {
-        requestRender(updateBlur, false);
+    /**
+     * Marks the given passes and every pass after them as dirty.
+     */
+    private void invalidatePasses(int passes) {
+        if (passes != 0) {
+            int first = Integer.lowestOneBit(passes);
+            dirtyPasses |= PASS_ALL & ~(first - 1);
+        }
+    }
+
+    /**
+     * @param passes the {@code PASS_*} flags whose inputs changed, 0 to redraw the cached result
+     */
+    public void requestRender(final int passes) {
+        requestRender(passes, false);
     }
 
-    public void requestRender(final boolean updateBlur, final boolean force) {
+    public void requestRender(final int passes, final boolean force) {
         postRunnable(() -> {
-            if (!needUpdateBlurTexture) {
-                needUpdateBlurTexture = updateBlur;
-            }
-            long newTime = System.currentTimeMillis();
-            if (force || Math.abs(lastRenderCallTime - newTime) > 30) {
-                lastRenderCallTime = newTime;
+            invalidatePasses(passes);
+            if (force) {
+                cancelFrameRunnable();
                 drawRunnable.run();
-                //cancelRunnable(drawRunnable);
-                //postRunnable(drawRunnable, 30);
+            } else {
+                postFrameRunnable(drawRunnable);
             }
         });
     }
@@ -1407,6 +1973,13 @@ public class TelegramEGLThread extends DispatchQueue {
         this.boundImg = boundImg;
     }
 
+    /**
+     * Number of times the curves texture was uploaded, redraws without curve edits leave it as is.
+     */
+    public int getCurveTextureUploads() {
+        return curveTextureUploads;
+    }
+
     private float getShadowsValue() {
         return (boundImg.getShadowsValue() * 0.55f + 100.0f) / 100.0f;
     }
@@ -1493,6 +2066,10 @@ public class TelegramEGLThread extends DispatchQueue {
         return boundImg.getBlurAngle();
     }
 
+    private float getBlurRadius() {
+        return boundImg.getBlurRadius();
+    }
+
     private CurvesToolValue getCurveToolValue() {
         return boundImg.getCurvesToolValue();
     }
@@ -4,10 +4,16 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
 import com.felan.photoeditor.R;
+import com.felan.photoeditor.engine.EditRecipe;
 import com.felan.photoeditor.utils.ApplicationLoader;
 
 public interface Brush {
 
+    /**
+     * One of the {@code BRUSH_} constants of {@link EditRecipe.Stroke}, strokes are recorded with it.
+     */
+    int getType();
+
     float getSpacing();
 
     float getAlpha();
@@ -22,6 +28,11 @@ public interface Brush {
 
     class Radial implements Brush {
 
+        @Override
+        public int getType() {
+            return EditRecipe.Stroke.BRUSH_RADIAL;
+        }
+
         @Override
         public float getSpacing() {
             return 0.15f;
@@ -57,6 +68,11 @@ public interface Brush {
 
     class Elliptical implements Brush {
 
+        @Override
+        public int getType() {
+            return EditRecipe.Stroke.BRUSH_ELLIPTICAL;
+        }
+
         @Override
         public float getSpacing() {
             return 0.04f;
@@ -92,6 +108,11 @@ public interface Brush {
 
     class Neon implements Brush {
 
+        @Override
+        public int getType() {
+            return EditRecipe.Stroke.BRUSH_NEON;
+        }
+
         @Override
         public float getSpacing() {
             return 0.07f;
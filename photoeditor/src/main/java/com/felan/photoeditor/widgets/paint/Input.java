@@ -6,8 +6,6 @@ import android.view.MotionEvent;
 
 import com.felan.photoeditor.utils.AndroidUtilities;
 
-import java.util.Vector;
-
 public class Input {
 
     private RenderView renderView;
@@ -17,10 +15,12 @@ public class Input {
     private boolean hasMoved;
     private boolean clearBuffer;
 
-    private Point lastLocation;
+    private float lastLocationX;
+    private float lastLocationY;
     private double lastRemainder;
 
-    private Point[] points = new Point[3];
+    private float[] pointsX = new float[3];
+    private float[] pointsY = new float[3];
     private int pointsCount;
 
     private Matrix invertMatrix;
@@ -44,7 +44,8 @@ public class Input {
         tempPoint[1] = y;
         invertMatrix.mapPoints(tempPoint);
 
-        Point location = new Point(tempPoint[0], tempPoint[1], 1.0f);
+        float locationX = tempPoint[0];
+        float locationY = tempPoint[1];
 
         switch (action) {
             case MotionEvent.ACTION_DOWN:
@@ -54,14 +55,16 @@ public class Input {
                     hasMoved = false;
                     isFirst = true;
 
-                    lastLocation = location;
+                    lastLocationX = locationX;
+                    lastLocationY = locationY;
 
-                    points[0] = location;
+                    pointsX[0] = locationX;
+                    pointsY[0] = locationY;
                     pointsCount = 1;
 
                     clearBuffer = true;
                 } else {
-                    float distance = location.getDistanceTo(lastLocation);
+                    float distance = getDistance(locationX, locationY, lastLocationX, lastLocationY);
                     if (distance < AndroidUtilities.dp(5.0f)) {
                         return;
                     }
@@ -71,14 +74,16 @@ public class Input {
                         hasMoved = true;
                     }
 
-                    points[pointsCount] = location;
+                    pointsX[pointsCount] = locationX;
+                    pointsY[pointsCount] = locationY;
                     pointsCount++;
 
                     if (pointsCount == 3) {
                         smoothenAndPaintPoints(false);
                     }
 
-                    lastLocation = location;
+                    lastLocationX = locationX;
+                    lastLocationY = locationY;
                 }
             }
             break;
@@ -86,8 +91,7 @@ public class Input {
             case MotionEvent.ACTION_UP: {
                 if (!hasMoved) {
                     if (renderView.shouldDraw()) {
-                        location.edge = true;
-                        paintPath(new Path(location));
+                        paintPath(new Path(locationX, locationY, true));
                     }
                     reset();
                 } else if (pointsCount > 0) {
@@ -111,48 +115,41 @@ public class Input {
 
     private void smoothenAndPaintPoints(boolean ended) {
         if (pointsCount > 2) {
-            Vector<Point> points = new Vector<>();
-
-            Point prev2 = this.points[0];
-            Point prev1 = this.points[1];
-            Point cur = this.points[2];
-
-            if (cur == null || prev1 == null || prev2 == null) {
-                return;
-            }
-
-            Point midPoint1 = prev1.multiplySum(prev2, 0.5f);
-            Point midPoint2 = cur.multiplySum(prev1, 0.5f);
+            float prev2X = pointsX[0];
+            float prev2Y = pointsY[0];
+            float prev1X = pointsX[1];
+            float prev1Y = pointsY[1];
+            float curX = pointsX[2];
+            float curY = pointsY[2];
+
+            float midPoint1X = (prev1X + prev2X) * 0.5f;
+            float midPoint1Y = (prev1Y + prev2Y) * 0.5f;
+            float midPoint2X = (curX + prev1X) * 0.5f;
+            float midPoint2Y = (curY + prev1Y) * 0.5f;
 
             int segmentDistance = 1;
-            float distance = midPoint1.getDistanceTo(midPoint2);
+            float distance = getDistance(midPoint1X, midPoint1Y, midPoint2X, midPoint2Y);
             int numberOfSegments = (int) Math.min(48, Math.max(Math.floor(distance / segmentDistance), 24));
 
             float t = 0.0f;
             float step = 1.0f / (float) numberOfSegments;
 
+            Path path = new Path(numberOfSegments + 1);
             for (int j = 0; j < numberOfSegments; j++) {
-                Point point = smoothPoint(midPoint1, midPoint2, prev1, t);
-                if (isFirst) {
-                    point.edge = true;
-                    isFirst = false;
-                }
-                points.add(point);
+                // quadratic bezier from midPoint1 to midPoint2 with prev1 as the control point
+                float a1 = (1.0f - t) * (1.0f - t);
+                float a2 = 2.0f * (1.0f - t) * t;
+                float a3 = t * t;
+                path.addPoint(midPoint1X * a1 + prev1X * a2 + midPoint2X * a3, midPoint1Y * a1 + prev1Y * a2 + midPoint2Y * a3, isFirst);
+                isFirst = false;
                 t += step;
             }
+            path.addPoint(midPoint2X, midPoint2Y, ended);
 
-            if (ended) {
-                midPoint2.edge = true;
-            }
-            points.add(midPoint2);
-
-            Point[] result = new Point[points.size()];
-            points.toArray(result);
-
-            Path path = new Path(result);
             paintPath(path);
 
-            System.arraycopy(this.points, 1, this.points, 0, 2);
+            System.arraycopy(pointsX, 1, pointsX, 0, 2);
+            System.arraycopy(pointsY, 1, pointsY, 0, 2);
 
             if (ended) {
                 pointsCount = 0;
@@ -160,19 +157,18 @@ public class Input {
                 pointsCount = 2;
             }
         } else {
-            Point[] result = new Point[pointsCount];
-            System.arraycopy(this.points, 0, result, 0, pointsCount);
-            Path path = new Path(result);
+            Path path = new Path(pointsCount);
+            for (int a = 0; a < pointsCount; a++) {
+                path.addPoint(pointsX[a], pointsY[a], false);
+            }
             paintPath(path);
         }
     }
 
-    private Point smoothPoint(Point midPoint1, Point midPoint2, Point prev1, float t) {
-        double a1 = Math.pow(1.0f - t, 2);
-        double a2 = (2.0f * (1.0f - t) * t);
-        double a3 = t * t;
-
-        return new Point(midPoint1.x * a1 + prev1.x * a2 + midPoint2.x * a3, midPoint1.y * a1 + prev1.y * a2 + midPoint2.y * a3, 1.0f);
+    private static float getDistance(float x1, float y1, float x2, float y2) {
+        float dx = x1 - x2;
+        float dy = y1 - y2;
+        return (float) Math.sqrt(dx * dx + dy * dy);
     }
 
     private void paintPath(final Path path) {
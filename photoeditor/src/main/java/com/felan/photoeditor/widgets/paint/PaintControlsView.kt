@@ -30,6 +30,10 @@ class PaintControlsView @JvmOverloads constructor(
         controlsContainer.findViewById<ImageButton>(R.id.btn_undo)
     }
 
+    private val redoButton by lazy {
+        controlsContainer.findViewById<ImageButton>(R.id.btn_redo)
+    }
+
     private val colorPicker by lazy {
         controlsContainer.findViewById<MyColorPicker>(R.id.color_picker)
     }
@@ -54,6 +58,7 @@ class PaintControlsView @JvmOverloads constructor(
         addView(controlsContainer, LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT)
 
         undoButton.setOnClickListener { boundPaintRenderView?.undo() }
+        redoButton.setOnClickListener { boundPaintRenderView?.redo() }
 
         drawSwitchButton.setOnClickListener { switchToMode(PaintMode.DRAW) }
         textSwitchButton.setOnClickListener { switchToMode(PaintMode.TEXT) }
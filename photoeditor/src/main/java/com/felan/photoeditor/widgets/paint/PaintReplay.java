@@ -0,0 +1,146 @@
+package com.felan.photoeditor.widgets.paint;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+import com.felan.photoeditor.engine.EditRecipe;
+import com.felan.photoeditor.utils.BuildVars;
+import com.felan.photoeditor.utils.FileLog;
+import com.felan.photoeditor.utils.SizeFX;
+import com.felan.photoeditor.utils.SizeX;
+import com.felan.photoeditor.widgets.ExportPolicy;
+
+import java.util.List;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * Draws recorded strokes again off screen, at another size than the painting they were made on,
+ * with the brushes and shaders of {@link Painting}. Runs on the calling thread, in a GL context
+ * of its own.
+ */
+public class PaintReplay {
+
+    private final static int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+    private final static int EGL_OPENGL_ES2_BIT = 4;
+
+    public static Brush createBrush(int type) {
+        switch (type) {
+            case EditRecipe.Stroke.BRUSH_ELLIPTICAL:
+                return new Brush.Elliptical();
+            case EditRecipe.Stroke.BRUSH_NEON:
+                return new Brush.Neon();
+            default:
+                return new Brush.Radial();
+        }
+    }
+
+    /**
+     * Draws the strokes of a {@code width} x {@code height} layer {@code scale} times as large,
+     * or as large as a texture and the memory of the {@link ExportPolicy} allow. Returns the
+     * layer, null if GL isn't available.
+     */
+    public static Bitmap render(List<EditRecipe.Stroke> strokes, int width, int height, float scale) {
+        EGL10 egl = (EGL10) EGLContext.getEGL();
+        EGLDisplay display = egl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+        if (display == EGL10.EGL_NO_DISPLAY || !egl.eglInitialize(display, new int[2])) {
+            logError(egl, "eglInitialize");
+            return null;
+        }
+
+        int[] configsCount = new int[1];
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configSpec = new int[]{
+                EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+                EGL10.EGL_RED_SIZE, 8,
+                EGL10.EGL_GREEN_SIZE, 8,
+                EGL10.EGL_BLUE_SIZE, 8,
+                EGL10.EGL_ALPHA_SIZE, 8,
+                EGL10.EGL_DEPTH_SIZE, 0,
+                EGL10.EGL_STENCIL_SIZE, 0,
+                EGL10.EGL_NONE
+        };
+        if (!egl.eglChooseConfig(display, configSpec, configs, 1, configsCount) || configsCount[0] == 0) {
+            logError(egl, "eglChooseConfig");
+            return null;
+        }
+
+        // restored after, the thread may be drawing with a context of its own
+        EGLContext previousContext = egl.eglGetCurrentContext();
+        EGLSurface previousDraw = egl.eglGetCurrentSurface(EGL10.EGL_DRAW);
+        EGLSurface previousRead = egl.eglGetCurrentSurface(EGL10.EGL_READ);
+
+        EGLContext context = egl.eglCreateContext(display, configs[0], EGL10.EGL_NO_CONTEXT, new int[]{EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE});
+        if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+            logError(egl, "eglCreateContext");
+            return null;
+        }
+        // everything is drawn into textures, the surface only makes the context current
+        EGLSurface surface = egl.eglCreatePbufferSurface(display, configs[0], new int[]{EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1, EGL10.EGL_NONE});
+        if (surface == null || surface == EGL10.EGL_NO_SURFACE) {
+            logError(egl, "eglCreatePbufferSurface");
+            egl.eglDestroyContext(display, context);
+            return null;
+        }
+
+        Bitmap result = null;
+        try {
+            if (!egl.eglMakeCurrent(display, surface, surface, context)) {
+                logError(egl, "eglMakeCurrent");
+                return null;
+            }
+            result = render(strokes, width, height, scale);
+        } finally {
+            if (previousContext != null && previousContext != EGL10.EGL_NO_CONTEXT) {
+                egl.eglMakeCurrent(display, previousDraw, previousRead, previousContext);
+            } else {
+                egl.eglMakeCurrent(display, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+            }
+            egl.eglDestroySurface(display, surface);
+            egl.eglDestroyContext(display, context);
+            // the display isn't terminated, the editors share it
+        }
+        return result;
+    }
+
+    private static Bitmap render(List<EditRecipe.Stroke> strokes, int width, int height, float scale) {
+        int[] maxTextureSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+        ExportPolicy.setMaxTextureSize(maxTextureSize[0]);
+
+        // the layer it starts from, the painting and stroke textures, the readback buffer and the result
+        SizeX fitted = ExportPolicy.getDefault().fitTextureSize(width * scale, height * scale, 5);
+        float fittedScale = (float) fitted.getWidth() / width;
+
+        Painting painting = new Painting(new SizeFX(fitted.getWidth(), fitted.getHeight()), true);
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glDisable(GLES20.GL_DITHER);
+        GLES20.glDisable(GLES20.GL_STENCIL_TEST);
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        painting.setupShaders();
+        painting.setBitmap(Bitmap.createBitmap(fitted.getWidth(), fitted.getHeight(), Bitmap.Config.ARGB_8888));
+
+        try {
+            for (EditRecipe.Stroke stroke : strokes) {
+                painting.drawStroke(stroke, fittedScale);
+            }
+            Painting.PaintingData data = painting.getPaintingData(painting.getBounds(), false);
+            Utils.HasGLError();
+            return data != null ? data.bitmap : null;
+        } finally {
+            painting.cleanResources(true);
+        }
+    }
+
+    private static void logError(EGL10 egl, String call) {
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.e(call + " failed " + GLUtils.getEGLErrorString(egl.eglGetError()));
+        }
+    }
+}
@@ -5,12 +5,16 @@ import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.opengl.GLES20;
 
+import com.felan.photoeditor.engine.EditRecipe;
 import com.felan.photoeditor.utils.DispatchQueue;
 import com.felan.photoeditor.utils.SizeFX;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -18,6 +22,12 @@ import javax.microedition.khronos.opengles.GL10;
 
 public class Painting {
 
+    private final static int TILE_BYTES = RenderState.TILE_SIZE * RenderState.TILE_SIZE * 4;
+    /**
+     * Tiles a coalesced undo snapshot may grow to.
+     */
+    private final static int COALESCE_MAX_TILES = 16;
+
     public interface PaintingDelegate {
         void contentChanged(RectF rect);
 
@@ -43,6 +53,7 @@ public class Painting {
     private RenderState renderState;
     private RenderView renderView;
     private SizeFX size;
+    private boolean layered;
     private RectF activeStrokeBounds;
     private Brush brush;
     private Texture brushTexture;
@@ -55,6 +66,17 @@ public class Painting {
     private int suppressChangesCounter;
     private int[] buffers = new int[1];
     private ByteBuffer dataBuffer;
+    private TileStore tileStore = new TileStore();
+    private byte[] tilePixels;
+
+    /**
+     * Strokes as parameters, the first {@link #strokeCount} are on the painting, the rest were
+     * undone and may be redone.
+     */
+    private final ArrayList<EditRecipe.Stroke> strokes = new ArrayList<>();
+    private int strokeCount;
+    private final ArrayList<float[]> activeSegments = new ArrayList<>();
+    private List<EditRecipe.Stroke> baseStrokes;
 
     private boolean paused;
     private Slice backupSlice;
@@ -63,9 +85,20 @@ public class Painting {
     private float renderProjection[];
 
     public Painting(SizeFX sz) {
+        this(sz, false);
+    }
+
+    /**
+     * @param layered whether the painting is a transparent layer shown over the photo instead of
+     *                the photo itself. Layers are kept with premultiplied alpha, so strokes blend
+     *                correctly over transparent pixels.
+     */
+    public Painting(SizeFX sz, boolean layered) {
         renderState = new RenderState();
 
         size = sz;
+        this.layered = layered;
+        renderState.setTileGrid((int) size.width, (int) size.height);
 
         dataBuffer = ByteBuffer.allocateDirect((int) size.width * (int) size.height * 4);
 
@@ -112,6 +145,10 @@ public class Painting {
         return size;
     }
 
+    public boolean isLayered() {
+        return layered;
+    }
+
     public RectF getBounds() {
         return new RectF(0.0f, 0.0f, size.width, size.height);
     }
@@ -136,6 +173,96 @@ public class Painting {
         bitmapTexture = new Texture(bitmap);
     }
 
+    /**
+     * Strokes of an earlier session, drawn by {@link #drawBaseStrokes()} once the painting has
+     * its texture. They are kept as the first strokes and can't be undone.
+     */
+    public void setBaseStrokes(List<EditRecipe.Stroke> strokes) {
+        baseStrokes = strokes;
+    }
+
+    /**
+     * Must be called in the GL context, after {@link #setBitmap}.
+     */
+    public void drawBaseStrokes() {
+        if (baseStrokes == null) {
+            return;
+        }
+        Brush current = brush;
+        for (EditRecipe.Stroke stroke : baseStrokes) {
+            drawStroke(stroke, 1.0f);
+        }
+        if (brush != current) {
+            setBrush(current);
+        }
+        synchronized (strokes) {
+            strokes.addAll(0, baseStrokes);
+            strokeCount += baseStrokes.size();
+        }
+        baseStrokes = null;
+    }
+
+    /**
+     * Draws a recorded stroke {@code scale} times as large as it was painted, the way the touch
+     * input drew it, with no undo step. Must be called in the GL context.
+     */
+    public void drawStroke(EditRecipe.Stroke stroke, float scale) {
+        if (brush == null || brush.getType() != stroke.brush) {
+            setBrush(PaintReplay.createBrush(stroke.brush));
+        }
+        double remainder = 0.0;
+        for (int a = 0; a < stroke.segments.length; a++) {
+            float[] points = stroke.segments[a];
+            Path path = new Path(points.length / Path.POINT_SIZE);
+            for (int b = 0; b + Path.POINT_SIZE <= points.length; b += Path.POINT_SIZE) {
+                path.addPoint(points[b] * scale, points[b + 1] * scale, points[b + 2] != 0);
+            }
+            path.setup(stroke.color, stroke.weight * scale, brush);
+            path.remainder = remainder;
+            renderPath(path, a == 0);
+            remainder = path.remainder;
+        }
+        compositeStroke(stroke.color);
+        renderState.reset();
+    }
+
+    /**
+     * The strokes on the painting, in painting coordinates.
+     */
+    public List<EditRecipe.Stroke> getStrokes() {
+        synchronized (strokes) {
+            return new ArrayList<>(strokes.subList(0, strokeCount));
+        }
+    }
+
+    private void recordStroke(int color, Path path) {
+        EditRecipe.Stroke stroke = new EditRecipe.Stroke(path.getBrush().getType(), color, path.getBaseWeight(), activeSegments.toArray(new float[0][]));
+        synchronized (strokes) {
+            // the strokes that were undone can't be redone anymore
+            strokes.subList(strokeCount, strokes.size()).clear();
+            strokes.add(stroke);
+            strokeCount++;
+        }
+    }
+
+    private void moveStrokeCount(int delta) {
+        synchronized (strokes) {
+            strokeCount = Math.max(0, Math.min(strokes.size(), strokeCount + delta));
+        }
+    }
+
+    /**
+     * Runs {@code action} in the GL context of the render view, or right away in the current one
+     * if the painting isn't shown.
+     */
+    private void performInContext(Runnable action) {
+        if (renderView != null) {
+            renderView.performInContext(action);
+        } else {
+            action.run();
+        }
+    }
+
     private void update(RectF bounds, Runnable action) {
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, getReusableFramebuffer());
         GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, getTexture(), 0);
@@ -153,48 +280,18 @@ public class Painting {
     }
 
     public void paintStroke(final Path path, final boolean clearBuffer, final Runnable action) {
-        renderView.performInContext(new Runnable() {
+        performInContext(new Runnable() {
             @Override
             public void run() {
                 activePath = path;
 
-                RectF bounds = null;
-
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, getReusableFramebuffer());
-                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, getPaintTexture(), 0);
-
-                Utils.HasGLError();
-
-                int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-                if (status == GLES20.GL_FRAMEBUFFER_COMPLETE) {
-                    GLES20.glViewport(0, 0, (int) size.width, (int) size.height);
-
-                    if (clearBuffer) {
-                        GLES20.glClearColor(0, 0, 0, 0);
-                        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-                    }
-
-                    if (shaders == null) {
-                        return;
-                    }
-                    Shader shader = shaders.get(brush.isLightSaber() ? "brushLight" : "brush");
-                    if (shader == null) {
-                        return;
-                    }
+                RectF bounds = renderPath(path, clearBuffer);
 
-                    GLES20.glUseProgram(shader.program);
-                    if (brushTexture == null) {
-                        brushTexture = new Texture(brush.getStamp());
-                    }
-                    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, brushTexture.texture());
-                    GLES20.glUniformMatrix4fv(shader.getUniform("mvpMatrix"), 1, false, FloatBuffer.wrap(projection));
-                    GLES20.glUniform1i(shader.getUniform("texture"), 0);
-
-                    bounds = Render.RenderPath(path, renderState);
+                // clearing the stroke buffer drops what the stroke painted so far
+                if (clearBuffer) {
+                    activeSegments.clear();
                 }
-
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                activeSegments.add(Arrays.copyOf(path.getPoints(), path.getLength() * Path.POINT_SIZE));
 
                 if (delegate != null) {
                     delegate.contentChanged(bounds);
@@ -213,46 +310,56 @@ public class Painting {
         });
     }
 
-    public void commitStroke(final int color) {
-        renderView.performInContext(new Runnable() {
-            @Override
-            public void run() {
-                registerUndo(activeStrokeBounds);
+    /**
+     * Stamps {@code path} into the stroke texture with the current brush, returns the bounds it
+     * touched.
+     */
+    private RectF renderPath(Path path, boolean clearBuffer) {
+        RectF bounds = null;
 
-                beginSuppressingChanges();
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, getReusableFramebuffer());
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, getPaintTexture(), 0);
 
-                update(null, new Runnable() {
-                    @Override
-                    public void run() {
-                        if (shaders == null) {
-                            return;
-                        }
-                        Shader shader = shaders.get(brush.isLightSaber() ? "compositeWithMaskLight" : "compositeWithMask");
-                        if (shader == null) {
-                            return;
-                        }
+        Utils.HasGLError();
 
-                        GLES20.glUseProgram(shader.program);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status == GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            GLES20.glViewport(0, 0, (int) size.width, (int) size.height);
 
-                        GLES20.glUniformMatrix4fv(shader.getUniform("mvpMatrix"), 1, false, FloatBuffer.wrap(projection));
-                        GLES20.glUniform1i(shader.getUniform("mask"), 0);
-                        Shader.SetColorUniform(shader.getUniform("color"), color);
+            if (clearBuffer) {
+                GLES20.glClearColor(0, 0, 0, 0);
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            }
 
-                        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-                        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, getPaintTexture());
+            Shader shader = shaders != null ? shaders.get(brush.isLightSaber() ? "brushLight" : "brush") : null;
+            if (shader != null) {
+                GLES20.glUseProgram(shader.program);
+                if (brushTexture == null) {
+                    brushTexture = new Texture(brush.getStamp());
+                }
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, brushTexture.texture());
+                GLES20.glUniformMatrix4fv(shader.getUniform("mvpMatrix"), 1, false, FloatBuffer.wrap(projection));
+                GLES20.glUniform1i(shader.getUniform("texture"), 0);
 
-                        GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_SRC_ALPHA, GLES20.GL_ONE);
+                bounds = Render.RenderPath(path, renderState);
+            }
+        }
 
-                        GLES20.glVertexAttribPointer(0, 2, GLES20.GL_FLOAT, false, 8, vertexBuffer);
-                        GLES20.glEnableVertexAttribArray(0);
-                        GLES20.glVertexAttribPointer(1, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
-                        GLES20.glEnableVertexAttribArray(1);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        return bounds;
+    }
 
-                        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-                    }
-                });
+    public void commitStroke(final int color) {
+        performInContext(new Runnable() {
+            @Override
+            public void run() {
+                if (registerUndo(activeStrokeBounds) != null && activePath != null) {
+                    recordStroke(color, activePath);
+                }
+                activeSegments.clear();
 
-                endSuppressingChanges();
+                compositeStroke(color);
 
                 renderState.reset();
 
@@ -262,38 +369,286 @@ public class Painting {
         });
     }
 
-    private void registerUndo(RectF rect) {
-        if (rect == null) {
-            return;
+    /**
+     * Blends the stroke texture into the painting in {@code color}.
+     */
+    private void compositeStroke(final int color) {
+        beginSuppressingChanges();
+
+        update(null, new Runnable() {
+            @Override
+            public void run() {
+                if (shaders == null) {
+                    return;
+                }
+                Shader shader = shaders.get(brush.isLightSaber() ? "compositeWithMaskLight" : "compositeWithMask");
+                if (shader == null) {
+                    return;
+                }
+
+                GLES20.glUseProgram(shader.program);
+
+                GLES20.glUniformMatrix4fv(shader.getUniform("mvpMatrix"), 1, false, FloatBuffer.wrap(projection));
+                GLES20.glUniform1i(shader.getUniform("mask"), 0);
+                Shader.SetColorUniform(shader.getUniform("color"), color);
+
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, getPaintTexture());
+
+                if (layered) {
+                    GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+                } else {
+                    GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_SRC_ALPHA, GLES20.GL_ONE);
+                }
+
+                GLES20.glVertexAttribPointer(0, 2, GLES20.GL_FLOAT, false, 8, vertexBuffer);
+                GLES20.glEnableVertexAttribArray(0);
+                GLES20.glVertexAttribPointer(1, 2, GLES20.GL_FLOAT, false, 8, textureBuffer);
+                GLES20.glEnableVertexAttribArray(1);
+
+                GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            }
+        });
+
+        endSuppressingChanges();
+    }
+
+    /**
+     * Returns the snapshot the stroke was saved to, null if it didn't change the painting.
+     */
+    private TileSnapshot registerUndo(RectF rect) {
+        if (rect == null || renderState.getDirtyTileCount() == 0 || delegate == null) {
+            return null;
         }
 
         boolean intersect = rect.setIntersect(rect, getBounds());
         if (!intersect) {
-            return;
+            return null;
+        }
+
+        // over the budget a small stroke is folded into the previous one: its tiles are kept and
+        // only the ones it didn't save yet are read, undoing both at once
+        UndoStore undoStore = delegate.requestUndoStore();
+        TileSnapshot previous = null;
+        UndoStore.Snapshot last = undoStore.getLastSnapshot();
+        int dirtyCount = renderState.getDirtyTileCount();
+        if (last instanceof TileSnapshot && undoStore.wouldExceedBudget((long) dirtyCount * TILE_BYTES)) {
+            if (((TileSnapshot) last).getTileCount() + dirtyCount <= COALESCE_MAX_TILES) {
+                previous = (TileSnapshot) last;
+            }
         }
 
-        PaintingData paintingData = getPaintingData(rect, true);
-        ByteBuffer data = paintingData.data;
+        final TileSnapshot snapshot = readDirtyTiles(previous);
+        if (snapshot == null) {
+            return null;
+        }
+        snapshot.setStrokeCount(previous != null ? previous.getStrokeCount() + 1 : 1);
 
-        final Slice slice = new Slice(data, rect, delegate.requestDispatchQueue());
-        delegate.requestUndoStore().registerUndo(UUID.randomUUID(), new Runnable() {
+        Runnable undoRunnable = new Runnable() {
             @Override
             public void run() {
-                restoreSlice(slice);
+                restoreTiles(snapshot, false);
             }
-        });
+        };
+        if (previous != null) {
+            undoStore.coalesceLast(UUID.randomUUID(), undoRunnable, snapshot);
+        } else {
+            undoStore.registerUndo(UUID.randomUUID(), undoRunnable, snapshot);
+        }
+        return snapshot;
     }
 
-    private void restoreSlice(final Slice slice) {
-        renderView.performInContext(new Runnable() {
+    /**
+     * Reads the tiles the active stroke touched straight from the painting texture, a run of
+     * adjacent tiles of a row at a time. The tiles of {@code previous} are taken over instead of
+     * being read again.
+     */
+    private TileSnapshot readDirtyTiles(TileSnapshot previous) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, getReusableFramebuffer());
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, getTexture(), 0);
+
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            return null;
+        }
+
+        int width = (int) size.width;
+        int height = (int) size.height;
+        int columns = renderState.getTileColumns();
+        int rows = renderState.getTileRows();
+        int capacity = renderState.getDirtyTileCount() + (previous != null ? previous.getTileCount() : 0);
+        int[] rects = new int[capacity * 4];
+        TileStore.Tile[] tiles = new TileStore.Tile[capacity];
+        int count = 0;
+
+        if (previous != null) {
+            for (int a = 0; a < previous.getTileCount(); a++, count++) {
+                rects[count * 4] = previous.getX(a);
+                rects[count * 4 + 1] = previous.getY(a);
+                rects[count * 4 + 2] = previous.getWidth(a);
+                rects[count * 4 + 3] = previous.getHeight(a);
+                tiles[count] = previous.getTile(a);
+                tileStore.retain(tiles[count]);
+            }
+        }
+
+        byte[] tilePixels = getTilePixels();
+        for (int row = 0; row < rows; row++) {
+            int y = row * RenderState.TILE_SIZE;
+            int tileHeight = Math.min(RenderState.TILE_SIZE, height - y);
+            int column = 0;
+            while (column < columns) {
+                if (!needsTile(column, row, previous)) {
+                    column++;
+                    continue;
+                }
+                int first = column;
+                while (column < columns && needsTile(column, row, previous)) {
+                    column++;
+                }
+
+                int x = first * RenderState.TILE_SIZE;
+                int runWidth = Math.min(column * RenderState.TILE_SIZE, width) - x;
+                dataBuffer.clear();
+                dataBuffer.limit(runWidth * tileHeight * 4);
+                GLES20.glReadPixels(x, y, runWidth, tileHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, dataBuffer);
+
+                for (int tileX = x; tileX < x + runWidth; tileX += RenderState.TILE_SIZE, count++) {
+                    int tileWidth = Math.min(RenderState.TILE_SIZE, width - tileX);
+                    int rowBytes = tileWidth * 4;
+                    for (int r = 0; r < tileHeight; r++) {
+                        dataBuffer.position((r * runWidth + tileX - x) * 4);
+                        dataBuffer.get(tilePixels, r * rowBytes, rowBytes);
+                    }
+                    rects[count * 4] = tileX;
+                    rects[count * 4 + 1] = y;
+                    rects[count * 4 + 2] = tileWidth;
+                    rects[count * 4 + 3] = tileHeight;
+                    tiles[count] = tileStore.obtain(tilePixels, rowBytes * tileHeight);
+                }
+            }
+        }
+        dataBuffer.clear();
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        tileStore.compress(delegate.requestDispatchQueue());
+        return new TileSnapshot(tileStore, rects, tiles, count);
+    }
+
+    /**
+     * Reads the tiles at the positions of {@code layout} as they are now.
+     */
+    private TileSnapshot captureTiles(TileSnapshot layout) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, getReusableFramebuffer());
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, getTexture(), 0);
+
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            return null;
+        }
+
+        int count = layout.getTileCount();
+        int[] rects = new int[count * 4];
+        TileStore.Tile[] tiles = new TileStore.Tile[count];
+        byte[] tilePixels = getTilePixels();
+        for (int a = 0; a < count; a++) {
+            int x = layout.getX(a);
+            int y = layout.getY(a);
+            int width = layout.getWidth(a);
+            int height = layout.getHeight(a);
+            dataBuffer.clear();
+            dataBuffer.limit(width * height * 4);
+            GLES20.glReadPixels(x, y, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, dataBuffer);
+            dataBuffer.get(tilePixels, 0, width * height * 4);
+
+            rects[a * 4] = x;
+            rects[a * 4 + 1] = y;
+            rects[a * 4 + 2] = width;
+            rects[a * 4 + 3] = height;
+            tiles[a] = tileStore.obtain(tilePixels, width * height * 4);
+        }
+        dataBuffer.clear();
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        tileStore.compress(delegate.requestDispatchQueue());
+        return new TileSnapshot(tileStore, rects, tiles, count);
+    }
+
+    private byte[] getTilePixels() {
+        if (tilePixels == null) {
+            tilePixels = new byte[TILE_BYTES];
+        }
+        return tilePixels;
+    }
+
+    private boolean needsTile(int column, int row, TileSnapshot previous) {
+        return renderState.isTileDirty(column, row) && (previous == null || !previous.contains(column * RenderState.TILE_SIZE, row * RenderState.TILE_SIZE));
+    }
+
+    /**
+     * Writes the tiles of {@code snapshot} back to the painting. The pixels they replace are
+     * saved first and registered as the step going the other way: a redo step when undoing,
+     * the undo again when redoing.
+     */
+    private void restoreTiles(final TileSnapshot snapshot, final boolean redo) {
+        performInContext(new Runnable() {
             @Override
             public void run() {
-                ByteBuffer buffer = slice.getData();
+                final TileSnapshot current = captureTiles(snapshot);
 
                 GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, getTexture());
-                GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, slice.getX(), slice.getY(), slice.getWidth(), slice.getHeight(), GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+                for (int a = 0; a < snapshot.getTileCount(); a++) {
+                    dataBuffer.clear();
+                    tileStore.getData(snapshot.getTile(a), dataBuffer);
+                    dataBuffer.flip();
+                    GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, snapshot.getX(a), snapshot.getY(a), snapshot.getWidth(a), snapshot.getHeight(a), GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, dataBuffer);
+                }
+                dataBuffer.clear();
+
                 if (!isSuppressingChanges() && delegate != null) {
-                    delegate.contentChanged(slice.getBounds());
+                    delegate.contentChanged(snapshot.getBounds());
+                }
+
+                snapshot.discard();
+                moveStrokeCount(redo ? snapshot.getStrokeCount() : -snapshot.getStrokeCount());
+
+                if (current == null) {
+                    return;
+                }
+                current.setStrokeCount(snapshot.getStrokeCount());
+                UndoStore undoStore = delegate.requestUndoStore();
+                Runnable runnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        restoreTiles(current, !redo);
+                    }
+                };
+                if (redo) {
+                    undoStore.restoreUndo(UUID.randomUUID(), runnable, current);
+                } else {
+                    undoStore.registerRedo(UUID.randomUUID(), runnable, current);
+                }
+            }
+        });
+    }
+
+    private void restoreSlice(final Slice slice) {
+        performInContext(new Runnable() {
+            @Override
+            public void run() {
+                // slices never exceed the painting, so its readback buffer always fits them
+                ByteBuffer buffer = slice.getData(dataBuffer);
+
+                if (buffer != null) {
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, getTexture());
+                    GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, slice.getX(), slice.getY(), slice.getWidth(), slice.getHeight(), GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+                    if (!isSuppressingChanges() && delegate != null) {
+                        delegate.contentChanged(slice.getBounds());
+                    }
                 }
 
                 slice.cleanResources();
@@ -318,7 +673,8 @@ public class Painting {
     }
 
     private void render(int mask, int color) {
-        Shader shader = shaders.get(brush.isLightSaber() ? "blitWithMaskLight" : "blitWithMask");
+        String name = brush.isLightSaber() ? "blitWithMaskLight" : "blitWithMask";
+        Shader shader = shaders.get(layered ? name + "Premultiplied" : name);
         if (shader == null) {
             return;
         }
@@ -349,7 +705,7 @@ public class Painting {
     }
 
     private void renderBlit() {
-        Shader shader = shaders.get("blit");
+        Shader shader = shaders.get(layered ? "nonPremultipliedBlit" : "blit");
         if (shader == null) {
             return;
         }
@@ -401,7 +757,7 @@ public class Painting {
         if (shaders == null) {
             return null;
         }
-        Shader shader = shaders.get(undo ? "nonPremultipliedBlit" : "blit");
+        Shader shader = shaders.get(undo || layered ? "nonPremultipliedBlit" : "blit");
         if (shader == null) {
             return null;
         }
@@ -440,6 +796,7 @@ public class Painting {
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
+        dataBuffer.clear();
         dataBuffer.limit(width * height * 4);
         GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, dataBuffer);
 
@@ -475,7 +832,7 @@ public class Painting {
     }
 
     public void onPause(final Runnable completionRunnable) {
-        renderView.performInContext(new Runnable() {
+        performInContext(new Runnable() {
             @Override
             public void run() {
                 paused = true;
@@ -516,6 +873,8 @@ public class Painting {
             brushTexture = null;
         }
 
+        renderState.cleanResources();
+
         if (shaders != null) {
             for (Shader shader : shaders.values()) {
                 shader.cleanResources();
@@ -1,34 +1,50 @@
 package com.felan.photoeditor.widgets.paint;
 
 import java.util.Arrays;
-import java.util.Vector;
 
+/**
+ * Points of a stroke segment packed into a float array, {@link #POINT_SIZE} values per point:
+ * x, y and 1 for points at the ends of the stroke (0 otherwise).
+ */
 public class Path {
 
+    public static final int POINT_SIZE = 3;
+
     public double remainder;
-    private Vector<Point> points = new Vector<>();
+    private float[] points;
+    private int length;
     private int color;
     private float baseWeight;
     private Brush brush;
 
-    public Path(Point point) {
-        points.add(point);
+    public Path(int capacity) {
+        points = new float[Math.max(1, capacity) * POINT_SIZE];
     }
 
-    public Path(Point[] points) {
-        this.points.addAll(Arrays.asList(points));
+    public Path(float x, float y, boolean edge) {
+        this(1);
+        addPoint(x, y, edge);
     }
 
-    public int getLength() {
-        if (points == null) {
-            return 0;
+    public void addPoint(float x, float y, boolean edge) {
+        int index = length * POINT_SIZE;
+        if (index + POINT_SIZE > points.length) {
+            points = Arrays.copyOf(points, points.length * 2);
         }
-        return points.size();
+        points[index] = x;
+        points[index + 1] = y;
+        points[index + 2] = edge ? 1.0f : 0.0f;
+        length++;
+    }
+
+    public int getLength() {
+        return length;
     }
 
-    public Point[] getPoints() {
-        Point[] points = new Point[this.points.size()];
-        this.points.toArray(points);
+    /**
+     * The packed points, only the first {@code getLength() * POINT_SIZE} values are valid.
+     */
+    public float[] getPoints() {
         return points;
     }
 
@@ -9,6 +9,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.os.Build;
 import android.os.Looper;
@@ -19,21 +20,37 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.FrameLayout;
+import android.widget.ImageView;
 
 import androidx.appcompat.widget.PopupMenu;
 import androidx.core.widget.PopupMenuCompat;
 
 import com.felan.photoeditor.R;
+import com.felan.photoeditor.engine.EditRecipe;
 import com.felan.photoeditor.utils.AndroidUtilities;
 import com.felan.photoeditor.utils.ApplicationLoader;
 import com.felan.photoeditor.utils.DispatchQueue;
 import com.felan.photoeditor.utils.EventHandler;
 import com.felan.photoeditor.utils.FileLog;
 import com.felan.photoeditor.utils.SizeFX;
+import com.felan.photoeditor.utils.SizeX;
+import com.felan.photoeditor.widgets.ExportPolicy;
+
+import java.util.ArrayList;
+import java.util.List;
 
 @SuppressLint("NewApi")
 public class PhotoPaintRenderView extends FrameLayout implements EntityView.EntityViewDelegate {
 
+    public interface PaintCallback {
+        /**
+         * @param layer   the strokes at the painting size, null if it couldn't be read back
+         * @param strokes the strokes as parameters, in painting coordinates
+         * @param texts   the text entities as parameters, in painting coordinates
+         */
+        void onPaintReady(Bitmap layer, List<EditRecipe.Stroke> strokes, List<EditRecipe.Text> texts);
+    }
+
     private Bitmap bitmapToEdit;
     private int orientation;
     private UndoStore undoStore;
@@ -44,6 +61,7 @@ public class PhotoPaintRenderView extends FrameLayout implements EntityView.Enti
             new Brush.Elliptical(),
             new Brush.Neon()
     };
+    private ImageView photoView;
     private RenderView renderView;
     private EntitiesContainerView entitiesView;
     private FrameLayout textDimView;
@@ -58,6 +76,8 @@ public class PhotoPaintRenderView extends FrameLayout implements EntityView.Enti
     private String initialText;
 
     private SizeFX paintingSize;
+    private Bitmap paintingBitmap;
+    private List<EditRecipe.Text> pendingTexts;
 
     private boolean selectedStroke = true;
 
@@ -66,6 +86,15 @@ public class PhotoPaintRenderView extends FrameLayout implements EntityView.Enti
 
 
     public PhotoPaintRenderView(Context context, Bitmap bitmap, int rotation) {
+        this(context, bitmap, rotation, false, null);
+    }
+
+    /**
+     * @param layered paint on a transparent layer shown over the photo instead of into the photo,
+     *                the result is then the layer alone
+     * @param layer   result of an earlier layered session to continue from, null to start empty
+     */
+    public PhotoPaintRenderView(Context context, Bitmap bitmap, int rotation, boolean layered, Bitmap layer) {
         super(context);
 
         AndroidUtilities.density = context.getResources().getDisplayMetrics().density;
@@ -76,7 +105,21 @@ public class PhotoPaintRenderView extends FrameLayout implements EntityView.Enti
         orientation = rotation;
         undoStore = new UndoStore();
 
-        renderView = new RenderView(context, new Painting(getPaintingSize()), bitmap, orientation);
+        paintingBitmap = bitmap;
+        if (layered) {
+            photoView = new ImageView(context);
+            photoView.setScaleType(ImageView.ScaleType.FIT_XY);
+            photoView.setImageBitmap(bitmap);
+            addView(photoView, LayoutHelper.createFrame(LayoutHelper.MATCH_PARENT, LayoutHelper.MATCH_PARENT));
+
+            paintingBitmap = layer;
+            if (paintingBitmap == null) {
+                SizeFX size = getPaintingSize();
+                paintingBitmap = Bitmap.createBitmap((int) size.width, (int) size.height, Bitmap.Config.ARGB_8888);
+            }
+        }
+
+        renderView = new RenderView(context, new Painting(getPaintingSize(), layered), paintingBitmap, layered ? 0 : orientation);
         renderView.setDelegate(new RenderView.RenderViewDelegate() {
 
             @Override
@@ -154,22 +197,21 @@ public class PhotoPaintRenderView extends FrameLayout implements EntityView.Enti
         return true;
     }
 
-    private SizeFX getPaintingSize() {
+    public SizeFX getPaintingSize() {
         if (paintingSize != null) {
             return paintingSize;
         }
         float width = isSidewardOrientation() ? bitmapToEdit.getHeight() : bitmapToEdit.getWidth();
         float height = isSidewardOrientation() ? bitmapToEdit.getWidth() : bitmapToEdit.getHeight();
 
-        SizeFX size = new SizeFX(width, height);
-        size.width = 1280;
-        size.height = (float) Math.floor(size.width * height / width);
-        if (size.height > 1280) {
-            size.height = 1280;
-            size.width = (float) Math.floor(size.height * width / height);
-        }
-        paintingSize = size;
-        return size;
+        // strokes are drawn into a single texture holding the whole photo, small photos are
+        // still painted at the preview size so strokes stay smooth
+        ExportPolicy policy = ExportPolicy.getDefault();
+        float scale = Math.max(1.0f, policy.getPreviewSide() / Math.max(width, height));
+        // the photo and stroke textures, the readback buffer and the result
+        SizeX fitted = policy.fitTextureSize(width * scale, height * scale, 4);
+        paintingSize = new SizeFX(fitted.getWidth(), fitted.getHeight());
+        return paintingSize;
     }
 
     private boolean isSidewardOrientation() {
@@ -188,6 +230,25 @@ public class PhotoPaintRenderView extends FrameLayout implements EntityView.Enti
 
     }
 
+    /**
+     * Resumes a layered session: {@code base} is drawn into the layer, {@code strokes} are
+     * drawn over it once the painting is set up and {@code texts} become entities again, all in
+     * painting coordinates. None of them can be undone. Must be called before the view is
+     * attached.
+     */
+    public void setPaint(Bitmap base, List<EditRecipe.Stroke> strokes, List<EditRecipe.Text> texts) {
+        if (base != null) {
+            SizeFX size = getPaintingSize();
+            Canvas canvas = new Canvas(paintingBitmap);
+            canvas.drawBitmap(base, null, new Rect(0, 0, (int) size.width, (int) size.height), new Paint(Paint.FILTER_BITMAP_FLAG));
+        }
+        if (!strokes.isEmpty()) {
+            renderView.getPainting().setBaseStrokes(strokes);
+        }
+        // added once the entities view is laid out, their positions are in its pixels
+        pendingTexts = texts;
+    }
+
     public void init() {
         renderView.setVisibility(View.VISIBLE);
     }
@@ -210,43 +271,119 @@ public class PhotoPaintRenderView extends FrameLayout implements EntityView.Enti
         return undoStore.canUndo() || entitiesView.entitiesCount() > 0;
     }
 
+    /**
+     * The painting at {@link #getPaintingSize()} with the entities drawn over it. Blocks until
+     * the GL thread has read the painting back, prefer {@link #getResultBitmap(RenderView.BitmapCallback)}.
+     */
     public Bitmap getResultBitmap() {
-//        Bitmap bitmap = renderView.getResultBitmap();
-        Bitmap bitmap = renderView.getBitmap();
-        if (bitmap != null && entitiesView.entitiesCount() > 0) {
-            android.graphics.Canvas canvas = new android.graphics.Canvas(bitmap);
-//            canvas.save();
-//            canvas.scale(paintingSize.width / entitiesView.getWidth(), paintingSize.height / entitiesView.getHeight());
-            for (int i = 0; i < entitiesView.getChildCount(); i++) {
-                View v = entitiesView.getChildAt(i);
-                canvas.save();
-                if (v instanceof EntityView) {
-                    EntityView entity = (EntityView) v;
-
-                    canvas.translate(entity.getPosition().x, entity.getPosition().y);
-                    canvas.rotate(v.getRotation());
-                    canvas.translate(-entity.getWidth() * entity.getScaleX() / 2, -entity.getHeight() * entity.getScaleY() / 2);
-
-                    if (v instanceof TextPaintView) {
-                        Bitmap b = createBitmap(getResources().getDisplayMetrics(), (int) (v.getWidth() * v.getScaleX()), (int) (v.getHeight() * v.getScaleY()), Bitmap.Config.ARGB_8888);
-                        Canvas c = new Canvas(b);
-                        c.scale(v.getScaleX(), v.getScaleY());
-                        v.draw(c);
-                        canvas.drawBitmap(b, null, new Rect(0, 0, b.getWidth(), b.getHeight()), null);
-                        try {
-                            c.setBitmap(null);
-                        } catch (Exception e) {
-                            FileLog.e(e);
-                        }
-                        b.recycle();
-                    } else {
-                        v.draw(canvas);
-                    }
+        Bitmap bitmap = renderView.getResultBitmap();
+        if (bitmap != null) {
+            drawEntities(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Asynchronous {@link #getResultBitmap()}, the callback runs on the UI thread.
+     */
+    public void getResultBitmap(final RenderView.BitmapCallback callback) {
+        renderView.getResultBitmap(bitmap -> {
+            if (bitmap != null) {
+                drawEntities(bitmap);
+            }
+            callback.onBitmapReady(bitmap);
+        });
+    }
+
+    /**
+     * The painting without the entities and the strokes and entities as parameters, for a
+     * layered session. The callback runs on the UI thread.
+     */
+    public void getPaint(final PaintCallback callback) {
+        closeTextEnter(true);
+        final List<EditRecipe.Text> texts = getTexts();
+        final ArrayList<EditRecipe.Stroke> strokes = new ArrayList<>();
+        // queued before the readback, so the strokes are the ones read back
+        renderView.performInContext(() -> strokes.addAll(renderView.getPainting().getStrokes()));
+        renderView.getResultBitmap(bitmap -> callback.onPaintReady(bitmap, strokes, texts));
+    }
+
+    private List<EditRecipe.Text> getTexts() {
+        ArrayList<EditRecipe.Text> texts = new ArrayList<>();
+        if (pendingTexts != null) {
+            // never laid out
+            texts.addAll(pendingTexts);
+        }
+        if (entitiesView.getWidth() == 0) {
+            return texts;
+        }
+        float scale = getPaintingSize().width / entitiesView.getWidth();
+        for (int i = 0; i < entitiesView.getChildCount(); i++) {
+            View v = entitiesView.getChildAt(i);
+            if (v instanceof TextPaintView && ((TextPaintView) v).getText().trim().length() > 0) {
+                texts.add(((TextPaintView) v).toRecipe(scale));
+            }
+        }
+        return texts;
+    }
+
+    private void addTexts(List<EditRecipe.Text> texts, int width) {
+        float scale = getPaintingSize().width / width;
+        for (EditRecipe.Text text : texts) {
+            TextPaintView view = new TextPaintView(getContext(), text, scale, baseFontSize());
+            view.setDelegate(this);
+            view.setMaxWidth((int) (getPaintingSize().width - 20));
+            entitiesView.addView(view, new FrameLayout.LayoutParams(-2, -2));
+        }
+    }
+
+    /**
+     * Draws the entities over the painting, scaled from the view to the painting size. Text is
+     * rasterized at that scale instead of being stretched from its on-screen pixels.
+     */
+    private void drawEntities(Bitmap bitmap) {
+        if (entitiesView.entitiesCount() == 0 || entitiesView.getWidth() == 0) {
+            return;
+        }
+        float scale = (float) bitmap.getWidth() / entitiesView.getWidth();
+        Canvas canvas = new Canvas(bitmap);
+        canvas.scale(scale, scale);
+        for (int i = 0; i < entitiesView.getChildCount(); i++) {
+            View v = entitiesView.getChildAt(i);
+            if (!(v instanceof EntityView)) {
+                continue;
+            }
+            EntityView entity = (EntityView) v;
+            canvas.save();
+
+            canvas.translate(entity.getPosition().x, entity.getPosition().y);
+            canvas.rotate(v.getRotation());
+            canvas.translate(-entity.getWidth() * entity.getScaleX() / 2, -entity.getHeight() * entity.getScaleY() / 2);
+
+            if (v instanceof TextPaintView) {
+                int width = (int) (v.getWidth() * v.getScaleX());
+                int height = (int) (v.getHeight() * v.getScaleY());
+                Bitmap b = createBitmap(getResources().getDisplayMetrics(), (int) (width * scale), (int) (height * scale), Bitmap.Config.ARGB_8888);
+                Canvas c = new Canvas(b);
+                c.scale(v.getScaleX() * scale, v.getScaleY() * scale);
+                v.draw(c);
+                canvas.drawBitmap(b, null, new Rect(0, 0, width, height), null);
+                try {
+                    c.setBitmap(null);
+                } catch (Exception e) {
+                    FileLog.e(e);
                 }
-                canvas.restore();
+                b.recycle();
+            } else {
+                v.draw(canvas);
             }
+            canvas.restore();
+        }
+        try {
+            canvas.setBitmap(null);
+        } catch (Exception e) {
+            FileLog.e(e);
         }
-        return bitmap;
     }
 
     public static Bitmap createBitmap(DisplayMetrics metrics, int width, int height, Bitmap.Config config) {
@@ -436,7 +573,15 @@ public class PhotoPaintRenderView extends FrameLayout implements EntityView.Enti
     }
 
     private void registerRemovalUndo(final EntityView entityView) {
-        undoStore.registerUndo(entityView.getUUID(), () -> removeEntity(entityView));
+        undoStore.registerUndo(entityView.getUUID(), () -> undoEntityAddition(entityView));
+    }
+
+    private void undoEntityAddition(final EntityView entityView) {
+        removeEntity(entityView);
+        undoStore.registerRedo(entityView.getUUID(), () -> {
+            entitiesView.addView(entityView);
+            undoStore.restoreUndo(entityView.getUUID(), () -> undoEntityAddition(entityView), null);
+        }, null);
     }
 
     private int baseFontSize() {
@@ -536,6 +681,10 @@ public class PhotoPaintRenderView extends FrameLayout implements EntityView.Enti
         undoStore.undo();
     }
 
+    public void redo() {
+        undoStore.redo();
+    }
+
     public void switchToDraw() {
         selectEntity(null);
     }
@@ -586,9 +735,17 @@ public class PhotoPaintRenderView extends FrameLayout implements EntityView.Enti
 
         post(() -> {
             LayoutParams lp = new FrameLayout.LayoutParams(width, height, Gravity.CENTER);
+            if (photoView != null) {
+                photoView.setLayoutParams(new LayoutParams(lp));
+            }
             renderView.setLayoutParams(lp);
             entitiesView.setLayoutParams(new LayoutParams(lp));
             selectionContainerView.setLayoutParams(new LayoutParams(lp));
+
+            if (pendingTexts != null && width > 0) {
+                addTexts(pendingTexts, width);
+                pendingTexts = null;
+            }
         });
     }
 }
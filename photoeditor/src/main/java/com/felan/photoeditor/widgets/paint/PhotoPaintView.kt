@@ -7,7 +7,9 @@ import android.util.AttributeSet
 import android.view.LayoutInflater
 import android.view.ViewGroup
 import android.widget.FrameLayout
+import androidx.core.view.ViewCompat
 import com.felan.photoeditor.R
+import com.felan.photoeditor.widgets.EditSession
 import com.felan.photoeditor.widgets.PhotoEditor
 
 class PhotoPaintView @JvmOverloads constructor(
@@ -28,6 +30,11 @@ class PhotoPaintView @JvmOverloads constructor(
 
     private lateinit var paintRenderView: PhotoPaintRenderView
 
+    /**
+     * Painted under the strokes of the session, carried over to the layer it's committed as.
+     */
+    private var base: Bitmap? = null
+
     private val controls by lazy {
         controlsContainer.findViewById<PaintControlsView>(R.id.controls_paint)
     }
@@ -37,12 +44,16 @@ class PhotoPaintView @JvmOverloads constructor(
     }
 
     fun shutdown() {
-        paintRenderView.shutdown()
+        if (::paintRenderView.isInitialized) {
+            paintRenderView.shutdown()
+        }
     }
 
-    override fun setImage(image: Bitmap) {
+    override fun setImage(image: Bitmap) = setRenderView(PhotoPaintRenderView(context, image, 0))
+
+    private fun setRenderView(renderView: PhotoPaintRenderView) {
         imageViewPlace.removeAllViews()
-        paintRenderView = PhotoPaintRenderView(context, image, 0)
+        paintRenderView = renderView
         paintRenderView.init()
         imageViewPlace.addView(
             paintRenderView,
@@ -52,7 +63,42 @@ class PhotoPaintView @JvmOverloads constructor(
         controls.bindWith(paintRenderView)
     }
 
-    override fun getResultImage(): Bitmap =
+    override fun getResultImage(): Bitmap? =
         paintRenderView.resultBitmap
 
+    override fun getResultImage(callback: (Bitmap?) -> Unit) =
+        paintRenderView.getResultBitmap { callback(it) }
+
+    /**
+     * Paints on a layer over the cropped and filtered preview, strokes and text are committed
+     * as parameters along with the layer.
+     */
+    override fun setSession(session: EditSession) {
+        session.renderPreview(EditSession.Stage.FILTER) { preview ->
+            if (ViewCompat.isAttachedToWindow(this)) {
+                val renderView = PhotoPaintRenderView(context, preview, 0, true, null)
+                val size = renderView.paintingSize
+                val paint = session.getPaint(size.width.toInt(), size.height.toInt())
+                base = paint?.base
+                paint?.let { renderView.setPaint(it.base, it.strokes, it.texts) }
+                setRenderView(renderView)
+            }
+        }
+    }
+
+    override fun commitTo(session: EditSession, callback: () -> Unit) {
+        if (!::paintRenderView.isInitialized) {
+            callback()
+            return
+        }
+        val crop = session.crop
+        val base = base
+        paintRenderView.getPaint { layer, strokes, texts ->
+            if (layer != null) {
+                session.paint = EditSession.PaintLayer(layer.width, layer.height, crop, strokes, texts, base, layer)
+            }
+            callback()
+        }
+    }
+
 }
\ No newline at end of file
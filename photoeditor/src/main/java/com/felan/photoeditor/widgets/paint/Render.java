@@ -1,12 +1,8 @@
 package com.felan.photoeditor.widgets.paint;
 
-import android.graphics.Matrix;
-import android.graphics.PointF;
 import android.graphics.RectF;
 import android.opengl.GLES20;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 public class Render {
@@ -23,14 +19,14 @@ public class Render {
             return null;
         }
 
+        float[] points = path.getPoints();
         if (length == 1) {
-            PaintStamp(path.getPoints()[0], state);
+            PaintStamp(points[0], points[1], state);
         } else {
-            Point[] points = path.getPoints();
             state.prepare();
 
-            for (int i = 0; i < points.length - 1; i++) {
-                PaintSegment(points[i], points[i + 1], state);
+            for (int i = 0; i < length - 1; i++) {
+                PaintSegment(points, i * Path.POINT_SIZE, state);
             }
         }
 
@@ -39,60 +35,73 @@ public class Render {
         return Draw(state);
     }
 
-    private static void PaintSegment(Point lastPoint, Point point, RenderState state) {
-        double distance = lastPoint.getDistanceTo(point);
-        Point vector = point.substract(lastPoint);
-        Point unitVector = new Point(1.0f, 1.0f, 0.0f);
-        float vectorAngle = Math.abs(state.angle) > 0.0f ? state.angle : (float) Math.atan2(vector.y, vector.x);
+    /**
+     * Stamps the segment from the point at {@code offset} of the packed points to the next one.
+     */
+    private static void PaintSegment(float[] points, int offset, RenderState state) {
+        float lastX = points[offset];
+        float lastY = points[offset + 1];
+        float pointX = points[offset + Path.POINT_SIZE];
+        float pointY = points[offset + Path.POINT_SIZE + 1];
+        double vectorX = pointX - lastX;
+        double vectorY = pointY - lastY;
+        double distance = Math.sqrt(vectorX * vectorX + vectorY * vectorY);
+        double unitX = 1.0;
+        double unitY = 1.0;
+        float vectorAngle = Math.abs(state.angle) > 0.0f ? state.angle : (float) Math.atan2(vectorY, vectorX);
 
         float brushWeight = state.baseWeight * state.scale;
         double step = Math.max(1.0f, state.spacing * brushWeight);
 
         if (distance > 0.0) {
-            unitVector = vector.multiplyByScalar(1.0 / distance);
+            unitX = vectorX / distance;
+            unitY = vectorY / distance;
         }
 
         float boldenedAlpha = Math.min(1.0f, state.alpha * 1.15f);
-        boolean boldenHead = lastPoint.edge;
-        boolean boldenTail = point.edge;
+        boolean boldenHead = points[offset + 2] != 0;
+        boolean boldenTail = points[offset + Path.POINT_SIZE + 2] != 0;
 
         int count = (int) Math.ceil((distance - state.remainder) / step);
         int currentCount = state.getCount();
         state.appendValuesCount(count);
         state.setPosition(currentCount);
 
-        Point start = lastPoint.add(unitVector.multiplyByScalar(state.remainder));
+        double x = lastX + unitX * state.remainder;
+        double y = lastY + unitY * state.remainder;
+        double stepX = unitX * step;
+        double stepY = unitY * step;
 
         boolean succeed = true;
         double f = state.remainder;
         for (; f <= distance; f += step) {
             float alpha = boldenHead ? boldenedAlpha : state.alpha;
-            succeed = state.addPoint(start.toPointF(), brushWeight, vectorAngle, alpha, -1);
+            succeed = state.addPoint((float) x, (float) y, brushWeight, vectorAngle, alpha, -1);
             if (!succeed) {
                 break;
             }
 
-            start = start.add(unitVector.multiplyByScalar(step));
+            x += stepX;
+            y += stepY;
             boldenHead = false;
         }
 
         if (succeed && boldenTail) {
             state.appendValuesCount(1);
-            state.addPoint(point.toPointF(), brushWeight, vectorAngle, boldenedAlpha, -1);
+            state.addPoint(pointX, pointY, brushWeight, vectorAngle, boldenedAlpha, -1);
         }
 
         state.remainder = f - distance;
     }
 
-    private static void PaintStamp(Point point, RenderState state) {
+    private static void PaintStamp(float x, float y, RenderState state) {
         float brushWeight = state.baseWeight * state.scale;
-        PointF start = point.toPointF();
         float angle = Math.abs(state.angle) > 0.0f ? state.angle : 0.0f;
         float alpha = state.alpha;
 
         state.prepare();
         state.appendValuesCount(1);
-        state.addPoint(start, brushWeight, angle, alpha, 0);
+        state.addPoint(x, y, brushWeight, angle, alpha, 0);
     }
 
     private static RectF Draw(RenderState state) {
@@ -103,15 +112,13 @@ public class Render {
             return dataBounds;
         }
 
-        int vertexDataSize = 5 * Float.SIZE / 8;
-        int capacity = vertexDataSize * (count * 4 + (count - 1) * 2);
-        ByteBuffer bb = ByteBuffer.allocateDirect(capacity);
-        bb.order(ByteOrder.nativeOrder());
-        FloatBuffer vertexData = bb.asFloatBuffer();
-        vertexData.position(0);
+        int vertexDataSize = RenderState.VERTEX_SIZE * Float.SIZE / 8;
+        FloatBuffer vertexData = state.getVertexData(count * 4);
         state.setPosition(0);
 
-        int n = 0;
+        float lastAngle = Float.NaN;
+        float sin = 0.0f;
+        float cos = 1.0f;
         for (int i = 0; i < count; i++) {
             float x = state.read();
             float y = state.read();
@@ -119,89 +126,63 @@ public class Render {
             float angle = state.read();
             float alpha = state.read();
 
-            RectF rect = new RectF(x - size, y - size, x + size, y + size);
-            float[] points = new float[]{
-                    rect.left, rect.top,
-                    rect.right, rect.top,
-                    rect.left, rect.bottom,
-                    rect.right, rect.bottom
-            };
-
-            float centerX = rect.centerX();
-            float centerY = rect.centerY();
-
-            Matrix t = new Matrix();
-            t.setRotate((float) Math.toDegrees(angle), centerX, centerY);
-            t.mapPoints(points);
-            t.mapRect(rect);
-
-            Utils.RectFIntegral(rect);
-            dataBounds.union(rect);
-
-            if (n != 0) {
-                vertexData.put(points[0]);
-                vertexData.put(points[1]);
-                vertexData.put(0);
-                vertexData.put(0);
-                vertexData.put(alpha);
-                n++;
+            // stamps of a segment share the angle
+            if (angle != lastAngle) {
+                sin = (float) Math.sin(angle);
+                cos = (float) Math.cos(angle);
+                lastAngle = angle;
             }
 
-            vertexData.put(points[0]);
-            vertexData.put(points[1]);
-            vertexData.put(0);
-            vertexData.put(0);
-            vertexData.put(alpha);
-            n++;
-
-            vertexData.put(points[2]);
-            vertexData.put(points[3]);
-            vertexData.put(1);
-            vertexData.put(0);
-            vertexData.put(alpha);
-            n++;
-
-            vertexData.put(points[4]);
-            vertexData.put(points[5]);
-            vertexData.put(0);
-            vertexData.put(1);
-            vertexData.put(alpha);
-            n++;
-
-            vertexData.put(points[6]);
-            vertexData.put(points[7]);
-            vertexData.put(1);
-            vertexData.put(1);
-            vertexData.put(alpha);
-            n++;
-
-            if (i != count - 1) {
-                vertexData.put(points[6]);
-                vertexData.put(points[7]);
-                vertexData.put(1);
-                vertexData.put(1);
-                vertexData.put(alpha);
-                n++;
-            }
+            // the corners (-size, -size), (size, -size), (-size, size), (size, size) rotated
+            // around the stamp center
+            float ax = size * (cos - sin);
+            float ay = size * (sin + cos);
+            float bx = size * (cos + sin);
+            float by = size * (sin - cos);
+            float x0 = x - ax, y0 = y - ay;
+            float x1 = x + bx, y1 = y + by;
+            float x2 = x - bx, y2 = y - by;
+            float x3 = x + ax, y3 = y + ay;
+
+            float extentX = Math.abs(ax) > Math.abs(bx) ? Math.abs(ax) : Math.abs(bx);
+            float extentY = Math.abs(ay) > Math.abs(by) ? Math.abs(ay) : Math.abs(by);
+            float left = (float) Math.floor(x - extentX);
+            float top = (float) Math.floor(y - extentY);
+            float right = (float) Math.ceil(x + extentX);
+            float bottom = (float) Math.ceil(y + extentY);
+            dataBounds.union(left, top, right, bottom);
+            state.markDirty(left, top, right, bottom);
+
+            putVertex(vertexData, x0, y0, 0, 0, alpha);
+            putVertex(vertexData, x1, y1, 1, 0, alpha);
+            putVertex(vertexData, x2, y2, 0, 1, alpha);
+            putVertex(vertexData, x3, y3, 1, 1, alpha);
         }
 
-        vertexData.position(0);
-        FloatBuffer coordData = vertexData.slice();
-        GLES20.glVertexAttribPointer(0, 2, GLES20.GL_FLOAT, false, vertexDataSize, coordData);
+        // each stamp is an indexed quad streamed into the vertex ring, instead of a strip joined
+        // by degenerate triangles the driver would copy from client memory on every draw
+        state.bindBuffers();
         GLES20.glEnableVertexAttribArray(0);
-
-        vertexData.position(2);
-        FloatBuffer texData = vertexData.slice();
-        GLES20.glVertexAttribPointer(1, 2, GLES20.GL_FLOAT, true, vertexDataSize, texData);
         GLES20.glEnableVertexAttribArray(1);
-
-        vertexData.position(4);
-        FloatBuffer alphaData = vertexData.slice();
-        GLES20.glVertexAttribPointer(2, 1, GLES20.GL_FLOAT, true, vertexDataSize, alphaData);
         GLES20.glEnableVertexAttribArray(2);
-
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, n);
+        for (int first = 0; first < count; first += RenderState.MAX_BATCH_QUADS) {
+            int quads = Math.min(RenderState.MAX_BATCH_QUADS, count - first);
+            int offset = state.uploadQuads(vertexData, first, quads);
+            GLES20.glVertexAttribPointer(0, 2, GLES20.GL_FLOAT, false, vertexDataSize, offset);
+            GLES20.glVertexAttribPointer(1, 2, GLES20.GL_FLOAT, true, vertexDataSize, offset + 2 * 4);
+            GLES20.glVertexAttribPointer(2, 1, GLES20.GL_FLOAT, true, vertexDataSize, offset + 4 * 4);
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, quads * 6, GLES20.GL_UNSIGNED_SHORT, 0);
+        }
+        state.unbindBuffers();
 
         return dataBounds;
     }
+
+    private static void putVertex(FloatBuffer vertexData, float x, float y, float u, float v, float alpha) {
+        vertexData.put(x);
+        vertexData.put(y);
+        vertexData.put(u);
+        vertexData.put(v);
+        vertexData.put(alpha);
+    }
 }
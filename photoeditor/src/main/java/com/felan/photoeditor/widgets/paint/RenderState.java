@@ -1,12 +1,26 @@
 package com.felan.photoeditor.widgets.paint;
 
-import android.graphics.PointF;
+import android.opengl.GLES20;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 
 public class RenderState {
     private static final int DEFAULT_STATE_SIZE = 256;
+    public static final int VERTEX_SIZE = 5;
+    /**
+     * Stamps drawn by one glDrawElements, as many as unsigned short indices can address.
+     */
+    public static final int MAX_BATCH_QUADS = 65536 / 4;
+    private static final int QUAD_BYTES = 4 * VERTEX_SIZE * 4;
+    private static final int VERTEX_RING_SIZE = MAX_BATCH_QUADS * QUAD_BYTES;
+    /**
+     * Side of the painting tiles the stroke damage is tracked in.
+     */
+    public static final int TILE_SIZE = 64;
 
     public float baseWeight;
     public float spacing;
@@ -19,6 +33,16 @@ public class RenderState {
     private int count;
     private int allocatedCount;
     private ByteBuffer buffer;
+    private FloatBuffer vertexData;
+    /**
+     * 0 - vertex ring, 1 - quad indices
+     */
+    private int[] glBuffers = new int[2];
+    private int ringOffset;
+    private int tileColumns;
+    private int tileRows;
+    private long[] dirtyTiles;
+    private int dirtyTileCount;
 
     public int getCount() {
         return count;
@@ -51,7 +75,7 @@ public class RenderState {
     public void appendValuesCount(int count) {
         int newTotalCount = this.count + count;
 
-        if (newTotalCount > allocatedCount || buffer == null) {
+        while (newTotalCount > allocatedCount || buffer == null) {
             resizeBuffer();
         }
 
@@ -59,18 +83,109 @@ public class RenderState {
     }
 
     public void resizeBuffer() {
-        if (buffer != null) {
-            buffer = null;
-        }
+        ByteBuffer oldBuffer = buffer;
 
         allocatedCount = Math.max(allocatedCount * 2, DEFAULT_STATE_SIZE);
 
         buffer = ByteBuffer.allocateDirect(allocatedCount * 5 * 4);
         buffer.order(ByteOrder.nativeOrder());
         buffer.position(0);
+        if (oldBuffer != null) {
+            // keep the stamps of the segments painted so far
+            int position = oldBuffer.position();
+            oldBuffer.position(0);
+            oldBuffer.limit(Math.min(count * 5 * 4, oldBuffer.capacity()));
+            buffer.put(oldBuffer);
+            buffer.position(Math.min(position, buffer.capacity()));
+        }
+    }
+
+    /**
+     * Vertex buffer for the stamp quads, {@link #VERTEX_SIZE} floats per vertex. It is kept
+     * between strokes and only grows, so painting doesn't allocate once it is large enough.
+     */
+    public FloatBuffer getVertexData(int vertexCount) {
+        int size = vertexCount * VERTEX_SIZE;
+        if (vertexData == null || vertexData.capacity() < size) {
+            int capacity = vertexData != null ? vertexData.capacity() : DEFAULT_STATE_SIZE * 6 * VERTEX_SIZE;
+            while (capacity < size) {
+                capacity *= 2;
+            }
+            ByteBuffer bb = ByteBuffer.allocateDirect(capacity * 4);
+            bb.order(ByteOrder.nativeOrder());
+            vertexData = bb.asFloatBuffer();
+        }
+        vertexData.clear();
+        return vertexData;
+    }
+
+    /**
+     * Binds the stamp vertex ring and the quad index buffer, creating them on first use. Must be
+     * called on the GL thread.
+     */
+    public void bindBuffers() {
+        if (glBuffers[0] == 0) {
+            GLES20.glGenBuffers(2, glBuffers, 0);
+
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, glBuffers[0]);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, VERTEX_RING_SIZE, null, GLES20.GL_STREAM_DRAW);
+            ringOffset = 0;
+
+            // two triangles per stamp quad, 0 1 2 and 2 1 3
+            ByteBuffer bb = ByteBuffer.allocateDirect(MAX_BATCH_QUADS * 6 * 2);
+            bb.order(ByteOrder.nativeOrder());
+            ShortBuffer indices = bb.asShortBuffer();
+            for (int i = 0; i < MAX_BATCH_QUADS; i++) {
+                int vertex = i * 4;
+                indices.put((short) vertex);
+                indices.put((short) (vertex + 1));
+                indices.put((short) (vertex + 2));
+                indices.put((short) (vertex + 2));
+                indices.put((short) (vertex + 1));
+                indices.put((short) (vertex + 3));
+            }
+            indices.position(0);
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, glBuffers[1]);
+            GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, MAX_BATCH_QUADS * 6 * 2, indices, GLES20.GL_STATIC_DRAW);
+        } else {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, glBuffers[0]);
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, glBuffers[1]);
+        }
+    }
+
+    /**
+     * Appends quads of the vertex data to the bound ring and returns their byte offset in it.
+     * When they don't fit behind the previous ones the ring is orphaned, the driver hands out
+     * fresh storage while draws still reading the old one finish.
+     */
+    public int uploadQuads(FloatBuffer data, int firstQuad, int quadCount) {
+        int bytes = quadCount * QUAD_BYTES;
+        if (ringOffset + bytes > VERTEX_RING_SIZE) {
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, VERTEX_RING_SIZE, null, GLES20.GL_STREAM_DRAW);
+            ringOffset = 0;
+        }
+        data.position(firstQuad * 4 * VERTEX_SIZE);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, ringOffset, bytes, data);
+        data.position(0);
+
+        int offset = ringOffset;
+        ringOffset += bytes;
+        return offset;
+    }
+
+    public void unbindBuffers() {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    public void cleanResources() {
+        if (glBuffers[0] != 0) {
+            GLES20.glDeleteBuffers(2, glBuffers, 0);
+            glBuffers[0] = glBuffers[1] = 0;
+        }
     }
 
-    public boolean addPoint(PointF point, float size, float angle, float alpha, int index) {
+    public boolean addPoint(float x, float y, float size, float angle, float alpha, int index) {
         if (index != -1 && index >= allocatedCount || buffer.position() == buffer.limit()) {
             resizeBuffer();
             return false;
@@ -79,8 +194,8 @@ public class RenderState {
         if (index != -1) {
             buffer.position(index * 5 * 4);
         }
-        buffer.putFloat(point.x);
-        buffer.putFloat(point.y);
+        buffer.putFloat(x);
+        buffer.putFloat(y);
         buffer.putFloat(size);
         buffer.putFloat(angle);
         buffer.putFloat(alpha);
@@ -94,5 +209,64 @@ public class RenderState {
         if (buffer != null) {
             buffer.position(0);
         }
+        clearDirtyTiles();
     }
+
+    //region Dirty tiles
+
+    public void setTileGrid(int width, int height) {
+        tileColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tileRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        dirtyTiles = new long[(tileColumns * tileRows + 63) / 64];
+        dirtyTileCount = 0;
+    }
+
+    public int getTileColumns() {
+        return tileColumns;
+    }
+
+    public int getTileRows() {
+        return tileRows;
+    }
+
+    /**
+     * Marks the tiles under the painting rect as touched by the stroke.
+     */
+    public void markDirty(float left, float top, float right, float bottom) {
+        if (dirtyTiles == null || right <= 0 || bottom <= 0) {
+            return;
+        }
+        int firstColumn = Math.max(0, (int) left / TILE_SIZE);
+        int firstRow = Math.max(0, (int) top / TILE_SIZE);
+        int lastColumn = Math.min(tileColumns - 1, ((int) Math.ceil(right) - 1) / TILE_SIZE);
+        int lastRow = Math.min(tileRows - 1, ((int) Math.ceil(bottom) - 1) / TILE_SIZE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int index = row * tileColumns + column;
+                long bit = 1L << (index & 63);
+                if ((dirtyTiles[index >> 6] & bit) == 0) {
+                    dirtyTiles[index >> 6] |= bit;
+                    dirtyTileCount++;
+                }
+            }
+        }
+    }
+
+    public boolean isTileDirty(int column, int row) {
+        int index = row * tileColumns + column;
+        return dirtyTiles != null && (dirtyTiles[index >> 6] & (1L << (index & 63))) != 0;
+    }
+
+    public int getDirtyTileCount() {
+        return dirtyTileCount;
+    }
+
+    public void clearDirtyTiles() {
+        if (dirtyTiles != null && dirtyTileCount > 0) {
+            Arrays.fill(dirtyTiles, 0);
+        }
+        dirtyTileCount = 0;
+    }
+
+    //endregion
 }
\ No newline at end of file
@@ -12,10 +12,12 @@ import android.view.MotionEvent;
 import android.view.TextureView;
 import android.view.View;
 
+import com.felan.photoeditor.utils.AndroidUtilities;
 import com.felan.photoeditor.utils.BuildVars;
 import com.felan.photoeditor.utils.DispatchQueue;
 import com.felan.photoeditor.utils.FileLog;
 import com.felan.photoeditor.utils.SizeFX;
+import com.felan.photoeditor.widgets.ExportPolicy;
 
 import java.util.concurrent.CountDownLatch;
 
@@ -27,6 +29,10 @@ import javax.microedition.khronos.egl.EGLSurface;
 
 public class RenderView extends TextureView {
 
+    public interface BitmapCallback {
+        void onBitmapReady(Bitmap bitmap);
+    }
+
     public interface RenderViewDelegate {
         void onBeganDrawing();
 
@@ -59,6 +65,9 @@ public class RenderView extends TextureView {
         orientation = rotation;
         painting = paint;
         painting.setRenderView(this);
+        if (painting.isLayered()) {
+            setOpaque(false);
+        }
 
         setSurfaceTextureListener(new SurfaceTextureListener() {
             @Override
@@ -385,9 +394,15 @@ public class RenderView extends TextureView {
             GLES20.glDisable(GLES20.GL_STENCIL_TEST);
             GLES20.glDisable(GLES20.GL_DEPTH_TEST);
 
+            // the painting of this view is sized already, the next one is sized by it
+            int[] maxTextureSize = new int[1];
+            GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+            ExportPolicy.setMaxTextureSize(maxTextureSize[0]);
+
             painting.setupShaders();
             checkBitmap();
             painting.setBitmap(bitmap);
+            painting.drawBaseStrokes();
 
             Utils.HasGLError();
 
@@ -441,7 +456,7 @@ public class RenderView extends TextureView {
                 GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
                 GLES20.glViewport(0, 0, bufferWidth, bufferHeight);
 
-                GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+                GLES20.glClearColor(0.0f, 0.0f, 0.0f, painting.isLayered() ? 0.0f : 1.0f);
                 GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
                 painting.render();
@@ -531,8 +546,8 @@ public class RenderView extends TextureView {
                 postRunnable(new Runnable() {
                     @Override
                     public void run() {
-                        Painting.PaintingData data = painting.getPaintingData(new RectF(0, 0, painting.getSize().width, painting.getSize().height), false);
-                        object[0] = data.bitmap;
+                        Painting.PaintingData data = painting.getPaintingData(painting.getBounds(), false);
+                        object[0] = data != null ? data.bitmap : null;
                         countDownLatch.countDown();
                     }
                 });
@@ -544,10 +559,45 @@ public class RenderView extends TextureView {
         }
     }
 
+    /**
+     * The painting at its own size rather than the size of the view. Blocks until the GL thread
+     * has read it back, prefer {@link #getResultBitmap(BitmapCallback)}.
+     */
     public Bitmap getResultBitmap() {
         return internal != null ? internal.getTexture() : null;
     }
 
+    /**
+     * Asynchronous {@link #getResultBitmap()}, the callback runs on the UI thread.
+     */
+    public void getResultBitmap(final BitmapCallback callback) {
+        if (internal == null || !internal.initialized) {
+            callback.onBitmapReady(null);
+            return;
+        }
+        performInContext(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                try {
+                    Painting.PaintingData data = painting.getPaintingData(painting.getBounds(), false);
+                    if (data != null) {
+                        bitmap = data.bitmap;
+                    }
+                } catch (Throwable e) {
+                    FileLog.e(e);
+                }
+                final Bitmap result = bitmap;
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onBitmapReady(result);
+                    }
+                });
+            }
+        });
+    }
+
     public void performInContext(final Runnable action) {
         if (internal == null) {
             return;
@@ -7,17 +7,32 @@ import com.felan.photoeditor.utils.DispatchQueue;
 import com.felan.photoeditor.utils.FileLog;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
-public class Slice {
+/**
+ * RGBA pixels of a region of the painting, kept deflated in a cache file.
+ * <p>
+ * The constructor only copies the pixels, compression and the write happen on the given queue.
+ * Until they are done the copy itself serves {@link #getData}.
+ */
+public class Slice implements UndoStore.Snapshot {
+    private final static int CHUNK_SIZE = 16 * 1024;
+    private final static int MAX_POOLED_BUFFERS = 4;
+    private final static int MAX_POOLED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final ArrayList<byte[]> bufferPool = new ArrayList<>();
+
     private RectF bounds;
     private File file;
+    private byte[] pendingData;
+    private int length;
+    private long diskSize;
 
     public Slice(final ByteBuffer data, RectF rect, DispatchQueue queue) {
         bounds = rect;
@@ -32,76 +47,155 @@ public class Slice {
         if (file == null)
             return;
 
-        storeData(data);
+        // the buffer is reused by the painting, so it is copied before returning
+        length = data.remaining();
+        pendingData = obtainBuffer(length);
+        int position = data.position();
+        data.get(pendingData, 0, length);
+        data.position(position);
+
+        queue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                storeData();
+            }
+        });
     }
 
-    public void cleanResources() {
+    public synchronized void cleanResources() {
         if (file != null) {
             file.delete();
             file = null;
         }
+        diskSize = 0;
+        // a running store may still read it, so it is left to the collector
+        pendingData = null;
     }
 
-    private void storeData(ByteBuffer data) {
-        try {
-            final byte[] input = data.array();
-            FileOutputStream fos = new FileOutputStream(file);
+    private void storeData() {
+        byte[] input;
+        File target;
+        synchronized (this) {
+            input = pendingData;
+            target = file;
+        }
+        if (input == null || target == null) {
+            return;
+        }
 
-            final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
-            deflater.setInput(input, data.arrayOffset(), data.remaining());
+        boolean stored = false;
+        FileOutputStream fos = null;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            fos = new FileOutputStream(target);
+            deflater.setInput(input, 0, length);
             deflater.finish();
 
-            byte[] buf = new byte[1024];
+            byte[] buf = new byte[CHUNK_SIZE];
             while (!deflater.finished()) {
                 int byteCount = deflater.deflate(buf);
                 fos.write(buf, 0, byteCount);
             }
-            deflater.end();
-
-            fos.close();
+            stored = true;
         } catch (Exception e) {
             FileLog.e(e);
+        } finally {
+            deflater.end();
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (Exception e) {
+                    stored = false;
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (file == null) {
+                // cleaned up while writing
+                target.delete();
+                return;
+            }
+            if (!stored) {
+                // keep serving the copy
+                return;
+            }
+            pendingData = null;
+            diskSize = target.length();
         }
+        releaseBuffer(input);
     }
 
-    public ByteBuffer getData() {
+    /**
+     * Inflates the pixels into {@code buffer}, which must have room for
+     * {@code getWidth() * getHeight() * 4} bytes, and returns it positioned at 0 with the
+     * limit at the end of the pixels. Returns null if they can't be read.
+     */
+    public ByteBuffer getData(ByteBuffer buffer) {
+        buffer.clear();
+        synchronized (this) {
+            if (pendingData != null) {
+                buffer.put(pendingData, 0, length);
+                buffer.flip();
+                return buffer;
+            }
+            if (file == null) {
+                return null;
+            }
+        }
+
+        FileInputStream fin = null;
+        Inflater inflater = new Inflater(true);
         try {
-            byte[] input = new byte[1024];
-            byte[] output = new byte[1024];
-            FileInputStream fin = new FileInputStream(file);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            Inflater inflater = new Inflater(true);
-
-            while (true) {
-                int numRead = fin.read(input);
-                if (numRead != -1) {
+            byte[] input = new byte[CHUNK_SIZE];
+            byte[] output = new byte[CHUNK_SIZE];
+            fin = new FileInputStream(file);
+
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    int numRead = fin.read(input);
+                    if (numRead == -1) {
+                        break;
+                    }
                     inflater.setInput(input, 0, numRead);
                 }
 
                 int numDecompressed;
                 while ((numDecompressed = inflater.inflate(output, 0, output.length)) != 0) {
-                    bos.write(output, 0, numDecompressed);
+                    buffer.put(output, 0, numDecompressed);
                 }
+            }
+            buffer.flip();
+            return buffer;
+        } catch (Exception e) {
+            FileLog.e(e);
+        } finally {
+            inflater.end();
+            if (fin != null) {
+                try {
+                    fin.close();
+                } catch (Exception ignore) {
 
-                if (inflater.finished()) {
-                    break;
-                } else if (inflater.needsInput()) {
-                    continue;
                 }
             }
+        }
 
-            inflater.end();
-            ByteBuffer result = ByteBuffer.wrap(bos.toByteArray(), 0, bos.size());
+        return null;
+    }
 
-            bos.close();
-            fin.close();
+    @Override
+    public synchronized long getMemorySize() {
+        return pendingData != null ? length : 0;
+    }
 
-            return result;
-        } catch (Exception e) {
-            FileLog.e(e);
-        }
+    @Override
+    public synchronized long getDiskSize() {
+        return diskSize;
+    }
 
-        return null;
+    @Override
+    public void discard() {
+        cleanResources();
     }
 
     public int getX() {
@@ -123,4 +217,26 @@ public class Slice {
     public RectF getBounds() {
         return new RectF(bounds);
     }
+
+    private static byte[] obtainBuffer(int size) {
+        synchronized (bufferPool) {
+            for (int a = 0; a < bufferPool.size(); a++) {
+                if (bufferPool.get(a).length >= size) {
+                    return bufferPool.remove(a);
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    private static void releaseBuffer(byte[] buffer) {
+        if (buffer.length > MAX_POOLED_BUFFER_SIZE) {
+            return;
+        }
+        synchronized (bufferPool) {
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.add(buffer);
+            }
+        }
+    }
 }
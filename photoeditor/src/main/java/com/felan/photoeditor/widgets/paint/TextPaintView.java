@@ -3,10 +3,13 @@ package com.felan.photoeditor.widgets.paint;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Paint;
 import android.graphics.Typeface;
 import android.os.Build;
 import android.text.Editable;
 import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
 import android.text.TextWatcher;
 import android.util.TypedValue;
 import android.view.Gravity;
@@ -15,10 +18,13 @@ import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
 import android.widget.LinearLayout;
 
+import com.felan.photoeditor.engine.EditRecipe;
 import com.felan.photoeditor.utils.AndroidUtilities;
 
 public class TextPaintView extends EntityView {
 
+    private final static int SHADOW_COLOR = 0xaa000000;
+
     private EditTextOutline editText;
     private int color;
     private boolean stroke;
@@ -90,6 +96,64 @@ public class TextPaintView extends EntityView {
         setScale(textPaintView.getScale());
     }
 
+    /**
+     * Restores an entity saved by {@link #toRecipe}, {@code scale} is the ratio of its pixels to
+     * the ones of the view.
+     */
+    public TextPaintView(Context context, EditRecipe.Text text, float scale, int fontSize) {
+        this(context, new Point2(text.x / scale, text.y / scale), fontSize, text.text, text.color, text.outline);
+        setRotation(text.rotation);
+        setScale(text.scale * text.textSize / (scale * editText.getTextSize()));
+    }
+
+    /**
+     * The entity as parameters, in pixels {@code scale} times the ones of the view.
+     */
+    public EditRecipe.Text toRecipe(float scale) {
+        int layoutWidth = editText.getWidth() - editText.getTotalPaddingLeft() - editText.getTotalPaddingRight();
+        return new EditRecipe.Text(getText(), color, stroke, position.x * scale, position.y * scale,
+                getRotation(), getScale(), editText.getTextSize() * scale, layoutWidth * scale,
+                editText.getShadowRadius() * scale, editText.getShadowDy() * scale);
+    }
+
+    /**
+     * Draws {@code text} the way the view shows it, at the resolution of {@code canvas} rather
+     * than scaled from the pixels of the view.
+     */
+    public static void draw(Canvas canvas, EditRecipe.Text text) {
+        TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTypeface(Typeface.DEFAULT_BOLD);
+        paint.setTextSize(text.textSize);
+
+        // the lines are broken where the view broke them, with a little room for glyphs that
+        // measure wider at another size
+        int width = (int) Math.ceil(text.layoutWidth + text.textSize / 16);
+        StaticLayout layout = new StaticLayout(text.text, paint, Math.max(1, width), Layout.Alignment.ALIGN_CENTER, 1, 0, true);
+
+        canvas.save();
+        canvas.translate(text.x, text.y);
+        canvas.rotate(text.rotation);
+        canvas.scale(text.scale, text.scale);
+        canvas.translate(-width / 2.0f, -layout.getHeight() / 2.0f);
+        if (text.outline) {
+            paint.setStyle(Paint.Style.FILL_AND_STROKE);
+            paint.setStrokeWidth(text.textSize / 11.5f);
+            paint.setColor(text.color);
+            layout.draw(canvas);
+
+            paint.setStyle(Paint.Style.FILL);
+            paint.setStrokeWidth(0);
+            paint.setColor(0xffffffff);
+        } else {
+            paint.setColor(text.color);
+            if (text.shadowRadius > 0) {
+                paint.setShadowLayer(text.shadowRadius, 0, text.shadowDy, SHADOW_COLOR);
+            }
+        }
+        layout.draw(canvas);
+        canvas.restore();
+    }
+
     public void setMaxWidth(int maxWidth) {
         editText.setMaxWidth(maxWidth);
     }
@@ -162,7 +226,7 @@ public class TextPaintView extends EntityView {
         } else {
             editText.setTextColor(color);
             editText.setStrokeColor(Color.TRANSPARENT);
-            editText.setShadowLayer(8, 0, 2, 0xaa000000);
+            editText.setShadowLayer(8, 0, 2, SHADOW_COLOR);
         }
     }
 
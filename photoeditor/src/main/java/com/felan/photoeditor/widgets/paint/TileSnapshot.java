@@ -0,0 +1,112 @@
+package com.felan.photoeditor.widgets.paint;
+
+import android.graphics.RectF;
+
+/**
+ * The painting tiles a stroke touched, as they were before it.
+ * <p>
+ * Tiles are held in a {@link TileStore}, snapshots saving identical pixels share them.
+ */
+class TileSnapshot implements UndoStore.Snapshot {
+
+    private final TileStore store;
+    /**
+     * x, y, width and height of every tile
+     */
+    private final int[] rects;
+    private final TileStore.Tile[] tiles;
+    private final int count;
+    private final RectF bounds;
+    private boolean discarded;
+    /**
+     * Recorded strokes the snapshot undoes, more than one when strokes were coalesced.
+     */
+    private int strokeCount;
+
+    TileSnapshot(TileStore store, int[] rects, TileStore.Tile[] tiles, int count) {
+        this.store = store;
+        this.rects = rects;
+        this.tiles = tiles;
+        this.count = count;
+
+        bounds = new RectF();
+        for (int a = 0; a < count; a++) {
+            int x = rects[a * 4];
+            int y = rects[a * 4 + 1];
+            bounds.union(x, y, x + rects[a * 4 + 2], y + rects[a * 4 + 3]);
+        }
+    }
+
+    int getTileCount() {
+        return count;
+    }
+
+    int getX(int index) {
+        return rects[index * 4];
+    }
+
+    int getY(int index) {
+        return rects[index * 4 + 1];
+    }
+
+    int getWidth(int index) {
+        return rects[index * 4 + 2];
+    }
+
+    int getHeight(int index) {
+        return rects[index * 4 + 3];
+    }
+
+    TileStore.Tile getTile(int index) {
+        return tiles[index];
+    }
+
+    boolean contains(int x, int y) {
+        for (int a = 0; a < count; a++) {
+            if (rects[a * 4] == x && rects[a * 4 + 1] == y) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int getStrokeCount() {
+        return strokeCount;
+    }
+
+    void setStrokeCount(int count) {
+        strokeCount = count;
+    }
+
+    RectF getBounds() {
+        return new RectF(bounds);
+    }
+
+    @Override
+    public synchronized long getMemorySize() {
+        if (discarded) {
+            return 0;
+        }
+        long size = 0;
+        for (int a = 0; a < count; a++) {
+            size += store.getSharedSize(tiles[a]);
+        }
+        return size;
+    }
+
+    @Override
+    public long getDiskSize() {
+        return 0;
+    }
+
+    @Override
+    public synchronized void discard() {
+        if (discarded) {
+            return;
+        }
+        discarded = true;
+        for (int a = 0; a < count; a++) {
+            store.release(tiles[a]);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.felan.photoeditor.widgets.paint;
+
+import com.felan.photoeditor.utils.DispatchQueue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pixels of painting tiles kept by the undo history, shared between snapshots.
+ * <p>
+ * Tiles are looked up by a hash of their pixels, so a tile that is saved again unchanged, or
+ * that equals another one like the empty tiles of a fresh canvas, is kept only once. A tile is
+ * dropped when the last snapshot holding it releases it.
+ * <p>
+ * New tiles are kept as they were read until {@link #compress} deflates them on the given
+ * queue, like {@link Slice} does, and are inflated again when they are restored.
+ */
+class TileStore {
+
+    static class Tile {
+        private final long hash;
+        private final int length;
+        /**
+         * The raw pixels until the tile is compressed, then null.
+         */
+        private byte[] data;
+        private byte[] compressed;
+        private int references;
+
+        private Tile(long hash, byte[] data) {
+            this.hash = hash;
+            this.data = data;
+            length = data.length;
+        }
+
+        private int getStoredSize() {
+            return data != null ? data.length : compressed.length;
+        }
+    }
+
+    private final HashMap<Long, ArrayList<Tile>> tiles = new HashMap<>();
+    private final ArrayList<Tile> pending = new ArrayList<>();
+    private boolean compressing;
+    private byte[] inflated;
+    private long size;
+    private int count;
+
+    /**
+     * Returns the tile with the first {@code length} bytes of {@code pixels}, retained for the
+     * caller. The array isn't kept, so it can be reused for the next tile.
+     */
+    synchronized Tile obtain(byte[] pixels, int length) {
+        long hash = hash(pixels, length);
+        ArrayList<Tile> bucket = tiles.get(hash);
+        if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            tiles.put(hash, bucket);
+        }
+        for (int a = 0; a < bucket.size(); a++) {
+            Tile tile = bucket.get(a);
+            if (tile.length == length && equals(getPixels(tile), pixels, length)) {
+                tile.references++;
+                return tile;
+            }
+        }
+
+        Tile tile = new Tile(hash, Arrays.copyOf(pixels, length));
+        tile.references = 1;
+        bucket.add(tile);
+        pending.add(tile);
+        size += length;
+        count++;
+        return tile;
+    }
+
+    synchronized void retain(Tile tile) {
+        tile.references++;
+    }
+
+    synchronized void release(Tile tile) {
+        if (--tile.references > 0) {
+            return;
+        }
+        ArrayList<Tile> bucket = tiles.get(tile.hash);
+        if (bucket != null && bucket.remove(tile)) {
+            if (bucket.isEmpty()) {
+                tiles.remove(tile.hash);
+            }
+            pending.remove(tile);
+            size -= tile.getStoredSize();
+            count--;
+        }
+    }
+
+    /**
+     * Puts the pixels of {@code tile} into {@code buffer} at its position.
+     */
+    synchronized void getData(Tile tile, ByteBuffer buffer) {
+        buffer.put(getPixels(tile), 0, tile.length);
+    }
+
+    /**
+     * Deflates the tiles obtained since the last call on {@code queue}.
+     */
+    void compress(DispatchQueue queue) {
+        synchronized (this) {
+            if (compressing || pending.isEmpty()) {
+                return;
+            }
+            compressing = true;
+        }
+        queue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                compressPending();
+            }
+        });
+    }
+
+    private void compressPending() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        byte[] buffer = new byte[RenderState.TILE_SIZE * RenderState.TILE_SIZE * 4 + 64];
+        try {
+            while (true) {
+                Tile tile;
+                byte[] input;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        compressing = false;
+                        return;
+                    }
+                    tile = pending.remove(pending.size() - 1);
+                    input = tile.data;
+                }
+
+                deflater.reset();
+                deflater.setInput(input, 0, tile.length);
+                deflater.finish();
+                int length = deflater.deflate(buffer);
+                if (!deflater.finished() || length >= tile.length) {
+                    // doesn't compress, keep the pixels as they are
+                    continue;
+                }
+                byte[] compressed = Arrays.copyOf(buffer, length);
+
+                synchronized (this) {
+                    // released while compressing
+                    if (tile.references <= 0) {
+                        continue;
+                    }
+                    tile.compressed = compressed;
+                    tile.data = null;
+                    size -= tile.length - compressed.length;
+                }
+            }
+        } finally {
+            deflater.end();
+            synchronized (this) {
+                compressing = false;
+            }
+        }
+    }
+
+    /**
+     * The raw pixels of {@code tile}, inflated into a shared buffer if it is compressed. Must be
+     * called holding the lock.
+     */
+    private byte[] getPixels(Tile tile) {
+        if (tile.data != null) {
+            return tile.data;
+        }
+        if (inflated == null || inflated.length < tile.length) {
+            inflated = new byte[tile.length];
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(tile.compressed);
+            inflater.inflate(inflated, 0, tile.length);
+        } catch (DataFormatException e) {
+            // it was deflated in this process, a failure here is a bug
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+        return inflated;
+    }
+
+    /**
+     * Share of the tile memory charged to each snapshot holding it.
+     */
+    synchronized long getSharedSize(Tile tile) {
+        return tile.references > 0 ? tile.getStoredSize() / tile.references : 0;
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    private static long hash(byte[] pixels, int length) {
+        // 64 bit FNV-1a, collisions are settled by comparing the pixels
+        long hash = 0xcbf29ce484222325L;
+        for (int a = 0; a < length; a++) {
+            hash ^= pixels[a] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static boolean equals(byte[] first, byte[] second, int length) {
+        for (int a = 0; a < length; a++) {
+            if (first[a] != second[a]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -4,68 +4,295 @@ package com.felan.photoeditor.widgets.paint;
 import android.os.Handler;
 import android.os.Looper;
 
-import com.felan.photoeditor.utils.AndroidUtilities;
-
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+/**
+ * Undo and redo history of the paint screen.
+ * <p>
+ * Operations may keep a {@link Snapshot} of the painting, whose memory and disk use count
+ * against a byte budget. When a new operation goes over it, the oldest snapshots are dropped
+ * together with their operations, then the redo steps furthest from the current state.
+ * <p>
+ * An operation that can be redone registers its redo step while it is undone, and the redo
+ * step puts the operation back with {@link #restoreUndo}. A new operation clears the redo steps.
+ */
 public class UndoStore {
 
     public interface UndoStoreDelegate {
         void historyChanged();
     }
 
+    /**
+     * Data an operation keeps to undo itself.
+     */
+    public interface Snapshot {
+        long getMemorySize();
+
+        long getDiskSize();
+
+        /**
+         * Releases the memory and files, the operation won't be undone any more.
+         */
+        void discard();
+    }
+
+    public final static long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    /**
+     * {@link #DEFAULT_BUDGET}, or an eighth of the heap on devices where that is less. Undo
+     * tiles live on the Java heap, deflated once the paint queue gets to them.
+     */
+    public static long getDefaultBudget() {
+        return Math.min(DEFAULT_BUDGET, Runtime.getRuntime().maxMemory() / 8);
+    }
+
     private UndoStoreDelegate delegate;
     private Map<UUID, Runnable> uuidToOperationMap = new HashMap<>();
+    private Map<UUID, Snapshot> uuidToSnapshotMap = new HashMap<>();
     private List<UUID> operations = new ArrayList<>();
+    private Map<UUID, Runnable> uuidToRedoMap = new HashMap<>();
+    private Map<UUID, Snapshot> uuidToRedoSnapshotMap = new HashMap<>();
+    private List<UUID> redoOperations = new ArrayList<>();
+    private long budget = getDefaultBudget();
 
-    public boolean canUndo() {
+    public synchronized boolean canUndo() {
         return !operations.isEmpty();
     }
 
+    public synchronized boolean canRedo() {
+        return !redoOperations.isEmpty();
+    }
+
     public void setDelegate(UndoStoreDelegate undoStoreDelegate) {
         delegate = undoStoreDelegate;
     }
 
+    public synchronized void setBudget(long bytes) {
+        budget = bytes;
+        trim();
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
     public void registerUndo(UUID uuid, Runnable undoRunnable) {
+        registerUndo(uuid, undoRunnable, null);
+    }
+
+    public void registerUndo(UUID uuid, Runnable undoRunnable, Snapshot snapshot) {
+        synchronized (this) {
+            // the redo steps led away from the state the new operation starts at
+            clearRedo();
+            addUndo(uuid, undoRunnable, snapshot);
+        }
+
+        notifyOfHistoryChanges();
+    }
+
+    /**
+     * Puts back an operation that was redone, keeping the remaining redo steps.
+     */
+    public void restoreUndo(UUID uuid, Runnable undoRunnable, Snapshot snapshot) {
+        synchronized (this) {
+            addUndo(uuid, undoRunnable, snapshot);
+        }
+
+        notifyOfHistoryChanges();
+    }
+
+    /**
+     * Registers the step redoing an operation, called while the operation is undone.
+     */
+    public void registerRedo(UUID uuid, Runnable redoRunnable, Snapshot snapshot) {
+        synchronized (this) {
+            uuidToRedoMap.put(uuid, redoRunnable);
+            if (snapshot != null) {
+                uuidToRedoSnapshotMap.put(uuid, snapshot);
+            }
+            redoOperations.add(uuid);
+            trim();
+        }
+
+        notifyOfHistoryChanges();
+    }
+
+    private void addUndo(UUID uuid, Runnable undoRunnable, Snapshot snapshot) {
         uuidToOperationMap.put(uuid, undoRunnable);
+        if (snapshot != null) {
+            uuidToSnapshotMap.put(uuid, snapshot);
+        }
         operations.add(uuid);
+        trim();
+    }
 
-        notifyOfHistoryChanges();
+    /**
+     * Replaces the last operation with one that undoes it together with the next one, dropping
+     * its snapshot.
+     */
+    public void coalesceLast(UUID uuid, Runnable undoRunnable, Snapshot snapshot) {
+        synchronized (this) {
+            if (!operations.isEmpty()) {
+                UUID last = operations.remove(operations.size() - 1);
+                uuidToOperationMap.remove(last);
+                Snapshot lastSnapshot = uuidToSnapshotMap.remove(last);
+                if (lastSnapshot != null) {
+                    lastSnapshot.discard();
+                }
+            }
+        }
+        registerUndo(uuid, undoRunnable, snapshot);
     }
 
     public void unregisterUndo(UUID uuid) {
-        uuidToOperationMap.remove(uuid);
-        operations.remove(uuid);
+        synchronized (this) {
+            uuidToOperationMap.remove(uuid);
+            operations.remove(uuid);
+            Snapshot snapshot = uuidToSnapshotMap.remove(uuid);
+            if (snapshot != null) {
+                snapshot.discard();
+            }
+        }
 
         notifyOfHistoryChanges();
     }
 
     public void undo() {
-        if (operations.size() == 0) {
-            return;
-        }
+        Runnable undoRunnable;
+        synchronized (this) {
+            if (operations.size() == 0) {
+                return;
+            }
 
-        int lastIndex = operations.size() - 1;
-        UUID uuid = operations.get(lastIndex);
-        Runnable undoRunnable = uuidToOperationMap.get(uuid);
-        uuidToOperationMap.remove(uuid);
-        operations.remove(lastIndex);
+            int lastIndex = operations.size() - 1;
+            UUID uuid = operations.get(lastIndex);
+            undoRunnable = uuidToOperationMap.get(uuid);
+            uuidToOperationMap.remove(uuid);
+            // the operation releases its snapshot once it is restored
+            uuidToSnapshotMap.remove(uuid);
+            operations.remove(lastIndex);
+        }
 
         undoRunnable.run();
         notifyOfHistoryChanges();
     }
 
+    public void redo() {
+        Runnable redoRunnable;
+        synchronized (this) {
+            if (redoOperations.size() == 0) {
+                return;
+            }
+
+            int lastIndex = redoOperations.size() - 1;
+            UUID uuid = redoOperations.remove(lastIndex);
+            redoRunnable = uuidToRedoMap.remove(uuid);
+            // like undo, the step releases its snapshot once it is restored
+            uuidToRedoSnapshotMap.remove(uuid);
+        }
+
+        redoRunnable.run();
+        notifyOfHistoryChanges();
+    }
+
     public void reset() {
-        operations.clear();
-        uuidToOperationMap.clear();
+        synchronized (this) {
+            operations.clear();
+            uuidToOperationMap.clear();
+            for (Snapshot snapshot : uuidToSnapshotMap.values()) {
+                snapshot.discard();
+            }
+            uuidToSnapshotMap.clear();
+            clearRedo();
+        }
 
         notifyOfHistoryChanges();
     }
 
+    private void clearRedo() {
+        redoOperations.clear();
+        uuidToRedoMap.clear();
+        for (Snapshot snapshot : uuidToRedoSnapshotMap.values()) {
+            snapshot.discard();
+        }
+        uuidToRedoSnapshotMap.clear();
+    }
+
+    /**
+     * The snapshot of the newest operation, null if it has none.
+     */
+    public synchronized Snapshot getLastSnapshot() {
+        if (operations.isEmpty()) {
+            return null;
+        }
+        return uuidToSnapshotMap.get(operations.get(operations.size() - 1));
+    }
+
+    /**
+     * Whether adding a snapshot of about {@code bytes} would go over the budget.
+     */
+    public synchronized boolean wouldExceedBudget(long bytes) {
+        return getFootprint() + bytes > budget;
+    }
+
+    public synchronized long getMemoryFootprint() {
+        long size = 0;
+        for (Snapshot snapshot : uuidToSnapshotMap.values()) {
+            size += snapshot.getMemorySize();
+        }
+        for (Snapshot snapshot : uuidToRedoSnapshotMap.values()) {
+            size += snapshot.getMemorySize();
+        }
+        return size;
+    }
+
+    public synchronized long getDiskFootprint() {
+        long size = 0;
+        for (Snapshot snapshot : uuidToSnapshotMap.values()) {
+            size += snapshot.getDiskSize();
+        }
+        for (Snapshot snapshot : uuidToRedoSnapshotMap.values()) {
+            size += snapshot.getDiskSize();
+        }
+        return size;
+    }
+
+    public synchronized long getFootprint() {
+        return getMemoryFootprint() + getDiskFootprint();
+    }
+
+    private void trim() {
+        long footprint = getFootprint();
+        for (int a = 0; a < operations.size() && footprint > budget; ) {
+            UUID uuid = operations.get(a);
+            Snapshot snapshot = uuidToSnapshotMap.get(uuid);
+            // the newest operation is always kept, even if it doesn't fit alone
+            if (snapshot == null || a == operations.size() - 1) {
+                a++;
+                continue;
+            }
+            footprint -= snapshot.getMemorySize() + snapshot.getDiskSize();
+            snapshot.discard();
+            uuidToSnapshotMap.remove(uuid);
+            uuidToOperationMap.remove(uuid);
+            operations.remove(a);
+        }
+        // the first redo step undone is the furthest from the current state
+        while (footprint > budget && !redoOperations.isEmpty()) {
+            UUID uuid = redoOperations.remove(0);
+            uuidToRedoMap.remove(uuid);
+            Snapshot snapshot = uuidToRedoSnapshotMap.remove(uuid);
+            if (snapshot != null) {
+                footprint -= snapshot.getMemorySize() + snapshot.getDiskSize();
+                snapshot.discard();
+            }
+        }
+    }
+
     private void notifyOfHistoryChanges() {
         new Handler(Looper.getMainLooper()).post(() -> {
             if (delegate != null) {